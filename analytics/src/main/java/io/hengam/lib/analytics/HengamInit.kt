@@ -6,10 +6,12 @@ import io.hengam.lib.LogTag.T_INIT
 import io.hengam.lib.Hengam
 import io.hengam.lib.analytics.dagger.AnalyticsComponent
 import io.hengam.lib.analytics.dagger.DaggerAnalyticsComponent
+import io.hengam.lib.analytics.tasks.SessionEndDetectorTask
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamComponentInitializer
 import io.hengam.lib.internal.HengamInternals
+import io.hengam.lib.internal.task.TaskRegistry
 import io.hengam.lib.utils.log.Plog
 
 
@@ -29,6 +31,9 @@ class AnalyticsInitializer : HengamComponentInitializer() {
         /* Extend Moshi */
         extendMoshi(analyticsComponent.moshi())
 
+        /* Register tasks */
+        TaskRegistry.register(SessionEndDetectorTask::class) { SessionEndDetectorTask() }
+
         /* Receive messages */
         analyticsComponent.messageDispatcher().listenForMessages()
 
@@ -101,10 +101,11 @@ class SessionFlowManager @Inject constructor (
                     activity.intent.getStringExtra(ACTIVITY_EXTRA_NOTIF_MESSAGE_ID)
                 )
                     .doOnComplete {
-                        Plog.trace(T_ANALYTICS_SESSION, "SessionFlow was updated due to activity resume",
-                            "Session Id" to sessionIdProvider.sessionId,
-                            "Last Activity" to sessionFlow.last().name
-                        )
+                        Plog.trace(T_ANALYTICS_SESSION) {
+                            message = "SessionFlow was updated due to activity resume"
+                            withData("Session Id", sessionIdProvider.sessionId)
+                            withData("Last Activity", sessionFlow.last().name)
+                        }
                     }
                     .doOnError {
                         Plog.error(T_ANALYTICS_SESSION, "Error trying to update session flow on activity resume", it,
@@ -165,11 +166,12 @@ class SessionFlowManager @Inject constructor (
             .flatMapCompletable { activity ->
                 updateActivityDuration(activity.javaClass.simpleName)
                     .doOnComplete {
-                        Plog.trace(T_ANALYTICS_SESSION, "Activity duration was updated in the sessionFlow",
-                            "Session Id" to sessionIdProvider.sessionId,
-                            "Activity" to sessionFlow.last().name,
-                            "Duration" to sessionFlow.last().duration
-                        )
+                        Plog.trace(T_ANALYTICS_SESSION) {
+                            message = "Activity duration was updated in the sessionFlow"
+                            withData("Session Id", sessionIdProvider.sessionId)
+                            withData("Activity", sessionFlow.last().name)
+                            withData("Duration", sessionFlow.last().duration)
+                        }
                     }
                     .doOnError {
                         Plog.error(T_ANALYTICS_SESSION, "Error trying to update activity duration in sessionFlow", it,
@@ -238,7 +240,7 @@ class SessionFlowManager @Inject constructor (
                 sessionFlow.add(sessionActivity)
             } else if (sessionFlow.last().name == activityName) {
                 sessionFlow.last().startTime = currentTimeGenerator.getCurrentTime()
-                sessionFlow.save()
+                sessionFlow.save(sessionFlow.lastIndex)
             } else Completable.complete()
         }
     }
@@ -261,7 +263,7 @@ class SessionFlowManager @Inject constructor (
                 Completable.fromCallable {
                     sessionFlow.last().duration +=
                         currentTimeGenerator.getCurrentTime() - sessionFlow.last().startTime
-                    sessionFlow.save()
+                    sessionFlow.save(sessionFlow.lastIndex)
                 }
         }
     }
@@ -318,7 +320,7 @@ class SessionFlowManager @Inject constructor (
                                 } else if (flow.last().name == sessionFragmentInfo.fragmentName) {
                                     flow.last().startTime = currentTimeGenerator.getCurrentTime()
                                 }
-                                sessionFlow.save()
+                                sessionFlow.save(sessionFlow.lastIndex)
                             }
                             .ignoreElement()
                     )
@@ -363,7 +365,7 @@ class SessionFlowManager @Inject constructor (
                             else -> {
                                 flow.last().duration += (currentTimeGenerator.getCurrentTime()
                                         - (flow.last().startTime))
-                                sessionFlow.save()
+                                sessionFlow.save(sessionFlow.lastIndex)
                                 Completable.complete()
                             }
                         }
@@ -14,6 +14,7 @@ import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.internal.task.OneTimeTaskOptions
 import io.hengam.lib.internal.task.HengamTask
+import io.hengam.lib.internal.task.TaskPriority
 import io.hengam.lib.utils.assertCpuThread
 import io.hengam.lib.utils.log.Plog
 import io.reactivex.Single
@@ -47,5 +48,6 @@ class SessionEndDetectorTask: HengamTask() {
         override fun task() = SessionEndDetectorTask::class
         override fun taskId() = "hengam_session_end_detector"
         override fun existingWorkPolicy() = ExistingWorkPolicy.REPLACE
+        override fun priority() = TaskPriority.LOW
     }
 }
\ No newline at end of file
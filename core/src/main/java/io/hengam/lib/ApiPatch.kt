@@ -51,11 +51,22 @@ object ApiPatch {
                                                   messageKey: String,
                                                   messageValue: List<UpstreamMessage>): Boolean {
         val singleMessageAdapter = moshi.adapter(UpstreamMessage::class.java)
+        val singleMessage = getSingleRegistrationMessage(messageKey, messageValue) ?: return false
+        singleMessageAdapter.toJson(writer, singleMessage)
+        return true
+    }
+
+    /**
+     * @see convertRegistrationMessageToSingleMessage
+     *
+     * @return The single registration message which should be sent instead of the message list or
+     *         null if the message list should be sent as a list
+     */
+    fun getSingleRegistrationMessage(messageKey: String, messageValue: List<UpstreamMessage>): UpstreamMessage? {
         if (messageKey == "t${MessageType.Upstream.REGISTRATION}" && messageValue.isNotEmpty()) {
-            singleMessageAdapter.toJson(writer, messageValue.maxBy { it.time.toMillis() })
-            return true
+            return messageValue.maxBy { it.time.toMillis() }
         }
-        return false
+        return null
     }
 
     /**
@@ -16,6 +16,7 @@ object MessageFields {
     const val MESSAGE_ID = "message_id"
     const val REQUEST_DELIVERY = "request_delivery"
     const val COURIER = "courier"
+    const val ALLOW_MULTI_PUBLISH = "allow_multi_publish"
 }
 
 object LogTag {
@@ -8,6 +8,7 @@ import io.hengam.lib.internal.*
 import io.hengam.lib.internal.task.*
 import io.hengam.lib.messages.common.ApplicationDetailJsonAdapter
 import io.hengam.lib.messages.downstream.RunDebugCommandMessage
+import io.hengam.lib.messages.mixin.MixinSnapshotCache
 import io.hengam.lib.messaging.*
 import io.hengam.lib.messaging.fcm.FcmServiceManager
 import io.hengam.lib.messaging.fcm.FcmTokenStore
@@ -32,6 +33,7 @@ class DebugCommands @Inject constructor(
         private val taskScheduler: TaskScheduler,
         private val hengamConfig: HengamConfig,
         private val messageStore: MessageStore,
+        private val messageStoreBackend: MessageStoreBackend,
         private val context: Context,
         private val moshi: HengamMoshi,
         private val topicManager: TopicManager,
@@ -41,7 +43,9 @@ class DebugCommands @Inject constructor(
         private val hengamLifecycle: HengamLifecycle,
         private val fcmTokenStore: FcmTokenStore,
         private val tagManager: TagManager,
-        private val geoUtils: GeoUtils
+        private val geoUtils: GeoUtils,
+        private val hengamStorage: HengamStorage,
+        private val mixinSnapshotCache: MixinSnapshotCache
 ) : DebugCommandProvider {
     private val loremIpsum: String = "Lorem ipsum dolor sit amet, consectetur adipiscing elit".repeat(4)
 
@@ -99,12 +103,14 @@ class DebugCommands @Inject constructor(
                     ),
                     "Tasks" to mapOf(
                             "WorkManager Status" to "workmanager_status",
+                            "Task Executor Stats" to "task_executor_stats",
                             "Cancel All Tasks" to "cancel_tasks",
                             "Schedule task with 3 attempts" to "sched_retrying_task"
                     ),
                     "Misc" to mapOf(
                             "App Details" to "app_details",
-                            "Log Storage" to "log_storage"
+                            "Log Storage" to "log_storage",
+                            "Scheduler Stats" to "scheduler_stats"
                     )
             )
 
@@ -112,11 +118,15 @@ class DebugCommands @Inject constructor(
         when (commandId) {
             "restart_hengam" -> {
                 Plog.debug(T_DEBUG, "Clearing Hengam data...")
-                val messageStore = context.getSharedPreferences(MessageStore.MESSAGE_STORE_NAME, Context.MODE_PRIVATE)
-                val hengamStorage = context.getSharedPreferences(HengamStorage.SHARED_PREF_NAME, Context.MODE_PRIVATE)
+                val storagePreferences = context.getSharedPreferences(HengamStorage.SHARED_PREF_NAME, Context.MODE_PRIVATE)
                 val configStorage = context.getSharedPreferences(HengamConfig.HENGAM_CONFIG_STORE, Context.MODE_PRIVATE)
-                messageStore.edit().clear().apply()
-                hengamStorage.edit().clear().apply()
+                cpuThread { messageStoreBackend.clear() }
+                cpuThread {
+                    hengamStorage.clearCollections()
+                    // Also removes the collections which have not been loaded in this run
+                    HengamStorage.getCollectionsDirectory(context).deleteRecursively()
+                }
+                storagePreferences.edit().clear().apply()
                 configStorage.edit().clear().apply()
                 fcmServiceManager.clearFirebase()
                 Plog.debug(T_DEBUG, "Cancelling all Hengam tasks...")
@@ -229,11 +239,17 @@ class DebugCommands @Inject constructor(
                         "In-Flight" to messageStore.allMessages.filter { it.messageState is UpstreamMessageState.InFlight }.size,
                         "Sent" to messageStore.allMessages.filter { it.messageState is UpstreamMessageState.Sent }.size
                 )
-                Plog.debug(T_DEBUG, "Message Store Stats",
-                        "In-Memory Messages" to messageStore.allMessages.size,
-                        "Persisted Messages" to context.getSharedPreferences(MessageStore.MESSAGE_STORE_NAME, Context.MODE_PRIVATE).all.size,
-                        "In-Memory Message Stats" to stats
-                )
+                cpuThread {
+                    Plog.debug(T_DEBUG, "Message Store Stats",
+                            "In-Memory Messages" to messageStore.allMessages.size,
+                            "Persisted Messages" to messageStoreBackend.readAll().size,
+                            "In-Memory Message Stats" to stats,
+                            "Mixin Cache" to mixinSnapshotCache.stats.toString(),
+                            "Downstream Dispatch" to postOffice.downstreamDispatchStats.toString(),
+                            "Downstream Parcels" to postOffice.downstreamIdFilterStats.toString(),
+                            "Message Deadlines" to postOffice.messageDeadlineStats.toString()
+                    )
+                }
             }
             "list_memory_msg" -> {
                 moshi.adapter(Any::class.java)
@@ -251,20 +267,21 @@ class DebugCommands @Inject constructor(
             "list_persisted_msg" -> {
                 val persistedAdapter = PersistedUpstreamMessageWrapperJsonAdapter(moshi.moshi)
                 val stateAdapter = UpstreamMessageState.Adapter()
-                val data = context
-                        .getSharedPreferences(MessageStore.MESSAGE_STORE_NAME, Context.MODE_PRIVATE)
-                        .all
-                        .values
-                        .map { persistedAdapter.fromJson(it.toString())!! }
-                        .map {
-                            mapOf(
-                                    "type" to it.messageType,
-                                    "size" to it.messageSize,
-                                    "state" to stateAdapter.toJson(it.messageState),
-                                    "attempts" to it.sendAttempts
-                            )
-                        }
-                Plog.debug(T_DEBUG, "Message Store persisted messages", "Store" to data)
+                cpuThread {
+                    val data = messageStoreBackend
+                            .readAll()
+                            .values
+                            .map { persistedAdapter.fromJson(it)!! }
+                            .map {
+                                mapOf(
+                                        "type" to it.messageType,
+                                        "size" to it.messageSize,
+                                        "state" to stateAdapter.toJson(it.messageState),
+                                        "attempts" to it.sendAttempts
+                                )
+                            }
+                    Plog.debug(T_DEBUG, "Message Store persisted messages", "Store" to data)
+                }
             }
             "topic_subscribe" -> {
                 input.prompt("Subscribe to Topic", "Topic", "mytopic")
@@ -402,6 +419,11 @@ class DebugCommands @Inject constructor(
                 }
                 Plog.debug(T_DEBUG, "Work Statuses", " Status" to data)
             }
+            "task_executor_stats" -> {
+                cpuThread {
+                    Plog.debug(T_DEBUG, "Task Executor Stats", "Stats" to taskScheduler.executorStats.toString())
+                }
+            }
             "cancel_tasks" -> {
                 Plog.debug(T_DEBUG, "Cancelling all Hengam tasks")
                 WorkManager.getInstance().cancelAllWorkByTag("hengam")
@@ -411,6 +433,12 @@ class DebugCommands @Inject constructor(
                 Plog.debug(T_DEBUG, "Scheduling 'RetryingTask' with maxAttempts = 3")
                 taskScheduler.scheduleTask(RetryingTask.Options(maxAttempts = 3))
             }
+            "scheduler_stats" -> {
+                Plog.debug(T_DEBUG, "Scheduler Stats",
+                        *HengamSchedulers.stats().map { it.key to it.value.toString() }.toTypedArray(),
+                        "Debouncer" to Debouncer.stats.toString()
+                )
+            }
             "app_details" -> {
                 Plog.debug(T_DEBUG, "Application detail",
                         "Package name" to context.packageName,
@@ -1,9 +1,11 @@
 package io.hengam.lib
 
 import androidx.work.BackoffPolicy
+import io.hengam.lib.internal.ConfigKey
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.messages.MessageType
 import io.hengam.lib.utils.*
+import java.util.concurrent.ConcurrentHashMap
 
 val HengamConfig.fcmDisabled: Boolean get() = getBoolean("fcm_disabled", false)
 
@@ -13,8 +15,11 @@ val HengamConfig.fcmDisabled: Boolean get() = getBoolean("fcm_disabled", false)
  * Determines how long we should wait for upstream messages to be ACKed before sending them again
  */
 val HengamConfig.upstreamMessageTimeout: Time
-    get() = getLong("upstream_message_timeout", 0)
-            .takeIf { it > 0 }?.let { millis(it) } ?: days(1)
+    get() = get(UPSTREAM_MESSAGE_TIMEOUT)
+
+internal val UPSTREAM_MESSAGE_TIMEOUT = ConfigKey("upstream_message_timeout", days(1)) { value ->
+    value.toLong().takeIf { it > 0 }?.let { millis(it) }
+}
 
 
 /**
@@ -24,8 +29,11 @@ val HengamConfig.upstreamMessageTimeout: Time
  * on trying to send it
  */
 val HengamConfig.upstreamMessageExpirationTime: Time
-    get() = getLong("upstream_message_expiration", 0)
-            .takeIf { it > 0 }?.let { millis(it) } ?: days(7)
+    get() = get(UPSTREAM_MESSAGE_EXPIRATION)
+
+internal val UPSTREAM_MESSAGE_EXPIRATION = ConfigKey("upstream_message_expiration", days(7)) { value ->
+    value.toLong().takeIf { it > 0 }?.let { millis(it) }
+}
 
 
 /**
@@ -35,7 +43,30 @@ val HengamConfig.upstreamMessageExpirationTime: Time
  * into parcels until the parcel reaches this maximum size.
  */
 val HengamConfig.upstreamMaxParcelSize: Int
-    get() = getInteger("upstream_max_parcel_size", 3500)
+    get() = get(UPSTREAM_MAX_PARCEL_SIZE)
+
+private val UPSTREAM_MAX_PARCEL_SIZE = ConfigKey("upstream_max_parcel_size", 3500) { it.toInt() }
+
+
+/**
+ * **upstream_max_compressed_parcel_size**
+ *
+ * Determines the maximum parcel size before stamping the parcel when all available couriers
+ * compress their parcels (see [upstreamParcelCodec]). The size is measured before compression.
+ */
+val HengamConfig.upstreamMaxCompressedParcelSize: Int
+    get() = getInteger("upstream_max_compressed_parcel_size", 10000)
+
+
+/**
+ * **upstream_parcel_codec_**
+ *
+ * Determines the codec used for encoding parcels sent with the given courier (see
+ * [io.hengam.lib.messaging.ParcelCodecs]). Parcels are sent as plain fields if a codec has not been
+ * defined for the courier.
+ */
+fun HengamConfig.upstreamParcelCodec(courierId: String): String =
+        getString("upstream_parcel_codec_${courierId.toLowerCase()}", "plain")
 
 
 /**
@@ -60,9 +91,11 @@ val HengamConfig.upstreamSenderBackoffDelay: Time
  * all stored upstream messages to be sent.
  */
 val HengamConfig.upstreamFlushInterval: Time
-    get() = getLong("upstream_flush_interval", -1)
-            .takeIf { it >= 0 }
-            ?.let { millis(it) } ?: days(1)
+    get() = get(UPSTREAM_FLUSH_INTERVAL)
+
+internal val UPSTREAM_FLUSH_INTERVAL = ConfigKey("upstream_flush_interval", days(1)) { value ->
+    value.toLong().takeIf { it >= 0 }?.let { millis(it) }
+}
 
 
 /**
@@ -72,7 +105,10 @@ val HengamConfig.upstreamFlushInterval: Time
  * is reached, then any messages of this type will be ignored until the pending messages are decreased.
  */
 val HengamConfig.defaultMaxPendingUpstreamMessagesPerType: Int
-    get() = getInteger("default_max_pending_upstream_messages_per_type", 50)
+    get() = get(DEFAULT_MAX_PENDING_UPSTREAM_MESSAGES_PER_TYPE)
+
+private val DEFAULT_MAX_PENDING_UPSTREAM_MESSAGES_PER_TYPE =
+        ConfigKey("default_max_pending_upstream_messages_per_type", 50) { it.toInt() }
 
 
 /**
@@ -84,7 +120,9 @@ val HengamConfig.defaultMaxPendingUpstreamMessagesPerType: Int
  * [HengamConfig.defaultMaxPendingUpstreamMessagesPerType]) will be used.
  */
 fun HengamConfig.maxPendingUpstreamMessagesForType(type: Int): Int =
-        getInteger("max_pending_upstream_messages_for_type_$type", -1)
+        get(maxPendingUpstreamMessagesKeys.getOrPut(type) {
+            ConfigKey("max_pending_upstream_messages_for_type_$type", -1) { it.toInt() }
+        })
         .takeIf { it >= 0 } ?: when (type) {
             MessageType.Upstream.REGISTRATION -> 20
             MessageType.Datalytics.APP_LIST -> 2000
@@ -97,6 +135,21 @@ fun HengamConfig.maxPendingUpstreamMessagesForType(type: Int): Int =
             else -> defaultMaxPendingUpstreamMessagesPerType
         }
 
+private val maxPendingUpstreamMessagesKeys = ConcurrentHashMap<Int, ConfigKey<Int>>()
+
+
+/**
+ * **downstream_dedup_window**
+ *
+ * Determines how long the ids of received downstream parcels are remembered for. Parcels received
+ * again within this time (e.g., through a different courier) will be ignored. Parcels containing
+ * messages with `allow_multi_publish` set are never ignored. Should be passed in as milliseconds.
+ */
+val HengamConfig.downstreamDedupWindow: Time
+    get() = getLong("downstream_dedup_window", -1)
+            .takeIf { it > 0 }
+            ?.let { millis(it) } ?: days(3)
+
 
 /**
  * **registration_backoff_policy**
@@ -118,3 +171,45 @@ val HengamConfig.registrationBackoffDelay: Time
             ?.let { millis(it) } ?: seconds(30)
 
 
+/**
+ * **http_connect_timeout**
+ *
+ * The timeout for establishing connections made with [HttpUtils]. Should be passed in as
+ * milliseconds.
+ */
+val HengamConfig.httpConnectTimeout: Time
+    get() = getLong("http_connect_timeout", -1)
+            .takeIf { it > 0 }
+            ?.let { millis(it) } ?: seconds(15)
+
+
+/**
+ * **http_read_timeout**
+ *
+ * The timeout for reading data from connections made with [HttpUtils]. Should be passed in as
+ * milliseconds.
+ */
+val HengamConfig.httpReadTimeout: Time
+    get() = getLong("http_read_timeout", -1)
+            .takeIf { it > 0 }
+            ?.let { millis(it) } ?: seconds(30)
+
+
+/**
+ * **http_max_response_size**
+ *
+ * The maximum size (in bytes) of responses read as strings by [HttpUtils]
+ */
+val HengamConfig.httpMaxResponseSize: Long
+    get() = getLong("http_max_response_size", -1)
+            .takeIf { it > 0 } ?: 1024L * 1024
+
+
+/**
+ * **http_max_stream_size**
+ *
+ * The maximum size (in bytes) of responses streamed by [HttpUtils], e.g., notification media
+ */
+val HengamConfig.httpMaxStreamSize: Long
+    get() = getLong("http_max_stream_size", -1)
+            .takeIf { it > 0 } ?: 10L * 1024 * 1024
@@ -11,11 +11,15 @@ import io.hengam.lib.dagger.DaggerCoreComponent
 import io.hengam.lib.internal.HengamComponentInitializer
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.internal.cpuThread
+import io.hengam.lib.internal.task.TaskRegistry
+import io.hengam.lib.tasks.RegistrationTask
 import io.hengam.lib.tasks.UpstreamFlushTask
+import io.hengam.lib.tasks.UpstreamSenderTask
 import io.hengam.lib.utils.ExceptionCatcher
 import io.hengam.lib.utils.log.LogLevel
 import io.hengam.lib.utils.log.LogcatLogHandler
 import io.hengam.lib.utils.log.Plog
+import io.hengam.lib.utils.rx.keepDoing
 import java.util.concurrent.TimeUnit
 
 class CoreInitializer : HengamComponentInitializer() {
@@ -38,6 +42,12 @@ class CoreInitializer : HengamComponentInitializer() {
         /* Extend Moshi */
         extendMoshi(core.moshi())
 
+        /* Register tasks */
+        TaskRegistry.register(RegistrationTask::class) { RegistrationTask() }
+        TaskRegistry.register(UpstreamSenderTask::class) { UpstreamSenderTask() }
+        TaskRegistry.register(UpstreamFlushTask::class) { UpstreamFlushTask() }
+        TaskRegistry.register(RetryingTask::class) { RetryingTask() }
+
         /* Register message handlers */
         core.messageDispatcher().listenForMessages()
 
@@ -64,8 +74,11 @@ class CoreInitializer : HengamComponentInitializer() {
         /* Perform registration */
         core.registrationManager().checkRegistration()
 
-        /* Flush upstream messages every 24h */
+        /* Flush upstream messages every 24h and reschedule if the interval is changed */
         core.taskScheduler().schedulePeriodicTask(UpstreamFlushTask.Options())
+        core.config().observeChanges(UPSTREAM_FLUSH_INTERVAL).keepDoing(T_INIT) {
+            core.taskScheduler().schedulePeriodicTask(UpstreamFlushTask.Options())
+        }
 
         cpuThread().scheduleDirect({
             try {
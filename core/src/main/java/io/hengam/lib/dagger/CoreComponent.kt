@@ -9,6 +9,7 @@ import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.internal.task.TaskScheduler
 import io.hengam.lib.messages.MessageDispatcher
+import io.hengam.lib.messages.mixin.MixinSnapshotCache
 import io.hengam.lib.messaging.CourierLounge
 import io.hengam.lib.messaging.MessageStore
 import io.hengam.lib.messaging.PostOffice
@@ -55,6 +56,7 @@ interface CoreComponent : HengamComponent {
     fun applicationInfoHelper(): ApplicationInfoHelper
     fun fcmHandler(): FcmHandlerImpl
     fun fcmTokenStore(): FcmTokenStore
+    fun mixinSnapshotCache(): MixinSnapshotCache
 
     fun inject(service: FcmService)
 
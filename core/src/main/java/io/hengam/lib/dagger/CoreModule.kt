@@ -4,13 +4,20 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.telephony.TelephonyManager
 import io.hengam.lib.Constants
+import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.messaging.DownstreamIdFilter
+import io.hengam.lib.messaging.MessageJournal
+import io.hengam.lib.messaging.MessageStore
+import io.hengam.lib.messaging.MessageStoreBackend
+import io.hengam.lib.messaging.SharedPreferencesMessageStoreBackend
 import io.hengam.lib.utils.keyval.KVStorage
 import io.hengam.lib.utils.keyval.SharedPreferencesStorage
 import com.google.android.gms.location.FusedLocationProviderClient
 import com.google.android.gms.location.LocationServices
 import dagger.Module
 import dagger.Provides
+import java.io.File
 import javax.inject.Inject
 
 @Module
@@ -31,6 +38,22 @@ class CoreModule @Inject constructor(val context: Context) {
         return HengamMoshi()
     }
 
+    @Provides @CoreScope
+    fun providesMessageStoreBackend(context: Context): MessageStoreBackend =
+            MessageJournal(
+                    File(context.filesDir, MessageJournal.JOURNAL_DIRECTORY),
+                    SharedPreferencesMessageStoreBackend(
+                            context.getSharedPreferences(MessageStore.MESSAGE_STORE_NAME, Context.MODE_PRIVATE)
+                    )
+            )
+
+    @Provides @CoreScope
+    fun providesDownstreamIdFilter(context: Context, hengamConfig: HengamConfig): DownstreamIdFilter =
+            DownstreamIdFilter(
+                    File(context.filesDir, DownstreamIdFilter.FILE_NAME),
+                    hengamConfig
+            )
+
     @Provides
     fun providesFusedLocationProviderClient(context: Context): FusedLocationProviderClient =
             LocationServices.getFusedLocationProviderClient(context)
@@ -0,0 +1,21 @@
+package io.hengam.lib.internal
+
+/**
+ * A configuration key with a declared value type.
+ *
+ * Reading a [ConfigKey] from [HengamConfig] (using [HengamConfig.get]) parses the stored config
+ * string with the key's [parser] only once, the parsed value is kept in the config snapshot and
+ * reused until the key is updated. This makes them suitable for configs which are read frequently
+ * (e.g., for every message).
+ *
+ * The [parser] should throw an exception if the stored value is invalid, in which case the value
+ * will be removed from the config. If the parser returns `null` or the key has no value, the
+ * [defaultValue] will be used.
+ *
+ * Config keys are compared by identity, so they should be created once and reused.
+ */
+class ConfigKey<T : Any>(
+        val key: String,
+        val defaultValue: T,
+        val parser: (String) -> T?
+)
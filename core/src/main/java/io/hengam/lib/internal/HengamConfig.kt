@@ -7,12 +7,14 @@ import io.hengam.lib.LogTag.T_CONFIG
 import io.hengam.lib.dagger.CoreScope
 import io.hengam.lib.internal.HengamConfig.Companion.HENGAM_CONFIG_THROTTLE_MILLIS
 import io.hengam.lib.messages.downstream.UpdateConfigMessage
+import io.hengam.lib.utils.Debouncer
 import io.hengam.lib.utils.log.Plog
+import io.hengam.lib.utils.millis
 import io.hengam.lib.utils.rx.PublishRelay
-import io.hengam.lib.utils.rx.keepDoing
 import com.squareup.moshi.JsonAdapter
 import com.squareup.moshi.Types
-import java.util.concurrent.TimeUnit
+import io.reactivex.Observable
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 
@@ -23,6 +25,12 @@ import javax.inject.Inject
  * Any changes made to the config will be effective immediately, but persisting the changes to
  * storage is throttled any may take several at most [HENGAM_CONFIG_THROTTLE_MILLIS] to be performed.
  *
+ * The configuration values are held in an immutable snapshot which is replaced whenever the
+ * config is updated, so reads never need to lock or touch the storage. Values read with a typed
+ * getter (or with a [ConfigKey]) are parsed once per snapshot and the parsed value is carried over
+ * to the next snapshot as long as the key has not changed. Use [observeChanges] to be notified of
+ * changes to specific keys instead of repeatedly reading them.
+ *
  * Note, the class caches configuration values so updates made directly to the SharedPreference
  * storage may not be visible through [HengamConfig] until a new instance is created.
  */
@@ -37,9 +45,21 @@ class HengamConfig @VisibleForTesting constructor(
             moshi
     )
 
-    private val updateThrottler = PublishRelay.create<ConfigChange>()
+    private class ParsedValue(val parser: Any, val value: Any?)
+
+    /**
+     * The raw config values at some point in time along with the values which have been parsed
+     * from them. The raw values are never modified once the snapshot is created.
+     */
+    private class Snapshot(val values: Map<String, String>) {
+        val parsedValues = ConcurrentHashMap<String, ParsedValue>()
+    }
+
+    private val lock = Any()
+    @Volatile private var snapshot: Snapshot? = null
     private val updateList = mutableListOf<ConfigChange>()
-    private val cachedConfig = mutableMapOf<String, Any>()
+    private val persistChangesAction = { persistChanges() }
+    private val changeRelay = PublishRelay.create<String>()
 
     /**
      * This should only be turned off for testing
@@ -47,197 +67,183 @@ class HengamConfig @VisibleForTesting constructor(
     @VisibleForTesting
     var isCacheEnabled = true
 
-    init {
-        updateThrottler
-                .observeOn(cpuThread())
-                .doOnNext { updateList.add(it) }
-                .throttleLast(HENGAM_CONFIG_THROTTLE_MILLIS, TimeUnit.MILLISECONDS, cpuThread())
-                .keepDoing(T_CONFIG) {
-                    val editor = configStore.edit()
-                    updateList.forEach {
-                        when (it.action) {
-                            UPDATE_CONFIG -> editor.putString(it.key, it.value)
-                            REMOVE_CONFIG -> editor.remove(it.key)
-                        }
-                    }
-                    editor.apply()
-
-                    Plog.trace(T_CONFIG, "Persisted ${updateList.size} config changes",
-                        "Changes" to updateList.map {
-                            when (it.action) {
-                                UPDATE_CONFIG -> "UPDATE ${it.key} -> ${it.value}"
-                                REMOVE_CONFIG -> "REMOVE ${it.key}"
-                                else -> "UNKNOWN CHANGE"
-                            }
-                        }
-                    )
-
-                    updateList.clear()
-                    cachedConfig.clear()
-                }
-    }
-
-    val allConfig: Map<String, String>
-        get() = configStore.all as Map<String, String>
-
-    fun getString(key: String, defaultValue: String): String {
-        cachedConfig[key]?.let { cachedValue ->
-            if (cachedValue is ConfigChange) {
-                if (cachedValue.action == UPDATE_CONFIG) {
-                    return cachedValue.value ?: defaultValue
-                } else if (cachedValue.action == REMOVE_CONFIG) {
-                    return defaultValue
-                }
-            } else if (isCacheEnabled && cachedValue is String) {
-                return cachedValue
-            }
+    private fun currentSnapshot(): Snapshot {
+        if (!isCacheEnabled) return synchronized(lock) { loadSnapshot() }
+        return snapshot ?: synchronized(lock) {
+            snapshot ?: loadSnapshot().also { snapshot = it }
         }
-        val value = configStore.getString(key, defaultValue)
-        cachedConfig[key] = value
-        return value ?: ""
     }
 
-    private fun getString(key: String): String? {
-        val value = getString(key, "")
-        return if (value.isEmpty()) null else value
+    /**
+     * Should be called while holding the [lock]
+     */
+    private fun loadSnapshot(): Snapshot {
+        val values = mutableMapOf<String, String>()
+        configStore.all.forEach { (key, value) -> if (value is String) values[key] = value }
+        updateList.forEach { applyChange(values, it) }
+        return Snapshot(values)
     }
 
-    fun getBoolean(key: String, defaultValue: Boolean): Boolean {
-        val configString = getString(key) ?: return defaultValue
-
-        return if (configString.equals("true", ignoreCase = true) || configString.equals("false", ignoreCase = true)) {
-            configString.toBoolean()
-        } else {
-            Plog.warn(T_CONFIG, "There was an invalid boolean value in the config store",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
+    private fun applyChange(values: MutableMap<String, String>, change: ConfigChange) {
+        when (change.action) {
+            UPDATE_CONFIG -> change.value?.let { values[change.key] = it } ?: values.remove(change.key)
+            REMOVE_CONFIG -> values.remove(change.key)
         }
     }
 
-    fun getInteger(key: String, defaultValue: Int): Int {
-        val configString = getString(key) ?: return defaultValue
+    private fun applyChanges(changes: List<ConfigChange>) {
+        if (changes.isEmpty()) return
 
-        return configString.toIntOrNull() ?: run {
-            Plog.warn(T_CONFIG, "There was an invalid integer value in the config store",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
+        val changedKeys = synchronized(lock) {
+            val current = currentSnapshot()
+            val values = current.values.toMutableMap()
+            changes.forEach { applyChange(values, it) }
+            val changedKeys = changes.map { it.key }.filterTo(mutableSetOf()) { current.values[it] != values[it] }
+
+            val next = Snapshot(values)
+            current.parsedValues.forEach { (key, parsedValue) ->
+                if (key !in changedKeys) next.parsedValues[key] = parsedValue
+            }
+            snapshot = next
+            updateList.addAll(changes)
+            changedKeys
         }
-    }
 
-    fun getLong(key: String, defaultValue: Long): Long {
-        val configString = getString(key) ?: return defaultValue
+        Debouncer.throttleLast(this, millis(HENGAM_CONFIG_THROTTLE_MILLIS), persistChangesAction)
+        changedKeys.forEach { changeRelay.accept(it) }
+    }
 
-        return configString.toLongOrNull() ?: run {
-            Plog.warn(T_CONFIG, "There was an invalid long value in the config store",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
+    private fun persistChanges() {
+        val changes = synchronized(lock) {
+            val changes = updateList.toList()
+            val editor = configStore.edit()
+            changes.forEach {
+                when (it.action) {
+                    UPDATE_CONFIG -> editor.putString(it.key, it.value)
+                    REMOVE_CONFIG -> editor.remove(it.key)
+                }
+            }
+            editor.apply()
+            updateList.clear()
+            changes
         }
+
+        Plog.trace(T_CONFIG, "Persisted ${changes.size} config changes",
+            "Changes" to changes.map {
+                when (it.action) {
+                    UPDATE_CONFIG -> "UPDATE ${it.key} -> ${it.value}"
+                    REMOVE_CONFIG -> "REMOVE ${it.key}"
+                    else -> "UNKNOWN CHANGE"
+                }
+            }
+        )
     }
 
-    fun getFloat(key: String, defaultValue: Float): Float {
-        val configString = getString(key) ?: return defaultValue
+    /**
+     * Returns the value of the key parsed with the given parser. The parsed value is kept in the
+     * current snapshot and will be reused for later reads with the same parser.
+     *
+     * @param parserId Identifies the parser, parsed values are only reused if read with the same
+     * parser id
+     * @return The parsed value or `null` if the key does not have a value, the parser returned
+     * `null` or the value was invalid. Invalid values are removed from the config.
+     */
+    private fun <T> getParsed(key: String, parserId: Any, valueType: String, parser: (String) -> T?): T? {
+        val snapshot = currentSnapshot()
+        val configString = snapshot.values[key]?.takeIf { it.isNotEmpty() } ?: return null
 
-        return configString.toFloatOrNull() ?: run {
-            Plog.warn(T_CONFIG, "There was an invalid float value in the config store",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
+        snapshot.parsedValues[key]?.let { parsedValue ->
+            @Suppress("UNCHECKED_CAST")
+            if (parsedValue.parser === parserId) return parsedValue.value as T?
         }
-    }
-
-    fun <T> getObject(key: String, defaultValue: T, adapter: JsonAdapter<T>): T {
-        val configString = getString(key) ?: return defaultValue
 
-        return try {
-            adapter.fromJson(configString) ?: defaultValue
+        val value = try {
+            parser(configString)
         } catch (ex: Exception) {
-            Plog.warn(T_CONFIG, "There was an invalid value in the config store for object",
+            Plog.warn(T_CONFIG, "There was an invalid value in the config store",
                 "key" to key,
-                "value" to configString
+                "value" to configString,
+                "type" to valueType
             )
             removeConfig(key)
-            defaultValue
+            return null
         }
+        snapshot.parsedValues[key] = ParsedValue(parserId, value)
+        return value
     }
 
+    /**
+     * Read the value of a typed config key. The value is parsed only once and is reused until
+     * the key is updated.
+     */
+    operator fun <T : Any> get(configKey: ConfigKey<T>): T =
+            getParsed(configKey.key, configKey, configKey.defaultValue.javaClass.simpleName, configKey.parser) ?: configKey.defaultValue
+
+    /**
+     * Emits the keys of the given configs whenever their values are changed or removed. Changes
+     * are emitted on the cpu thread.
+     */
+    fun observeChanges(vararg keys: String): Observable<String> =
+            changeRelay.filter { it in keys }.observeOn(cpuThread())
+
+    /**
+     * Emits the new value of the config key whenever it is changed or removed. Changes are
+     * emitted on the cpu thread.
+     */
+    fun <T : Any> observeChanges(configKey: ConfigKey<T>): Observable<T> =
+            changeRelay.filter { it == configKey.key }.map { get(configKey) }.observeOn(cpuThread())
+
+    val allConfig: Map<String, String>
+        get() = currentSnapshot().values
+
+    fun getString(key: String, defaultValue: String): String =
+            currentSnapshot().values[key] ?: defaultValue
+
+    fun getBoolean(key: String, defaultValue: Boolean): Boolean =
+            getParsed(key, BOOLEAN_PARSER, "boolean", BOOLEAN_PARSER) ?: defaultValue
+
+    fun getInteger(key: String, defaultValue: Int): Int =
+            getParsed(key, INTEGER_PARSER, "integer", INTEGER_PARSER) ?: defaultValue
+
+    fun getLong(key: String, defaultValue: Long): Long =
+            getParsed(key, LONG_PARSER, "long", LONG_PARSER) ?: defaultValue
+
+    fun getFloat(key: String, defaultValue: Float): Float =
+            getParsed(key, FLOAT_PARSER, "float", FLOAT_PARSER) ?: defaultValue
+
+    fun <T> getObject(key: String, defaultValue: T, adapter: JsonAdapter<T>): T =
+            getParsed(key, adapter, "object") { adapter.fromJson(it) } ?: defaultValue
+
     fun <T> getObject(key: String, valueType: Class<T>, defaultValue: T): T {
         return getObject(key, defaultValue, moshi.adapter(valueType))
     }
 
     fun <T> getObjectList(key: String, type: Class<T>, defaultValue: List<T> = emptyList()): List<T> {
-        val configString = getString(key) ?: return defaultValue
         val listAdapter: JsonAdapter<List<T>> = moshi.adapter(Types.newParameterizedType(List::class.java, type))
-
-        return try {
-            listAdapter.fromJson(configString) ?: defaultValue
-        } catch (ex: Exception) {
-            Plog.warn(T_CONFIG, "There was an invalid value in the config store for list of object",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
-        }
+        return getParsed(key, listAdapter, "object list") { listAdapter.fromJson(it) } ?: defaultValue
     }
 
     fun <T> getObjectList(key: String, type: Class<T>, defaultValue: List<T> = emptyList(), adapter: JsonAdapter<T>?): List<T> {
-        adapter?.let { _ -> moshi.enhance { it.add(type, adapter) } }
+        adapter?.let { moshi.registerAdapter(type, it) }
         return getObjectList(key, type, defaultValue)
     }
 
     fun <T> getObjectList(key: String, type: Class<T>, defaultValue: List<T> = emptyList(), adapter: Any?): List<T> {
-        adapter?.let { _ -> moshi.enhance { it.add(adapter) } }
+        adapter?.let { moshi.registerAdapter(it) }
         return getObjectList(key, type, defaultValue)
     }
 
     fun getStringList(key: String, defaultValue: List<String> = emptyList()): List<String> {
-        val configString = getString(key) ?: return defaultValue
-        val listAdapter: JsonAdapter<List<String>> = moshi.adapter(Types.newParameterizedType(List::class.java, String::class.java))
-
-        return try {
-            listAdapter.fromJson(configString) ?: defaultValue
-        } catch (ex: Exception) {
-            Plog.warn(T_CONFIG, "There was an invalid value in the config store for list of strings",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
-        }
+        val listAdapter: JsonAdapter<List<String>> = moshi.adapter(HengamMoshi.STRING_LIST_TYPE)
+        return getParsed(key, listAdapter, "string list") { listAdapter.fromJson(it) } ?: defaultValue
     }
 
     fun getIntegerList(key: String, defaultValue: List<Int> = emptyList()): List<Int> {
-        val configString = getString(key) ?: return defaultValue
         val listAdapter: JsonAdapter<List<Int>> = moshi.adapter(Types.newParameterizedType(List::class.java, Integer::class.java))
-
-        return try {
-            listAdapter.fromJson(configString) ?: defaultValue
-        } catch (ex: Exception) {
-            Plog.warn(T_CONFIG, "There was an invalid value in the config store for list of integers",
-                "key" to key,
-                "value" to configString
-            )
-            removeConfig(key)
-            defaultValue
-        }
+        return getParsed(key, listAdapter, "integer list") { listAdapter.fromJson(it) } ?: defaultValue
     }
 
-    fun updateConfig(key: String, newValue: String) {
-        val change = ConfigChange(UPDATE_CONFIG, key, newValue)
-        cachedConfig[key] = change
-        updateThrottler.accept(change)
-    }
+    fun updateConfig(key: String, newValue: String) = applyChanges(listOf(ConfigChange(UPDATE_CONFIG, key, newValue)))
 
     fun updateConfig(key: String, newValue: Int) = updateConfig(key, newValue.toString())
 
@@ -258,11 +264,13 @@ class HengamConfig @VisibleForTesting constructor(
             "Updates" to message.updateValues.size,
             "Removes" to message.removeValues.size
         )
-        message.updateValues.forEach { updateConfig(it.key, it.value) }
-        message.removeValues.forEach { removeConfig(it) }
+        applyChanges(
+                message.updateValues.map { ConfigChange(UPDATE_CONFIG, it.key, it.value) } +
+                message.removeValues.map { ConfigChange(REMOVE_CONFIG, it) }
+        )
     }
 
-    fun removeConfig(key: String) = updateThrottler.accept(ConfigChange(REMOVE_CONFIG, key))
+    fun removeConfig(key: String) = applyChanges(listOf(ConfigChange(REMOVE_CONFIG, key)))
 
     companion object {
         const val HENGAM_CONFIG_STORE = "hengam_config_store"
@@ -270,6 +278,17 @@ class HengamConfig @VisibleForTesting constructor(
 
         private const val UPDATE_CONFIG = 0
         private const val REMOVE_CONFIG = 1
+
+        private val BOOLEAN_PARSER: (String) -> Boolean = { value ->
+            when {
+                value.equals("true", ignoreCase = true) -> true
+                value.equals("false", ignoreCase = true) -> false
+                else -> throw IllegalArgumentException("Invalid boolean value $value")
+            }
+        }
+        private val INTEGER_PARSER: (String) -> Int = { it.toInt() }
+        private val LONG_PARSER: (String) -> Long = { it.toLong() }
+        private val FLOAT_PARSER: (String) -> Float = { it.toFloat() }
     }
 
     class ConfigChange(val action: Int, val key: String, val value: String? = null)
@@ -5,8 +5,20 @@ import com.squareup.moshi.*
 import java.lang.reflect.Type
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
-class HengamMoshi constructor(var moshi: Moshi) {
+/**
+ * Holds the [Moshi] instance used throughout the library.
+ *
+ * Modules contribute their adapters with [enhance] (or [registerAdapter]) during initialization.
+ * Contributions are not applied immediately, instead they are collected and applied with a single
+ * rebuild the next time the [Moshi] instance is needed. Rebuilding discards the adapters which
+ * [Moshi] has already created, so contributions should be made before the instance is used.
+ *
+ * Adapters obtained with [adapter] are cached by their type until the next rebuild, so hot code
+ * may call [adapter] repeatedly instead of keeping the adapters itself.
+ */
+class HengamMoshi constructor(moshi: Moshi) {
     constructor(): this(
             Moshi.Builder()
             .add(NumberAdapterFactory())
@@ -15,13 +27,77 @@ class HengamMoshi constructor(var moshi: Moshi) {
             .build()
     )
 
+    /**
+     * A built [Moshi] instance along with the adapters which have been created from it
+     */
+    private class Snapshot(val moshi: Moshi) {
+        val adapters = ConcurrentHashMap<Type, JsonAdapter<*>>()
+    }
+
+    @Volatile private var snapshot = Snapshot(moshi)
+    @Volatile private var hasPendingEnhancers = false
+    private val pendingEnhancers = mutableListOf<(moshiBuilder: Moshi.Builder) -> Unit>()
+    private val registeredAdapters = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+
+    var moshi: Moshi
+        get() = currentSnapshot().moshi
+        set(value) {
+            synchronized(this) {
+                pendingEnhancers.clear()
+                hasPendingEnhancers = false
+                snapshot = Snapshot(value)
+            }
+        }
+
+    private fun currentSnapshot(): Snapshot {
+        if (!hasPendingEnhancers) return snapshot
+        synchronized(this) {
+            if (pendingEnhancers.isNotEmpty()) {
+                val builder = snapshot.moshi.newBuilder()
+                pendingEnhancers.forEach { it(builder) }
+                pendingEnhancers.clear()
+                snapshot = Snapshot(builder.build())
+            }
+            hasPendingEnhancers = false
+            return snapshot
+        }
+    }
+
     /**
      * Add new adapters to the current [HengamMoshi] instance
+     *
+     * The adapters will be available the next time the [Moshi] instance or an adapter is requested.
      */
     fun enhance(enhancer: (moshiBuilder: Moshi.Builder) -> Unit) {
-        val builder = moshi.newBuilder()
-        enhancer(builder)
-        moshi = builder.build()
+        synchronized(this) {
+            pendingEnhancers.add(enhancer)
+            hasPendingEnhancers = true
+        }
+    }
+
+    /**
+     * Add an adapter object (an object with [ToJson] and [FromJson] methods or a
+     * [JsonAdapter.Factory]) to the current [HengamMoshi] instance.
+     *
+     * Registering the same adapter instance more than once has no effect.
+     */
+    fun registerAdapter(adapter: Any) {
+        synchronized(this) {
+            if (!registeredAdapters.add(adapter)) return
+        }
+        enhance { it.add(adapter) }
+    }
+
+    /**
+     * Add an adapter for the given type to the current [HengamMoshi] instance.
+     *
+     * Registering the same adapter instance more than once has no effect.
+     */
+    fun <T> registerAdapter(type: Type, adapter: JsonAdapter<T>) {
+        synchronized(this) {
+            if (!registeredAdapters.add(adapter)) return
+        }
+        enhance { it.add(type, adapter) }
     }
 
     /**
@@ -34,8 +110,17 @@ class HengamMoshi constructor(var moshi: Moshi) {
         return HengamMoshi(builder.build())
     }
 
-    fun <T> adapter(type: Class<T>): JsonAdapter<T> = moshi.adapter(type)
-    fun <T> adapter(type: Type): JsonAdapter<T>  = moshi.adapter(type)
+    fun <T> adapter(type: Class<T>): JsonAdapter<T> = adapter(type as Type)
+
+    fun <T> adapter(type: Type): JsonAdapter<T> {
+        val snapshot = currentSnapshot()
+        @Suppress("UNCHECKED_CAST")
+        return snapshot.adapters.getOrPut(type) { snapshot.moshi.adapter<T>(type) } as JsonAdapter<T>
+    }
+
+    companion object {
+        val STRING_LIST_TYPE: Type = Types.newParameterizedType(List::class.java, String::class.java)
+    }
 }
 
 /**
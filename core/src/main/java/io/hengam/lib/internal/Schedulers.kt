@@ -9,18 +9,39 @@ import io.reactivex.schedulers.Schedulers
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 
 object HengamSchedulers {
     val cpuExecutor: ExecutorService = Executors.newSingleThreadExecutor()
 
+    private val cpuScheduler = PScheduler("cpu thread", Schedulers.from(cpuExecutor))
+    private val computationScheduler = PScheduler("computation pool",
+            Schedulers.from(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors().coerceIn(2, 4))))
+    private val ioScheduler = PScheduler("io thread", Schedulers.from(Executors.newFixedThreadPool(2)))
+
     /**
-     * The Hengam Main thread. Almost anything code running related to Hengam should be executed
-     * on this thread. Each application is guaranteed to only have one CPU thread running at
-     * any given time, so any code which is running on the CPU thread does not need to perform
-     * concurrency checks and synchronization.
+     * The Hengam Main thread, also known as the state lane. Almost anything code running related
+     * to Hengam should be executed on this thread. Each application is guaranteed to only have one
+     * CPU thread running at any given time, so any code which is running on the CPU thread does
+     * not need to perform concurrency checks and synchronization.
+     *
+     * All access to data structures which are not thread-safe (e.g., the `MessageStore` and the
+     * `HengamStorage` collections) must happen on this thread.
      */
-    val cpu: Scheduler = PScheduler("computation thread", Schedulers.from(cpuExecutor))
+    val cpu: Scheduler = cpuScheduler
+
+    /**
+     * A bounded pool of threads for pure computation (e.g., encoding messages to json or
+     * collecting message mixins). Code running on this pool may run in parallel with the CPU
+     * thread and with itself, so like the IO thread it should not access any data structures and
+     * should instead pass its results back to the CPU thread.
+     *
+     * Blocking IO operations should not be performed on this pool, use the IO thread instead.
+     */
+    val computation: Scheduler = computationScheduler
 
     /**
      * The Hengam IO thread. This thread should be used for tasks in the Hengam code which perform
@@ -29,7 +50,7 @@ object HengamSchedulers {
      * access any data structures. Instead after the IO operation has completed, it should schedule
      * the rest of the code to be run on the CPU thread.
      */
-    val io: Scheduler = PScheduler("io thread", Schedulers.from(Executors.newFixedThreadPool(2)))
+    val io: Scheduler = ioScheduler
 
     /**
      * The Android Main thread. Instead of assigning this directly we will use a getter
@@ -38,14 +59,23 @@ object HengamSchedulers {
      * in rare cases, and we should avoid allowing that exception to propagate on Application start.
      */
     val ui: Scheduler get() = PScheduler("ui thread", RxAndroid.mainThread())
+
+    /**
+     * @return The current metrics of the Hengam schedulers (excluding the ui thread) mapped by
+     * the scheduler names
+     */
+    fun stats(): Map<String, PScheduler.Stats> =
+            listOf(cpuScheduler, computationScheduler, ioScheduler).associate { it.name to it.stats }
 }
 
 fun ioThread() = HengamSchedulers.io
 fun cpuThread() = HengamSchedulers.cpu
+fun computationThread() = HengamSchedulers.computation
 fun uiThread() = HengamSchedulers.ui
 
 fun ioThread(f: () -> Unit) = HengamSchedulers.io.scheduleDirect(f)
 fun cpuThread(f: () -> Unit) = HengamSchedulers.cpu.scheduleDirect(f)
+fun computationThread(f: () -> Unit) = HengamSchedulers.computation.scheduleDirect(f)
 fun uiThread(f: () -> Unit) = HengamSchedulers.ui.scheduleDirect(f)
 fun ioThread(delay: Time, f: () -> Unit) =
         HengamSchedulers.io.scheduleDirect(f, delay.toMillis(), TimeUnit.MILLISECONDS)
@@ -55,25 +85,143 @@ fun uiThread(delay: Time, f: () -> Unit)
         = HengamSchedulers.ui.scheduleDirect(f, delay.toMillis(), TimeUnit.MILLISECONDS)
 
 
-class PScheduler(private val name: String, private val scheduler: Scheduler) : Scheduler() {
-    override fun createWorker(): Worker = PWorker(name, scheduler.createWorker())
-
-    fun scheduleDirect(f: () -> Unit) =  scheduler.scheduleDirect(f)
+/**
+ * A scheduler which catches errors thrown by the scheduled tasks and keeps metrics on how busy
+ * the scheduler is.
+ *
+ * The metrics are:
+ * - Queue length: The number of tasks which have been scheduled without a delay but have not
+ *   started yet
+ * - Wait time: The time between when a task should have run (i.e., after its delay) and when it
+ *   actually started
+ * - Run time: The time taken to run each task
+ *
+ * A growing queue length or wait time means the scheduler is saturated.
+ */
+class PScheduler(val name: String, private val scheduler: Scheduler) : Scheduler() {
+    class Stats(
+            val scheduled: Long,
+            val completed: Long,
+            val queueLength: Int,
+            val maxQueueLength: Int,
+            val averageWaitTime: Long,
+            val maxWaitTime: Long,
+            val averageRunTime: Long,
+            val maxRunTime: Long
+    ) {
+        override fun toString(): String =
+                "SchedulerStats[Scheduled=$scheduled Completed=$completed QueueLength=$queueLength " +
+                        "MaxQueueLength=$maxQueueLength AverageWait=${averageWaitTime}ms MaxWait=${maxWaitTime}ms " +
+                        "AverageRun=${averageRunTime}ms MaxRun=${maxRunTime}ms]"
+    }
 
-    fun scheduleDirect(f: () -> Unit, delay: Long, unit: TimeUnit) = scheduler.scheduleDirect(f, delay, unit)
+    private val scheduledCount = AtomicLong()
+    private val completedCount = AtomicLong()
+    private val queueLength = AtomicInteger()
+    private val maxQueueLength = AtomicInteger()
+    private val totalWaitTime = AtomicLong()
+    private val maxWaitTime = AtomicLong()
+    private val totalRunTime = AtomicLong()
+    private val maxRunTime = AtomicLong()
+
+    val stats: Stats
+        get() {
+            val completed = completedCount.get()
+            return Stats(
+                    scheduled = scheduledCount.get(),
+                    completed = completed,
+                    queueLength = queueLength.get(),
+                    maxQueueLength = maxQueueLength.get(),
+                    averageWaitTime = if (completed == 0L) 0 else totalWaitTime.get() / completed,
+                    maxWaitTime = maxWaitTime.get(),
+                    averageRunTime = if (completed == 0L) 0 else totalRunTime.get() / completed,
+                    maxRunTime = maxRunTime.get()
+            )
+        }
+
+    override fun createWorker(): Worker = PWorker(this, scheduler.createWorker())
+
+    fun scheduleDirect(f: () -> Unit) = scheduleDirect(f, 0, TimeUnit.MILLISECONDS)
+
+    fun scheduleDirect(f: () -> Unit, delay: Long, unit: TimeUnit): Disposable {
+        val task = MeasuredTask(Runnable(f), unit.toMillis(delay))
+        return task.track(scheduler.scheduleDirect(task, delay, unit))
+    }
 
     fun scheduleDirect(f: () -> Unit, delay: Time) = scheduleDirect(f, delay.toMillis(), TimeUnit.MILLISECONDS)
+
+    /**
+     * Wraps a task to record its metrics and catch any errors it throws
+     */
+    internal inner class MeasuredTask(private val run: Runnable, delay: Long) : Runnable {
+        private val dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)
+        private val isQueued = AtomicBoolean(delay <= 0)
+
+        init {
+            scheduledCount.incrementAndGet()
+            if (isQueued.get()) {
+                maxQueueLength.updateMax(queueLength.incrementAndGet())
+            }
+        }
+
+        override fun run() {
+            dequeue()
+            val startTime = System.nanoTime()
+            val waitTime = TimeUnit.NANOSECONDS.toMillis(maxOf(0, startTime - dueTime))
+            totalWaitTime.addAndGet(waitTime)
+            maxWaitTime.updateMax(waitTime)
+
+            try {
+                ExceptionCatcher.catchAllUnhandledErrors(name) { run.run() }
+            } finally {
+                val runTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+                completedCount.incrementAndGet()
+                totalRunTime.addAndGet(runTime)
+                maxRunTime.updateMax(runTime)
+            }
+        }
+
+        /**
+         * @return A disposable which also removes the task from the queue length if the task is
+         * disposed before it has run
+         */
+        fun track(disposable: Disposable): Disposable = object : Disposable {
+            override fun dispose() {
+                disposable.dispose()
+                dequeue()
+            }
+
+            override fun isDisposed(): Boolean = disposable.isDisposed
+        }
+
+        private fun dequeue() {
+            if (isQueued.compareAndSet(true, false)) queueLength.decrementAndGet()
+        }
+    }
+
+    private fun AtomicInteger.updateMax(value: Int) {
+        while (true) {
+            val current = get()
+            if (value <= current || compareAndSet(current, value)) return
+        }
+    }
+
+    private fun AtomicLong.updateMax(value: Long) {
+        while (true) {
+            val current = get()
+            if (value <= current || compareAndSet(current, value)) return
+        }
+    }
 }
 
-class PWorker(private val name: String, private val worker: Scheduler.Worker) : Scheduler.Worker() {
+class PWorker(private val scheduler: PScheduler, private val worker: Scheduler.Worker) : Scheduler.Worker() {
     override fun isDisposed(): Boolean = worker.isDisposed
 
     override fun schedule(run: Runnable, delay: Long, unit: TimeUnit): Disposable {
-        return worker.schedule({
-            ExceptionCatcher.catchAllUnhandledErrors(name) { run.run() }
-        }, delay, unit)
+        val task = scheduler.MeasuredTask(run, unit.toMillis(delay))
+        return task.track(worker.schedule(task, delay, unit))
     }
 
     override fun dispose() = worker.dispose()
 
-}
\ No newline at end of file
+}
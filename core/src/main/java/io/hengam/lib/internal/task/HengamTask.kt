@@ -5,6 +5,7 @@ import io.hengam.lib.LogTag.T_TASK
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.utils.Time
 import io.hengam.lib.utils.log.Plog
+import io.hengam.lib.utils.millis
 import io.reactivex.Single
 import kotlin.reflect.KClass
 
@@ -37,6 +38,23 @@ abstract class TaskOptions {
 
 abstract class OneTimeTaskOptions : TaskOptions() {
     open fun existingWorkPolicy(): ExistingWorkPolicy? = ExistingWorkPolicy.APPEND
+
+    /**
+     * The priority of the task when it is queued in the [TaskExecutor]
+     */
+    open fun priority(): TaskPriority = TaskPriority.NORMAL
+
+    /**
+     * The maximum number of instances of the task class which the [TaskExecutor] will run
+     * at the same time
+     */
+    open fun maxConcurrentRuns(): Int = 1
+
+    /**
+     * The maximum time a single run of the task may take in the [TaskExecutor]. Runs which take
+     * longer are stopped and finished as failed, releasing their slot for other runs of the task.
+     */
+    open fun runTimeout(): Time = millis(TaskExecutor.DEFAULT_RUN_TIMEOUT)
 }
 
 abstract class PeriodicTaskOptions : TaskOptions() {
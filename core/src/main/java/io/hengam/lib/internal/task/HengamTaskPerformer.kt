@@ -18,8 +18,6 @@ import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.millis
 import io.reactivex.Scheduler
 import io.reactivex.Single
-import kotlin.reflect.full.createInstance
-import kotlin.reflect.full.isSubclassOf
 
 class HengamTaskPerformer(context: Context, workerParams: WorkerParameters)
     : RxWorker(context, workerParams) {
@@ -45,16 +43,13 @@ class HengamTaskPerformer(context: Context, workerParams: WorkerParameters)
         }
         val performer: HengamTask
         try {
-            val taskClass = Class.forName(taskClassName).kotlin
-            if (!taskClass.isSubclassOf(HengamTask::class)) {
+            performer = TaskRegistry.createTask(taskClassName) ?: run {
                 Plog.error(
                     LogTag.T_TASK, "Provided task class was not a hengam task class",
                     "Class Name" to taskClassName
                 )
                 return Single.just(Result.failure())
             }
-
-            performer = taskClass.createInstance() as HengamTask
         } catch (e: Exception) {
             Plog.error(
                 LogTag.T_TASK, "Unable to instantiate provided task class",
@@ -138,7 +133,7 @@ class HengamTaskPerformer(context: Context, workerParams: WorkerParameters)
                     .withData("Prev Collection", lastExecutionTime)
                     .useLogCatLevel(LogLevel.DEBUG)
                     .aggregate("skipping-periodic-tasks", millis(1000)) {
-                        message("Skipping ${logs.size} periodic tasks")
+                        message("Skipping $count periodic tasks")
                         withData("tasks", logs.map { log -> log.logData["Task name"] })
                     }
                     .log()
@@ -0,0 +1,260 @@
+package io.hengam.lib.internal.task
+
+import androidx.work.ExistingWorkPolicy
+import androidx.work.ListenableWorker
+import io.hengam.lib.LogTag.T_TASK
+import io.hengam.lib.dagger.CoreScope
+import io.hengam.lib.internal.cpuThread
+import io.hengam.lib.utils.assertCpuThread
+import io.hengam.lib.utils.log.Plog
+import io.hengam.lib.utils.millis
+import io.hengam.lib.utils.rx.justDo
+import io.reactivex.Single
+import io.reactivex.disposables.Disposable
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import javax.inject.Inject
+
+/**
+ * Runs one-time tasks in-process on the cpu thread.
+ *
+ * Jobs are kept in priority queues, ordered by their [TaskPriority] and then by the order in which
+ * they were submitted. Jobs submitted with a delay are held back until their delay has passed.
+ *
+ * Jobs which have a task id are coalesced with the queued and running jobs having the same id,
+ * similar to how WorkManager handles unique work:
+ * - [ExistingWorkPolicy.KEEP]: The new job is dropped if a job with the same id is queued or running
+ * - [ExistingWorkPolicy.REPLACE]: Queued jobs with the same id are dropped. A job which is already
+ *   running is not interrupted.
+ * - [ExistingWorkPolicy.APPEND]: The new job is queued along with the existing jobs
+ *
+ * At most [Job.maxConcurrentRuns] jobs of the same task class run at the same time. Other jobs of
+ * the class stay in the queue until a running job finishes. A run which does not finish within
+ * [Job.runTimeout] is disposed and finished with a failure result, so a hung task can not block the
+ * other jobs of it's class.
+ *
+ * The executor does not provide any durability, persisting jobs and falling back to WorkManager is
+ * handled by the [TaskScheduler].
+ */
+@CoreScope
+class TaskExecutor @Inject constructor() {
+    class Job(
+            val taskId: String?,
+            val taskClassName: String,
+            val existingWorkPolicy: ExistingWorkPolicy?,
+            val priority: TaskPriority,
+            val maxConcurrentRuns: Int,
+            val delay: Long,
+            /**
+             * The maximum time in milliseconds a run of the job may take
+             */
+            val runTimeout: Long = DEFAULT_RUN_TIMEOUT,
+            val run: () -> Single<ListenableWorker.Result>,
+            /**
+             * Will be called on the cpu thread once the job has been added to the queue
+             */
+            val onQueued: () -> Unit,
+            /**
+             * Will be called on the cpu thread once the job has run
+             */
+            val onFinished: (ListenableWorker.Result) -> Unit,
+            /**
+             * Will be called on the cpu thread if the job is dropped because of coalescing
+             */
+            val onDropped: () -> Unit
+    ) {
+        internal var readyTime = 0L
+        internal var sequence = 0L
+    }
+
+    class Stats(
+            val queued: Int,
+            val delayed: Int,
+            val running: Int,
+            val maxQueueDepth: Int,
+            val completed: Long,
+            val coalesced: Long,
+            val timedOut: Long,
+            val averageLatency: Long,
+            val maxLatency: Long,
+            val averageRunTime: Long
+    ) {
+        override fun toString(): String =
+                "TaskExecutorStats[Queued=$queued Delayed=$delayed Running=$running MaxQueueDepth=$maxQueueDepth " +
+                        "Completed=$completed Coalesced=$coalesced TimedOut=$timedOut AverageLatency=${averageLatency}ms " +
+                        "MaxLatency=${maxLatency}ms AverageRunTime=${averageRunTime}ms]"
+    }
+
+    private var sequence = 0L
+
+    private val readyJobs = PriorityQueue<Job>(11, compareBy<Job>({ it.priority.ordinal }, { it.sequence }))
+    private val delayedJobs = PriorityQueue<Job>(11, compareBy<Job>({ it.readyTime }, { it.sequence }))
+    private val runningJobs = mutableListOf<Job>()
+    private val runningCountByClass = mutableMapOf<String, Int>()
+
+    private var wakeUpTime = Long.MAX_VALUE
+    private var wakeUpDisposable: Disposable? = null
+
+    private var maxQueueDepth = 0
+    private var completedCount = 0L
+    private var coalescedCount = 0L
+    private var timedOutCount = 0L
+    private var totalLatency = 0L
+    private var maxLatency = 0L
+    private var totalRunTime = 0L
+
+    /**
+     * Should be accessed on the cpu thread
+     */
+    val stats: Stats
+        get() = Stats(
+                queued = readyJobs.size,
+                delayed = delayedJobs.size,
+                running = runningJobs.size,
+                maxQueueDepth = maxQueueDepth,
+                completed = completedCount,
+                coalesced = coalescedCount,
+                timedOut = timedOutCount,
+                averageLatency = if (completedCount == 0L) 0 else totalLatency / completedCount,
+                maxLatency = maxLatency,
+                averageRunTime = if (completedCount == 0L) 0 else totalRunTime / completedCount
+        )
+
+    fun submit(job: Job) {
+        cpuThread {
+            enqueue(job)
+            dispatch()
+        }
+    }
+
+    private fun enqueue(job: Job) {
+        assertCpuThread()
+
+        if (job.taskId != null) {
+            when (job.existingWorkPolicy) {
+                ExistingWorkPolicy.KEEP -> {
+                    if (findJobs(job.taskId).any() || runningJobs.any { it.taskId == job.taskId }) {
+                        Plog.trace(T_TASK, "Task with the same id is already pending, new task will be dropped",
+                                "Task Id" to job.taskId
+                        )
+                        drop(job)
+                        return
+                    }
+                }
+                ExistingWorkPolicy.REPLACE -> {
+                    findJobs(job.taskId).toList().forEach { queuedJob ->
+                        readyJobs.remove(queuedJob)
+                        delayedJobs.remove(queuedJob)
+                        drop(queuedJob)
+                    }
+                }
+                else -> {}
+            }
+        }
+
+        val now = now()
+        job.readyTime = now + job.delay
+        job.sequence = sequence++
+        if (job.delay > 0) delayedJobs.add(job) else readyJobs.add(job)
+        maxQueueDepth = maxOf(maxQueueDepth, readyJobs.size + delayedJobs.size)
+        job.onQueued()
+    }
+
+    private fun findJobs(taskId: String): Sequence<Job> =
+            readyJobs.asSequence().filter { it.taskId == taskId } +
+                    delayedJobs.asSequence().filter { it.taskId == taskId }
+
+    private fun drop(job: Job) {
+        coalescedCount += 1
+        job.onDropped()
+    }
+
+    private fun dispatch() {
+        assertCpuThread()
+
+        val now = now()
+        while (delayedJobs.isNotEmpty() && delayedJobs.peek().readyTime <= now) {
+            readyJobs.add(delayedJobs.poll())
+        }
+
+        val blockedJobs = mutableListOf<Job>()
+        while (readyJobs.isNotEmpty()) {
+            val job = readyJobs.poll()
+            if ((runningCountByClass[job.taskClassName] ?: 0) >= job.maxConcurrentRuns) {
+                blockedJobs.add(job)
+            } else {
+                start(job)
+            }
+        }
+        readyJobs.addAll(blockedJobs)
+
+        scheduleWakeUp()
+    }
+
+    private fun start(job: Job) {
+        runningJobs.add(job)
+        runningCountByClass[job.taskClassName] = (runningCountByClass[job.taskClassName] ?: 0) + 1
+
+        val startTime = now()
+        Single.defer { job.run() }
+                .timeout(job.runTimeout, TimeUnit.MILLISECONDS, cpuThread())
+                .onErrorReturn {
+                    if (it is TimeoutException) {
+                        Plog.warn(T_TASK, "Task run timed out and will be marked as failed",
+                                "Task Id" to job.taskId,
+                                "Task" to job.taskClassName,
+                                "Timeout" to "${job.runTimeout}ms"
+                        )
+                        timedOutCount += 1
+                        ListenableWorker.Result.failure()
+                    } else {
+                        Plog.error(T_TASK, "Error occurred in task", it, "Task Id" to job.taskId)
+                        ListenableWorker.Result.retry()
+                    }
+                }
+                .subscribeOn(cpuThread())
+                .observeOn(cpuThread())
+                .justDo(T_TASK) { result ->
+                    val finishTime = now()
+                    runningJobs.remove(job)
+                    runningCountByClass[job.taskClassName] = (runningCountByClass[job.taskClassName] ?: 1) - 1
+
+                    val latency = finishTime - job.readyTime
+                    completedCount += 1
+                    totalLatency += latency
+                    maxLatency = maxOf(maxLatency, latency)
+                    totalRunTime += finishTime - startTime
+
+                    job.onFinished(result)
+                    dispatch()
+                }
+    }
+
+    private fun scheduleWakeUp() {
+        val nextReadyTime = delayedJobs.peek()?.readyTime ?: return
+        if (nextReadyTime >= wakeUpTime) return
+
+        wakeUpDisposable?.dispose()
+        wakeUpTime = nextReadyTime
+        wakeUpDisposable = cpuThread(millis(maxOf(0, nextReadyTime - now()))) {
+            wakeUpTime = Long.MAX_VALUE
+            dispatch()
+        }
+    }
+
+    private fun now() = cpuThread().now(TimeUnit.MILLISECONDS)
+
+    companion object {
+        /**
+         * Same as the time WorkManager allows a worker to run before stopping it
+         */
+        const val DEFAULT_RUN_TIMEOUT = 10 * 60 * 1000L
+    }
+}
+
+enum class TaskPriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
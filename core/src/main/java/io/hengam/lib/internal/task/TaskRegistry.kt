@@ -0,0 +1,71 @@
+package io.hengam.lib.internal.task
+
+import io.hengam.lib.LogTag.T_TASK
+import io.hengam.lib.utils.log.Plog
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.reflect.KClass
+
+/**
+ * A table of all [HengamTask] classes mapped by their class names, along with a function for
+ * creating an instance of each task.
+ *
+ * Each component registers its tasks when it is initialized (see
+ * [io.hengam.lib.internal.HengamComponentInitializer.preInitialize]). Task performers are created
+ * with the registered functions, so running a task only needs a map lookup instead of
+ * instantiating the task class with kotlin reflection.
+ *
+ * Tasks which have not been registered are still instantiated, using their no-argument
+ * constructor, so tasks stored by older versions of the library can be run.
+ */
+object TaskRegistry {
+    private class Registration(val taskClass: KClass<out HengamTask>, val factory: () -> HengamTask)
+
+    private val registrations = ConcurrentHashMap<String, Registration>()
+
+    fun <T : HengamTask> register(taskClass: KClass<T>, factory: () -> T) {
+        registrations[taskClass.java.name] = Registration(taskClass, factory)
+    }
+
+    /**
+     * @return The name used for identifying the given task class in the task input data
+     */
+    fun taskClassName(taskClass: KClass<out HengamTask>): String = taskClass.java.name
+
+    /**
+     * @return The task class with the given name or `null` if no such class exists or if the
+     * class is not a [HengamTask]
+     */
+    fun getTaskClass(taskClassName: String): KClass<out HengamTask>? {
+        registrations[taskClassName]?.let { return it.taskClass }
+        return findUnregisteredTaskClass(taskClassName)?.kotlin
+    }
+
+    /**
+     * Create an instance of the task with the given class name
+     *
+     * @return The created task or `null` if no such class exists or if the class is not a
+     * [HengamTask]
+     * @throws Exception if instantiating an unregistered task fails
+     */
+    fun createTask(taskClassName: String): HengamTask? {
+        registrations[taskClassName]?.let { return it.factory() }
+        val taskClass = findUnregisteredTaskClass(taskClassName) ?: return null
+        Plog.warn(T_TASK, "Instantiating unregistered task class, the task should be registered in the TaskRegistry",
+                "Class Name" to taskClassName
+        )
+        return taskClass.newInstance()
+    }
+
+    fun createTask(taskClass: KClass<out HengamTask>): HengamTask? = createTask(taskClassName(taskClass))
+
+    private fun findUnregisteredTaskClass(taskClassName: String): Class<out HengamTask>? {
+        val taskClass = try {
+            Class.forName(taskClassName)
+        } catch (ex: ClassNotFoundException) {
+            return null
+        }
+        if (!HengamTask::class.java.isAssignableFrom(taskClass)) return null
+        @Suppress("UNCHECKED_CAST")
+        return taskClass as Class<out HengamTask>
+    }
+}
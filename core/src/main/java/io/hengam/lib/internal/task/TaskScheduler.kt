@@ -4,71 +4,78 @@ import androidx.work.*
 import io.hengam.lib.LogTag.T_TASK
 import io.hengam.lib.dagger.CoreScope
 import io.hengam.lib.internal.HengamConfig
-import io.hengam.lib.internal.cpuThread
 import io.hengam.lib.utils.HengamStorage
 import io.hengam.lib.utils.Time
 import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.millis
-import io.hengam.lib.utils.rx.justDo
 import com.squareup.moshi.Json
 import com.squareup.moshi.JsonClass
-import io.reactivex.Single
+import java.util.*
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 import kotlin.reflect.KClass
-import kotlin.reflect.full.createInstance
-import kotlin.reflect.full.isSubclassOf
 
 @CoreScope
 class TaskScheduler @Inject constructor(
         private val hengamConfig: HengamConfig,
+        private val taskExecutor: TaskExecutor,
         hengamStorage: HengamStorage
 ) {
 
-    private val oneTimeTasks = hengamStorage.createStoredList(
+    private val oneTimeTasks = hengamStorage.createStoredMap(
+        "onetime_task_infos",
+        StoredTaskInfo::class.java
+    )
+
+    /**
+     * One-time tasks persisted by older versions, only read in [scheduleStoredTasks]
+     */
+    private val legacyOneTimeTasks = hengamStorage.createStoredList(
         "onetime_tasks",
         StoredTaskInfo::class.java
     )
 
+    /**
+     * Keys of the persisted one-time tasks which have been queued in this process
+     */
+    private val queuedTaskKeys = mutableSetOf<String>()
+
     private val periodicTaskIntervals = hengamStorage.createStoredMap(
             "periodic_task_intervals",
             Long::class.javaObjectType
     )
 
+    /**
+     * Schedule a one-time task.
+     *
+     * The task is run in-process by the [TaskExecutor] and is only handed to WorkManager if it
+     * fails with a retry result or if its performer could not be created. The task is persisted until
+     * it has finished so that it can be rescheduled with [scheduleStoredTasks] if the process dies
+     * before the task has run.
+     */
     fun scheduleTask(taskOptions: OneTimeTaskOptions, data: Data? = null, initialDelay: Time? = null) {
         Plog.trace(T_TASK, "Executing one-time task: ${taskOptions.taskId()}")
 
         taskOptions.hengamConfig = hengamConfig
 
-        val taskInfo = StoredTaskInfo(
-            taskOptions.existingWorkPolicy(),
-            taskOptions.networkType(),
-            taskOptions.task().qualifiedName,
-            taskOptions.taskId(),
-            taskOptions.maxAttemptsCount(),
-            taskOptions.backoffDelay(),
-            taskOptions.backoffPolicy(),
-            data?.keyValueMap
-        )
-        oneTimeTasks.add(taskInfo)
-
+        val taskClassName = TaskRegistry.taskClassName(taskOptions.task())
         val inputData: Data
         if (data != null) {
             val dataMap = data.keyValueMap.toMutableMap()
             dataMap[HengamTask.DATA_MAX_ATTEMPTS_COUNT] = taskOptions.maxAttemptsCount()
             dataMap[HengamTask.DATA_TASK_ID] = taskOptions.taskId()
-            dataMap[HengamTask.DATA_TASK_CLASS] = taskOptions.task().qualifiedName
+            dataMap[HengamTask.DATA_TASK_CLASS] = taskClassName
             inputData = Data.Builder().putAll(dataMap).build()
         } else {
             inputData = workDataOf(
                 HengamTask.DATA_MAX_ATTEMPTS_COUNT to taskOptions.maxAttemptsCount(),
                 HengamTask.DATA_TASK_ID to taskOptions.taskId(),
-                HengamTask.DATA_TASK_CLASS to taskOptions.task().qualifiedName
+                HengamTask.DATA_TASK_CLASS to taskClassName
             )
         }
 
         val performer = try {
-            taskOptions.task().createInstance()
+            TaskRegistry.createTask(taskClassName)
         } catch (e: Exception){
             Plog.error(T_TASK, "Could not instantiate the performer class of oneTimeTask. It will be scheduled to run by WorkManager", e,
                 "Task" to taskOptions.taskId()
@@ -78,20 +85,43 @@ class TaskScheduler @Inject constructor(
 
         if (performer == null) {
             scheduleOneTimeTask(taskOptions, inputData, initialDelay)
-            oneTimeTasks.remove(taskInfo)
             return
         }
 
-        performTask(performer, inputData)
-            .subscribeOn(cpuThread())
-            .delaySubscription(initialDelay?.time ?: 0L, TimeUnit.MILLISECONDS)
-            .justDo(T_TASK) { result ->
+        val storeKey = UUID.randomUUID().toString()
+        val taskInfo = StoredTaskInfo(
+            taskOptions.existingWorkPolicy(),
+            taskOptions.networkType(),
+            taskClassName,
+            taskOptions.taskId(),
+            taskOptions.maxAttemptsCount(),
+            taskOptions.backoffDelay(),
+            taskOptions.backoffPolicy(),
+            data?.keyValueMap,
+            taskOptions.priority()
+        )
+
+        taskExecutor.submit(TaskExecutor.Job(
+            taskId = taskOptions.taskId(),
+            taskClassName = taskClassName,
+            existingWorkPolicy = taskOptions.existingWorkPolicy(),
+            priority = taskOptions.priority(),
+            maxConcurrentRuns = taskOptions.maxConcurrentRuns(),
+            delay = initialDelay?.toMillis() ?: 0L,
+            runTimeout = taskOptions.runTimeout().toMillis(),
+            run = { performer.perform(inputData) },
+            onQueued = {
+                queuedTaskKeys.add(storeKey)
+                oneTimeTasks[storeKey] = taskInfo
+            },
+            onFinished = { result ->
+                queuedTaskKeys.remove(storeKey)
+                oneTimeTasks.remove(storeKey)
                 if (result == ListenableWorker.Result.retry()) {
                     Plog.trace(T_TASK, "Failure trying to run one-time task. Scheduling the task to be run by workManager",
                         "Task Id" to taskOptions.taskId()
                     )
                     scheduleOneTimeTask(taskOptions, inputData, millis(ONE_TIME_TASK_FIRST_RETRY_DELAY))
-                    oneTimeTasks.remove(taskInfo)
                 } else {
                     val resultString = when (result) {
                         is ListenableWorker.Result.Failure -> "Failure"
@@ -101,17 +131,19 @@ class TaskScheduler @Inject constructor(
                     Plog.trace(T_TASK, "Task finished with result $resultString",
                         "Task Id" to taskOptions.taskId()
                     )
-                    oneTimeTasks.remove(taskInfo)
                 }
+            },
+            onDropped = {
+                queuedTaskKeys.remove(storeKey)
+                oneTimeTasks.remove(storeKey)
             }
+        ))
     }
 
-    private fun performTask(task: HengamTask, inputData: Data): Single<ListenableWorker.Result> {
-        return task.perform(inputData)
-            .onErrorReturn {
-                ListenableWorker.Result.retry()
-            }
-    }
+    /**
+     * Should be accessed on the cpu thread
+     */
+    val executorStats: TaskExecutor.Stats get() = taskExecutor.stats
 
     private fun scheduleOneTimeTask(taskOptions: OneTimeTaskOptions, inputData: Data, initialDelay: Time? = null) {
         Plog.trace(T_TASK, "Scheduling one-time task",
@@ -124,7 +156,7 @@ class TaskScheduler @Inject constructor(
 
         val taskRequestBuilder = OneTimeWorkRequest.Builder(HengamTaskPerformer::class.java)
             .addTag(DEFAULT_WORK_TAG)
-            .addTag(taskOptions.taskId() ?: taskOptions.task().qualifiedName ?: "")
+            .addTag(taskOptions.taskId() ?: TaskRegistry.taskClassName(taskOptions.task()))
             .setConstraints(constraints)
 
         if (initialDelay != null) {
@@ -188,7 +220,7 @@ class TaskScheduler @Inject constructor(
             dataMap[HengamTask.DATA_TASK_ID] = taskOptions.taskId()
             dataMap[HengamTask.DATA_TASK_REPEAT_INTERVAL] = taskOptions.repeatInterval().toMillis()
             dataMap[HengamTask.DATA_TASK_FLEXIBILITY_TIME] = taskOptions.flexibilityTime().toMillis()
-            dataMap[HengamTask.DATA_TASK_CLASS] = taskOptions.task().qualifiedName
+            dataMap[HengamTask.DATA_TASK_CLASS] = TaskRegistry.taskClassName(taskOptions.task())
             taskBuilder.setInputData(Data.Builder().putAll(dataMap).build())
         }else{
             taskBuilder.setInputData(workDataOf(
@@ -196,7 +228,7 @@ class TaskScheduler @Inject constructor(
                     HengamTask.DATA_TASK_ID to taskOptions.taskId(),
                     HengamTask.DATA_TASK_REPEAT_INTERVAL to taskOptions.repeatInterval().toMillis(),
                     HengamTask.DATA_TASK_FLEXIBILITY_TIME to taskOptions.flexibilityTime().toMillis(),
-                    HengamTask.DATA_TASK_CLASS to taskOptions.task().qualifiedName
+                    HengamTask.DATA_TASK_CLASS to TaskRegistry.taskClassName(taskOptions.task())
             ))
         }
 
@@ -241,22 +273,25 @@ class TaskScheduler @Inject constructor(
 
     fun scheduleStoredTasks() {
         val tasks = mutableListOf<StoredTaskInfo>()
-        tasks.addAll(oneTimeTasks)
+        tasks.addAll(legacyOneTimeTasks)
+        legacyOneTimeTasks.clear()
 
-        oneTimeTasks.clear()
+        oneTimeTasks.keys.filter { it !in queuedTaskKeys }.forEach { key ->
+            oneTimeTasks.remove(key)?.let { tasks.add(it) }
+        }
         for (task in tasks){
             if (task.taskClassName == null) continue
-            val taskClass = Class.forName(task.taskClassName).kotlin
-            if (!taskClass.isSubclassOf(HengamTask::class)) continue
+            val taskClass = TaskRegistry.getTaskClass(task.taskClassName) ?: continue
 
             scheduleTask(object : OneTimeTaskOptions(){
                 override fun networkType(): NetworkType = task.networkType
-                override fun task(): KClass<out HengamTask> = Class.forName(task.taskClassName).kotlin as KClass<out HengamTask>
+                override fun task(): KClass<out HengamTask> = taskClass
                 override fun existingWorkPolicy(): ExistingWorkPolicy? = task.existingWorkPolicy
                 override fun taskId(): String? = task.taskId
                 override fun maxAttemptsCount(): Int = task.maxAttemptsCount
                 override fun backoffDelay(): Time? = task.backoffDelay
                 override fun backoffPolicy(): BackoffPolicy? = task.backoffPolicy
+                override fun priority(): TaskPriority = task.priority
             }, Data.Builder().putAll(task.inputData ?: mutableMapOf()).build())
         }
     }
@@ -276,5 +311,6 @@ data class StoredTaskInfo(
     @Json(name="max_attempts") val maxAttemptsCount: Int = -1,
     @Json(name="backoff_delay") val backoffDelay: Time? = null,
     @Json(name="backoff_policy") val backoffPolicy: BackoffPolicy? = null,
-    @Json(name="input_data") val inputData: Map<String, Any>?
+    @Json(name="input_data") val inputData: Map<String, Any>?,
+    @Json(name="priority") val priority: TaskPriority = TaskPriority.NORMAL
 )
\ No newline at end of file
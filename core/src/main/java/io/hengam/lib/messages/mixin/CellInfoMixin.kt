@@ -12,13 +12,21 @@ import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.messaging.MessageMixin
+import io.hengam.lib.utils.seconds
 import io.reactivex.Single
 
 class CellInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
-    @SuppressLint("MissingPermission")
     override fun collectMixinData(): Single<Map<String, Any?>> {
         val core = HengamInternals.getComponent(CoreComponent::class.java)
                 ?: throw ComponentNotAvailableException(Hengam.CORE)
+
+        return core.mixinSnapshotCache()
+                .get(CACHE_KEY, CACHE_TTL) { Single.fromCallable { collectCellDetails(core) } }
+                .map { cellDetails -> if (isNested && cellDetails.isNotEmpty()) mapOf("cell" to cellDetails) else cellDetails }
+    }
+
+    @SuppressLint("MissingPermission")
+    private fun collectCellDetails(core: CoreComponent): Map<String, Any?> {
         val telephonyManager: TelephonyManager = core.telephonyManager()
                 ?: throw HengamException("Could not obtain TelephonyManager")
 
@@ -26,17 +34,16 @@ class CellInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
                 val cellInfo = telephonyManager.allCellInfo
                 if (cellInfo.isNullOrEmpty()) {
-                    return Single.just(emptyMap())
+                    return emptyMap()
                 }
                 val sortedCells = cellInfo.sortedWith(CellComparator)
-                val cellDetails = getCellDetails(sortedCells[0])
-                return Single.just(if (isNested) mapOf("cell" to cellDetails) else cellDetails)
+                return getCellDetails(sortedCells[0])
             }
         } catch (ex: SecurityException) {
-            return Single.just(emptyMap())
+            return emptyMap()
         }
 
-        return Single.just(emptyMap())
+        return emptyMap()
     }
 
     @SuppressLint("NewApi")
@@ -77,6 +84,11 @@ class CellInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
         }.toMap() as Map<String, Any>
     }
 
+    companion object {
+        private const val CACHE_KEY = "cell"
+        private val CACHE_TTL = seconds(30)
+    }
+
     object CellComparator : Comparator<CellInfo> {
         override fun compare(c1: CellInfo?, c2: CellInfo?): Int {
             if (c1 == null && c2 == null) {
@@ -16,6 +16,12 @@ class LocationMixin(private val isNested: Boolean = false) : MessageMixin() {
         val core = HengamInternals.getComponent(CoreComponent::class.java)
                 ?: throw ComponentNotAvailableException(Hengam.CORE)
 
+        return core.mixinSnapshotCache()
+                .get(CACHE_KEY, CACHE_TTL) { collectLocation(core) }
+                .map { locationInfo -> if (isNested && locationInfo.isNotEmpty()) mapOf("location" to locationInfo) else locationInfo }
+    }
+
+    private fun collectLocation(core: CoreComponent): Single<Map<String, Any?>> {
         return core.geoUtils()
                 .getLocation(seconds(10))
                 .toSingle(emptyLocation)
@@ -23,13 +29,16 @@ class LocationMixin(private val isNested: Boolean = false) : MessageMixin() {
                     if (location == emptyLocation) {
                         emptyMap()
                     } else {
-                        val locationInfo = mapOf(
+                        mapOf(
                                 "lat" to location.latitude,
                                 "long" to location.longitude
                         )
-                        if (isNested) mapOf("location" to locationInfo) else locationInfo
                     }
                 }
+    }
 
+    companion object {
+        private const val CACHE_KEY = "location"
+        private val CACHE_TTL = seconds(60)
     }
 }
\ No newline at end of file
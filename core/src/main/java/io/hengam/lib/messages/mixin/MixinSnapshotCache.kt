@@ -0,0 +1,89 @@
+package io.hengam.lib.messages.mixin
+
+import io.hengam.lib.dagger.CoreScope
+import io.hengam.lib.utils.Time
+import io.hengam.lib.utils.TimeUtils
+import io.reactivex.Single
+import io.reactivex.SingleEmitter
+import javax.inject.Inject
+
+/**
+ * Caches the data collected by message mixins so that upstream messages created in bursts can
+ * share the same data instead of each querying the system services.
+ *
+ * Each mixin caches its data under its own key and with its own time-to-live. If a mixin's data is
+ * requested while a collection for it is already in progress, the request will share the result of
+ * the in-progress collection instead of starting a new one.
+ *
+ * Failed collections are not cached.
+ */
+@CoreScope
+class MixinSnapshotCache @Inject constructor() {
+    private class Snapshot(val data: Map<String, Any?>, val collectedAt: Long)
+
+    class Stats(val hits: Long, val misses: Long, val shared: Long) {
+        override fun toString(): String = "MixinCacheStats[Hits=$hits Misses=$misses Shared=$shared]"
+    }
+
+    private val lock = Any()
+    private val snapshots = mutableMapOf<String, Snapshot>()
+
+    /**
+     * The observers waiting for the result of each in-progress collection, keyed by mixin key
+     */
+    private val inFlightCollections = mutableMapOf<String, MutableList<SingleEmitter<Map<String, Any?>>>>()
+
+    private var hitCount = 0L
+    private var missCount = 0L
+    private var sharedCount = 0L
+
+    val stats: Stats
+        get() = synchronized(lock) { Stats(hitCount, missCount, sharedCount) }
+
+    /**
+     * Get the mixin data for the given key.
+     *
+     * @param key The key to cache the data with, should be unique for each mixin
+     * @param timeToLive The time which collected data will remain valid for
+     * @param collect Collects the mixin data, will only be called if no valid data exists in the
+     * cache and no collection for the key is in progress
+     */
+    fun get(key: String, timeToLive: Time, collect: () -> Single<Map<String, Any?>>): Single<Map<String, Any?>> {
+        return Single.create { emitter ->
+            synchronized(lock) {
+                val snapshot = snapshots[key]
+                if (snapshot != null && TimeUtils.nowMillis() - snapshot.collectedAt < timeToLive.toMillis()) {
+                    hitCount += 1
+                    emitter.onSuccess(snapshot.data)
+                    return@create
+                }
+
+                val waitingEmitters = inFlightCollections[key]
+                if (waitingEmitters != null) {
+                    sharedCount += 1
+                    waitingEmitters.add(emitter)
+                    return@create
+                }
+
+                missCount += 1
+                inFlightCollections[key] = mutableListOf(emitter)
+            }
+
+            // The collection is run to completion even if the observers are disposed, so that
+            // it's result can be cached
+            Single.defer(collect).subscribe(
+                    { data ->
+                        val waitingEmitters = synchronized(lock) {
+                            snapshots[key] = Snapshot(data, TimeUtils.nowMillis())
+                            inFlightCollections.remove(key)
+                        }
+                        waitingEmitters?.forEach { it.onSuccess(data) }
+                    },
+                    { ex ->
+                        val waitingEmitters = synchronized(lock) { inFlightCollections.remove(key) }
+                        waitingEmitters?.forEach { it.tryOnError(ex) }
+                    }
+            )
+        }
+    }
+}
@@ -6,6 +6,7 @@ import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.messaging.MessageMixin
 import io.hengam.lib.utils.NetworkType
+import io.hengam.lib.utils.seconds
 import io.reactivex.Single
 
 class NetworkInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
@@ -13,7 +14,13 @@ class NetworkInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
         val core = HengamInternals.getComponent(CoreComponent::class.java)
                 ?: throw ComponentNotAvailableException(Hengam.CORE)
 
-        val data = when (val networkType = core.networkInfoHelper().getNetworkType()) {
+        return core.mixinSnapshotCache()
+                .get(CACHE_KEY, CACHE_TTL) { Single.fromCallable { collectNetworkInfo(core) } }
+                .map { data -> if (isNested) mapOf("network" to data) else data }
+    }
+
+    private fun collectNetworkInfo(core: CoreComponent): Map<String, Any?> {
+        return when (val networkType = core.networkInfoHelper().getNetworkType()) {
             is NetworkType.Wifi -> mapOf(
                     "type" to "wifi",
                     "name" to networkType.info?.ssid
@@ -25,8 +32,10 @@ class NetworkInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
             )
             else -> emptyMap()
         }
+    }
 
-        return Single.just(if (isNested) mapOf ("network" to data) else data)
-
+    companion object {
+        private const val CACHE_KEY = "network"
+        private val CACHE_TTL = seconds(10)
     }
 }
\ No newline at end of file
@@ -5,21 +5,28 @@ import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.messaging.MessageMixin
+import io.hengam.lib.utils.seconds
 import io.reactivex.Single
 
 class WifiInfoMixin(private val isNested: Boolean = false) : MessageMixin() {
 
-    @SuppressWarnings("MissingPermission")
     override fun collectMixinData(): Single<Map<String, Any?>> {
         val core = HengamInternals.getComponent(CoreComponent::class.java)
                 ?: throw ComponentNotAvailableException(Hengam.CORE)
 
-        val wifiInfo = core.networkInfoHelper().getWifiNetwork()
-        return if (wifiInfo != null) {
-            val info = mapOf("mac" to wifiInfo.mac, "ssid" to wifiInfo.ssid)
-            Single.just(if (isNested) mapOf("wifi" to info) else info)
-        } else {
-            Single.just(emptyMap())
-        }
+        return core.mixinSnapshotCache()
+                .get(CACHE_KEY, CACHE_TTL) { Single.fromCallable { collectWifiInfo(core) } }
+                .map { info -> if (isNested && info.isNotEmpty()) mapOf("wifi" to info) else info }
+    }
+
+    @SuppressWarnings("MissingPermission")
+    private fun collectWifiInfo(core: CoreComponent): Map<String, Any?> {
+        val wifiInfo = core.networkInfoHelper().getWifiNetwork() ?: return emptyMap()
+        return mapOf("mac" to wifiInfo.mac, "ssid" to wifiInfo.ssid)
+    }
+
+    companion object {
+        private const val CACHE_KEY = "wifi"
+        private val CACHE_TTL = seconds(30)
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.dagger.CoreScope
+import javax.inject.Inject
+
+/**
+ * Keeps rolling statistics on the send attempts made with each outbound courier and uses them to
+ * decide which courier should be tried first when sending a parcel.
+ *
+ * The success rate and latency of each courier are tracked as exponentially weighted moving
+ * averages, so recent attempts have more weight than older ones and a courier which recovers from
+ * a period of failures will regain it's score over time.
+ *
+ * This class is not thread safe and should only be used on the cpu thread.
+ */
+@CoreScope
+class CourierHealthTracker @Inject constructor() {
+    class CourierStats {
+        /** Moving average of successful attempts, between 0 and 1 */
+        var successRate: Double = 1.0
+            internal set
+
+        /** Moving average of the time it takes the courier to send a parcel in milliseconds */
+        var averageLatency: Double = 0.0
+            internal set
+
+        var attemptCount: Int = 0
+            internal set
+
+        var consecutiveFailures: Int = 0
+            internal set
+
+        override fun toString(): String =
+                "CourierStats[SuccessRate=${"%.2f".format(successRate)} Latency=${averageLatency.toLong()}ms " +
+                "Attempts=$attemptCount ConsecutiveFailures=$consecutiveFailures]"
+    }
+
+    enum class Outcome { SUCCESS, FAIL, TIMEOUT, TOO_BIG }
+
+    private val stats = mutableMapOf<String, CourierStats>()
+
+    /**
+     * Record the result of an attempt at sending a parcel with a courier
+     *
+     * @param courierId The id of the courier used
+     * @param outcome The result of the attempt
+     * @param latencyMillis The time it took for the attempt to complete
+     */
+    fun recordAttempt(courierId: String, outcome: Outcome, latencyMillis: Long) {
+        val courierStats = stats.getOrPut(courierId) { CourierStats() }
+        courierStats.attemptCount += 1
+
+        // A parcel being too big says nothing about the courier's health
+        if (outcome == Outcome.TOO_BIG) return
+
+        // A courier which does not complete the send in time is as unhealthy as one which fails,
+        // otherwise a hanging courier would keep being tried first
+        val failed = outcome == Outcome.FAIL || outcome == Outcome.TIMEOUT
+        val success = if (failed) 0.0 else 1.0
+        courierStats.successRate += SMOOTHING_FACTOR * (success - courierStats.successRate)
+        courierStats.averageLatency = if (courierStats.attemptCount == 1) {
+            latencyMillis.toDouble()
+        } else {
+            courierStats.averageLatency + SMOOTHING_FACTOR * (latencyMillis - courierStats.averageLatency)
+        }
+        courierStats.consecutiveFailures = if (failed) courierStats.consecutiveFailures + 1 else 0
+    }
+
+    fun getStats(courierId: String): CourierStats? = stats[courierId]
+
+    /**
+     * Calculate a score for the courier, a higher score means the courier is more likely to
+     * successfully and quickly send the parcel.
+     *
+     * @param courierId The courier id
+     * @param failedAttempts The number of previously failed attempts at sending the parcel's
+     *                       messages with this courier (see [StoredUpstreamMessage.sendAttempts])
+     */
+    fun score(courierId: String, failedAttempts: Int = 0): Double {
+        val courierStats = stats[courierId] ?: return UNKNOWN_COURIER_SCORE / (1 + failedAttempts)
+        val latencyFactor = 1.0 / (1.0 + courierStats.averageLatency / LATENCY_SCALE_MILLIS)
+        return courierStats.successRate * latencyFactor / (1 + failedAttempts + courierStats.consecutiveFailures)
+    }
+
+    /**
+     * Order couriers by their score, from the highest score to the lowest. Couriers with equal
+     * scores will keep their original order.
+     *
+     * @param couriers The couriers to order
+     * @param failedAttempts The failed attempts of the parcel being sent, keyed by courier id
+     */
+    fun orderCouriers(couriers: List<OutboundCourier>, failedAttempts: Map<String, Int> = emptyMap()): List<OutboundCourier> {
+        if (couriers.size < 2) return couriers
+        return couriers.sortedByDescending { score(it.id, failedAttempts[it.id] ?: 0) }
+    }
+
+    companion object {
+        private const val SMOOTHING_FACTOR = 0.2
+        private const val LATENCY_SCALE_MILLIS = 1000.0
+
+        /**
+         * Couriers which have not been used yet are given a high score so that they are tried
+         * rather than being starved by couriers with a known history
+         */
+        private const val UNKNOWN_COURIER_SCORE = 1.0
+    }
+}
@@ -2,7 +2,6 @@ package io.hengam.lib.messaging
 
 import io.hengam.lib.AppManifest
 import io.hengam.lib.dagger.CoreScope
-import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.messaging.fcm.FcmMessaging
 import io.hengam.lib.messaging.fcm.FcmOutboundCourier
 import io.hengam.lib.messaging.fcm.FcmServiceManager
@@ -11,7 +10,8 @@ import javax.inject.Inject
 
 @CoreScope
 class CourierLounge @Inject constructor(
-        private val moshi: HengamMoshi,
+        private val parcelSerializer: ParcelSerializer,
+        private val parcelCodecs: ParcelCodecs,
         private val fcmServiceManager: FcmServiceManager,
         private val fcmMessaging: FcmMessaging,
         private val appManifest: AppManifest
@@ -34,7 +34,7 @@ class CourierLounge @Inject constructor(
         /* Outbound couriers added in order of their priority */
 
         if (fcmServiceManager.isFirebaseAvailable) {
-            availableOutboundCouriers.add(FcmOutboundCourier(moshi, fcmServiceManager, fcmMessaging, appManifest))
+            availableOutboundCouriers.add(FcmOutboundCourier(parcelSerializer, parcelCodecs, fcmServiceManager, fcmMessaging, appManifest))
         }
 
 //        availableOutboundCouriers.add(HttpOutboundCourier())
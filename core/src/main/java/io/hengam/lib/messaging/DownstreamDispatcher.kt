@@ -0,0 +1,261 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.LogTag.T_MESSAGE
+import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.utils.assertCpuThread
+import io.hengam.lib.utils.log.Plog
+import com.squareup.moshi.JsonDataException
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Dispatches downstream messages to the handlers registered for their message type.
+ *
+ * Handlers are indexed by message type, so dispatching a message only involves the handlers
+ * registered for its type regardless of how many handlers exist for other types. Handlers which
+ * receive parsed messages are grouped by their parser class and each message is parsed once per
+ * group, the parsed message is then given to all handlers in the group.
+ *
+ * Messages are dispatched in batches (e.g., all messages of a parcel). The messages of a batch are
+ * grouped by type, handlers registered with [registerBatch] receive all the parsed messages of
+ * their type in the batch at once.
+ *
+ * Handlers may be registered and removed on any thread, messages are dispatched on the cpu thread.
+ *
+ * Messages of a type which has no handlers registered specifically for it (handlers registered for
+ * all types not included) are counted as unhandled in the [stats].
+ */
+internal class DownstreamDispatcher(private val moshi: HengamMoshi) {
+    /**
+     * A handle for a registered handler which can be used to remove it
+     */
+    interface Registration
+
+    private class RawHandler(val handle: (RawDownstreamMessage) -> Unit) : Registration
+
+    private class ParsedHandler(
+            val handle: ((Any) -> Unit)? = null,
+            val handleBatch: ((List<Any>) -> Unit)? = null,
+            val onParseError: ((Map<String, Any?>) -> Unit)? = null
+    ) : Registration
+
+    private class ParserGroup(val parser: DownstreamMessageParser<*>, val handlers: List<ParsedHandler>)
+
+    private class TypeRoute(
+            val rawHandlers: List<RawHandler> = emptyList(),
+            val parserGroups: List<ParserGroup> = emptyList()
+    ) {
+        val isEmpty: Boolean get() = rawHandlers.isEmpty() && parserGroups.isEmpty()
+    }
+
+    private class TypeCounters {
+        var dispatched = 0L
+        var totalLatency = 0L
+        var maxLatency = 0L
+    }
+
+    class TypeStats(
+            val messageType: Int,
+            val dispatched: Long,
+            val averageLatency: Long,
+            val maxLatency: Long
+    ) {
+        override fun toString(): String =
+                "t$messageType[Dispatched=$dispatched AverageLatency=${averageLatency}ms MaxLatency=${maxLatency}ms]"
+    }
+
+    class Stats(val types: List<TypeStats>, val unhandled: Map<Int, Long>) {
+        override fun toString(): String =
+                "DispatchStats[Types=$types Unhandled=${unhandled.map { "t${it.key}=${it.value}" }}]"
+    }
+
+    private val lock = Any()
+
+    /**
+     * The registered handlers. The routes and their lists are never modified once created, a new
+     * route is created instead so that handlers can be called without holding the lock.
+     */
+    private val routes = mutableMapOf<Int, TypeRoute>()
+    @Volatile private var allTypeHandlers: List<RawHandler> = emptyList()
+
+    private val typeCounters = mutableMapOf<Int, TypeCounters>()
+    private val unhandledCounts = mutableMapOf<Int, Long>()
+
+    /**
+     * Should be accessed on the cpu thread
+     */
+    val stats: Stats
+        get() = Stats(
+                types = typeCounters.map { (type, counters) ->
+                    TypeStats(
+                            messageType = type,
+                            dispatched = counters.dispatched,
+                            averageLatency = if (counters.dispatched == 0L) 0 else counters.totalLatency / counters.dispatched,
+                            maxLatency = counters.maxLatency
+                    )
+                }.sortedBy { it.messageType },
+                unhandled = unhandledCounts.toMap()
+        )
+
+    /**
+     * Register a handler for messages of all types
+     */
+    fun register(handler: (RawDownstreamMessage) -> Unit): Registration {
+        val rawHandler = RawHandler(handler)
+        synchronized(lock) { allTypeHandlers = allTypeHandlers + rawHandler }
+        return rawHandler
+    }
+
+    /**
+     * Register a handler for messages of the given type
+     */
+    fun register(messageType: Int, handler: (RawDownstreamMessage) -> Unit): Registration {
+        val rawHandler = RawHandler(handler)
+        synchronized(lock) {
+            val route = routes[messageType] ?: TypeRoute()
+            routes[messageType] = TypeRoute(route.rawHandlers + rawHandler, route.parserGroups)
+        }
+        return rawHandler
+    }
+
+    /**
+     * Register a handler for messages of the parser's type. The messages will be parsed with the
+     * given parser before being passed to the handler.
+     *
+     * If a handler has already been registered with a parser of the same class, the messages will
+     * be parsed once for both handlers.
+     */
+    fun <T : Any> register(
+            messageParser: DownstreamMessageParser<T>,
+            handler: (T) -> Unit,
+            parseErrorHandler: ((Map<String, Any?>) -> Unit)? = null
+    ): Registration {
+        @Suppress("UNCHECKED_CAST")
+        return addParsedHandler(messageParser, ParsedHandler(handle = { handler(it as T) }, onParseError = parseErrorHandler))
+    }
+
+    /**
+     * Register a handler for batches of messages of the parser's type. The messages will be
+     * parsed with the given parser and all the messages of the type in each dispatched batch will
+     * be passed to the handler at once.
+     */
+    fun <T : Any> registerBatch(messageParser: DownstreamMessageParser<T>, handler: (List<T>) -> Unit): Registration {
+        @Suppress("UNCHECKED_CAST")
+        return addParsedHandler(messageParser, ParsedHandler(handleBatch = { handler(it as List<T>) }))
+    }
+
+    private fun addParsedHandler(messageParser: DownstreamMessageParser<*>, parsedHandler: ParsedHandler): Registration {
+        synchronized(lock) {
+            val messageType = messageParser.messageType
+            val route = routes[messageType] ?: TypeRoute()
+            val existingGroup = route.parserGroups.find { it.parser.javaClass == messageParser.javaClass }
+            val parserGroups = if (existingGroup != null) {
+                route.parserGroups.map {
+                    if (it === existingGroup) ParserGroup(it.parser, it.handlers + parsedHandler) else it
+                }
+            } else {
+                route.parserGroups + ParserGroup(messageParser, listOf(parsedHandler))
+            }
+            routes[messageType] = TypeRoute(route.rawHandlers, parserGroups)
+        }
+        return parsedHandler
+    }
+
+    fun unregister(registration: Registration) {
+        synchronized(lock) {
+            allTypeHandlers = allTypeHandlers.filter { it !== registration }
+            for ((type, route) in routes.toList()) {
+                val newRoute = TypeRoute(
+                        route.rawHandlers.filter { it !== registration },
+                        route.parserGroups
+                                .map { group -> ParserGroup(group.parser, group.handlers.filter { it !== registration }) }
+                                .filter { it.handlers.isNotEmpty() }
+                )
+                if (newRoute.isEmpty) routes.remove(type) else routes[type] = newRoute
+            }
+        }
+    }
+
+    /**
+     * Dispatch a batch of messages to their handlers. Should be called on the cpu thread.
+     *
+     * @param receiveTime The [System.nanoTime] at which the messages were received, used for
+     * measuring the dispatch latency
+     */
+    fun dispatch(messages: Collection<RawDownstreamMessage>, receiveTime: Long = System.nanoTime()) {
+        assertCpuThread()
+
+        val handlers = allTypeHandlers
+        messages.forEach { message ->
+            handlers.forEach { handler -> runHandler(message.messageType) { handler.handle(message) } }
+        }
+
+        messages.groupBy { it.messageType }.forEach { (messageType, typeMessages) ->
+            dispatchType(messageType, typeMessages, receiveTime)
+        }
+    }
+
+    private fun dispatchType(messageType: Int, messages: List<RawDownstreamMessage>, receiveTime: Long) {
+        val route = synchronized(lock) { routes[messageType] }
+        if (route == null) {
+            unhandledCounts[messageType] = (unhandledCounts[messageType] ?: 0) + messages.size
+            return
+        }
+
+        messages.forEach { message ->
+            route.rawHandlers.forEach { handler -> runHandler(messageType) { handler.handle(message) } }
+        }
+
+        route.parserGroups.forEach { group ->
+            val parsedMessages = messages.mapNotNull { parse(group, it) }
+            if (parsedMessages.isEmpty()) return@forEach
+            group.handlers.forEach { handler ->
+                handler.handle?.let { handle ->
+                    parsedMessages.forEach { runHandler(messageType) { handle(it) } }
+                }
+                handler.handleBatch?.let { handleBatch -> runHandler(messageType) { handleBatch(parsedMessages) } }
+            }
+        }
+
+        val latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receiveTime)
+        val counters = typeCounters.getOrPut(messageType) { TypeCounters() }
+        counters.dispatched += messages.size
+        counters.totalLatency += latency * messages.size
+        counters.maxLatency = maxOf(counters.maxLatency, latency)
+    }
+
+    private fun parse(group: ParserGroup, message: RawDownstreamMessage): Any? {
+        val messageType = group.parser.messageType
+        try {
+            return group.parser.parseMessage(moshi, message)
+                    ?: throw JsonDataException("Parsed message was null")
+        } catch (ex: Exception) {
+            when (ex) {
+                is JsonDataException, is IOException ->
+                    Plog.error(T_MESSAGE, MessageHandlingException("Could not parse downstream message", ex),
+                            "Message Type" to messageType, "Message" to moshi.adapter(Any::class.java).toJson(message.rawData))
+                else ->
+                    Plog.wtf(T_MESSAGE, MessageHandlingException("Unexpected error occurred on downstream message parsing", ex),
+                            "Message Type" to messageType, "Message" to moshi.adapter(Any::class.java).toJson(message.rawData))
+            }
+
+            group.handlers.forEach { handler ->
+                try {
+                    @Suppress("UNCHECKED_CAST")
+                    handler.onParseError?.invoke(message.rawData as Map<String, Any?>)
+                } catch (ex: Exception) {
+                    Plog.error(T_MESSAGE, ex)
+                }
+            }
+            return null
+        }
+    }
+
+    private inline fun runHandler(messageType: Int, handle: () -> Unit) {
+        try {
+            handle()
+        } catch (ex: Exception) {
+            Plog.error(T_MESSAGE, MessageHandlingException("Unhandled error occurred while handling message t$messageType", ex))
+        }
+    }
+}
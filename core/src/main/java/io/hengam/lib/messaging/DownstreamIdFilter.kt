@@ -0,0 +1,193 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.LogTag.T_MESSAGE
+import io.hengam.lib.downstreamDedupWindow
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.internal.ioThread
+import io.hengam.lib.utils.Debouncer
+import io.hengam.lib.utils.TimeUtils
+import io.hengam.lib.utils.assertCpuThread
+import io.hengam.lib.utils.log.Plog
+import io.hengam.lib.utils.seconds
+import java.io.*
+import java.util.ArrayDeque
+
+/**
+ * Remembers the ids of received downstream parcels for a limited time window, so that parcels
+ * which are delivered more than once (e.g., by both FCM and Lash or redelivered by the same
+ * courier) can be identified and ignored.
+ *
+ * The window is divided into [BUCKET_COUNT] time buckets. Each id is stored as a 64-bit hash in the
+ * bucket of the time it was received and whole buckets are dropped once they fall out of the
+ * window, so memory is bounded by the number of ids received in the window (and by
+ * [MAX_IDS_PER_BUCKET]) without tracking an expiration time per id.
+ *
+ * The window is read from [HengamConfig.downstreamDedupWindow] whenever an id is added. If it has
+ * changed the remembered ids are moved to the buckets of the new window.
+ *
+ * The buckets are persisted to [file] in a compact binary form. Changes are written at most once
+ * every [SAVE_DELAY] on the io thread.
+ *
+ * Should only be used on the cpu thread.
+ */
+class DownstreamIdFilter(
+        private val file: File,
+        private val hengamConfig: HengamConfig
+) {
+    private class Bucket(val index: Long, val ids: HashSet<Long> = HashSet())
+
+    class Stats(val accepted: Long, val duplicates: Long, val trackedIds: Int) {
+        override fun toString(): String =
+                "DownstreamIdFilterStats[Accepted=$accepted Duplicates=$duplicates TrackedIds=$trackedIds]"
+    }
+
+    private var bucketWidth = 0L
+    private var buckets: ArrayDeque<Bucket>? = null
+    private val saveAction: () -> Unit = {
+        buckets?.let { buckets ->
+            val width = bucketWidth
+            val snapshot = buckets.map { Bucket(it.index, HashSet(it.ids)) }
+            ioThread { save(width, snapshot) }
+        }
+    }
+
+    private var acceptedCount = 0L
+    private var duplicateCount = 0L
+
+    val stats: Stats
+        get() = Stats(acceptedCount, duplicateCount, buckets?.sumBy { it.ids.size } ?: 0)
+
+    /**
+     * Record an id as received
+     *
+     * @return `true` if the id has not been received within the window, `false` if it is a duplicate
+     */
+    fun add(id: String): Boolean {
+        assertCpuThread()
+
+        val buckets = loadBuckets()
+        updateBucketWidth(buckets)
+        val currentIndex = TimeUtils.nowMillis() / bucketWidth
+        while (buckets.isNotEmpty() && buckets.first.index <= currentIndex - BUCKET_COUNT) {
+            buckets.removeFirst()
+        }
+
+        val hash = hash(id)
+        if (buckets.any { hash in it.ids }) {
+            duplicateCount += 1
+            return false
+        }
+
+        val bucket = buckets.peekLast()?.takeIf { it.index == currentIndex }
+                ?: Bucket(currentIndex).also { buckets.addLast(it) }
+        if (bucket.ids.size < MAX_IDS_PER_BUCKET) {
+            bucket.ids.add(hash)
+            scheduleSave()
+        } else {
+            Plog.warn(T_MESSAGE, "Too many downstream parcels received, parcel id will not be remembered",
+                    "Parcel Id" to id
+            )
+        }
+        acceptedCount += 1
+        return true
+    }
+
+    private fun loadBuckets(): ArrayDeque<Bucket> {
+        buckets?.let { return it }
+
+        val loadedBuckets = ArrayDeque<Bucket>()
+        if (file.exists()) {
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    // Buckets persisted with a different window are moved by [updateBucketWidth]
+                    bucketWidth = input.readLong()
+                    repeat(input.readInt()) {
+                        val bucket = Bucket(input.readLong())
+                        repeat(input.readInt()) { bucket.ids.add(input.readLong()) }
+                        loadedBuckets.addLast(bucket)
+                    }
+                }
+            } catch (ex: IOException) {
+                Plog.warn(T_MESSAGE, "Reading received downstream parcel ids failed", ex)
+                loadedBuckets.clear()
+            }
+        }
+        buckets = loadedBuckets
+        return loadedBuckets
+    }
+
+    /**
+     * Update the bucket width if the configured window has changed.
+     *
+     * The existing buckets are re-indexed with the new width and buckets which end up with the
+     * same index are merged, so ids are only kept for as long as the new window allows.
+     */
+    private fun updateBucketWidth(buckets: ArrayDeque<Bucket>) {
+        val newWidth = maxOf(1L, hengamConfig.downstreamDedupWindow.toMillis() / BUCKET_COUNT)
+        if (newWidth == bucketWidth) return
+
+        val oldWidth = bucketWidth
+        bucketWidth = newWidth
+        if (oldWidth <= 0) {
+            buckets.clear()
+            return
+        }
+
+        val oldBuckets = buckets.toList()
+        buckets.clear()
+        oldBuckets.forEach { bucket ->
+            val index = bucket.index * oldWidth / newWidth
+            val last = buckets.peekLast()
+            if (last != null && last.index == index) {
+                last.ids.addAll(bucket.ids)
+            } else {
+                buckets.addLast(Bucket(index, bucket.ids))
+            }
+        }
+        scheduleSave()
+    }
+
+    private fun scheduleSave() {
+        Debouncer.throttleLast(this, SAVE_DELAY, saveAction)
+    }
+
+    private fun save(width: Long, snapshot: List<Bucket>) {
+        try {
+            val tempFile = File(file.path + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tempFile))).use { output ->
+                output.writeLong(width)
+                output.writeInt(snapshot.size)
+                snapshot.forEach { bucket ->
+                    output.writeLong(bucket.index)
+                    output.writeInt(bucket.ids.size)
+                    bucket.ids.forEach { output.writeLong(it) }
+                }
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.copyTo(file, overwrite = true)
+                tempFile.delete()
+            }
+        } catch (ex: IOException) {
+            Plog.warn(T_MESSAGE, "Persisting received downstream parcel ids failed", ex)
+        }
+    }
+
+    companion object {
+        const val FILE_NAME = "hengam_downstream_ids"
+        private const val BUCKET_COUNT = 6
+        private const val MAX_IDS_PER_BUCKET = 2000
+        private val SAVE_DELAY = seconds(1)
+
+        /**
+         * 64-bit FNV-1a hash of the id
+         */
+        private fun hash(id: String): Long {
+            var hash = -0x340d631b7bdddcdbL
+            id.forEach { char ->
+                hash = hash xor char.toLong()
+                hash *= 0x100000001b3L
+            }
+            return hash
+        }
+    }
+}
@@ -4,6 +4,7 @@ import io.hengam.lib.LogTag.T_MESSAGE
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.internal.computationThread
 import io.hengam.lib.internal.cpuThread
 import io.hengam.lib.utils.*
 import io.hengam.lib.utils.log.Plog
@@ -12,6 +13,7 @@ import io.reactivex.Completable
 import io.reactivex.Observable
 import io.reactivex.Single
 import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
 /**
@@ -47,8 +49,27 @@ abstract class UpstreamMessage(
     constructor(messageType: Int):
             this(messageType, IdGenerator.generateId(15))
 
+    /**
+     * The encoded json of the message, see [toCachedJson]
+     */
+    @Volatile @Transient private var cachedJson: String? = null
+
     abstract fun toJson(moshi: Moshi, writer: JsonWriter)
 
+    /**
+     * Encode the message to json only once and reuse the result for all subsequent calls.
+     *
+     * Upstream messages may be serialized several times before they are delivered (e.g., for
+     * estimating their size when storing them and then once for every attempt at sending them in a
+     * parcel). The message data does not change once the message has been prepared, so there is
+     * no need to encode it more than once.
+     *
+     * Note, this should only be called after the message has been prepared (see
+     * [SendableUpstreamMessage.prepare]), otherwise the cached json will be missing any data
+     * added while preparing.
+     */
+    fun toCachedJson(moshi: Moshi): String = cachedJson ?: toJson(moshi).also { cachedJson = it }
+
     fun toJson(moshi: Moshi): String = Adapter(moshi).toJson(this)
     fun toJson(moshi: HengamMoshi): String = toJson(moshi.moshi)
     fun toJsonValue(moshi: Moshi): Any? = Adapter(moshi).toJsonValue(this)
@@ -105,9 +126,16 @@ abstract class TypedUpstreamMessage<T> (
     @Transient protected var collectedMixinData: MutableMap<String, Any?>? = null
 
     override fun toJson(moshi: Moshi, writer: JsonWriter) {
-        val jsonValues = adapterProvider(moshi).toJsonValue(this as T) as MutableMap<String, Any?>
+        val mixinData = collectedMixinData
+        if (mixinData == null || mixinData.isEmpty()) {
+            // Write the message directly to the writer if there is no mixin data to merge
+            adapter(moshi).toJson(writer, this as T)
+            return
+        }
+
+        val jsonValues = adapter(moshi).toJsonValue(this as T) as MutableMap<String, Any?>
         val anyAdapter = moshi.adapter(Any::class.java)
-        collectedMixinData?.let { jsonValues.putAll(it) }
+        jsonValues.putAll(mixinData)
         return anyAdapter.toJson(writer, jsonValues)
     }
 
@@ -123,7 +151,7 @@ abstract class TypedUpstreamMessage<T> (
                 .map {
                     try {
                         it.collectMixinData()
-                                .subscribeOn(cpuThread())
+                                .subscribeOn(computationThread())
                                 .toObservable()
                                 .doOnError { err -> Plog.error(T_MESSAGE, err) }
                                 .onErrorReturn { emptyMap() }
@@ -138,6 +166,32 @@ abstract class TypedUpstreamMessage<T> (
                 .doOnNext { collectedMixinData?.putAll(it) }
                 .ignoreElements()
     }
+
+    /**
+     * Get the adapter for this message's class from [adapterCache], creating it with the
+     * [adapterProvider] if needed.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun adapter(moshi: Moshi): JsonAdapter<T> {
+        val cache = adapterCache?.takeIf { it.moshi === moshi } ?: AdapterCache(moshi).also { adapterCache = it }
+        return cache.adapters.getOrPut(javaClass) { adapterProvider(moshi) } as JsonAdapter<T>
+    }
+
+    private class AdapterCache(val moshi: Moshi) {
+        val adapters = ConcurrentHashMap<Class<*>, JsonAdapter<*>>()
+    }
+
+    companion object {
+        /**
+         * Adapters created by message [adapterProvider]s, mapped by message class.
+         *
+         * All messages of a class provide the same adapter, so there is no need to create a new
+         * adapter (and have it look up the adapters of all its fields) for every message being
+         * serialized. The cache is only valid for a single [Moshi] instance and is replaced if a
+         * different instance is used.
+         */
+        @Volatile private var adapterCache: AdapterCache? = null
+    }
 }
 
 sealed class UpstreamMessageState {
@@ -0,0 +1,55 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.LogTag.T_MESSAGE
+import io.hengam.lib.utils.RecordJournal
+import io.hengam.lib.utils.log.Plog
+import java.io.File
+
+/**
+ * An append-only [MessageStoreBackend] which persists message changes as records in a
+ * [RecordJournal], so the cost of persisting a change is proportional to the size of the change
+ * and not to the number of messages in the store.
+ *
+ * If a [legacyBackend] is given, any messages persisted in it will be moved to the journal the first
+ * time the journal is read and the legacy backend will be cleared.
+ *
+ * This class is not thread safe.
+ */
+class MessageJournal(
+        directory: File,
+        private val legacyBackend: SharedPreferencesMessageStoreBackend? = null,
+        maxSegmentSize: Long = DEFAULT_MAX_SEGMENT_SIZE,
+        compactionThreshold: Long = DEFAULT_COMPACTION_THRESHOLD
+) : RecordJournal(directory, maxSegmentSize, compactionThreshold, T_MESSAGE), MessageStoreBackend {
+
+    override fun readAll(): Map<String, String> {
+        val records = super.readAll().toMutableMap()
+        migrateLegacyRecords(records)
+        return records
+    }
+
+    override fun clear() {
+        super.clear()
+        legacyBackend?.clear()
+    }
+
+    private fun migrateLegacyRecords(records: MutableMap<String, String>) {
+        val legacy = legacyBackend ?: return
+        val legacyRecords = legacy.readAll()
+        if (legacyRecords.isEmpty()) return
+
+        // Records which already exist in the journal are newer than the legacy ones
+        val migratedRecords = legacyRecords.filterKeys { it !in records }
+        write(migratedRecords)
+        records.putAll(migratedRecords)
+        legacy.clear()
+
+        Plog.info(T_MESSAGE, "Migrated ${migratedRecords.size} persisted upstream messages to message journal")
+    }
+
+    companion object {
+        const val JOURNAL_DIRECTORY = "hengam_message_journal"
+        const val DEFAULT_MAX_SEGMENT_SIZE = 512 * 1024L
+        const val DEFAULT_COMPACTION_THRESHOLD = 256 * 1024L
+    }
+}
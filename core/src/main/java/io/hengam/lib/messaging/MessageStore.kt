@@ -1,12 +1,15 @@
 package io.hengam.lib.messaging
 
-import android.content.Context
 import io.hengam.lib.LogTag.T_MESSAGE
+import io.hengam.lib.UPSTREAM_MESSAGE_EXPIRATION
+import io.hengam.lib.UPSTREAM_MESSAGE_TIMEOUT
 import io.hengam.lib.dagger.CoreScope
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
-import io.hengam.lib.internal.cpuThread
 import io.hengam.lib.maxPendingUpstreamMessagesForType
+import io.hengam.lib.upstreamMessageExpirationTime
+import io.hengam.lib.upstreamMessageTimeout
+import io.hengam.lib.utils.Debouncer
 import io.hengam.lib.utils.Time
 import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.millis
@@ -18,7 +21,7 @@ import com.squareup.moshi.JsonDataException
 import io.reactivex.Maybe
 import io.reactivex.Observable
 import java.io.IOException
-import java.util.concurrent.TimeUnit
+import java.util.PriorityQueue
 import javax.inject.Inject
 
 /**
@@ -35,7 +38,7 @@ import javax.inject.Inject
  *   the `readMessages()` method.
  *
  * - Any message may also be **persisted** but it does not necessarily have to be. If a message is
- *   persisted, it will be written to device storage (SharedPreferences). If the application closes,
+ *   persisted, it will be written to device storage using the [MessageStoreBackend]. If the application closes,
  *   any stored messages which have not been persisted will be lost. By calling the `restoreMessages()`
  *   method when the application re-opens, any persisted messages will be recovered and _stored_ again.
  *   To specify that a message should be persisted, pass a `true` value for the `persistAcrossRuns`
@@ -49,72 +52,160 @@ import javax.inject.Inject
 class MessageStore @Inject constructor(
         private val moshi: HengamMoshi,
         private val hengamConfig: HengamConfig,
-        context: Context
+        private val backend: MessageStoreBackend
 ) {
-    private val sharedPrefs = context.getSharedPreferences(MESSAGE_STORE_NAME, Context.MODE_PRIVATE)
     private val persistedMessageAdapter by lazy { PersistedUpstreamMessageWrapperJsonAdapter(moshi.moshi) }
     private val messageAdapter = moshi.adapter(UpstreamMessage::class.java)
-    private val persistor = PublishRelay.create<PersistAction>()
-    private val messageCountPerType = mutableMapOf<Int, Int>()
 
     /**
-     * Messages contained in the Message Store.
-     *
-     * New messages which are added to the Message Store will be added to [newMessages] before
-     * being added to [storedMessages]. This is to prevent [ConcurrentModificationException]s if someone
-     * is already iterating over this list. The [storedMessages] and [newMessages] will be combined
-     * every time the messages are accessed with [allMessages].
+     * Changes which have not been persisted yet. Changes may be made on any thread (e.g., while
+     * restoring messages) and are written together once no changes have been made for
+     * [STORE_WRITE_RATE_LIMIT].
+     */
+    private val pendingChanges = mutableListOf<PersistAction>()
+    private val persistChangesAction = { persistChanges() }
+
+    /**
+     * Messages contained in the Message Store, keyed by message id and kept in insertion order.
      */
-    private var storedMessages = listOf<StoredUpstreamMessage>()
+    private val messages = LinkedHashMap<String, StoredUpstreamMessage>()
 
     /**
-     * Messages which have recently been added to the Message Store but have not been appended to
-     * [storedMessages] yet.
+     * An immutable snapshot of the [messages] values which is returned by [allMessages]. Since the
+     * snapshot is never modified, it is safe to add or remove messages while someone is iterating
+     * over it. The snapshot is discarded whenever a message is added or removed and will be
+     * recreated the next time [allMessages] is accessed.
      */
-    private var newMessages = mutableListOf<StoredUpstreamMessage>()
+    private var messagesSnapshot: List<StoredUpstreamMessage>? = null
 
     /**
-     * A set containing the message ids of messages which should be removed from the Message Store.
-     * The removing of these messages will be applied every time [allMessages] is accessed.
+     * Secondary indexes on the stored messages. These are maintained whenever a message is stored,
+     * removed or has it's state changed so that messages can be queried without having to iterate
+     * over the whole store.
      */
-    private var removedMessages = mutableSetOf<String>()
+    private val messagesByParcelId = mutableMapOf<String, MutableSet<StoredUpstreamMessage>>()
+    private val messagesByState = mutableMapOf<Class<out UpstreamMessageState>, MutableSet<StoredUpstreamMessage>>()
+    private val messagesByType = mutableMapOf<Int, MutableSet<StoredUpstreamMessage>>()
+    private val messagesByParcelGroup = mutableMapOf<String?, MutableSet<StoredUpstreamMessage>>()
 
     /**
-     * A set of the message id's of all messages currently stored in the Message Store. This includes
-     * messages in the [storedMessages] and [newMessages] lists excluding those in the [removedMessages]
-     * set.
+     * Deadline queues ordered by deadline time. [expirationDeadlines] holds the time at which each
+     * [UpstreamMessageState.Stored] message expires and [timeoutDeadlines] holds the time at which
+     * each [UpstreamMessageState.InFlight] message times out.
+     *
+     * Deadlines are not removed from the queues when a message's state changes or the message is
+     * removed. Instead, deadlines which no longer belong to the message's current state are
+     * discarded once they reach the head of the queue (see [isValid]) or when the queues are
+     * rebuilt because they have grown too large.
      */
-    private val existingMessageIds = mutableSetOf<String>()
+    private val expirationDeadlines = PriorityQueue<Deadline>(11, compareBy { it.time })
+    private val timeoutDeadlines = PriorityQueue<Deadline>(11, compareBy { it.time })
+    private val nextDeadlineRelay = PublishRelay.create<Time>()
 
-    val size: Int get() = existingMessageIds.size
+    val size: Int get() = messages.size
 
     init {
-        initializeMessagePersisting()
+        /* Deadlines are calculated when they are added, so recalculate them if the config changes */
+        hengamConfig.observeChanges(UPSTREAM_MESSAGE_TIMEOUT.key, UPSTREAM_MESSAGE_EXPIRATION.key)
+                .keepDoing(T_MESSAGE) { rebuildDeadlines() }
     }
 
     /**
      * A collection containing all messages stored in the Message Store.
      */
     val allMessages: List<StoredUpstreamMessage>
-        get() {
-            var allMessages = storedMessages
+        get() = messagesSnapshot ?: messages.values.toList().also { messagesSnapshot = it }
 
-            if (newMessages.isNotEmpty()){
-                allMessages = allMessages + newMessages
-                newMessages = mutableListOf()
-            }
+    /**
+     * @return The stored message with the given message id or null if it does not exist
+     */
+    fun getMessage(messageId: String): StoredUpstreamMessage? = messages[messageId]
 
-            if (removedMessages.isNotEmpty()) {
-                allMessages = allMessages.filter { it.messageId !in removedMessages }
-                removedMessages = mutableSetOf()
-            }
+    /**
+     * Get the messages which are in-flight as part of the parcel with the given parcel id.
+     *
+     * The returned list is a copy, so it is safe to update or dispose the messages while iterating
+     * over it.
+     */
+    fun getMessagesInParcel(parcelId: String): List<StoredUpstreamMessage> =
+            messagesByParcelId[parcelId]?.toList() ?: emptyList()
+
+    /**
+     * Get the messages which currently have a state of the given type, e.g.
+     * `getMessagesWithState(UpstreamMessageState.InFlight::class.java)`.
+     *
+     * The returned list is a copy, so it is safe to update or dispose the messages while iterating
+     * over it.
+     */
+    fun getMessagesWithState(stateType: Class<out UpstreamMessageState>): List<StoredUpstreamMessage> =
+            messagesByState[stateType]?.toList() ?: emptyList()
+
+    fun hasMessagesWithState(stateType: Class<out UpstreamMessageState>): Boolean =
+            messagesByState[stateType]?.isNotEmpty() == true
+
+    /**
+     * Get the messages with the given message type.
+     *
+     * The returned list is a copy, so it is safe to update or dispose the messages while iterating
+     * over it.
+     */
+    fun getMessagesByType(messageType: Int): List<StoredUpstreamMessage> =
+            messagesByType[messageType]?.toList() ?: emptyList()
+
+    fun countMessagesByType(messageType: Int): Int = messagesByType[messageType]?.size ?: 0
 
-            storedMessages = allMessages
-            return allMessages
+    /**
+     * Get the messages which have been stored with the given `parcelGroupKey`.
+     *
+     * The returned list is a copy, so it is safe to update or dispose the messages while iterating
+     * over it.
+     */
+    fun getMessagesByParcelGroup(parcelGroupKey: String?): List<StoredUpstreamMessage> =
+            messagesByParcelGroup[parcelGroupKey]?.toList() ?: emptyList()
+
+    /**
+     * The earliest time at which a stored message expires or an in-flight message times out, or
+     * null if there are no stored or in-flight messages
+     */
+    val nextDeadline: Time?
+        get() {
+            val expiration = peekValidDeadline(expirationDeadlines)?.time
+            val timeout = peekValidDeadline(timeoutDeadlines)?.time
+            return when {
+                expiration == null -> timeout
+                timeout == null -> expiration
+                else -> minOf(expiration, timeout)
+            }?.let { millis(it) }
         }
 
     /**
-     * Load any stored messages from the shared preferences and add them to the
+     * Emits the new deadline whenever a message is given a deadline which is earlier than all
+     * existing deadlines (see [nextDeadline]). Will emit on the thread the message state was
+     * changed on.
+     */
+    fun observeNextDeadline(): Observable<Time> = nextDeadlineRelay
+
+    /**
+     * Get the [UpstreamMessageState.Stored] messages which have expired at the given time.
+     *
+     * The message expiration time is the message's `expireAfter` value or
+     * [HengamConfig.upstreamMessageExpirationTime] if not available, counted from the creation of
+     * the message. The returned messages are removed from the deadline queue, so the caller is
+     * expected to dispose them.
+     */
+    fun pollExpiredMessages(now: Time): List<StoredUpstreamMessage> = pollDueDeadlines(expirationDeadlines, now)
+
+    /**
+     * Get the [UpstreamMessageState.InFlight] messages which have been in-flight for longer than
+     * [HengamConfig.upstreamMessageTimeout] at the given time.
+     *
+     * The returned messages are removed from the deadline queue, so the caller is expected to
+     * change their state.
+     */
+    fun pollTimedOutMessages(now: Time): List<StoredUpstreamMessage> = pollDueDeadlines(timeoutDeadlines, now)
+
+    /**
+     * Load any persisted messages from the [MessageStoreBackend] and add them to the
      * message store for sending.
      *
      * This should be called on initialization
@@ -124,7 +215,8 @@ class MessageStore @Inject constructor(
      */
     fun restoreMessages(): Maybe<SendPriority> {
         return Maybe.fromCallable {
-            val keys = sharedPrefs.all.keys
+            val persistedRecords = backend.readAll()
+            val keys = persistedRecords.keys
             val erroredKeys = mutableListOf<String>()
 
             val recoveredMessages = mutableListOf<StoredUpstreamMessage>()
@@ -133,7 +225,7 @@ class MessageStore @Inject constructor(
                 var highestPriority = SendPriority.WHENEVER
 
                 for (key in keys) {
-                    val json = sharedPrefs.getString(key, "")
+                    val json = persistedRecords[key]
 
                     if (json == null || json.isBlank()) {
                         continue
@@ -160,6 +252,8 @@ class MessageStore @Inject constructor(
                                 messageData = it.messageData
                         )
 
+                        if (message.messageId in messages) return@let
+
                         recoveredMessages.add(StoredUpstreamMessage(
                                 this,
                                 messageId = message.messageId,
@@ -173,23 +267,21 @@ class MessageStore @Inject constructor(
                                 initialSendAttempts = it.sendAttempts
                         ))
 
-                        increaseMessageCount(message.messageType)
-
                         if (it.sendPriority > highestPriority) {
                             highestPriority = it.sendPriority
                         }
                     }
                 }
 
-                newMessages.addAll(recoveredMessages)
-                existingMessageIds.addAll(recoveredMessages.map { it.messageId })
+                recoveredMessages.forEach { addMessage(it) }
 
-                Plog.debug(T_MESSAGE, "Restored ${keys.size} pending outbound message, will schedule with priority $highestPriority",
-                    "Message Types" to recoveredMessages.groupBy { it.message.messageType }
-                            .map { Pair(it.key, it.value.size) }.toMap()
-                )
+                Plog.debug(T_MESSAGE) {
+                    message = "Restored ${keys.size} pending outbound message, will schedule with priority $highestPriority"
+                    withData("Message Types", recoveredMessages.groupBy { it.message.messageType }
+                            .map { Pair(it.key, it.value.size) }.toMap())
+                }
 
-                erroredKeys.forEach { persistor.accept(PersistAction.Remove(it)) }
+                erroredKeys.forEach { persist(PersistAction.Remove(it)) }
 
                 if (erroredKeys.size == keys.size) {
                     return@fromCallable null
@@ -239,25 +331,25 @@ class MessageStore @Inject constructor(
     fun storeMessage(message: UpstreamMessage, sendPriority: SendPriority,
                      persist: Boolean, requiresRegistration: Boolean,
                      parcelGroupKey: String?, expireAfter: Time?): StoredUpstreamMessage? {
-        if (message.messageId in existingMessageIds) {
+        if (message.messageId in messages) {
             Plog.error(T_MESSAGE, "Attempted to store upstream message with duplicate message id", "Message" to messageAdapter.toJson(message))
             return null
         }
 
-        if ((messageCountPerType[message.messageType] ?: 0) >= hengamConfig.maxPendingUpstreamMessagesForType(message.messageType)) {
+        if (countMessagesByType(message.messageType) >= hengamConfig.maxPendingUpstreamMessagesForType(message.messageType)) {
             Plog.warn.message("Ignoring upstream message with type ${message.messageType}, too many messages of this type are already pending")
                     .withTag(T_MESSAGE)
-                    .withData("Pending Count", messageCountPerType[message.messageType])
+                    .withData("Pending Count", countMessagesByType(message.messageType))
                     .aggregate("upstream_message_type_limit", millis(500)) {
-                        message("Ignoring ${logs.size} upstream messages with type ${message.messageType}, " +
+                        message("Ignoring $count upstream messages with type ${message.messageType}, " +
                                 "too many messages of this type are already pending")
-                        withData("Pending Count", messageCountPerType[message.messageType])
+                        withData("Pending Count", countMessagesByType(message.messageType))
                     }
                     .log()
             return null
         }
 
-        val messageSize = messageAdapter.toJson(message).length
+        val messageSize = message.toCachedJson(moshi.moshi).length
         val storedMessage = StoredUpstreamMessage(
                 this,
                 message.messageId,
@@ -269,15 +361,12 @@ class MessageStore @Inject constructor(
                 expireAfter,
                 UpstreamMessageState.Stored()
         )
-        newMessages.add(storedMessage)
-        existingMessageIds.add(storedMessage.messageId)
+        addMessage(storedMessage)
 
         if (persist) {
             persistMessage(storedMessage)
         }
 
-        increaseMessageCount(message.messageType)
-
         return storedMessage
     }
 
@@ -294,10 +383,10 @@ class MessageStore @Inject constructor(
      */
     fun persistMessage(storedMessage: StoredUpstreamMessage,
                        insertIfNotExist: Boolean = true): Boolean {
-        if (!insertIfNotExist && storedMessage.messageId !in existingMessageIds) {
+        if (!insertIfNotExist && storedMessage.messageId !in messages) {
             return false
         }
-        persistor.accept(PersistAction.Save(storedMessage))
+        persist(PersistAction.Save(storedMessage))
         return true
     }
 
@@ -308,70 +397,186 @@ class MessageStore @Inject constructor(
      * @param storedMessage The [StoredUpstreamMessage] instance to remove from storage
      */
     fun removeMessage(storedMessage: StoredUpstreamMessage) {
-        removedMessages.add(storedMessage.messageId)
-        existingMessageIds.remove(storedMessage.messageId)
-        persistor.accept(PersistAction.Remove(storedMessage))
-        decreaseMessageCount(storedMessage.message.messageType)
+        if (messages.remove(storedMessage.messageId) != null) {
+            messagesSnapshot = null
+            unindexMessage(storedMessage, storedMessage.messageState)
+            messagesByType.removeFromIndex(storedMessage.message.messageType, storedMessage)
+            messagesByParcelGroup.removeFromIndex(storedMessage.parcelGroupKey, storedMessage)
+        }
+        persist(PersistAction.Remove(storedMessage))
     }
 
     operator fun contains(messageId: String): Boolean {
-        return existingMessageIds.contains(messageId)
+        return messages.containsKey(messageId)
     }
 
-    private fun increaseMessageCount(messageType: Int) {
-        messageCountPerType[messageType] = (messageCountPerType[messageType] ?: 0) + 1
+    /**
+     * Should be called by [StoredUpstreamMessage] whenever it's state changes in order to keep the
+     * state and parcel indexes up to date.
+     */
+    internal fun onMessageStateChanged(storedMessage: StoredUpstreamMessage, previousState: UpstreamMessageState) {
+        if (messages[storedMessage.messageId] !== storedMessage) return
+        unindexMessage(storedMessage, previousState)
+        indexMessage(storedMessage, storedMessage.messageState)
+        addDeadline(storedMessage)
     }
 
-    private fun decreaseMessageCount(messageType: Int) {
-        messageCountPerType[messageType] = (messageCountPerType[messageType] ?: 1) - 1
+    private fun addMessage(storedMessage: StoredUpstreamMessage) {
+        messages[storedMessage.messageId] = storedMessage
+        messagesSnapshot = null
+        indexMessage(storedMessage, storedMessage.messageState)
+        messagesByType.addToIndex(storedMessage.message.messageType, storedMessage)
+        messagesByParcelGroup.addToIndex(storedMessage.parcelGroupKey, storedMessage)
+        addDeadline(storedMessage)
     }
 
-    private fun initializeMessagePersisting() {
-        val changes = mutableListOf<PersistAction>()
-
-        persistor
-                .observeOn(cpuThread())
-                .doOnNext { changes.add(it) }
-                .debounce(STORE_WRITE_RATE_LIMIT, TimeUnit.MILLISECONDS, cpuThread())
-                .keepDoing {
-                    if (changes.isEmpty()) return@keepDoing
-                    
-                    Plog.trace(T_MESSAGE, "Persisting ${changes.size} changes in message store")
-
-                    val editor = sharedPrefs.edit()
-                    changes.forEach { persistAction ->
-                        when (persistAction) {
-                            is PersistAction.Save -> {
-                                val storedMessage = persistAction.storedMessage
-                                val messageData = messageAdapter.toJsonValue(storedMessage.message) ?: emptyMap<String, Any>()
-                                val persistedMessage = PersistedUpstreamMessageWrapper(
-                                        messageType = storedMessage.message.messageType,
-                                        messageId = storedMessage.message.messageId,
-                                        sendPriority = storedMessage.sendPriority,
-                                        messageData = messageData,
-                                        messageSize = storedMessage.messageSize,
-                                        parcelGroupKey = storedMessage.parcelGroupKey,
-                                        expireAfter = storedMessage.expireAfter,
-                                        messageState = storedMessage.messageState,
-                                        sendAttempts = storedMessage.sendAttempts,
-                                        messageTimestamp = storedMessage.message.time
-                                )
-                                val json = persistedMessageAdapter.toJson(persistedMessage)
-                                editor.putString(storedMessage.messageId, json).apply()
-                            }
-                            is PersistAction.Remove -> { editor.remove(persistAction.messageId) }
-                        }
-                    }
-                    editor.apply()
-                    changes.clear()
-                }
+    private fun indexMessage(storedMessage: StoredUpstreamMessage, state: UpstreamMessageState) {
+        messagesByState.addToIndex(state.javaClass, storedMessage)
+        if (state is UpstreamMessageState.InFlight) {
+            messagesByParcelId.addToIndex(state.parcelId, storedMessage)
+        }
     }
 
+    private fun unindexMessage(storedMessage: StoredUpstreamMessage, state: UpstreamMessageState) {
+        messagesByState.removeFromIndex(state.javaClass, storedMessage)
+        if (state is UpstreamMessageState.InFlight) {
+            messagesByParcelId.removeFromIndex(state.parcelId, storedMessage)
+        }
+    }
 
+    private fun createDeadline(storedMessage: StoredUpstreamMessage): Deadline? {
+        val state = storedMessage.messageState
+        return when (state) {
+            is UpstreamMessageState.Stored -> Deadline(
+                    (storedMessage.message.time + (storedMessage.expireAfter ?: hengamConfig.upstreamMessageExpirationTime)).toMillis(),
+                    storedMessage, state
+            )
+            is UpstreamMessageState.InFlight -> Deadline(
+                    (state.timestamp + hengamConfig.upstreamMessageTimeout).toMillis(),
+                    storedMessage, state
+            )
+            else -> null
+        }
+    }
+
+    private fun addDeadline(storedMessage: StoredUpstreamMessage) {
+        val deadline = createDeadline(storedMessage) ?: return
+
+        if (expirationDeadlines.size + timeoutDeadlines.size >= 2 * messages.size + MIN_DEADLINES_BEFORE_REBUILD) {
+            // Too many stale deadlines have accumulated, this will also add the new deadline
+            rebuildDeadlines()
+        } else {
+            val earliest = nextDeadline
+            queueFor(deadline).add(deadline)
+            if (earliest == null || deadline.time < earliest.toMillis()) {
+                nextDeadlineRelay.accept(millis(deadline.time))
+            }
+        }
+    }
+
+    private fun rebuildDeadlines() {
+        expirationDeadlines.clear()
+        timeoutDeadlines.clear()
+        messages.values.forEach { storedMessage ->
+            createDeadline(storedMessage)?.let { queueFor(it).add(it) }
+        }
+        nextDeadline?.let { nextDeadlineRelay.accept(it) }
+    }
+
+    private fun queueFor(deadline: Deadline) =
+            if (deadline.state is UpstreamMessageState.InFlight) timeoutDeadlines else expirationDeadlines
+
+    private fun Deadline.isValid() =
+            messages[storedMessage.messageId] === storedMessage && storedMessage.messageState === state
+
+    private fun peekValidDeadline(queue: PriorityQueue<Deadline>): Deadline? {
+        while (true) {
+            val deadline = queue.peek() ?: return null
+            if (deadline.isValid()) return deadline
+            queue.poll()
+        }
+    }
+
+    private fun pollDueDeadlines(queue: PriorityQueue<Deadline>, now: Time): List<StoredUpstreamMessage> {
+        val nowMillis = now.toMillis()
+        val dueMessages = mutableListOf<StoredUpstreamMessage>()
+        while (true) {
+            val deadline = peekValidDeadline(queue) ?: break
+            if (deadline.time > nowMillis) break
+            queue.poll()
+            dueMessages.add(deadline.storedMessage)
+        }
+        return dueMessages
+    }
+
+    private fun <K> MutableMap<K, MutableSet<StoredUpstreamMessage>>.addToIndex(key: K, storedMessage: StoredUpstreamMessage) {
+        getOrPut(key) { LinkedHashSet() }.add(storedMessage)
+    }
+
+    private fun <K> MutableMap<K, MutableSet<StoredUpstreamMessage>>.removeFromIndex(key: K, storedMessage: StoredUpstreamMessage) {
+        val messageSet = this[key] ?: return
+        messageSet.remove(storedMessage)
+        if (messageSet.isEmpty()) remove(key)
+    }
+
+    private fun persist(persistAction: PersistAction) {
+        synchronized(pendingChanges) { pendingChanges.add(persistAction) }
+        Debouncer.debounce(this, millis(STORE_WRITE_RATE_LIMIT), action = persistChangesAction)
+    }
+
+    private fun persistChanges() {
+        val changes = synchronized(pendingChanges) {
+            pendingChanges.toList().also { pendingChanges.clear() }
+        }
+        if (changes.isEmpty()) return
+
+        Plog.trace(T_MESSAGE) { message = "Persisting ${changes.size} changes in message store" }
+
+        val records = mutableMapOf<String, String?>()
+        changes.forEach { persistAction ->
+            when (persistAction) {
+                is PersistAction.Save -> {
+                    val storedMessage = persistAction.storedMessage
+                    val messageData = messageAdapter.toJsonValue(storedMessage.message) ?: emptyMap<String, Any>()
+                    val persistedMessage = PersistedUpstreamMessageWrapper(
+                            messageType = storedMessage.message.messageType,
+                            messageId = storedMessage.message.messageId,
+                            sendPriority = storedMessage.sendPriority,
+                            messageData = messageData,
+                            messageSize = storedMessage.messageSize,
+                            parcelGroupKey = storedMessage.parcelGroupKey,
+                            expireAfter = storedMessage.expireAfter,
+                            messageState = storedMessage.messageState,
+                            sendAttempts = storedMessage.sendAttempts,
+                            messageTimestamp = storedMessage.message.time
+                    )
+                    records[storedMessage.messageId] = persistedMessageAdapter.toJson(persistedMessage)
+                }
+                is PersistAction.Remove -> records[persistAction.messageId] = null
+            }
+        }
+
+        try {
+            backend.write(records)
+        } catch (ex: IOException) {
+            Plog.error(T_MESSAGE, MessagePersistException("Persisting message store changes failed", ex),
+                    "Change Count" to records.size)
+        }
+    }
+
+    /**
+     * The time (in millis) at which the message should leave the given state, see [expirationDeadlines]
+     */
+    private class Deadline(
+            val time: Long,
+            val storedMessage: StoredUpstreamMessage,
+            val state: UpstreamMessageState
+    )
 
     companion object {
         const val MESSAGE_STORE_NAME = "hengam_message_store"
         const val STORE_WRITE_RATE_LIMIT = 1000L
+        private const val MIN_DEADLINES_BEFORE_REBUILD = 64
     }
 }
 
@@ -400,7 +605,9 @@ class StoredUpstreamMessage(
 
 
     fun updateState(state: UpstreamMessageState, persistChange: Boolean = true) {
+        val previousState = this.messageState
         this.messageState = state
+        messageStore.onMessageStateChanged(this, previousState)
         if (persistChange) {
             save(false)
         }
@@ -438,6 +645,8 @@ class PersistedUpstreamMessageWrapper(
         @Json(name = "time") val messageTimestamp: Time
 )
 
+private class MessagePersistException(message: String, cause: Throwable? = null) : Exception(message, cause)
+
 private sealed class PersistAction {
     class Save(val storedMessage: StoredUpstreamMessage) : PersistAction()
     class Remove(val messageId: String) : PersistAction() {
@@ -0,0 +1,62 @@
+package io.hengam.lib.messaging
+
+import android.content.SharedPreferences
+
+/**
+ * The storage used by the [MessageStore] for persisting upstream messages.
+ *
+ * Records are identified by the message id and hold the message's persisted JSON (see
+ * [PersistedUpstreamMessageWrapper]). A backend does not need to be thread safe, the [MessageStore]
+ * will only access it from the cpu thread.
+ */
+interface MessageStoreBackend {
+    /**
+     * Read all persisted records
+     *
+     * @return A map of message ids to the persisted message JSON
+     */
+    fun readAll(): Map<String, String>
+
+    /**
+     * Apply a batch of changes to the persisted records.
+     *
+     * @param changes A map of message ids to the new persisted message JSON. A `null` value
+     *                means the record should be removed.
+     */
+    fun write(changes: Map<String, String?>)
+
+    /**
+     * Remove all persisted records
+     */
+    fun clear()
+}
+
+/**
+ * A [MessageStoreBackend] which stores each message as a separate key in a [SharedPreferences] file.
+ *
+ * Note, every write to a [SharedPreferences] file rewrites the whole file so the cost of persisting
+ * a change with this backend grows with the number of persisted messages. It is kept for
+ * compatibility and for migrating to the [MessageJournal].
+ */
+class SharedPreferencesMessageStoreBackend(
+        private val sharedPrefs: SharedPreferences
+) : MessageStoreBackend {
+    override fun readAll(): Map<String, String> {
+        return sharedPrefs.all
+                .mapNotNull { entry -> (entry.value as? String)?.let { entry.key to it } }
+                .toMap()
+    }
+
+    override fun write(changes: Map<String, String?>) {
+        if (changes.isEmpty()) return
+        val editor = sharedPrefs.edit()
+        changes.forEach { (messageId, json) ->
+            if (json == null) editor.remove(messageId) else editor.putString(messageId, json)
+        }
+        editor.apply()
+    }
+
+    override fun clear() {
+        sharedPrefs.edit().clear().commit()
+    }
+}
@@ -3,6 +3,7 @@ package io.hengam.lib.messaging
 import io.hengam.lib.ApiPatch
 import io.hengam.lib.LogTag.T_MESSAGE
 import io.hengam.lib.MessageFields
+import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.utils.IdGenerator
 import io.hengam.lib.utils.log.Plog
 import com.squareup.moshi.*
@@ -22,8 +23,7 @@ open class UpstreamParcel constructor(
     }
 
     protected open fun toJson(moshi: Moshi, writer: JsonWriter) {
-        val messageListType = Types.newParameterizedType(List::class.java, UpstreamMessage::class.java)
-        val messageListAdapter: JsonAdapter<List<UpstreamMessage>> = moshi.adapter(messageListType)
+        val messageListAdapter: JsonAdapter<List<UpstreamMessage>> = moshi.adapter(MESSAGE_LIST_TYPE)
 
         val groupedMessages = groupMessages()
         for ((key, value) in groupedMessages) {
@@ -37,8 +37,7 @@ open class UpstreamParcel constructor(
         }
 
         /* Add `types: []` key to json */
-        val listAdapter: JsonAdapter<List<String>> = moshi.adapter(
-                Types.newParameterizedType(List::class.java, String::class.java))
+        val listAdapter: JsonAdapter<List<String>> = moshi.adapter(HengamMoshi.STRING_LIST_TYPE)
         writer.name("types")
         listAdapter.toJson(writer, groupedMessages.keys.toList())
     }
@@ -59,6 +58,7 @@ open class UpstreamParcel constructor(
 
     companion object {
         private const val PARCEL_ID_LENGTH = 16
+        private val MESSAGE_LIST_TYPE = Types.newParameterizedType(List::class.java, UpstreamMessage::class.java)
 
         /**
          * Create a parcel id for a parcel with the given messages.
@@ -95,7 +95,7 @@ open class UpstreamParcel constructor(
 
 class UpstreamStampedParcel(
         parcel: UpstreamParcel,
-        private val stamp: Map<String, Any>
+        val stamp: Map<String, Any>
 ) : UpstreamParcel(parcel.parcelId, parcel.messages) {
     override fun toJson(moshi: Moshi, writer: JsonWriter) {
         super.toJson(moshi, writer)
@@ -116,6 +116,13 @@ class DownstreamParcel(
         val parcelId: String,
         val messages: Collection<RawDownstreamMessage>
 ) {
+    /**
+     * Whether any of the parcel's messages has [MessageFields.ALLOW_MULTI_PUBLISH] set, i.e., is
+     * expected to be delivered more than once with the same id
+     */
+    val allowsDuplicates: Boolean
+        get() = messages.any { (it.rawData as? Map<*, *>)?.get(MessageFields.ALLOW_MULTI_PUBLISH) == true }
+
 
     class Adapter (val moshi: Moshi): JsonAdapter<DownstreamParcel>() {
         private val stringAdapter: JsonAdapter<String> = moshi.adapter(String::class.java).nonNull()
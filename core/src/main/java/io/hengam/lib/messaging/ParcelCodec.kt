@@ -0,0 +1,202 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.LogTag.T_MESSAGE
+import io.hengam.lib.dagger.CoreScope
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.upstreamMaxCompressedParcelSize
+import io.hengam.lib.upstreamMaxParcelSize
+import io.hengam.lib.upstreamParcelCodec
+import io.hengam.lib.utils.log.Plog
+import okio.Buffer
+import okio.ByteString
+import java.io.IOException
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import javax.inject.Inject
+
+/**
+ * Encodes an [UpstreamParcel] in to the string fields which are given to an [OutboundCourier].
+ */
+interface ParcelCodec {
+    /**
+     * The codec id, the server identifies how a parcel should be decoded using this id
+     */
+    val id: String
+
+    /**
+     * Whether the codec compresses the parcel. If `true`, the parcels sent with this codec may
+     * contain more messages (see [HengamConfig.upstreamMaxCompressedParcelSize]).
+     */
+    val isCompressing: Boolean
+
+    fun encode(parcel: UpstreamParcel, parcelSerializer: ParcelSerializer): Map<String, String>
+}
+
+/**
+ * The default codec, sends the parcel as plain string fields (see [ParcelSerializer.toFieldMap])
+ */
+object PlainParcelCodec : ParcelCodec {
+    override val id: String = "plain"
+    override val isCompressing: Boolean = false
+
+    override fun encode(parcel: UpstreamParcel, parcelSerializer: ParcelSerializer): Map<String, String> =
+            parcelSerializer.toFieldMap(parcel)
+}
+
+/**
+ * Compresses the whole parcel json using deflate and sends it as a single base64 encoded field.
+ *
+ * The encoded parcel has the following fields:
+ * - `enc`: The codec id
+ * - `z`: The base64 encoded compressed parcel json
+ *
+ * If a [dictionary] is given it will be used as a preset dictionary for the compression. Parcels
+ * are usually small, so without a dictionary the repeated keys (e.g., message type groups, stamp
+ * and mixin fields) are only repeated a few times in the parcel and are not compressed well.
+ * The server must use the same dictionary for decoding, so any change to the dictionary should be
+ * published under a new codec id.
+ */
+class DeflateParcelCodec(
+        override val id: String,
+        private val dictionary: ByteArray? = null
+) : ParcelCodec {
+    override val isCompressing: Boolean = true
+
+    override fun encode(parcel: UpstreamParcel, parcelSerializer: ParcelSerializer): Map<String, String> {
+        val json = Buffer()
+        parcelSerializer.writeParcel(parcel, json)
+        return mapOf(
+                FIELD_ENCODING to id,
+                FIELD_DATA to ByteString.of(*compress(json.readByteArray())).base64()
+        )
+    }
+
+    /**
+     * Decode the fields produced by [encode] back in to the parcel json.
+     *
+     * This is only needed on the receiving end of the parcel and is provided for verifying that
+     * encoded parcels can be decoded correctly.
+     */
+    fun decode(fields: Map<String, String>): String {
+        if (fields[FIELD_ENCODING] != id) {
+            throw IOException("Parcel is not encoded with the $id codec")
+        }
+        val data = fields[FIELD_DATA]?.let { ByteString.decodeBase64(it) }
+                ?: throw IOException("Invalid encoded parcel data")
+        return String(decompress(data.toByteArray()), Charsets.UTF_8)
+    }
+
+    private fun compress(input: ByteArray): ByteArray {
+        val deflater = Deflater(Deflater.BEST_COMPRESSION)
+        try {
+            dictionary?.let { deflater.setDictionary(it) }
+            deflater.setInput(input)
+            deflater.finish()
+
+            val output = Buffer()
+            val chunk = ByteArray(CHUNK_SIZE)
+            while (!deflater.finished()) {
+                val count = deflater.deflate(chunk)
+                output.write(chunk, 0, count)
+            }
+            return output.readByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun decompress(input: ByteArray): ByteArray {
+        val inflater = Inflater()
+        try {
+            inflater.setInput(input)
+
+            val output = Buffer()
+            val chunk = ByteArray(CHUNK_SIZE)
+            while (!inflater.finished()) {
+                val count = inflater.inflate(chunk)
+                if (count == 0) {
+                    when {
+                        inflater.needsDictionary() && dictionary != null -> inflater.setDictionary(dictionary)
+                        inflater.needsDictionary() -> throw IOException("Parcel requires a compression dictionary")
+                        inflater.needsInput() -> throw IOException("Encoded parcel data is incomplete")
+                    }
+                }
+                output.write(chunk, 0, count)
+            }
+            return output.readByteArray()
+        } catch (ex: DataFormatException) {
+            throw IOException("Invalid encoded parcel data", ex)
+        } finally {
+            inflater.end()
+        }
+    }
+
+    companion object {
+        const val FIELD_ENCODING = "enc"
+        const val FIELD_DATA = "z"
+        private const val CHUNK_SIZE = 1024
+    }
+}
+
+/**
+ * Selects the [ParcelCodec] used for each courier.
+ *
+ * All couriers use the [PlainParcelCodec] unless the server has enabled a compressing codec for
+ * the courier through the `upstream_parcel_codec_{courier}` config (see
+ * [HengamConfig.upstreamParcelCodec]). The server will only enable codecs which it knows are
+ * supported by this version of the SDK.
+ */
+@CoreScope
+class ParcelCodecs @Inject constructor(
+        private val hengamConfig: HengamConfig
+) {
+    private val codecs: Map<String, ParcelCodec> = listOf(PlainParcelCodec, DEFLATE, DEFLATE_DICTIONARY)
+            .associateBy { it.id }
+
+    fun codecForCourier(courierId: String): ParcelCodec {
+        val codecId = hengamConfig.upstreamParcelCodec(courierId)
+        val codec = codecs[codecId]
+        if (codec == null) {
+            Plog.warn(T_MESSAGE, "Unknown parcel codec set for courier, using plain codec instead",
+                    "Courier" to courierId,
+                    "Codec" to codecId
+            )
+            return PlainParcelCodec
+        }
+        return codec
+    }
+
+    /**
+     * Get the maximum parcel size (the sum of the message sizes in the parcel) which may be sent
+     * using all of the given couriers.
+     *
+     * If every courier uses a compressing codec then the larger
+     * [HengamConfig.upstreamMaxCompressedParcelSize] is used, otherwise the size will be
+     * [HengamConfig.upstreamMaxParcelSize]. A compressed parcel which still ends up being too big for
+     * a courier will be split as usual.
+     */
+    fun maxParcelSize(couriers: Collection<OutboundCourier>): Int {
+        val maxParcelSize = hengamConfig.upstreamMaxParcelSize
+        if (couriers.isEmpty() || couriers.any { !codecForCourier(it.id).isCompressing }) {
+            return maxParcelSize
+        }
+        return maxOf(maxParcelSize, hengamConfig.upstreamMaxCompressedParcelSize)
+    }
+
+    companion object {
+        val DEFLATE = DeflateParcelCodec("deflate")
+
+        /**
+         * Deflate with a preset dictionary of the keys and values which are repeated in most
+         * parcels. Strings which are more likely to appear are placed at the end of the dictionary.
+         */
+        val DEFLATE_DICTIONARY = DeflateParcelCodec("deflate-d1", listOf(
+                "\"wifi\":{\"mac\":\"", "\"ssid\":\"", "\"cell\":", "\"type\":\"lte\"", "\"mnc\":\"", "\"mcc\":\"",
+                "\"lac\":", "\"cid\":", "\"location\":{\"lat\":", "\"long\":", "\"network\":{\"type\":\"wifi\",\"name\":\"",
+                "\"email\":\"", "\"pn\":\"", "\"gaid\":\"", "\"android_id\":\"", "\"instance_id\":\"",
+                "\"package_name\":\"", "\"app_id\":\"", "\"pvc\":", "\"platform\":1", "\"message_id\":\"",
+                "\"types\":[\"t", "\"time\":1", "\":[{\"time\":1", "{\"t"
+        ).joinToString("").toByteArray(Charsets.UTF_8))
+    }
+}
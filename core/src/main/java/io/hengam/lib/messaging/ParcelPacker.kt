@@ -0,0 +1,128 @@
+package io.hengam.lib.messaging
+
+import java.util.*
+
+/**
+ * Packs stored upstream messages in to as few parcels as possible.
+ *
+ * Messages are packed using the best-fit-decreasing strategy: messages are sorted by their size
+ * (largest first) and each message is placed in the parcel which has the least remaining space
+ * that can still hold it. A new parcel is only created if no existing parcel has enough space
+ * for the message. A message which is larger than the parcel size on it's own will be placed in a
+ * separate parcel.
+ *
+ * The packer does not know anything about parcel group keys, messages which should not be sent
+ * together should be given as separate groups to [packGroups].
+ *
+ * This class is not thread safe.
+ */
+class ParcelPacker {
+    /**
+     * Statistics about a packing operation.
+     *
+     * @property capacity The maximum parcel size used for packing
+     * @property totalSize The sum of the sizes of all packed messages
+     */
+    class PackingStats(
+            val parcelCount: Int,
+            val messageCount: Int,
+            val totalSize: Long,
+            val capacity: Int
+    ) {
+        /**
+         * The ratio of the used parcel space to the total available parcel space, between 0 and 1
+         * (or larger if some messages were too big for a single parcel)
+         */
+        val fillRatio: Double
+            get() = if (parcelCount == 0 || capacity <= 0) 0.0 else totalSize.toDouble() / (parcelCount.toLong() * capacity)
+
+        override fun toString(): String =
+                "PackingStats[Parcels=$parcelCount Messages=$messageCount Size=$totalSize FillRatio=${"%.2f".format(fillRatio)}]"
+    }
+
+    private class Bin {
+        val messages = mutableListOf<StoredUpstreamMessage>()
+        var size = 0
+        var highestPriority = SendPriority.WHENEVER
+    }
+
+    /**
+     * The stats of the last call to [pack] or [packGroups]
+     */
+    var lastPackingStats: PackingStats = PackingStats(0, 0, 0, 0)
+        private set
+
+    /**
+     * Pack the given messages in to parcels.
+     *
+     * The returned parcels are ordered by the highest [SendPriority] of the messages they contain,
+     * so that parcels containing the most urgent messages are sent first.
+     *
+     * @param messages The messages to pack
+     * @param maxParcelSize The maximum sum of message sizes allowed in a single parcel
+     * @return A list containing the messages of each parcel
+     */
+    fun pack(messages: Collection<StoredUpstreamMessage>, maxParcelSize: Int): List<List<StoredUpstreamMessage>> =
+            packGroups(listOf(messages), maxParcelSize)
+
+    /**
+     * Pack each of the given message groups in to parcels. Messages from different groups will never
+     * be placed in the same parcel.
+     *
+     * The returned parcels (from all groups) are ordered by the highest [SendPriority] of the
+     * messages they contain, so that parcels containing the most urgent messages are sent first.
+     *
+     * @param groups The message groups to pack
+     * @param maxParcelSize The maximum sum of message sizes allowed in a single parcel
+     * @return A list containing the messages of each parcel
+     */
+    fun packGroups(groups: Collection<Collection<StoredUpstreamMessage>>, maxParcelSize: Int): List<List<StoredUpstreamMessage>> {
+        val bins = groups.flatMap { packBins(it, maxParcelSize) }
+
+        lastPackingStats = PackingStats(
+                parcelCount = bins.size,
+                messageCount = groups.sumBy { it.size },
+                totalSize = bins.fold(0L) { total, bin -> total + bin.size },
+                capacity = maxParcelSize
+        )
+
+        return bins
+                .sortedWith(compareByDescending<Bin> { it.highestPriority }.thenByDescending { it.size })
+                .map { it.messages }
+    }
+
+    private fun packBins(messages: Collection<StoredUpstreamMessage>, maxParcelSize: Int): List<Bin> {
+        val bins = mutableListOf<Bin>()
+
+        /* Bins which still have free space, keyed by the amount of free space they have */
+        val openBins = TreeMap<Int, ArrayDeque<Bin>>()
+
+        val sortedMessages = messages.sortedWith(
+                compareByDescending<StoredUpstreamMessage> { it.messageSize }.thenByDescending { it.sendPriority }
+        )
+
+        for (message in sortedMessages) {
+            val size = message.messageSize
+            val fittingEntry = openBins.ceilingEntry(size)
+
+            val bin = if (fittingEntry != null) {
+                val bin = fittingEntry.value.removeFirst()
+                if (fittingEntry.value.isEmpty()) openBins.remove(fittingEntry.key)
+                bin
+            } else {
+                Bin().also { bins.add(it) }
+            }
+
+            bin.messages.add(message)
+            bin.size += size
+            if (message.sendPriority > bin.highestPriority) bin.highestPriority = message.sendPriority
+
+            val remaining = maxParcelSize - bin.size
+            if (remaining > 0) {
+                openBins.getOrPut(remaining) { ArrayDeque() }.addLast(bin)
+            }
+        }
+
+        return bins
+    }
+}
@@ -0,0 +1,143 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.ApiPatch
+import io.hengam.lib.dagger.CoreScope
+import io.hengam.lib.internal.HengamMoshi
+import com.squareup.moshi.JsonWriter
+import okio.Buffer
+import okio.BufferedSink
+import javax.inject.Inject
+
+/**
+ * Serializes [UpstreamParcel]s in a single pass.
+ *
+ * Unlike the [UpstreamParcel.Adapter], which encodes every message in the parcel through Moshi each
+ * time the parcel is serialized, this class uses the cached json of each message (see
+ * [UpstreamMessage.toCachedJson]) and writes it as-is to the output. This means a message is only
+ * encoded once regardless of how many times it's size is checked or how many times the parcel it
+ * belongs to is sent.
+ *
+ * The produced json has the same structure as the one produced by [UpstreamParcel.Adapter].
+ */
+@CoreScope
+class ParcelSerializer @Inject constructor(
+        private val moshi: HengamMoshi
+) {
+    /**
+     * Write the parcel json to the given sink.
+     */
+    fun writeParcel(parcel: UpstreamParcel, sink: BufferedSink) {
+        sink.writeUtf8("{")
+
+        var isFirstField = true
+        fun writeName(name: String) {
+            if (!isFirstField) sink.writeUtf8(",")
+            isFirstField = false
+            writeScalar(sink, name)
+            sink.writeUtf8(":")
+        }
+
+        val groupedMessages = groupMessages(parcel)
+        for ((key, messages) in groupedMessages) {
+            writeName(key)
+            writeMessageGroup(sink, key, messages)
+        }
+
+        writeName(TYPES_FIELD)
+        sink.writeUtf8(encodeTypes(groupedMessages.keys))
+
+        if (parcel is UpstreamStampedParcel) {
+            for ((key, value) in parcel.stamp) {
+                if (!isSupportedStampValue(value)) continue
+                writeName(key)
+                writeScalar(sink, value)
+            }
+        }
+
+        sink.writeUtf8("}")
+    }
+
+    /**
+     * @return The parcel json as a string
+     */
+    fun toJson(parcel: UpstreamParcel): String {
+        val buffer = Buffer()
+        writeParcel(parcel, buffer)
+        return buffer.readUtf8()
+    }
+
+    /**
+     * Convert the parcel to a flat map of string values, as needed by couriers which can only send
+     * string key-values (e.g., FCM data messages).
+     *
+     * Message groups and the `types` list are given as json strings and the stamp values are given
+     * as plain strings.
+     */
+    fun toFieldMap(parcel: UpstreamParcel): Map<String, String> {
+        val fields = LinkedHashMap<String, String>()
+        val groupedMessages = groupMessages(parcel)
+        for ((key, messages) in groupedMessages) {
+            fields[key] = Buffer().also { writeMessageGroup(it, key, messages) }.readUtf8()
+        }
+        fields[TYPES_FIELD] = encodeTypes(groupedMessages.keys)
+
+        if (parcel is UpstreamStampedParcel) {
+            for ((key, value) in parcel.stamp) {
+                if (!isSupportedStampValue(value)) continue
+                fields[key] = value.toString()
+            }
+        }
+        return fields
+    }
+
+    /**
+     * @return The size of the given message's json. The message will only be encoded the first
+     *         time this is called.
+     */
+    fun messageSize(message: UpstreamMessage): Int = message.toCachedJson(moshi.moshi).length
+
+    private fun groupMessages(parcel: UpstreamParcel): Map<String, List<UpstreamMessage>> {
+        val groups = LinkedHashMap<String, MutableList<UpstreamMessage>>()
+        for (message in parcel.messages) {
+            groups.getOrPut("t${message.messageType}") { mutableListOf() }.add(message)
+        }
+        return groups
+    }
+
+    private fun writeMessageGroup(sink: BufferedSink, key: String, messages: List<UpstreamMessage>) {
+        val singleMessage = ApiPatch.getSingleRegistrationMessage(key, messages)
+        if (singleMessage != null) {
+            sink.writeUtf8(singleMessage.toCachedJson(moshi.moshi))
+            return
+        }
+
+        sink.writeUtf8("[")
+        messages.forEachIndexed { index, message ->
+            if (index > 0) sink.writeUtf8(",")
+            sink.writeUtf8(message.toCachedJson(moshi.moshi))
+        }
+        sink.writeUtf8("]")
+    }
+
+    private fun encodeTypes(keys: Collection<String>): String {
+        // Message type keys are always in the `t{messageType}` format and never need escaping
+        return keys.joinToString(",", "[", "]") { "\"$it\"" }
+    }
+
+    private fun isSupportedStampValue(value: Any): Boolean =
+            value is String || value is Int || value is Boolean || value is Long || value is Double
+
+    private fun writeScalar(sink: BufferedSink, value: Any) {
+        val writer = JsonWriter.of(sink)
+        when (value) {
+            is String -> writer.value(value)
+            is Boolean -> writer.value(value)
+            is Number -> writer.value(value)
+        }
+        writer.flush()
+    }
+
+    companion object {
+        private const val TYPES_FIELD = "types"
+    }
+}
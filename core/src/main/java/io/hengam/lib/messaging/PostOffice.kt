@@ -5,6 +5,7 @@ import io.hengam.lib.LogTag.T_MESSAGE
 import io.hengam.lib.dagger.CoreScope
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.internal.computationThread
 import io.hengam.lib.internal.cpuThread
 import io.hengam.lib.internal.ioThread
 import io.hengam.lib.internal.task.TaskScheduler
@@ -16,8 +17,10 @@ import com.squareup.moshi.JsonDataException
 import io.reactivex.Completable
 import io.reactivex.Observable
 import io.reactivex.Single
+import io.reactivex.disposables.Disposable
 import java.io.IOException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import kotlin.math.ceil
 
@@ -28,16 +31,27 @@ class PostOffice @Inject constructor(
         private val parcelStamper: ParcelStamper,
         private val moshi: HengamMoshi,
         private val hengamConfig: HengamConfig,
+        private val downstreamIdFilter: DownstreamIdFilter,
         hengamLifecycle: HengamLifecycle
 ) {
-    private val incomingMessages: PublishRelay<RawDownstreamMessage> = PublishRelay.create()
+    private val downstreamDispatcher = DownstreamDispatcher(moshi)
     private val upstreamThrottler: Relay<UpstreamMessageSignal> = PublishRelay.create<UpstreamMessageSignal>()
     private var allowsPostRegistrationMessages = false
     private var shouldScheduleSendOnRegistrationComplete = false
+    private val parcelPacker = ParcelPacker()
+
+    private var deadlineCheck: Disposable? = null
+    private var deadlineCheckTime: Time? = null
+    private val timeoutCounts = mutableMapOf<String, MutableMap<Int, Int>>()
+    private val expirationCounts = mutableMapOf<String, MutableMap<Int, Int>>()
 
     init {
         initializeThrottlers()
 
+        /* Check expirations and in-flight timeouts when the earliest message deadline is reached */
+        messageStore.observeNextDeadline()
+                .keepDoing(T_MESSAGE) { scheduleDeadlineCheck(it) }
+
         /* Allow sending post-registration upstream messages after registration */
         hengamLifecycle.waitForRegistration()
                 .justDo {
@@ -123,6 +137,7 @@ class PostOffice @Inject constructor(
 
         message.prepare()
                 .subscribeOn(cpuThread())
+                .andThen(encodeMessage(message))
                 .observeOn(cpuThread())
                 .justDo {
                     val storedMessage = messageStore.storeMessage(message, sendPriority,
@@ -134,6 +149,17 @@ class PostOffice @Inject constructor(
                 }
     }
 
+    /**
+     * Encode the prepared message to json on the computation pool so that the encoding is cached
+     * before the message is stored on the cpu thread (see [UpstreamMessage.toCachedJson])
+     */
+    private fun encodeMessage(message: SendableUpstreamMessage): Completable {
+        return Completable.fromCallable { message.toCachedJson(moshi.moshi) }
+                .subscribeOn(computationThread())
+                // Encoding errors will be raised again and reported when storing the message
+                .onErrorComplete()
+    }
+
     /**
      * Simple overloaded function to be used in Java
      */
@@ -183,8 +209,7 @@ class PostOffice @Inject constructor(
     private fun isFullParcelReady(): Single<Boolean> {
         class Result (var totalSize: Int = 0, var messageAvailable: Boolean = false)
         val maxParcelSize = hengamConfig.upstreamMaxParcelSize
-        return messageStore.readMessages()
-                .filter { it.messageState is UpstreamMessageState.Stored }
+        return Observable.fromIterable(messageStore.getMessagesWithState(UpstreamMessageState.Stored::class.java))
                 .collect({Result()}) { result, storedMessage ->
                     if (storedMessage.requiresRegistration || allowsPostRegistrationMessages) {
                         if (storedMessage.sendPriority == SendPriority.BUFFER) {
@@ -222,30 +247,39 @@ class PostOffice @Inject constructor(
      * Messages will be grouped and returned as [UpstreamParcel] instances. The parcels will be
      * stamped using the [ParcelStamper].
      *
-     * The sum of all message sizes in a parcel will not exceed [HengamConfig.upstreamMaxParcelSize],
-     * however the total parcel size will includes other information (e.g., the stamp data, message
-     * types) and may go higher than this value.
+     * The sum of all message sizes in a parcel will not exceed [maxParcelSize], however the total
+     * parcel size will includes other information (e.g., the stamp data, message types) and may go
+     * higher than this value.
      *
-     * There is no specific rule on which messages will be grouped together in a parcel except that
-     * messages which have a `parcelGroupKey` will not be grouped with messages which have a
-     * different key or don't have a key.
+     * Messages are packed in to as few parcels as possible using the [ParcelPacker]. Messages which
+     * have a `parcelGroupKey` will not be grouped with messages which have a different key or don't
+     * have a key. Parcels containing messages with a higher [SendPriority] will be emitted first.
      *
+     * @param maxParcelSize The maximum sum of message sizes in a parcel, defaults to
+     *                      [HengamConfig.upstreamMaxParcelSize]
      * @return An [Observable] which will emit one or multiple [UpstreamParcel] instances
      */
-    fun collectParcelsForSending(): Observable<out UpstreamParcel> {
-        val maxParcelSize = hengamConfig.upstreamMaxParcelSize
-        return messageStore.readMessages()
-                .filter { allowsPostRegistrationMessages || !it.requiresRegistration }
-                .filter { it.messageState is UpstreamMessageState.Stored }
-                .groupBy { "${it.parcelGroupKey ?: ""}#$#${(it.messageState as? UpstreamMessageState.Stored)?.parcelSubGroupKey}" }
-                .flatMap { group ->
-                    group
-                            .bufferWithValue(maxParcelSize) { it.messageSize }
-                            .map { storedMessages -> storedMessages.map { it.message } }
-                            .map { UpstreamParcel(UpstreamParcel.generateParcelId(it), it)}
-                            .flatMapSingle { parcelStamper.stampParcel(it) }
-                            .filter { it.messages.isNotEmpty() }
+    fun collectParcelsForSending(maxParcelSize: Int = hengamConfig.upstreamMaxParcelSize): Observable<out UpstreamParcel> {
+        return Observable.fromCallable {
+                    val messageGroups = messageStore.getMessagesWithState(UpstreamMessageState.Stored::class.java)
+                            .filter { allowsPostRegistrationMessages || !it.requiresRegistration }
+                            .groupBy { "${it.parcelGroupKey ?: ""}#$#${(it.messageState as? UpstreamMessageState.Stored)?.parcelSubGroupKey}" }
+                            .values
+                    val parcels = parcelPacker.packGroups(messageGroups, maxParcelSize)
+                    if (parcels.isNotEmpty()) {
+                        Plog.trace(T_MESSAGE, "Upstream messages packed in to parcels",
+                                "Parcels" to parcelPacker.lastPackingStats.parcelCount,
+                                "Messages" to parcelPacker.lastPackingStats.messageCount,
+                                "Fill Ratio" to parcelPacker.lastPackingStats.fillRatio
+                        )
+                    }
+                    parcels
                 }
+                .flatMapIterable { it }
+                .map { storedMessages -> storedMessages.map { it.message } }
+                .map { UpstreamParcel(UpstreamParcel.generateParcelId(it), it)}
+                .concatMapSingle { parcelStamper.stampParcel(it) }
+                .filter { it.messages.isNotEmpty() }
     }
 
     /**
@@ -258,9 +292,7 @@ class PostOffice @Inject constructor(
      *         [UpstreamMessageState.InFlight] state.
      */
     fun areMessagesInFlight(): Single<Boolean> {
-        return messageStore.readMessages()
-                .filter { it.messageState is UpstreamMessageState.InFlight }
-                .any { true }
+        return Single.fromCallable { messageStore.hasMessagesWithState(UpstreamMessageState.InFlight::class.java) }
     }
 
     /**
@@ -272,12 +304,26 @@ class PostOffice @Inject constructor(
      */
     fun onParcelInFlight(parcel: UpstreamParcel, courierId: String) {
         val newState = UpstreamMessageState.InFlight(TimeUtils.now(), courierId, parcel.parcelId)
-        val parcelMessageIds = parcel.messages.map { it.messageId }.toSet()
-        messageStore.allMessages
-                .filter { it.message.messageId in parcelMessageIds }
+        parcel.messages
+                .mapNotNull { messageStore.getMessage(it.messageId) }
                 .forEach { it.updateState(newState) }
     }
 
+    /**
+     * Get the number of failed attempts made at sending the parcel's messages with each courier.
+     *
+     * @return A map of courier ids to the total failed send attempts of the parcel's messages
+     */
+    fun getParcelSendAttempts(parcel: UpstreamParcel): Map<String, Int> {
+        val attempts = mutableMapOf<String, Int>()
+        for (message in parcel.messages) {
+            messageStore.getMessage(message.messageId)?.sendAttempts?.forEach { (courierId, count) ->
+                attempts[courierId] = (attempts[courierId] ?: 0) + count
+            }
+        }
+        return attempts
+    }
+
     /**
      * Should be called by an outbound courier once it has received an ACK for an in-flight parcel.
      *
@@ -285,15 +331,14 @@ class PostOffice @Inject constructor(
      * [UpstreamMessageState.Sent] state.
      */
     fun onParcelAck(parcelId: String, courierId: String) {
-        val sentMessages = messageStore.allMessages
-                .filter { (it.messageState as? UpstreamMessageState.InFlight)?.parcelId == parcelId }
+        val sentMessages = messageStore.getMessagesInParcel(parcelId)
 
         Plog.debug.message("Parcel successfully sent")
                 .withTag(T_MESSAGE)
                 .withData("Id", parcelId)
                 .withData("Message Count", sentMessages.size)
                 .aggregate("parcel-ack", 1, TimeUnit.SECONDS) {
-                    message("${logs.size} Parcels successfully sent")
+                    message("$count Parcels successfully sent")
                     withData("Parcel Ids", logs.map { it.logData["Id"] })
                     withData("Total Messages", logs.sumBy { it.logData["Message Count"] as? Int ?: 0})
                     withData("Total Messages", logs.sumBy { it.logData["Message Count"] as? Int ?: 0})
@@ -316,9 +361,7 @@ class PostOffice @Inject constructor(
      * [UpstreamMessageState.Stored] state and will be available for sending again.
      */
     fun onParcelError(parcelId: String, courierId: String, cause: Exception) {
-        val parcelMessages = messageStore.allMessages
-                .filter { it.messageState is UpstreamMessageState.InFlight }
-                .filter { (it.messageState as? UpstreamMessageState.InFlight)?.parcelId == parcelId }
+        val parcelMessages = messageStore.getMessagesInParcel(parcelId)
 
         val originalMessageCount = UpstreamParcel.getParcelMessageCountFromId(parcelId)
 
@@ -371,7 +414,7 @@ class PostOffice @Inject constructor(
                     .withData("Message Count", parcelMessages.size)
                     .withData("Original Message Count", originalMessageCount)
                     .aggregate("parcel-split", millis(500)) {
-                        message("Splitting ${logs.size} large parcels in to smaller parcels")
+                        message("Splitting $count large parcels in to smaller parcels")
                         withData("Original Parcel Ids", logs.map { it.logData["Original Parcel Id"] })
                     }
                     .log()
@@ -385,7 +428,7 @@ class PostOffice @Inject constructor(
                     .withData("Message Count", parcelMessages.size)
                     .withData("Original Message Count", originalMessageCount)
                     .aggregate("send-fail-$courierId-${cause.message?.hashCode()}", millis(500)) {
-                        message("Parcel sending failed for ${logs.size} parcels with $courierId")
+                        message("Parcel sending failed for $count parcels with $courierId")
                         logs[0].throwable?.let { withError(it) }
                         withData("Parcel Ids", logs.map { it.logData["Id"] })
                         withData("Total Messages", logs.sumBy { it.logData["Message Count"] as? Int ?: 0 })
@@ -403,9 +446,9 @@ class PostOffice @Inject constructor(
                     .min() ?: 4L
 
             debounce("parcel-fail-retry", minBackoff, seconds(1)) { backOffs ->
-                val globalMinBackOff = backOffs.min()
+                val globalMinBackOff = backOffs.min() ?: minBackoff
                 Plog.debug(T_MESSAGE, "Scheduling upstream sender to send failed messages in $globalMinBackOff seconds")
-                scheduleUpstreamMessageSender(delay = seconds(minBackoff))
+                scheduleUpstreamMessageSender(delay = seconds(globalMinBackOff))
             }
         }
     }
@@ -420,36 +463,11 @@ class PostOffice @Inject constructor(
      * If a message has been timed out it will be give an [UpstreamMessageState.Stored] state and
      * will be available for sending again.
      *
+     * Only the messages whose timeout has been reached are visited, see [MessageStore.pollTimedOutMessages].
+     *
      * @return A [Completable] that will complete once the check has been made for all messages
      */
-    fun checkInFlightMessageTimeouts(): Completable {
-        val now = TimeUtils.now()
-        val messageTimeout = hengamConfig.upstreamMessageTimeout
-        val newState = UpstreamMessageState.Stored()
-        return messageStore.readMessages()
-                .filter { it.messageState is UpstreamMessageState.InFlight }
-                .filter { getMessageInFlightTime(now, it) >= messageTimeout }
-                .doOnNext {
-                    it.recordFailedSendAttempt((it.messageState as? UpstreamMessageState.InFlight)?.courier ?: "unknown")
-                    it.updateState(newState)
-                }
-                .map { mapOf(
-                    "Id" to it.messageId,
-                    "Type" to it.message.messageType,
-                    "In-flight Time" to "${getMessageInFlightTime(now, it).toHours()} hours"
-                ) }
-                .toList()
-                .doOnSuccess {
-                    if (it.size > 0) {
-                        Plog.warn(T_MESSAGE, "${it.size} in-flight messages have timed out and will be sent again", "Messages" to it)
-                    }
-                }
-                .ignoreElement()
-    }
-
-    private fun getMessageInFlightTime(now: Time, storedMessage: StoredUpstreamMessage): Time {
-        return (now - ((storedMessage.messageState as? UpstreamMessageState.InFlight)?.timestamp ?: now)).abs()
-    }
+    fun checkInFlightMessageTimeouts(): Completable = Completable.fromCallable { handleTimedOutMessages() }
 
     /**
      * Checks if any messages with an [UpstreamMessageState.Stored] state have been expired and
@@ -459,38 +477,153 @@ class PostOffice @Inject constructor(
      * [HengamConfig.upstreamMessageExpirationTime] value. Once this amount of time has passed since
      * the creation of the message, the message will be considered expired.
      *
+     * Only the messages whose expiration time has been reached are visited, see
+     * [MessageStore.pollExpiredMessages].
+     *
      * @return A [Completable] that will complete once all expired messages have been disposed
      */
-    fun checkMessageExpirations(): Completable {
+    fun checkMessageExpirations(): Completable = Completable.fromCallable { handleExpiredMessages() }
+
+    /**
+     * @return The number of messages which have timed out
+     */
+    private fun handleTimedOutMessages(): Int {
         val now = TimeUtils.now()
-        val defaultExpirationTime = hengamConfig.upstreamMessageExpirationTime
-        return messageStore.readMessages()
-                .filter { it.messageState is UpstreamMessageState.Stored }
-                .filter { (now - it.message.time) >= (it.expireAfter ?: defaultExpirationTime) }
-                // Need to call toList() here to complete the [readMessages] observable in order to be able to call dispose on messages
-                .toList()
-                .doOnSuccess { messages ->
-                    messages.map {
-                        Plog.trace(T_MESSAGE, "Upstream message has expired, disposing message",
-                                "Id" to it.messageId, "Type" to it.message.messageType, "Time In Store" to TimeUtils.now() - it.message.time)
-                        it.disposeMessage()
-                    }
-                }
-                .doOnSuccess { if (it.size > 0) Plog.warn(T_MESSAGE, "${it.size} messages have been expired") }
-                .ignoreElement()
+        val timedOutMessages = messageStore.pollTimedOutMessages(now)
+        if (timedOutMessages.isEmpty()) return 0
+
+        val newState = UpstreamMessageState.Stored()
+        val messageData = timedOutMessages.map {
+            val inFlightState = it.messageState as? UpstreamMessageState.InFlight
+            val courier = inFlightState?.courier ?: "unknown"
+            timeoutCounts.increment(courier, it.message.messageType)
+            it.recordFailedSendAttempt(courier)
+            it.updateState(newState)
+            mapOf(
+                "Id" to it.messageId,
+                "Type" to it.message.messageType,
+                "In-flight Time" to "${(now - (inFlightState?.timestamp ?: now)).abs().toHours()} hours"
+            )
+        }
+        Plog.warn(T_MESSAGE, "${messageData.size} in-flight messages have timed out and will be sent again", "Messages" to messageData)
+        return messageData.size
+    }
+
+    private fun handleExpiredMessages() {
+        val now = TimeUtils.now()
+        val expiredMessages = messageStore.pollExpiredMessages(now)
+        if (expiredMessages.isEmpty()) return
+
+        expiredMessages.forEach {
+            Plog.trace(T_MESSAGE) {
+                message = "Upstream message has expired, disposing message"
+                withData("Id", it.messageId)
+                withData("Type", it.message.messageType)
+                withData("Time In Store", now - it.message.time)
+            }
+            // Expirations are attributed to the courier which failed sending the message the most
+            val courier = it.sendAttempts.maxBy { attempts -> attempts.value }?.key ?: "none"
+            expirationCounts.increment(courier, it.message.messageType)
+            it.disposeMessage()
+        }
+        Plog.warn(T_MESSAGE, "${expiredMessages.size} messages have been expired")
+    }
+
+    /**
+     * Schedules a check for expired and timed out messages at the given deadline, unless a check
+     * has already been scheduled for an earlier time.
+     *
+     * Should be called on the cpu thread
+     */
+    private fun scheduleDeadlineCheck(deadline: Time) {
+        val scheduledTime = deadlineCheckTime
+        if (scheduledTime != null && scheduledTime <= deadline) return
+        deadlineCheck?.dispose()
+        deadlineCheckTime = deadline
+        deadlineCheck = cpuThread(millis(maxOf(0L, deadline.toMillis() - TimeUtils.nowMillis()))) {
+            deadlineCheck = null
+            deadlineCheckTime = null
+            try {
+                if (handleTimedOutMessages() > 0) scheduleUpstreamMessageSender()
+                handleExpiredMessages()
+            } catch (ex: Exception) {
+                Plog.error(T_MESSAGE, ex)
+            }
+            messageStore.nextDeadline?.let { scheduleDeadlineCheck(it) }
+        }
+    }
+
+    private fun MutableMap<String, MutableMap<Int, Int>>.increment(courier: String, messageType: Int) {
+        val typeCounts = getOrPut(courier) { mutableMapOf() }
+        typeCounts[messageType] = (typeCounts[messageType] ?: 0) + 1
     }
 
     /**
      * Should be called by [InboundCourier] instances whenever a new parcel has been received
      *
+     * The messages of the parcel are dispatched to the mailboxes as a single batch. Parcels which
+     * have already been received within the de-duplication window (e.g., through another courier)
+     * are ignored, see [DownstreamIdFilter]. Since all messages of a parcel share the parcel's id,
+     * parcels containing messages which allow duplicates are not filtered so that republished
+     * messages are still delivered.
+     *
      * @param parcel The received downstream parcel
      */
     fun onInboundParcelReceived(parcel: DownstreamParcel) {
-        parcel.messages.forEach { incomingMessages.accept(it) }
+        val receiveTime = System.nanoTime()
+        cpuThread {
+            if (!parcel.allowsDuplicates && !downstreamIdFilter.add(parcel.parcelId)) {
+                Plog.debug(T_MESSAGE, "Ignoring downstream parcel which has already been received",
+                        "Parcel Id" to parcel.parcelId
+                )
+                return@cpuThread
+            }
+            downstreamDispatcher.dispatch(parcel.messages, receiveTime)
+        }
     }
 
     fun handleLocalParcel(parcel: DownstreamParcel) {
-        parcel.messages.forEach { incomingMessages.accept(it) }
+        val receiveTime = System.nanoTime()
+        cpuThread { downstreamDispatcher.dispatch(parcel.messages, receiveTime) }
+    }
+
+    /**
+     * Statistics on the downstream messages dispatched to the registered mailboxes.
+     *
+     * Should be accessed on the cpu thread
+     */
+    val downstreamDispatchStats: DownstreamDispatcher.Stats
+        get() = downstreamDispatcher.stats
+
+    /**
+     * Statistics on the downstream parcels accepted and ignored as duplicates.
+     *
+     * Should be accessed on the cpu thread
+     */
+    val downstreamIdFilterStats: DownstreamIdFilter.Stats
+        get() = downstreamIdFilter.stats
+
+    /**
+     * The number of upstream messages which have timed out while in-flight and which have expired
+     * since the application started, per courier and message type
+     *
+     * Should be accessed on the cpu thread
+     */
+    val messageDeadlineStats: MessageDeadlineStats
+        get() = MessageDeadlineStats(
+                timeouts = timeoutCounts.mapValues { it.value.toMap() },
+                expirations = expirationCounts.mapValues { it.value.toMap() },
+                nextDeadline = messageStore.nextDeadline
+        )
+
+    class MessageDeadlineStats(
+            val timeouts: Map<String, Map<Int, Int>>,
+            val expirations: Map<String, Map<Int, Int>>,
+            val nextDeadline: Time?
+    ) {
+        override fun toString(): String =
+                "MessageDeadlineStats[Timeouts=$timeouts Expirations=$expirations " +
+                        "NextDeadline=${nextDeadline?.let { it - TimeUtils.now() }}]"
     }
 
     @Throws(ParcelParseException::class)
@@ -531,7 +664,10 @@ class PostOffice @Inject constructor(
      * @return An [Observable] of [RawDownstreamMessage]
      */
     fun receiveMessages(): Observable<RawDownstreamMessage> {
-        return incomingMessages
+        return Observable.create { emitter ->
+            val registration = downstreamDispatcher.register { emitter.onNext(it) }
+            emitter.setDisposable(unregisterOnDispose(registration))
+        }
     }
 
     /**
@@ -553,9 +689,10 @@ class PostOffice @Inject constructor(
      * @return An [Observable] of [RawDownstreamMessage]
      */
     fun receiveMessages(messageType: Int): Observable<RawDownstreamMessage> {
-        return incomingMessages
-                .observeOn(cpuThread())
-                .filter { it.messageType == messageType }
+        return Observable.create { emitter ->
+            val registration = downstreamDispatcher.register(messageType) { emitter.onNext(it) }
+            emitter.setDisposable(unregisterOnDispose(registration))
+        }
     }
 
     /**
@@ -586,83 +723,81 @@ class PostOffice @Inject constructor(
      * @return An [Observable] of instances of type `T`
      * @see DownstreamMessageParser
      */
-    fun <T> receiveMessages(messageParser: DownstreamMessageParser<T>, parseErrorHandler: ((Map<String, Any?>) -> Unit)? = null): Observable<T> {
-        return incomingMessages
-                .observeOn(cpuThread())
-                .filter { it.messageType == messageParser.messageType}
-                .flatMap {
-                    try {
-                        Observable.just(messageParser.parseMessage(moshi, it))
-                    } catch (ex: Exception) {
-                        when (ex) {
-                            is JsonDataException, is IOException ->
-                                Plog.error(T_MESSAGE, MessageHandlingException("Could not parse downstream message", ex),
-                                        "Message Type" to messageParser.messageType, "Message" to moshi.adapter(Any::class.java).toJson(it.rawData))
-                            else ->
-                                Plog.wtf(T_MESSAGE, MessageHandlingException("Unexpected error occurred on downstream message parsing", ex),
-                                        "Message Type" to messageParser.messageType, "Message" to moshi.adapter(Any::class.java).toJson(it.rawData))
-                        }
+    fun <T : Any> receiveMessages(messageParser: DownstreamMessageParser<T>, parseErrorHandler: ((Map<String, Any?>) -> Unit)? = null): Observable<T> {
+        return Observable.create { emitter ->
+            val registration = downstreamDispatcher.register(messageParser, { emitter.onNext(it) }, parseErrorHandler)
+            emitter.setDisposable(unregisterOnDispose(registration))
+        }
+    }
 
-                        try {
-                            parseErrorHandler?.invoke(it.rawData as Map<String, Any?>)
-                        } catch (ex: Exception) {
-                            Plog.error(T_MESSAGE, ex)
-                        }
+    /**
+     * @return A [Disposable] which unregisters the given registration from the
+     * [DownstreamDispatcher] once disposed
+     */
+    private fun unregisterOnDispose(registration: DownstreamDispatcher.Registration): Disposable = object : Disposable {
+        private val disposed = AtomicBoolean(false)
 
-                        Observable.empty<T>()
-                    }
-                }
+        override fun dispose() {
+            if (disposed.compareAndSet(false, true)) downstreamDispatcher.unregister(registration)
+        }
+
+        override fun isDisposed(): Boolean = disposed.get()
     }
 
     /**
      * Register a handler to be called when any new messages are received.
      *
-     * This method will internally call the `receiveMessages()` method, subscribe
-     * to the returned observable and call the handler on the subscriber's `onNext` call.
+     * The handler will be called on the cpu thread. Errors thrown by the handler will be logged
+     * and will not prevent it from receiving further messages.
      */
     fun mailBox(handler: (RawDownstreamMessage) -> Unit) {
-        receiveMessages().keepDoing(T_MESSAGE, onHandlerError = {
-            Plog.error(T_MESSAGE, MessageHandlingException("Unhandled error occurred while handling message", it))
-        }, onNext = handler)
+        downstreamDispatcher.register(handler)
     }
 
     /**
      * Register a handler to be called when messages of the given message type are received.
      *
-     * This method will internally call the `receiveMessages(messageType)` method, subscribe
-     * to the returned observable and call the handler on the subscriber's `onNext` call.
+     * The handler will be called on the cpu thread. Errors thrown by the handler will be logged
+     * and will not prevent it from receiving further messages.
      */
     fun mailBox(messageType: Int, handler: (RawDownstreamMessage) -> Unit) {
-        receiveMessages(messageType).keepDoing(T_MESSAGE, onHandlerError = {
-            Plog.error(T_MESSAGE, MessageHandlingException("Unhandled error occurred while handling message t$messageType", it))
-        }, onNext = handler)
+        downstreamDispatcher.register(messageType, handler)
     }
 
     /**
      * Register a handler to be called when messages of the given parser's type are received.
      *
-     * This method will internally call the `receiveMessages(messageParser)` method, subscribe
-     * to the returned observable and call the handler on the subscriber's `onNext` call.
+     * The messages will be parsed with the given parser before being passed to the handler. Each
+     * message is parsed only once for all mailboxes registered with parsers of the same class.
      *
+     * The handler will be called on the cpu thread. Errors thrown by the handler will be logged
+     * and will not prevent it from receiving further messages.
      */
     fun <T: Any> mailBox(messageParser: DownstreamMessageParser<T>, handler: (T) -> Unit) {
-        receiveMessages(messageParser).keepDoing(T_MESSAGE, onHandlerError = {
-            Plog.error(T_MESSAGE, MessageHandlingException("Unhandled error occurred while handling message t${messageParser.messageType}", it))
-        }, onNext = handler)
+        downstreamDispatcher.register(messageParser, handler)
     }
 
     /**
-     * Register a handler to be called when messages of the given parser's type are received.
+     * Register a handler to be called with batches of messages of the given parser's type.
+     *
+     * All the messages of the parser's type in each received parcel are parsed and passed to the
+     * handler in a single call, which allows handlers to process bursts of messages together.
      *
-     * This method will internally call the `receiveMessages(messageParser)` method, subscribe
-     * to the returned observable and call the handler on the subscriber's `onNext` call.
+     * The handler will be called on the cpu thread. Errors thrown by the handler will be logged
+     * and will not prevent it from receiving further messages.
+     */
+    fun <T: Any> batchMailBox(messageParser: DownstreamMessageParser<T>, handler: (List<T>) -> Unit) {
+        downstreamDispatcher.registerBatch(messageParser, handler)
+    }
+
+    /**
+     * Register a handler to be called when messages of the given parser's type are received.
      *
-     * TODO add docs for parseErrorHandler
+     * Similar to `mailBox(messageParser, handler)`, the [parseErrorHandler] will be called with
+     * the raw message data if parsing a message fails.
      */
     fun <T: Any> mailBox(messageParser: DownstreamMessageParser<T>, handler: (T) -> Unit, parseErrorHandler: ((Map<String, Any?>) -> Unit)) {
-        receiveMessages(messageParser, parseErrorHandler).keepDoing(T_MESSAGE, onHandlerError = {
-            Plog.error(T_MESSAGE, MessageHandlingException("Unhandled error occurred while handling message t${messageParser.messageType}", it))
-        }, onNext = handler)
+        downstreamDispatcher.register(messageParser, handler, parseErrorHandler)
     }
 
     companion object {
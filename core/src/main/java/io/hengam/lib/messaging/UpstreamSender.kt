@@ -3,11 +3,10 @@ package io.hengam.lib.messaging
 import io.hengam.lib.LogTag.T_MESSAGE
 import javax.inject.Inject
 import io.hengam.lib.dagger.CoreScope
-import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.internal.cpuThread
+import io.hengam.lib.utils.TimeUtils
 import io.hengam.lib.utils.log.LogLevel
 import io.hengam.lib.utils.log.Plog
-import com.squareup.moshi.JsonAdapter
 import io.reactivex.Observable
 import io.reactivex.Single
 import java.util.concurrent.TimeUnit
@@ -17,41 +16,34 @@ import java.util.concurrent.TimeoutException
 class UpstreamSender @Inject constructor(
         private val postOffice: PostOffice,
         private val courierLounge: CourierLounge,
-        private val moshi: HengamMoshi
+        private val parcelSerializer: ParcelSerializer,
+        private val parcelCodecs: ParcelCodecs,
+        private val courierHealthTracker: CourierHealthTracker
 ) {
-    private val parcelAdapter: JsonAdapter<UpstreamParcel> by lazy { moshi.adapter(UpstreamParcel::class.java) }
 
     fun collectAndSendParcels(): Single<Boolean> {
-        return postOffice.collectParcelsForSending()
+        return courierLounge.outboundCouriers
+                .toList()
+                .flatMapObservable { couriers -> postOffice.collectParcelsForSending(parcelCodecs.maxParcelSize(couriers)) }
                 .subscribeOn(cpuThread())
                 .observeOn(cpuThread())
-                .doOnNext {
-                    val json = parcelAdapter.toJson(it)
-                    Plog.debug(T_MESSAGE, "Sending parcel",
-                        "Parcel" to json,
-                        "Size" to json.length,
-                        "Id" to it.parcelId
-                    )
+                .doOnNext { parcel ->
+                    Plog.debug(T_MESSAGE) {
+                        val json = parcelSerializer.toJson(parcel)
+                        message = "Sending parcel"
+                        withData("Parcel", json)
+                        withData("Size", json.length)
+                        withData("Id", parcel.parcelId)
+                    }
                 }
-                .flatMapSingle { parcel ->
+                .flatMap({ parcel ->
                     if (parcel.messages.isEmpty()) {
                         Plog.warn(T_MESSAGE,"Attempting to send empty parcel, ignoring parcel")
-                        return@flatMapSingle Single.just(true)
+                        return@flatMap Observable.just(true)
                     }
 
-                    // TODO order couriers by failed attempts
-                    return@flatMapSingle courierLounge.outboundCouriers
-                            .flatMapSingle { courier ->
-                                sendParcel(parcel, courier)
-                                        .doOnSuccess { logAttempt(parcel, courier, it) }
-                            }
-                            .takeUntil { it !is SendResult.Fail }
-                            .toList()
-                            .map { results ->
-                                logAllAttempts(parcel, results)
-                                results.any { it is SendResult.Success } || results.all { it is SendResult.TooBig }
-                            }
-                }
+                    sendParcelWithCouriers(parcel).toObservable()
+                }, MAX_PARCELS_IN_FLIGHT)
                 .switchIfEmpty(
                         Observable.defer {
                             postOffice.areMessagesInFlight()
@@ -73,15 +65,42 @@ class UpstreamSender @Inject constructor(
                 .all { it }
     }
 
+    /**
+     * Attempt to send the parcel with the available couriers, one courier at a time. The couriers
+     * are tried in the order given by the [CourierHealthTracker] and sending stops once a courier
+     * does not fail.
+     *
+     * @return A [Single] which emits `true` if the parcel was successfully sent (or could not be
+     *         sent by any courier because it was too big) and `false` otherwise.
+     */
+    private fun sendParcelWithCouriers(parcel: UpstreamParcel): Single<Boolean> {
+        return courierLounge.outboundCouriers
+                .toList()
+                .flatMapObservable { couriers ->
+                    Observable.fromIterable(courierHealthTracker.orderCouriers(couriers, postOffice.getParcelSendAttempts(parcel)))
+                }
+                .concatMapSingle { courier ->
+                    sendParcel(parcel, courier)
+                            .doOnSuccess { logAttempt(parcel, courier, it) }
+                }
+                .takeUntil { it !is SendResult.Fail }
+                .toList()
+                .map { results ->
+                    logAllAttempts(parcel, results)
+                    results.any { it is SendResult.Success } || results.all { it is SendResult.TooBig }
+                }
+    }
+
     private fun sendParcel(parcel: UpstreamParcel, courier: OutboundCourier): Single<SendResult> {
         if (parcel.messages.isEmpty()) {
             return Single.just(SendResult.Success)
         }
 
         postOffice.onParcelInFlight(parcel, courier.id)
+        val sendStartTime = TimeUtils.nowMillis()
 
         return courier.sendParcel(parcel)
-                .timeout(3000, TimeUnit.MILLISECONDS)
+                .timeout(COURIER_TIMEOUT, TimeUnit.MILLISECONDS)
                 .toSingleDefault<SendResult>(SendResult.Success)
                 .onErrorResumeNext { ex ->
                     when (ex) {
@@ -90,6 +109,8 @@ class UpstreamSender @Inject constructor(
                         else -> Single.just(SendResult.Fail(ex))
                     }
                 }
+                .observeOn(cpuThread())
+                .doOnSuccess { courierHealthTracker.recordAttempt(courier.id, it.outcome, TimeUtils.nowMillis() - sendStartTime) }
     }
 
     private fun logAttempt(parcel: UpstreamParcel, courier: OutboundCourier, result: SendResult) {
@@ -113,11 +134,23 @@ class UpstreamSender @Inject constructor(
         }
     }
 
-    private sealed class SendResult(val name: String) {
-        object Success : SendResult("Success")
-        object TooBig : SendResult("TooBig")
-        object Pending : SendResult("Pending")
-        class Fail(val cause: Throwable) : SendResult("Fail")
+    private sealed class SendResult(val name: String, val outcome: CourierHealthTracker.Outcome) {
+        object Success : SendResult("Success", CourierHealthTracker.Outcome.SUCCESS)
+        object TooBig : SendResult("TooBig", CourierHealthTracker.Outcome.TOO_BIG)
+        object Pending : SendResult("Pending", CourierHealthTracker.Outcome.TIMEOUT)
+        class Fail(val cause: Throwable) : SendResult("Fail", CourierHealthTracker.Outcome.FAIL)
         override fun toString(): String = name
     }
+
+    companion object {
+        /**
+         * The maximum number of parcels which may be sent concurrently
+         */
+        const val MAX_PARCELS_IN_FLIGHT = 4
+
+        /**
+         * The time to wait for a courier to send a parcel before considering the parcel to be pending
+         */
+        const val COURIER_TIMEOUT = 3000L
+    }
 }
\ No newline at end of file
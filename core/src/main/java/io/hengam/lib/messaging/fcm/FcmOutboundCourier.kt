@@ -1,10 +1,11 @@
 package io.hengam.lib.messaging.fcm
 
 import io.hengam.lib.AppManifest
-import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.messaging.COURIER_FCM
 import io.hengam.lib.messaging.OutboundCourier
+import io.hengam.lib.messaging.ParcelCodecs
 import io.hengam.lib.messaging.ParcelSendException
+import io.hengam.lib.messaging.ParcelSerializer
 import io.hengam.lib.messaging.UpstreamParcel
 import io.hengam.lib.utils.rx.safeSingleFromCallable
 import com.google.firebase.messaging.RemoteMessage
@@ -12,13 +13,12 @@ import io.reactivex.Completable
 
 
 class FcmOutboundCourier constructor(
-        moshi: HengamMoshi,
+        private val parcelSerializer: ParcelSerializer,
+        private val parcelCodecs: ParcelCodecs,
         private val fcmServiceManager: FcmServiceManager,
         private val fcmMessaging: FcmMessaging,
         private val appManifest: AppManifest
 ) : OutboundCourier {
-    private val parcelAdapter = moshi.adapter(UpstreamParcel::class.java)
-    private val anyAdapter = moshi.adapter(Any::class.java).serializeNulls()
 
     override val id: String = COURIER_FCM
 
@@ -35,14 +35,8 @@ class FcmOutboundCourier constructor(
         val builder = RemoteMessage.Builder("${appManifest.fcmSenderId}@gcm.googleapis.com")
         builder.setMessageId(parcel.parcelId)
         builder.setTtl(10)
-        val jsonValue: Map<*, *> = parcelAdapter.toJsonValue(parcel) as Map<*, *>
-        for ((key, value) in jsonValue) {
-            val convertedValue = when (value) {
-                is Map<*, *> -> anyAdapter.toJson(value)
-                is List<*> -> anyAdapter.toJson(value)
-                else -> value.toString()
-            }
-            builder.addData(key.toString(), convertedValue)
+        for ((key, value) in parcelCodecs.codecForCourier(id).encode(parcel, parcelSerializer)) {
+            builder.addData(key, value)
         }
 
         return builder.build()
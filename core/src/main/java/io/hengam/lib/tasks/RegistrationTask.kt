@@ -8,6 +8,7 @@ import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.internal.task.OneTimeTaskOptions
 import io.hengam.lib.internal.task.HengamTask
+import io.hengam.lib.internal.task.TaskPriority
 import io.hengam.lib.messaging.fcm.FcmTokenStore
 import io.hengam.lib.messaging.fcm.TokenState
 import io.hengam.lib.registrationBackoffDelay
@@ -47,6 +48,7 @@ class RegistrationTask: HengamTask() {
         override fun task() = RegistrationTask::class
         override fun taskId() = "hengam_registration"
         override fun existingWorkPolicy() = ExistingWorkPolicy.REPLACE
+        override fun priority() = TaskPriority.HIGH
         override fun backoffPolicy(): BackoffPolicy? = hengamConfig.registrationBackoffPolicy
         override fun backoffDelay(): Time? = hengamConfig.registrationBackoffDelay
     }
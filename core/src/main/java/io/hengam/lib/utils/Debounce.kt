@@ -1,54 +1,235 @@
 package io.hengam.lib.utils
 
+import io.hengam.lib.LogTag.T_UTILS
 import io.hengam.lib.internal.cpuThread
-import io.hengam.lib.utils.rx.justDo
-import io.reactivex.subjects.PublishSubject
+import io.hengam.lib.utils.log.Plog
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
 import java.util.concurrent.TimeUnit
 
-private val debouncers: MutableMap<String, PublishSubject<Boolean>> = mutableMapOf()
-private val debounceData: MutableMap<String, MutableList<Any?>> = mutableMapOf()
+/**
+ * Debounces and throttles actions by key using a single hashed timer wheel on the cpu thread.
+ *
+ * Every pending key has one entry in the wheel. Calling [debounce] or [throttleLast] for a key
+ * which is already pending only updates the entry's deadline and action, so bursts of calls do not
+ * allocate new timers or subscriptions. The wheel is advanced by a single timer on the cpu thread
+ * which is only scheduled while there are pending entries and which wakes up at the earliest
+ * deadline rather than on every tick.
+ *
+ * Deadlines are rounded up to the wheel's tick ([TICK_MILLIS]). Entries whose deadline is more
+ * than one revolution of the wheel away stay in their slot until their deadline is reached.
+ *
+ * Keys may be any object with proper `equals` and `hashCode` implementations (e.g., strings).
+ * The functions may be called on any thread, actions are always run on the cpu thread.
+ */
+object Debouncer {
+    private const val TICK_MILLIS = 10L
+    private const val WHEEL_SIZE = 512
+    private const val WHEEL_MASK = WHEEL_SIZE - 1
 
-fun <T> debounce(key: String, value: T, time: Long, timeUnit: TimeUnit, func: (List<T>) -> Unit) {
-    cpuThread {
-        if (key !in debouncers) {
-            val debouncer = PublishSubject.create<Boolean>()
-            debouncers[key] = debouncer
-            debounceData[key] = mutableListOf()
-            debouncer
-                    .debounce(time, timeUnit, cpuThread())
-                    .justDo {
-                        func((debounceData[key] ?: mutableListOf<T>()) as List<T>)
-                        debouncers.remove(key)
-                        debounceData.remove(key)
-                        debouncer.onComplete()
+    private class Entry(val key: Any, val isThrottle: Boolean) {
+        var scheduledTick = 0L
+        var deadlineTick = 0L
+        var maxDeadlineTick = Long.MAX_VALUE
+        var action: (() -> Unit)? = null
+        var values: MutableList<Any?>? = null
+        var valuesAction: ((List<Any?>) -> Unit)? = null
+    }
+
+    class Stats(val calls: Long, val coalesced: Long, val fired: Long, val pending: Int) {
+        override fun toString(): String =
+                "DebouncerStats[Calls=$calls Coalesced=$coalesced Fired=$fired Pending=$pending]"
+    }
+
+    private val lock = Any()
+    private val entries = HashMap<Any, Entry>()
+    private val wheel = arrayOfNulls<MutableList<Entry>>(WHEEL_SIZE)
+
+    private var scheduler: Scheduler? = null
+    private var lastTick = 0L
+    private var armedTick = Long.MAX_VALUE
+    private var armedTimer: Disposable? = null
+    private val tickRunnable = Runnable { onTick() }
+
+    private var callCount = 0L
+    private var coalescedCount = 0L
+    private var firedCount = 0L
+
+    val stats: Stats
+        get() = synchronized(lock) { Stats(callCount, coalescedCount, firedCount, entries.size) }
+
+    /**
+     * Run [action] once no calls have been made with the same [key] for the given [delay].
+     *
+     * If [maxWait] is given, the action will be run at most [maxWait] after the first call of a
+     * burst even if calls keep being made. The action given in the last call is the one which
+     * will be run.
+     */
+    fun debounce(key: Any, delay: Time, maxWait: Time? = null, action: () -> Unit) {
+        synchronized(lock) {
+            val entry = update(key, false, delay, maxWait)
+            entry.action = action
+        }
+    }
+
+    /**
+     * Similar to [debounce] but the [action] will be given all the values passed in the calls
+     * made with the same [key] since the action was last run
+     */
+    fun <T> debounce(key: Any, value: T, delay: Time, maxWait: Time? = null, action: (List<T>) -> Unit) {
+        synchronized(lock) {
+            val entry = update(key, false, delay, maxWait)
+            (entry.values ?: mutableListOf<Any?>().also { entry.values = it }).add(value)
+            @Suppress("UNCHECKED_CAST")
+            entry.valuesAction = action as (List<Any?>) -> Unit
+        }
+    }
+
+    /**
+     * Run [action] at the end of the [period] which starts with the first call made with the
+     * given [key]. Calls made during the period do not extend it, however the action given in the
+     * last call is the one which will be run.
+     */
+    fun throttleLast(key: Any, period: Time, action: () -> Unit) {
+        synchronized(lock) {
+            val entry = update(key, true, period, null)
+            entry.action = action
+        }
+    }
+
+    /**
+     * Cancel the pending action of the given key, if any
+     */
+    fun cancel(key: Any) {
+        synchronized(lock) {
+            val entry = entries.remove(key) ?: return
+            wheel[(entry.scheduledTick and WHEEL_MASK.toLong()).toInt()]?.remove(entry)
+        }
+    }
+
+    private fun update(key: Any, isThrottle: Boolean, delay: Time, maxWait: Time?): Entry {
+        val scheduler = currentScheduler()
+        val now = scheduler.now(TimeUnit.MILLISECONDS)
+        if (entries.isEmpty()) lastTick = now / TICK_MILLIS - 1
+        val deadlineTick = maxOf(ceilTick(now + delay.toMillis()), lastTick + 1)
+
+        callCount += 1
+        val existing = entries[key]
+        if (existing != null && existing.isThrottle == isThrottle) {
+            coalescedCount += 1
+            if (!isThrottle) {
+                existing.deadlineTick = minOf(deadlineTick, existing.maxDeadlineTick)
+                // Entries are only moved if their deadline becomes earlier than their slot, later
+                // deadlines are handled once the slot is reached
+                if (existing.deadlineTick < existing.scheduledTick) {
+                    wheel[(existing.scheduledTick and WHEEL_MASK.toLong()).toInt()]?.remove(existing)
+                    place(existing)
+                    arm(scheduler, existing.scheduledTick)
+                }
+            }
+            return existing
+        }
+
+        existing?.let { cancel(key) }
+        val entry = Entry(key, isThrottle)
+        entry.deadlineTick = deadlineTick
+        if (maxWait != null) {
+            entry.maxDeadlineTick = maxOf(ceilTick(now + maxWait.toMillis()), deadlineTick)
+        }
+        entries[key] = entry
+        place(entry)
+        arm(scheduler, entry.scheduledTick)
+        return entry
+    }
+
+    private fun place(entry: Entry) {
+        entry.scheduledTick = entry.deadlineTick
+        val index = (entry.deadlineTick and WHEEL_MASK.toLong()).toInt()
+        (wheel[index] ?: ArrayList<Entry>(2).also { wheel[index] = it }).add(entry)
+    }
+
+    private fun arm(scheduler: Scheduler, tick: Long) {
+        if (tick >= armedTick) return
+        armedTimer?.dispose()
+        armedTick = tick
+        val delay = maxOf(0L, tick * TICK_MILLIS - scheduler.now(TimeUnit.MILLISECONDS))
+        armedTimer = scheduler.scheduleDirect(tickRunnable, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun onTick() {
+        val due = mutableListOf<Entry>()
+        synchronized(lock) {
+            armedTimer = null
+            armedTick = Long.MAX_VALUE
+            val scheduler = scheduler ?: return
+            val nowTick = scheduler.now(TimeUnit.MILLISECONDS) / TICK_MILLIS
+
+            val firstTick = maxOf(lastTick + 1, nowTick - WHEEL_SIZE + 1)
+            for (tick in firstTick..nowTick) {
+                val slot = wheel[(tick and WHEEL_MASK.toLong()).toInt()] ?: continue
+                val iterator = slot.iterator()
+                var moved: MutableList<Entry>? = null
+                while (iterator.hasNext()) {
+                    val entry = iterator.next()
+                    if (entry.scheduledTick > nowTick) continue
+                    iterator.remove()
+                    if (entry.deadlineTick <= nowTick) {
+                        entries.remove(entry.key)
+                        due.add(entry)
+                    } else {
+                        (moved ?: mutableListOf<Entry>().also { moved = it }).add(entry)
                     }
+                }
+                moved?.forEach { place(it) }
+            }
+            lastTick = maxOf(lastTick, nowTick)
+            firedCount += due.size
+
+            entries.values.minBy { it.scheduledTick }?.let { arm(scheduler, it.scheduledTick) }
+        }
+
+        due.forEach { entry ->
+            try {
+                entry.action?.invoke()
+                entry.valuesAction?.invoke(entry.values ?: emptyList<Any?>())
+            } catch (ex: Exception) {
+                Plog.error(T_UTILS, "Unhandled error occurred in debounced action", ex, "Key" to entry.key)
+            }
+        }
+    }
+
+    /**
+     * Returns the cpu scheduler, discarding all pending entries if the scheduler has changed since
+     * they were added (e.g., in tests) since their timer would never run
+     */
+    private fun currentScheduler(): Scheduler {
+        val currentScheduler = cpuThread()
+        if (currentScheduler !== scheduler) {
+            armedTimer?.dispose()
+            armedTimer = null
+            armedTick = Long.MAX_VALUE
+            entries.clear()
+            wheel.fill(null)
+            scheduler = currentScheduler
         }
-        debouncers[key]?.onNext(true)
-        debounceData[key]?.add(value)
+        return currentScheduler
     }
+
+    private fun ceilTick(millis: Long) = (millis + TICK_MILLIS - 1) / TICK_MILLIS
+}
+
+fun <T> debounce(key: String, value: T, time: Long, timeUnit: TimeUnit, func: (List<T>) -> Unit) {
+    Debouncer.debounce(key, value, millis(timeUnit.toMillis(time)), action = func)
 }
 
 fun <T> debounce(key: String, value: T, time: Time, func: (List<T>) -> Unit) {
-    debounce(key, value, time.toMillis(), TimeUnit.MILLISECONDS, func)
+    Debouncer.debounce(key, value, time, action = func)
 }
 
 fun debounce(key: String, time: Long, timeUnit: TimeUnit, func: () -> Unit) {
-    cpuThread {
-        if (key !in debouncers) {
-            val debouncer = PublishSubject.create<Boolean>()
-            debouncers[key] = debouncer
-            debouncer
-                    .debounce(time, timeUnit, cpuThread())
-                    .justDo {
-                        func()
-                        debouncers.remove(key)
-                        debouncer.onComplete()
-                    }
-        }
-        debouncers[key]?.onNext(true)
-    }
+    Debouncer.debounce(key, millis(timeUnit.toMillis(time)), action = func)
 }
 
 fun debounce(key: String, time: Time, func: () -> Unit) {
-    debounce(key, time.toMillis(), TimeUnit.MILLISECONDS, func)
+    Debouncer.debounce(key, time, action = func)
 }
@@ -8,62 +8,85 @@ import io.hengam.lib.dagger.CoreScope
 import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.internal.cpuThread
 import io.hengam.lib.utils.log.Plog
-import io.hengam.lib.utils.rx.PublishRelay
-import io.hengam.lib.utils.rx.keepDoing
 import com.squareup.moshi.JsonAdapter
 import com.squareup.moshi.Types
-import java.util.concurrent.TimeUnit
+import io.reactivex.disposables.Disposable
+import java.io.File
+import java.io.IOException
+import java.util.PriorityQueue
 import javax.inject.Inject
 import kotlin.reflect.KProperty
 
 /**
  * Note: The class is not thread safe and should only be accessed on the cpu thread.
+ *
+ * @param collectionRecords Provides the [RecordStore] in which the entries of the stored collection
+ * with the given preference key are persisted. Each collection is given a separate [RecordJournal]
+ * so that saving a collection only appends the changed entries.
  */
 @CoreScope
 class HengamStorage constructor(
         private val moshi: HengamMoshi,
-        private val sharedPreferences: SharedPreferences
+        private val sharedPreferences: SharedPreferences,
+        private val collectionRecords: (String) -> RecordStore = { preferenceKey ->
+            SharedPreferencesRecordStore(sharedPreferences, "$preferenceKey/")
+        }
 ) {
 
     @Inject constructor(moshi: HengamMoshi, context: Context): this(
             moshi,
-            context.getSharedPreferences(SHARED_PREF_NAME, Context.MODE_PRIVATE)
+            context.getSharedPreferences(SHARED_PREF_NAME, Context.MODE_PRIVATE),
+            { preferenceKey ->
+                RecordJournal(
+                        File(getCollectionsDirectory(context), preferenceKey),
+                        COLLECTION_JOURNAL_MAX_SEGMENT_SIZE,
+                        COLLECTION_JOURNAL_COMPACTION_THRESHOLD
+                )
+            }
     )
 
     private val stores = mutableMapOf<String, PersistableCollection>()
-    private val saveDebouncer = PublishRelay.create<Boolean>()
+    private val persistAction = { persistChanges() }
     private val storeTimeMapAdapter by lazy {
         moshi.adapter<Map<String, Long>>(Types.newParameterizedType(Map::class.java, String::class.java, Long::class.javaObjectType))
     }
     val dirtyValues = mutableMapOf<String, Any>()
     val removedValues = mutableSetOf<String>()
 
-    init {
-        saveDebouncer
-                .debounce(STORE_WRITE_RATE_LIMIT, TimeUnit.MILLISECONDS, cpuThread())
-                .observeOn(cpuThread())
-                .keepDoing {
-                    val editor = sharedPreferences.edit()
-                    stores.values.forEach { store -> store.performSave(editor) }
-                    dirtyValues.forEach { item ->
-                        val value = item.value
-                        when(value) {
-                            is String -> editor.putString(item.key, value)
-                            is Int -> editor.putInt(item.key, value)
-                            is Long -> editor.putLong(item.key, value)
-                            is Boolean -> editor.putBoolean(item.key, value)
-                            is Float -> editor.putFloat(item.key, value)
-                        }
-                    }
-                    removedValues.forEach { key -> editor.remove(key) }
-                    editor.apply()
-                    dirtyValues.clear()
-                    removedValues.clear()
-                }
+    private fun persistChanges() {
+        // Collection records are written first so migrated legacy values are not lost
+        stores.values.forEach { it.performSave() }
+        val editor = sharedPreferences.edit()
+        dirtyValues.forEach { item ->
+            val value = item.value
+            when(value) {
+                is String -> editor.putString(item.key, value)
+                is Int -> editor.putInt(item.key, value)
+                is Long -> editor.putLong(item.key, value)
+                is Boolean -> editor.putBoolean(item.key, value)
+                is Float -> editor.putFloat(item.key, value)
+            }
+        }
+        removedValues.forEach { key -> editor.remove(key) }
+        editor.apply()
+        dirtyValues.clear()
+        removedValues.clear()
     }
 
     interface PersistableCollection {
-        fun performSave(editor: SharedPreferences.Editor)
+        fun performSave()
+
+        /**
+         * Removes all entries and their persisted records immediately, discarding any unsaved changes
+         */
+        fun clearRecords()
+    }
+
+    /**
+     * Clears all stored collections which have been created, including their persisted entries
+     */
+    fun clearCollections() {
+        stores.values.forEach { it.clearRecords() }
     }
 
     fun <T> createStoredMap(preferenceKey: String, valueType: Class<T>,
@@ -72,10 +95,10 @@ class HengamStorage constructor(
             return stores[preferenceKey] as PersistedMap<T>
         }
 
-        moshi.enhance { it.add(valueType, jsonAdapter) }
+        moshi.registerAdapter(valueType, jsonAdapter)
         val store = StoredMap(preferenceKey, valueType, expirationTime)
         stores[preferenceKey] = store
-        cpuThread { if (store.haveKeysExpired()) saveDebouncer.accept(true) }
+        cpuThread { store.startExpirationSweeper() }
         return store
     }
 
@@ -84,12 +107,12 @@ class HengamStorage constructor(
         val store = if (preferenceKey in stores) {
             stores[preferenceKey] as StoredMap<T>
         } else {
-            jsonAdapter?.let { adapter -> moshi.enhance { it.add(adapter) } }
+            jsonAdapter?.let { moshi.registerAdapter(it) }
             val store = StoredMap(preferenceKey, valueType, expirationTime)
             stores[preferenceKey] = store
+            cpuThread { store.startExpirationSweeper() }
             store
         }
-        cpuThread { if (store.haveKeysExpired()) saveDebouncer.accept(true) }
         return store
     }
 
@@ -102,7 +125,7 @@ class HengamStorage constructor(
             return stores[preferenceKey] as PersistedList<T>
         }
 
-        jsonAdapter?.let { adapter -> moshi.enhance { it.add(adapter) } }
+        jsonAdapter?.let { moshi.registerAdapter(it) }
         val store = StoredList(preferenceKey, valueType)
         stores[preferenceKey] = store
         return store
@@ -114,7 +137,7 @@ class HengamStorage constructor(
             return stores[preferenceKey] as PersistedSet<T>
         }
 
-        jsonAdapter?.let { adapter -> moshi.enhance { it.add(adapter) } }
+        jsonAdapter?.let { moshi.registerAdapter(it) }
         val store = StoredSet(preferenceKey, valueType)
         stores[preferenceKey] = store
         return store
@@ -131,9 +154,14 @@ class HengamStorage constructor(
     private fun put(key: String, value: Any) {
         dirtyValues[key] = value
         removedValues.remove(key)
-        saveDebouncer.accept(true)
+        requestSave()
     }
 
+    /**
+     * Persists pending changes once no changes have been made for [STORE_WRITE_RATE_LIMIT]
+     */
+    private fun requestSave() = Debouncer.debounce(this, millis(STORE_WRITE_RATE_LIMIT), action = persistAction)
+
     fun putString(key: String, value: String) = put(key, value)
     fun putInt(key: String, value: Int) = put(key, value)
     fun putLong(key: String, value: Long) = put(key, value)
@@ -149,12 +177,31 @@ class HengamStorage constructor(
     fun remove(key: String) {
         dirtyValues.remove(key)
         removedValues.add(key)
-        saveDebouncer.accept(true)
+        requestSave()
     }
 
     companion object {
         const val SHARED_PREF_NAME = Constants.STORAGE_NAME
         const val STORE_WRITE_RATE_LIMIT = 500L
+        const val COLLECTIONS_DIRECTORY = "hengam_store"
+        const val COLLECTION_JOURNAL_MAX_SEGMENT_SIZE = 64 * 1024L
+        const val COLLECTION_JOURNAL_COMPACTION_THRESHOLD = 32 * 1024L
+
+        private const val RECORD_VALUE = "v"
+        private const val RECORD_EXPIRATION = "e"
+        private const val RECORD_ITEM = "i"
+
+        private const val MIN_EXPIRATION_QUEUE_REBUILD_SIZE = 32
+
+        /**
+         * The directory containing the journals of the stored collections, one sub-directory per
+         * collection
+         */
+        fun getCollectionsDirectory(context: Context) = File(context.filesDir, COLLECTIONS_DIRECTORY)
+    }
+
+    private class ExpirationItem(val key: String, val time: Long) : Comparable<ExpirationItem> {
+        override fun compareTo(other: ExpirationItem): Int = time.compareTo(other.time)
     }
 
     private inner class StoredString constructor(private val key: String, private val default: String): PersistedItem<String> {
@@ -218,9 +265,99 @@ class HengamStorage constructor(
     }
 
     /**
-     * Note: Should not be used for storing large amounts of data or very complex data structures
+     * The persisted records of a single stored collection.
+     *
+     * Each entry of a collection is stored as a separate record in the collection's own
+     * [RecordStore], so changing an entry only requires serializing and writing that entry. Record
+     * keys are made of the record type and the entry's key or id (e.g., `v/some_tag`).
      *
-     * @param preferenceKey The key to store the map with in the shared preferences
+     * Collections used to be stored as a single json value in the main shared preferences, these
+     * values are migrated to records the first time the collection is loaded (see [takeLegacyValue]).
+     */
+    private inner class CollectionRecords(private val preferenceKey: String) {
+        private val store by lazy { collectionRecords(preferenceKey) }
+        private val changes = mutableMapOf<String, String?>()
+
+        private fun key(type: String, id: Any): String = "$type/$id"
+
+        /**
+         * Reads all records, grouped by their type and mapped by their entry key or id
+         */
+        fun readAll(): Map<String, Map<String, String>> {
+            val records = try {
+                store.readAll()
+            } catch (ex: IOException) {
+                Plog.error(T_UTILS, "Reading stored collection failed", ex, "Store" to preferenceKey)
+                emptyMap<String, String>()
+            }
+            val recordsByType = mutableMapOf<String, MutableMap<String, String>>()
+            records.forEach { (key, value) ->
+                val separator = key.indexOf('/')
+                if (separator < 0) return@forEach
+                recordsByType.getOrPut(key.substring(0, separator)) { mutableMapOf() }[key.substring(separator + 1)] = value
+            }
+            return recordsByType
+        }
+
+        fun put(type: String, id: Any, value: String) {
+            changes[key(type, id)] = value
+        }
+
+        fun remove(type: String, id: Any) {
+            changes[key(type, id)] = null
+        }
+
+        /**
+         * Writes the records changed with [put] and [remove] since the last write
+         */
+        fun write() {
+            if (changes.isEmpty()) return
+            try {
+                store.write(changes)
+            } catch (ex: IOException) {
+                Plog.error(T_UTILS, "Persisting stored collection failed", ex,
+                        "Store" to preferenceKey,
+                        "Change Count" to changes.size
+                )
+            }
+            changes.clear()
+        }
+
+        fun clear() {
+            changes.clear()
+            store.clear()
+        }
+
+        /**
+         * Returns the value stored for the collection in the main shared preferences by older
+         * versions of the library and schedules it to be removed on the next save.
+         *
+         * @param hasRecords Whether any records have been stored for the collection. If so, the
+         * legacy value has already been migrated and will be ignored.
+         */
+        fun takeLegacyValue(key: String, hasRecords: Boolean): String? {
+            if (!sharedPreferences.contains(key)) return null
+            this@HengamStorage.remove(key)
+            return if (hasRecords) null else sharedPreferences.getString(key, null)
+        }
+    }
+
+    /**
+     * Note: Should not be used for storing very complex data structures
+     *
+     * Entries are persisted as separate records (see [CollectionRecords]) and only entries which
+     * have changed are written on each save. Entry values are decoded lazily, the first time they
+     * are accessed. Accessing [keys], [entries] or [values] decodes all entries.
+     *
+     * Changes made to entry values in-place or through the [keys], [values] and [entries] views are
+     * only persisted after calling [save] (or [save] with the entry key).
+     *
+     * Entry expiration times are kept in a min-heap ordered by time, and a sweeper is scheduled on
+     * the cpu thread for when the earliest entry expires. Changing or removing an entry's expiration
+     * leaves its old heap item in place, stale items are skipped when they reach the top of the heap
+     * and the heap is rebuilt if they outnumber the live ones.
+     *
+     * @param preferenceKey The key identifying the map and its persisted records
      * @param valueType The [Class] of the valueType which is to be stored
      */
     private inner class StoredMap<T> constructor(
@@ -228,319 +365,623 @@ class HengamStorage constructor(
             private val valueType: Class<T>,
             private val defaultExpirationTime: Time? = null
     ) : PersistedMap<T>, PersistableCollection  {
-        private var isDirty: Boolean = false
+        private val records = CollectionRecords(preferenceKey)
+        private val valueAdapter by lazy { moshi.adapter(valueType) }
         private val mapAdapter by lazy {
             moshi.adapter<Map<String, T>>(Types.newParameterizedType(Map::class.java, String::class.java, valueType))
         }
 
-        private val storedMap: MutableMap<String, T> by lazy {
-            val json = sharedPreferences.getString(preferenceKey, null)
-            json?.let {
+        private var isLoaded = false
+        private var isDirty = false
+        private var isFullSaveNeeded = false
+
+        /** Decoded entries */
+        private val storedMap = mutableMapOf<String, T>()
+        /** Json values of entries which have not been decoded yet */
+        private val encodedValues = mutableMapOf<String, String>()
+        private val storeExpirationMap = mutableMapOf<String, Long>()
+        private val expirationQueue = PriorityQueue<ExpirationItem>()
+        private var sweeper: Disposable? = null
+        private var sweepTime = Long.MAX_VALUE
+        private var evictedCount = 0L
+        private val persistedKeys = mutableSetOf<String>()
+        private val dirtyKeys = mutableSetOf<String>()
+
+        private fun load() {
+            if (isLoaded) return
+            isLoaded = true
+
+            val stored = records.readAll()
+            stored[RECORD_VALUE]?.forEach { (key, json) ->
+                encodedValues[key] = json
+                persistedKeys.add(key)
+            }
+            stored[RECORD_EXPIRATION]?.forEach { (key, time) ->
+                val expiration = time.toLongOrNull()
+                if (expiration != null && key in persistedKeys) storeExpirationMap[key] = expiration
+            }
+
+            val hasRecords = persistedKeys.isNotEmpty()
+            records.takeLegacyValue(preferenceKey, hasRecords)?.let {
                 try {
-                    mapAdapter.fromJson(it)?.toMutableMap()
+                    mapAdapter.fromJson(it)?.let { legacyMap -> storedMap.putAll(legacyMap) }
                 } catch (ex: Exception) {
                     Plog.error(T_UTILS, ex)
-                    mutableMapOf<String, T>()
                 }
-            } ?: mutableMapOf()
-        }
-
-        private val storeExpirationMap: MutableMap<String, Long> by lazy {
-            val json = sharedPreferences.getString(preferenceKey + "_expire", null)
-            json?.let {
+            }
+            records.takeLegacyValue(preferenceKey + "_expire", hasRecords)?.let {
                 try {
-                    storeTimeMapAdapter.fromJson(it)?.toMutableMap()
+                    storeTimeMapAdapter.fromJson(it)?.let { legacyMap -> storeExpirationMap.putAll(legacyMap) }
                 } catch (ex: Exception) {
                     Plog.error(T_UTILS, ex)
-                    mutableMapOf<String, Long>()
                 }
-            } ?: mutableMapOf()
+            }
+            if (storedMap.isNotEmpty()) {
+                dirtyKeys.addAll(storedMap.keys)
+                scheduleSave()
+            }
+
+            rebuildExpirationQueue()
+            expirationQueue.peek()?.let { scheduleSweep(it.time) }
         }
 
-        override fun performSave(editor: SharedPreferences.Editor) {
-            if (isDirty) {
-                val now = TimeUtils.nowMillis()
+        private fun setExpiration(key: String, time: Long) {
+            storeExpirationMap[key] = time
+            expirationQueue.add(ExpirationItem(key, time))
+            scheduleSweep(time)
+        }
 
-                var expiredKeys: MutableSet<String>? = null
+        private fun rebuildExpirationQueue() {
+            expirationQueue.clear()
+            storeExpirationMap.forEach { (key, time) -> expirationQueue.add(ExpirationItem(key, time)) }
+        }
 
-                storeExpirationMap.forEach {
-                    if (now >= it.value) {
-                        expiredKeys = expiredKeys ?: mutableSetOf()
-                        expiredKeys?.add(it.key)
-                    }
-                }
+        /**
+         * Removes all entries which have expired by the given time
+         *
+         * @return The number of removed entries
+         */
+        private fun evictExpired(now: Long): Int {
+            var count = 0
+            while (true) {
+                val item = expirationQueue.peek() ?: break
+                if (item.time > now) break
+                expirationQueue.poll()
+                if (storeExpirationMap[item.key] != item.time) continue
 
-                expiredKeys?.forEach {
-                    storeExpirationMap.remove(it)
-                    storedMap.remove(it)
+                storeExpirationMap.remove(item.key)
+                storedMap.remove(item.key)
+                encodedValues.remove(item.key)
+                dirtyKeys.add(item.key)
+                count += 1
+            }
+
+            if (expirationQueue.size > storeExpirationMap.size * 2 + MIN_EXPIRATION_QUEUE_REBUILD_SIZE) {
+                rebuildExpirationQueue()
+            }
+
+            if (count > 0) {
+                evictedCount += count
+                isDirty = true
+            }
+            return count
+        }
+
+        private fun scheduleSweep(time: Long) {
+            if (time >= sweepTime) return
+            sweeper?.dispose()
+            sweepTime = time
+            sweeper = cpuThread(millis(maxOf(0, time - TimeUtils.nowMillis()))) { sweep() }
+        }
+
+        private fun sweep() {
+            sweeper = null
+            sweepTime = Long.MAX_VALUE
+            val count = evictExpired(TimeUtils.nowMillis())
+            if (count > 0) {
+                Plog.trace(T_UTILS) {
+                    message = "Expired entries removed from stored map"
+                    withData("Store", preferenceKey)
+                    withData("Removed", count)
+                    withData("Total Removed", evictedCount)
+                    withData("Remaining", size)
                 }
+                requestSave()
+            }
+            expirationQueue.peek()?.let { scheduleSweep(it.time) }
+        }
+
+        /**
+         * Loads the map and starts removing entries once they expire, if the map has a default
+         * expiration time. Otherwise, expired entries will be removed once the map is loaded.
+         */
+        fun startExpirationSweeper() {
+            if (defaultExpirationTime != null) load()
+        }
 
-                editor.putString(preferenceKey, mapAdapter.toJson(storedMap))
-                storeExpirationMap.let { editor.putString(preferenceKey + "_expire", storeTimeMapAdapter.toJson(it)) }
-                isDirty = false
+        private fun decode(key: String): T? {
+            val json = encodedValues.remove(key) ?: return null
+            return try {
+                valueAdapter.fromJson(json)?.also { storedMap[key] = it }
+            } catch (ex: Exception) {
+                Plog.error(T_UTILS, "Failed to decode stored value, the value will be removed", ex,
+                        "Store" to preferenceKey,
+                        "Key" to key
+                )
+                storeExpirationMap.remove(key)
+                dirtyKeys.add(key)
+                scheduleSave()
+                null
             }
         }
 
-        fun haveKeysExpired(): Boolean {
-            if (defaultExpirationTime == null) {
-                return false
+        private fun decodeAll(): MutableMap<String, T> {
+            load()
+            if (encodedValues.isNotEmpty()) encodedValues.keys.toList().forEach { decode(it) }
+            return storedMap
+        }
+
+        override fun performSave() {
+            if (!isDirty) return
+            isDirty = false
+
+            evictExpired(TimeUtils.nowMillis())
+
+            if (isFullSaveNeeded) {
+                dirtyKeys.addAll(persistedKeys)
+                dirtyKeys.addAll(storedMap.keys)
+                isFullSaveNeeded = false
             }
 
-            val now = TimeUtils.nowMillis()
-            val keysExpired = storeExpirationMap?.any { now  >= it.value } ?: false
-            isDirty = if (keysExpired) true else isDirty
-            return keysExpired
+            dirtyKeys.forEach { key ->
+                when {
+                    key in encodedValues -> return@forEach
+                    key in storedMap -> {
+                        records.put(RECORD_VALUE, key, valueAdapter.toJson(storedMap.getValue(key)))
+                        persistedKeys.add(key)
+                    }
+                    else -> {
+                        records.remove(RECORD_VALUE, key)
+                        persistedKeys.remove(key)
+                    }
+                }
+                val expiration = storeExpirationMap[key]
+                if (expiration != null) {
+                    records.put(RECORD_EXPIRATION, key, expiration.toString())
+                } else {
+                    records.remove(RECORD_EXPIRATION, key)
+                }
+            }
+            dirtyKeys.clear()
+            records.write()
         }
 
-        override fun save() {
+        private fun scheduleSave() {
             isDirty = true
-            saveDebouncer.accept(true)
+            requestSave()
+        }
+
+        private fun scheduleSave(key: String) {
+            dirtyKeys.add(key)
+            scheduleSave()
+        }
+
+        override fun save() {
+            load()
+            isFullSaveNeeded = true
+            scheduleSave()
+        }
+
+        override fun save(key: String) {
+            load()
+            scheduleSave(key)
         }
 
         override fun clear() {
+            load()
+            dirtyKeys.addAll(persistedKeys)
+            dirtyKeys.addAll(storedMap.keys)
             storedMap.clear()
+            encodedValues.clear()
             storeExpirationMap.clear()
-            save()
+            expirationQueue.clear()
+            scheduleSave()
         }
 
-        override fun put(key: String, value: T): T? {
-            val result = storedMap.put(key, value)
-            if (defaultExpirationTime != null) {
-                storeExpirationMap[key] = TimeUtils.nowMillis() + defaultExpirationTime.toMillis()
-            }
-            save()
-            return result
+        override fun clearRecords() {
+            isLoaded = true
+            isDirty = false
+            isFullSaveNeeded = false
+            storedMap.clear()
+            encodedValues.clear()
+            storeExpirationMap.clear()
+            expirationQueue.clear()
+            persistedKeys.clear()
+            dirtyKeys.clear()
+            sweeper?.dispose()
+            sweeper = null
+            sweepTime = Long.MAX_VALUE
+            records.clear()
         }
 
+        override fun put(key: String, value: T): T? =
+                put(key, value, defaultExpirationTime)
+
         override fun put(key: String, value: T, expirationTime: Time?): T? {
-            val result = storedMap.put(key, value)
+            load()
+            val result = get(key)
+            storedMap[key] = value
             if (expirationTime != null) {
-                storeExpirationMap[key] = TimeUtils.nowMillis() + expirationTime.toMillis()
+                setExpiration(key, TimeUtils.nowMillis() + expirationTime.toMillis())
             }
-            save()
+            scheduleSave(key)
             return result
         }
 
         override fun putAll(from: Map<out String, T>) {
+            load()
             storedMap.putAll(from)
             val now = TimeUtils.nowMillis()
-            if (defaultExpirationTime != null) {
-                from.keys.forEach { key -> storeExpirationMap[key] = now + defaultExpirationTime.toMillis() }
+            from.keys.forEach { key ->
+                encodedValues.remove(key)
+                if (defaultExpirationTime != null) {
+                    setExpiration(key, now + defaultExpirationTime.toMillis())
+                }
+                dirtyKeys.add(key)
             }
-            save()
+            scheduleSave()
         }
 
         override fun remove(key: String): T? {
-            val result = storedMap.remove(key)
+            load()
+            val result = get(key)
+            storedMap.remove(key)
             storeExpirationMap.remove(key)
-            save()
+            scheduleSave(key)
             return result
         }
 
-        override fun containsKey(key: String): Boolean = storedMap.containsKey(key)
-        override fun containsValue(value: T): Boolean = storedMap.containsValue(value)
-        override fun get(key: String): T? = storedMap.get(key)
-        override fun isEmpty(): Boolean = storedMap.isEmpty()
+        override fun containsKey(key: String): Boolean {
+            load()
+            return storedMap.containsKey(key) || encodedValues.containsKey(key)
+        }
+
+        override fun containsValue(value: T): Boolean = decodeAll().containsValue(value)
+
+        override fun get(key: String): T? {
+            load()
+            return storedMap[key] ?: decode(key)
+        }
+
+        override fun isEmpty(): Boolean = size == 0
 
         override val size: Int
-            get() = storedMap.size
+            get() {
+                load()
+                return storedMap.size + encodedValues.size
+            }
         override val entries: MutableSet<MutableMap.MutableEntry<String, T>>
-            get() = storedMap.entries
+            get() = decodeAll().entries
         override val keys: MutableSet<String>
-            get() = storedMap.keys
+            get() = decodeAll().keys
         override val values: MutableCollection<T>
-            get() = storedMap.values
+            get() = decodeAll().values
 
         override fun toString(): String {
             return entries.toString()
         }
     }
 
+    /**
+     * Each element of the list is persisted as a separate record (see [CollectionRecords]) with an
+     * increasing id, so appending, removing or replacing elements only writes the affected records.
+     * Inserting elements in the middle of the list causes all records to be rewritten on the next
+     * save.
+     *
+     * Changes made to elements in-place are only persisted after calling [save] (or [save] with
+     * the element index).
+     */
     private inner class StoredList<T> constructor(
             val preferenceKey: String,
             val valueType: Class<T>
-    ) : PersistedList<T>, PersistableCollection  {
-        private var isDirty: Boolean = false
+    ) : AbstractMutableList<T>(), PersistedList<T>, PersistableCollection  {
+        private val records = CollectionRecords(preferenceKey)
+        private val valueAdapter by lazy { moshi.adapter(valueType) }
         private val listAdapter by lazy { moshi.adapter<List<T>>(Types.newParameterizedType(List::class.java, valueType)) }
-        private val storedList: MutableList<T> by lazy {
-            val json = sharedPreferences.getString(preferenceKey, null)
-            json?.let {
+
+        private var isLoaded = false
+        private var isDirty = false
+        private var isRenumberingNeeded = false
+
+        private val storedList = mutableListOf<T>()
+        /** The record id of each element in [storedList] */
+        private val ids = mutableListOf<Long>()
+        private var nextId = 0L
+        private val dirtyIds = mutableSetOf<Long>()
+        private val removedIds = mutableSetOf<Long>()
+
+        private fun load() {
+            if (isLoaded) return
+            isLoaded = true
+
+            val stored = (records.readAll()[RECORD_ITEM] ?: emptyMap())
+                    .mapNotNull { (id, json) -> id.toLongOrNull()?.let { it to json } }
+                    .sortedBy { it.first }
+            stored.forEach { (id, json) ->
                 try {
-                    listAdapter.fromJson(it)?.toMutableList()
+                    val value = valueAdapter.fromJson(json)
+                    if (value != null) {
+                        storedList.add(value)
+                        ids.add(id)
+                    } else {
+                        removedIds.add(id)
+                    }
                 } catch (ex: Exception) {
                     Plog.error(T_UTILS, ex)
-                    mutableListOf<T>()
+                    removedIds.add(id)
                 }
-            } ?: mutableListOf()
-        }
+            }
+            nextId = (stored.lastOrNull()?.first ?: -1L) + 1
 
-        override fun performSave(editor: SharedPreferences.Editor) {
-            if (isDirty) {
-                editor.putString(preferenceKey, listAdapter.toJson(storedList.toList()))
-                isDirty = false
+            records.takeLegacyValue(preferenceKey, stored.isNotEmpty())?.let {
+                try {
+                    listAdapter.fromJson(it)?.forEach { value -> add(value) }
+                } catch (ex: Exception) {
+                    Plog.error(T_UTILS, ex)
+                }
             }
+            if (removedIds.isNotEmpty()) scheduleSave()
         }
 
-        override fun save() {
-            isDirty = true
-            saveDebouncer.accept(true)
+        override fun performSave() {
+            if (!isDirty) return
+            isDirty = false
+
+            if (isRenumberingNeeded) {
+                removedIds.addAll(ids)
+                ids.indices.forEach { ids[it] = it.toLong() }
+                nextId = ids.size.toLong()
+                dirtyIds.addAll(ids)
+                isRenumberingNeeded = false
+            }
+
+            removedIds.forEach { records.remove(RECORD_ITEM, it) }
+            if (dirtyIds.isNotEmpty()) {
+                ids.forEachIndexed { index, id ->
+                    if (id in dirtyIds) records.put(RECORD_ITEM, id, valueAdapter.toJson(storedList[index]))
+                }
+            }
+            removedIds.clear()
+            dirtyIds.clear()
+            records.write()
         }
 
-        override fun add(element: T): Boolean {
-            val result = storedList.add(element)
-            save()
-            return result
+        private fun scheduleSave() {
+            isDirty = true
+            requestSave()
         }
 
-        override fun add(index: Int, element: T) {
-            val result = storedList.add(index, element)
-            save()
-            return result
+        override fun save() {
+            load()
+            dirtyIds.addAll(ids)
+            scheduleSave()
         }
 
-        override fun addAll(index: Int, elements: Collection<T>): Boolean {
-            val result = storedList.addAll(index, elements)
-            save()
-            return result
+        override fun save(index: Int) {
+            load()
+            dirtyIds.add(ids[index])
+            scheduleSave()
         }
 
-        override fun addAll(elements: Collection<T>): Boolean {
-            val result = storedList.addAll(elements)
-            save()
-            return result
+        override fun add(index: Int, element: T) {
+            load()
+            storedList.add(index, element)
+            val id = nextId++
+            if (index != ids.size) isRenumberingNeeded = true
+            ids.add(index, id)
+            dirtyIds.add(id)
+            scheduleSave()
         }
 
         override fun clear() {
+            load()
+            removedIds.addAll(ids)
             storedList.clear()
-            save()
-        }
-
-        override fun remove(element: T): Boolean {
-            val result = storedList.remove(element)
-            save()
-            return result
+            ids.clear()
+            scheduleSave()
         }
 
-        override fun removeAll(elements: Collection<T>): Boolean {
-            val result = storedList.removeAll(elements)
-            save()
-            return result
+        override fun clearRecords() {
+            isLoaded = true
+            isDirty = false
+            isRenumberingNeeded = false
+            storedList.clear()
+            ids.clear()
+            nextId = 0
+            dirtyIds.clear()
+            removedIds.clear()
+            records.clear()
         }
 
         override fun removeAt(index: Int): T {
+            load()
             val result = storedList.removeAt(index)
-            save()
-            return result
-        }
-
-        override fun retainAll(elements: Collection<T>): Boolean {
-            val result = storedList.retainAll(elements)
-            save()
+            removedIds.add(ids.removeAt(index))
+            scheduleSave()
             return result
         }
 
         override fun set(index: Int, element: T): T {
+            load()
             val result = storedList.set(index, element)
-            save()
+            dirtyIds.add(ids[index])
+            scheduleSave()
             return result
         }
 
-        override val size: Int get() = storedList.size
-        override fun contains(element: T): Boolean = storedList.contains(element)
-        override fun containsAll(elements: Collection<T>): Boolean = storedList.containsAll(elements)
-        override fun get(index: Int): T = storedList.get(index)
-        override fun indexOf(element: T): Int = storedList.indexOf(element)
-        override fun isEmpty(): Boolean = storedList.isEmpty()
-        override fun iterator(): MutableIterator<T> = storedList.iterator()
-        override fun lastIndexOf(element: T): Int = storedList.lastIndexOf(element)
-        override fun listIterator(): MutableListIterator<T> = storedList.listIterator()
-        override fun listIterator(index: Int): MutableListIterator<T> = storedList.listIterator(index)
-        override fun subList(fromIndex: Int, toIndex: Int): MutableList<T> = storedList.subList(fromIndex, toIndex)
+        override val size: Int
+            get() {
+                load()
+                return storedList.size
+            }
+
+        override fun get(index: Int): T {
+            load()
+            return storedList[index]
+        }
 
         override fun toString(): String {
+            load()
             return storedList.toString()
         }
     }
 
     /**
-     * Should not be used for storing large amounts of data or very complex data structures
+     * Should not be used for storing very complex data structures
+     *
+     * Each element of the set is persisted as a separate record (see [CollectionRecords]), so adding
+     * or removing elements only writes the affected records.
      */
     private inner class StoredSet<T> constructor(
             val preferenceKey: String,
             val valueType: Class<T>
-    ) : PersistedSet<T>, PersistableCollection {
-        private var isDirty: Boolean = false
+    ) : AbstractMutableSet<T>(), PersistedSet<T>, PersistableCollection {
+        private val records = CollectionRecords(preferenceKey)
+        private val valueAdapter by lazy { moshi.adapter(valueType) }
         private val listAdapter by lazy { moshi.adapter<List<T>>(Types.newParameterizedType(List::class.java, valueType)) }
-        private val storedSet: MutableSet<T> by lazy {
-            val json = sharedPreferences.getString(preferenceKey, null)
-            json?.let {
+
+        private var isLoaded = false
+        private var isDirty = false
+
+        /** The elements of the set mapped to their record ids */
+        private val storedSet = LinkedHashMap<T, Long>()
+        private var nextId = 0L
+        private val dirtyElements = mutableSetOf<T>()
+        private val removedIds = mutableSetOf<Long>()
+
+        private fun load() {
+            if (isLoaded) return
+            isLoaded = true
+
+            val stored = (records.readAll()[RECORD_ITEM] ?: emptyMap())
+                    .mapNotNull { (id, json) -> id.toLongOrNull()?.let { it to json } }
+                    .sortedBy { it.first }
+            stored.forEach { (id, json) ->
+                try {
+                    val value = valueAdapter.fromJson(json)
+                    if (value != null && value !in storedSet) {
+                        storedSet[value] = id
+                    } else {
+                        removedIds.add(id)
+                    }
+                } catch (ex: Exception) {
+                    Plog.error(T_UTILS, ex)
+                    removedIds.add(id)
+                }
+            }
+            nextId = (stored.lastOrNull()?.first ?: -1L) + 1
+
+            records.takeLegacyValue(preferenceKey, stored.isNotEmpty())?.let {
                 try {
-                    listAdapter.fromJson(it)?.toMutableSet()
+                    listAdapter.fromJson(it)?.forEach { value -> add(value) }
                 } catch (ex: Exception) {
                     Plog.error(T_UTILS, ex)
-                    mutableSetOf<T>()
                 }
-            } ?: mutableSetOf()
+            }
+            if (removedIds.isNotEmpty()) scheduleSave()
         }
 
-        override fun performSave(editor: SharedPreferences.Editor) {
-            if (isDirty) {
-                editor.putString(preferenceKey, listAdapter.toJson(storedSet.toList()))
-                isDirty = false
+        override fun performSave() {
+            if (!isDirty) return
+            isDirty = false
+
+            removedIds.forEach { records.remove(RECORD_ITEM, it) }
+            dirtyElements.forEach { element ->
+                storedSet[element]?.let { id -> records.put(RECORD_ITEM, id, valueAdapter.toJson(element)) }
             }
+            removedIds.clear()
+            dirtyElements.clear()
+            records.write()
         }
 
-        override fun save() {
+        private fun scheduleSave() {
             isDirty = true
-            saveDebouncer.accept(true)
+            requestSave()
         }
 
-        override fun add(element: T): Boolean {
-            val result = storedSet.add(element)
-            save()
-            return result
+        override fun save() {
+            load()
+            dirtyElements.addAll(storedSet.keys)
+            scheduleSave()
         }
 
-        override fun addAll(elements: Collection<T>): Boolean {
-            val result = storedSet.addAll(elements)
-            save()
-            return result
+        override fun add(element: T): Boolean {
+            load()
+            if (element in storedSet) return false
+            storedSet[element] = nextId++
+            dirtyElements.add(element)
+            scheduleSave()
+            return true
         }
 
         override fun clear() {
+            load()
+            removedIds.addAll(storedSet.values)
             storedSet.clear()
-            save()
+            dirtyElements.clear()
+            scheduleSave()
         }
 
-        override fun iterator(): MutableIterator<T> = storedSet.iterator()
-
-        override fun remove(element: T): Boolean {
-            val result = storedSet.remove(element)
-            save()
-            return result
+        override fun clearRecords() {
+            isLoaded = true
+            isDirty = false
+            storedSet.clear()
+            nextId = 0
+            dirtyElements.clear()
+            removedIds.clear()
+            records.clear()
         }
 
-        override fun removeAll(elements: Collection<T>): Boolean {
-            val result = storedSet.removeAll(elements)
-            save()
-            return result
+        override fun iterator(): MutableIterator<T> {
+            load()
+            val iterator = storedSet.entries.iterator()
+            return object : MutableIterator<T> {
+                private var current: MutableMap.MutableEntry<T, Long>? = null
+
+                override fun hasNext(): Boolean = iterator.hasNext()
+
+                override fun next(): T = iterator.next().also { current = it }.key
+
+                override fun remove() {
+                    iterator.remove()
+                    current?.let { removedIds.add(it.value) }
+                    scheduleSave()
+                }
+            }
         }
 
-        override fun retainAll(elements: Collection<T>): Boolean {
-            val result = storedSet.retainAll(elements)
-            save()
-            return result
+        override fun remove(element: T): Boolean {
+            load()
+            val id = storedSet.remove(element) ?: return false
+            removedIds.add(id)
+            scheduleSave()
+            return true
         }
 
         override val size: Int
-            get() = storedSet.size
+            get() {
+                load()
+                return storedSet.size
+            }
 
-        override fun contains(element: T): Boolean = storedSet.contains(element)
-        override fun containsAll(elements: Collection<T>): Boolean = storedSet.containsAll(elements)
-        override fun isEmpty(): Boolean = storedSet.isEmpty()
+        override fun contains(element: T): Boolean {
+            load()
+            return storedSet.containsKey(element)
+        }
 
         override fun toString(): String {
-            return storedSet.toString()
+            load()
+            return storedSet.keys.toString()
         }
     }
 }
@@ -548,10 +989,20 @@ class HengamStorage constructor(
 interface PersistedMap<T> : MutableMap<String, T> {
     fun save()
     fun put(key: String, value: T, expirationTime: Time?): T?
+
+    /**
+     * Persist the value of the given key after it has been modified in-place
+     */
+    fun save(key: String) = save()
 }
 
 interface PersistedList<T> : MutableList<T> {
     fun save()
+
+    /**
+     * Persist the element at the given index after it has been modified in-place
+     */
+    fun save(index: Int) = save()
 }
 
 interface PersistedSet<T> : MutableSet<T> {
@@ -1,14 +1,40 @@
 package io.hengam.lib.utils
 
 import io.hengam.lib.dagger.CoreScope
+import io.hengam.lib.httpConnectTimeout
+import io.hengam.lib.httpMaxResponseSize
+import io.hengam.lib.httpMaxStreamSize
+import io.hengam.lib.httpReadTimeout
+import io.hengam.lib.internal.HengamConfig
 import io.reactivex.Single
 import java.io.*
 import java.net.HttpURLConnection
 import java.net.URL
+import java.nio.charset.Charset
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.zip.GZIPInputStream
 import javax.inject.Inject
 
+/**
+ * Makes HTTP GET requests.
+ *
+ * Connections are reused between requests. `HttpURLConnection` keeps idle connections alive in a
+ * shared pool as long as each response body is fully consumed and closed without calling
+ * `disconnect()`, so the functions in this class take care to drain the responses they consume
+ * and streams returned to callers will return their connection to the pool once they are closed.
+ *
+ * All requests have connect and read timeouts, accept gzip encoded responses and are limited in
+ * the size of the response they will read (see [httpConnectTimeout], [httpReadTimeout],
+ * [httpMaxResponseSize] and [httpMaxStreamSize]).
+ */
 @CoreScope
-class HttpUtils @Inject constructor() {
+class HttpUtils @Inject constructor(
+        private val hengamConfig: HengamConfig
+) {
+    private val inFlightRequests = ConcurrentHashMap<String, FutureTask<String>>()
 
     /**
      * Make HTTP GET request to a url.
@@ -33,7 +59,9 @@ class HttpUtils @Inject constructor() {
     /**
      * Make HTTP GET request to a url.
      *
-     * The request will block the thread the function is called on.
+     * The request will block the thread the function is called on. If a request for the same url
+     * is already in progress on another thread, the function will wait for that request and return
+     * its result instead of making a new request.
      *
      * @return The response as a String. If the response code received from the request is 4xx or
      * 5xx, an [HttpError] will be thrown. Any other errors raised during the HTTP request will also
@@ -41,23 +69,45 @@ class HttpUtils @Inject constructor() {
      */
     @Throws(IOException::class, HttpError::class)
     fun requestBlocking(url: String): String {
-        val urlConnection: HttpURLConnection = URL(url).openConnection() as HttpURLConnection
-        if (urlConnection.responseCode >= 400) {
-            urlConnection.inputStream.close()
-            urlConnection.disconnect()
-            throw HttpError(urlConnection.responseCode, urlConnection.responseMessage)
+        val request = FutureTask<String>(Callable { readResponse(url) })
+        val inFlightRequest = inFlightRequests.putIfAbsent(url, request)
+
+        try {
+            if (inFlightRequest != null) {
+                return inFlightRequest.get()
+            }
+            try {
+                request.run()
+            } finally {
+                inFlightRequests.remove(url, request)
+            }
+            return request.get()
+        } catch (ex: ExecutionException) {
+            throw ex.cause ?: ex
+        } catch (ex: InterruptedException) {
+            throw InterruptedIOException("Interrupted while waiting for response")
+        }
+    }
+
+    private fun readResponse(url: String): String {
+        val connection = openConnection(url)
+        return responseBody(connection, hengamConfig.httpMaxResponseSize).use { body ->
+            body.reader(responseCharset(connection)).readText()
         }
-        val bufferedReader = BufferedReader(InputStreamReader(urlConnection.inputStream))
-        val sw = StringWriter()
-        val buffer = CharArray(1024 * 4)
-        var n = bufferedReader.read(buffer)
-        while (-1 != n) {
-            sw.write(buffer, 0, n)
-            n = bufferedReader.read(buffer)
+    }
+
+    private fun responseCharset(connection: HttpURLConnection): Charset {
+        val charsetName = connection.contentType
+                ?.substringAfter("charset=", "")
+                ?.substringBefore(";")
+                ?.trim(' ', '"')
+                ?.takeIf { it.isNotEmpty() }
+                ?: return Charsets.UTF_8
+        return try {
+            Charset.forName(charsetName)
+        } catch (ex: Exception) {
+            Charsets.UTF_8
         }
-        urlConnection.inputStream.close()
-        urlConnection.disconnect()
-        return sw.toString()
     }
 
     /**
@@ -65,21 +115,157 @@ class HttpUtils @Inject constructor() {
      *
      * The request will block the thread the function is called on.
      *
-     * @return The response as an [InputStream]. If the response code received from the request is 4xx or
-     * 5xx, an [HttpError] will be thrown. Any other errors raised during the HTTP request will also
-     * be thrown.
+     * @return The response as an [InputStream]. The stream should be closed once it has been
+     * consumed so that the connection may be reused. If the response code received from the
+     * request is 4xx or 5xx, an [HttpError] will be thrown. Any other errors raised during the
+     * HTTP request will also be thrown. Reading the stream will fail with a [ResponseTooLargeException]
+     * if the response exceeds the allowed size.
      */
     @Throws(IOException::class, HttpError::class)
     fun requestBlockingStream(url: String): InputStream {
-        val urlConnection: HttpURLConnection = URL(url).openConnection() as HttpURLConnection
-        if (urlConnection.responseCode >= 400) {
-            urlConnection.inputStream.close()
-            urlConnection.disconnect()
-            throw HttpError(urlConnection.responseCode, urlConnection.responseMessage)
+        return responseBody(openConnection(url), hengamConfig.httpMaxStreamSize)
+    }
+
+    /**
+     * Make a conditional HTTP GET request to a url.
+     *
+     * The request will block the thread the function is called on. If an [etag] or [lastModified]
+     * value is given, they will be sent in the `If-None-Match` and `If-Modified-Since` headers
+     * respectively so that the server may respond with `304 Not Modified` if the resource has not
+     * changed.
+     *
+     * @return A [ConditionalResponse]. If the resource has been modified, the response body will
+     * be available as an [InputStream] which should be closed by the caller. If the response code
+     * received from the request is 4xx or 5xx, an [HttpError] will be thrown. Any other errors raised
+     * during the HTTP request will also be thrown.
+     */
+    @Throws(IOException::class, HttpError::class)
+    fun requestBlockingConditional(url: String, etag: String?, lastModified: String?): ConditionalResponse {
+        val headers = mutableMapOf<String, String>()
+        etag?.let { headers["If-None-Match"] = it }
+        lastModified?.let { headers["If-Modified-Since"] = it }
+        val connection = openConnection(url, headers)
+
+        if (connection.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            drainAndClose(connection.inputStream)
+            return ConditionalResponse(null, etag, lastModified)
+        }
+        return ConditionalResponse(
+                responseBody(connection, hengamConfig.httpMaxStreamSize),
+                connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified")
+        )
+    }
+
+    @Throws(IOException::class, HttpError::class)
+    private fun openConnection(url: String, headers: Map<String, String> = emptyMap()): HttpURLConnection {
+        val connection = URL(url).openConnection() as HttpURLConnection
+        connection.connectTimeout = hengamConfig.httpConnectTimeout.toMillis().toInt()
+        connection.readTimeout = hengamConfig.httpReadTimeout.toMillis().toInt()
+        // Note: setting the header disables the transparent gzip handling done on some platforms,
+        // decompression is handled in `responseBody` instead
+        connection.setRequestProperty("Accept-Encoding", "gzip")
+        headers.forEach { (key, value) -> connection.setRequestProperty(key, value) }
+
+        val responseCode = try {
+            connection.responseCode
+        } catch (ex: IOException) {
+            connection.disconnect()
+            throw ex
+        }
+
+        if (responseCode >= 400) {
+            drainAndClose(connection.errorStream)
+            throw HttpError(responseCode, connection.responseMessage ?: "")
         }
-        return urlConnection.inputStream
+        return connection
+    }
+
+    private fun responseBody(connection: HttpURLConnection, maxSize: Long): InputStream {
+        val contentLength = connection.getHeaderField("Content-Length")?.toLongOrNull() ?: -1
+        if (contentLength > maxSize) {
+            connection.disconnect()
+            throw ResponseTooLargeException(maxSize)
+        }
+
+        val input = BufferedInputStream(connection.inputStream)
+        return try {
+            val body = if (connection.contentEncoding.equals("gzip", ignoreCase = true)) {
+                GZIPInputStream(input)
+            } else {
+                input
+            }
+            SizeLimitedInputStream(body, maxSize)
+        } catch (ex: IOException) {
+            input.close()
+            throw ex
+        }
+    }
+
+    /**
+     * Read any remaining content of a response so that its connection can be returned to the pool
+     */
+    private fun drainAndClose(input: InputStream?) {
+        if (input == null) return
+        try {
+            val buffer = ByteArray(1024)
+            while (input.read(buffer) != -1) {}
+        } catch (ex: IOException) {
+        } finally {
+            try { input.close() } catch (ex: IOException) {}
+        }
+    }
+
+    /**
+     * The result of a conditional request made with [requestBlockingConditional]
+     *
+     * @param body The response body or `null` if the resource has not been modified
+     * @param etag The `ETag` of the resource, if available
+     * @param lastModified The `Last-Modified` date of the resource, if available
+     */
+    class ConditionalResponse(val body: InputStream?, val etag: String?, val lastModified: String?) {
+        val isNotModified: Boolean get() = body == null
     }
 
     class HttpError(val statusCode: Int, val reason: String):
             Exception("Http Error: $statusCode $reason")
-}
\ No newline at end of file
+
+    class ResponseTooLargeException(val maxSize: Long):
+            IOException("Response exceeded the maximum allowed size of $maxSize bytes")
+}
+
+/**
+ * An [InputStream] which fails with a [HttpUtils.ResponseTooLargeException] once more than
+ * [maxSize] bytes have been read from it
+ */
+internal class SizeLimitedInputStream(
+        input: InputStream,
+        private val maxSize: Long
+) : FilterInputStream(input) {
+    private var bytesRead = 0L
+
+    override fun read(): Int {
+        val byte = super.read()
+        if (byte != -1) onRead(1)
+        return byte
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val count = super.read(b, off, len)
+        if (count > 0) onRead(count)
+        return count
+    }
+
+    override fun skip(n: Long): Long {
+        val count = super.skip(n)
+        if (count > 0) onRead(count.toInt())
+        return count
+    }
+
+    override fun markSupported(): Boolean = false
+
+    private fun onRead(count: Int) {
+        bytesRead += count
+        if (bytesRead > maxSize) throw HttpUtils.ResponseTooLargeException(maxSize)
+    }
+}
@@ -0,0 +1,308 @@
+package io.hengam.lib.utils
+
+import io.hengam.lib.LogTag.T_UTILS
+import io.hengam.lib.utils.log.Plog
+import java.io.*
+import java.util.zip.CRC32
+
+/**
+ * An append-only [RecordStore] which persists record changes in a journal.
+ *
+ * The journal is made up of one or more segment files in the given [directory]. Every call to
+ * [write] appends a single record per changed key to the last (active) segment, so the cost of
+ * persisting a change is proportional to the size of the change and not to the number of records
+ * in the store. Once the active segment grows larger than [maxSegmentSize] a new segment is started.
+ *
+ * Each record has the following layout:
+ * ```
+ * [body length: Int][crc32 of body: Int][op: Byte][key: UTF][value: UTF-8 bytes]
+ * ```
+ *
+ * Since records are overwritten and removed over time, most of the journal will eventually consist
+ * of obsolete records. Once the journal is larger than [compactionThreshold] and less than half of
+ * it holds live records, the live records are rewritten in to a new segment which starts with a
+ * snapshot marker and the older segments are deleted. When reading the journal, any segments
+ * preceding the last snapshot segment are ignored, so a crash during compaction is safe.
+ *
+ * If the application is killed while a record is being written, the journal will have a partial
+ * record at it's tail. Records are validated using their length and checksum when the journal is
+ * opened and the segment will be truncated at the first invalid record.
+ *
+ * This class is not thread safe.
+ */
+open class RecordJournal(
+        private val directory: File,
+        private val maxSegmentSize: Long,
+        private val compactionThreshold: Long,
+        private val logTag: String = T_UTILS
+) : RecordStore {
+    private class Segment(val index: Int, val file: File)
+
+    private var isOpen = false
+    private val segments = mutableListOf<Segment>()
+
+    /**
+     * The size in bytes of the latest record of each live key. Used for deciding when the
+     * journal should be compacted.
+     */
+    private val liveRecordSizes = mutableMapOf<String, Int>()
+    private var liveBytes = 0L
+    private var totalBytes = 0L
+
+    val segmentCount: Int get() = segments.size
+    val journalSize: Long get() = totalBytes
+
+    override fun readAll(): Map<String, String> = open()
+
+    override fun write(changes: Map<String, String?>) {
+        if (changes.isEmpty()) return
+        if (!isOpen) open()
+
+        val buffer = ByteArrayOutputStream()
+        changes.forEach { (key, value) ->
+            if (value == null && key !in liveRecordSizes) return@forEach
+            val record = encodeRecord(if (value == null) OP_REMOVE else OP_SAVE, key, value)
+            buffer.write(record)
+            liveBytes -= liveRecordSizes.remove(key) ?: 0
+            if (value != null) {
+                liveRecordSizes[key] = record.size
+                liveBytes += record.size
+            }
+        }
+
+        if (buffer.size() == 0) return
+
+        try {
+            append(buffer.toByteArray())
+        } catch (ex: IOException) {
+            // The in-memory bookkeeping no longer matches the files, re-read on the next write
+            isOpen = false
+            throw ex
+        }
+
+        if (totalBytes >= compactionThreshold && liveBytes * 2 < totalBytes) {
+            compact()
+        }
+    }
+
+    override fun clear() {
+        directory.listFiles()?.forEach { it.delete() }
+        segments.clear()
+        liveRecordSizes.clear()
+        liveBytes = 0
+        totalBytes = 0
+        // The directory may have been removed as well, it is re-created on the next write
+        isOpen = false
+    }
+
+    /**
+     * Read all segments of the journal, truncating any invalid tails and deleting segments made
+     * obsolete by a snapshot.
+     *
+     * @return The live records in the journal
+     */
+    private fun open(): MutableMap<String, String> {
+        directory.mkdirs()
+        directory.listFiles { file -> file.name.endsWith(TEMP_SUFFIX) }?.forEach { it.delete() }
+
+        segments.clear()
+        liveRecordSizes.clear()
+        liveBytes = 0
+        totalBytes = 0
+
+        val records = mutableMapOf<String, String>()
+
+        for (segment in listSegments()) {
+            var isSnapshot = false
+            val validLength = readSegment(segment.file) { op, key, value, recordSize ->
+                when (op) {
+                    OP_SNAPSHOT -> {
+                        isSnapshot = true
+                        records.clear()
+                        liveRecordSizes.clear()
+                        liveBytes = 0
+                    }
+                    OP_SAVE -> {
+                        records[key] = value ?: ""
+                        liveBytes += recordSize - (liveRecordSizes.put(key, recordSize) ?: 0)
+                    }
+                    OP_REMOVE -> {
+                        records.remove(key)
+                        liveBytes -= liveRecordSizes.remove(key) ?: 0
+                    }
+                }
+            }
+
+            if (isSnapshot) {
+                // A snapshot contains every live record, the records read so far are stale. Note
+                // the snapshot record is always the first record of it's segment.
+                segments.forEach { it.file.delete() }
+                segments.clear()
+                totalBytes = 0
+            }
+
+            if (validLength < segment.file.length()) {
+                Plog.warn(logTag, "Truncating corrupted journal segment",
+                        "Journal" to directory.name,
+                        "Segment" to segment.file.name,
+                        "Segment Size" to segment.file.length(),
+                        "Valid Size" to validLength
+                )
+                RandomAccessFile(segment.file, "rw").use { it.setLength(validLength) }
+            }
+
+            segments.add(segment)
+            totalBytes += validLength
+        }
+
+        isOpen = true
+        return records
+    }
+
+    private fun append(bytes: ByteArray) {
+        var activeSegment = segments.lastOrNull()
+        if (activeSegment == null || activeSegment.file.length() >= maxSegmentSize) {
+            val index = (activeSegment?.index ?: 0) + 1
+            activeSegment = Segment(index, File(directory, segmentName(index)))
+            segments.add(activeSegment)
+        }
+
+        RandomAccessFile(activeSegment.file, "rw").use { file ->
+            val start = file.length()
+            try {
+                file.seek(start)
+                file.write(bytes)
+                file.fd.sync()
+            } catch (ex: IOException) {
+                file.setLength(start)
+                throw ex
+            }
+        }
+        totalBytes += bytes.size
+    }
+
+    private fun compact() {
+        val records = open()
+        val previousSize = totalBytes
+        val index = (segments.lastOrNull()?.index ?: 0) + 1
+        val segmentFile = File(directory, segmentName(index))
+        val tempFile = File(directory, segmentName(index) + TEMP_SUFFIX)
+
+        liveRecordSizes.clear()
+        liveBytes = 0
+
+        FileOutputStream(tempFile).use { fileStream ->
+            val output = BufferedOutputStream(fileStream)
+            output.write(encodeRecord(OP_SNAPSHOT, "", null))
+            records.forEach { (key, value) ->
+                val record = encodeRecord(OP_SAVE, key, value)
+                output.write(record)
+                liveRecordSizes[key] = record.size
+                liveBytes += record.size
+            }
+            output.flush()
+            fileStream.fd.sync()
+        }
+
+        if (!tempFile.renameTo(segmentFile)) {
+            tempFile.delete()
+            isOpen = false
+            throw IOException("Unable to rename compacted journal segment")
+        }
+
+        segments.forEach { it.file.delete() }
+        segments.clear()
+        segments.add(Segment(index, segmentFile))
+        totalBytes = segmentFile.length()
+
+        Plog.debug(logTag, "Journal compacted",
+                "Journal" to directory.name,
+                "Records" to records.size,
+                "Previous Size" to previousSize,
+                "New Size" to totalBytes
+        )
+    }
+
+    private fun listSegments(): List<Segment> {
+        return (directory.listFiles() ?: emptyArray())
+                .mapNotNull { file ->
+                    if (!file.name.startsWith(SEGMENT_PREFIX) || !file.name.endsWith(SEGMENT_SUFFIX)) {
+                        return@mapNotNull null
+                    }
+                    file.name.removePrefix(SEGMENT_PREFIX).removeSuffix(SEGMENT_SUFFIX).toIntOrNull()
+                            ?.let { Segment(it, file) }
+                }
+                .sortedBy { it.index }
+    }
+
+    /**
+     * Read the records of a segment file until the end of the file or the first invalid record.
+     *
+     * @return The length of the valid part of the segment
+     */
+    private fun readSegment(file: File, onRecord: (op: Byte, key: String, value: String?, recordSize: Int) -> Unit): Long {
+        var validLength = 0L
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            try {
+                while (true) {
+                    val length = input.readInt()
+                    if (length <= 0 || length > MAX_RECORD_SIZE) break
+                    val checksum = input.readInt()
+                    val body = ByteArray(length)
+                    input.readFully(body)
+                    if (checksum(body) != checksum) break
+
+                    val bodyInput = DataInputStream(ByteArrayInputStream(body))
+                    val op = bodyInput.readByte()
+                    val key = bodyInput.readUTF()
+                    val valueOffset = length - bodyInput.available()
+                    val value = if (op == OP_SAVE) String(body, valueOffset, length - valueOffset, Charsets.UTF_8) else null
+
+                    onRecord(op, key, value, RECORD_HEADER_SIZE + length)
+                    validLength += RECORD_HEADER_SIZE + length
+                }
+            } catch (ex: EOFException) {
+                // Reached the end of the segment or a partially written record
+            } catch (ex: UTFDataFormatException) {
+                // Corrupted record which passed the checksum, treat as the end of the valid data
+            }
+        }
+        return validLength
+    }
+
+    private fun encodeRecord(op: Byte, key: String, value: String?): ByteArray {
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).apply {
+            writeByte(op.toInt())
+            writeUTF(key)
+            value?.let { write(it.toByteArray(Charsets.UTF_8)) }
+            flush()
+        }
+        val bodyBytes = body.toByteArray()
+
+        val record = ByteArrayOutputStream(RECORD_HEADER_SIZE + bodyBytes.size)
+        DataOutputStream(record).apply {
+            writeInt(bodyBytes.size)
+            writeInt(checksum(bodyBytes))
+            write(bodyBytes)
+            flush()
+        }
+        return record.toByteArray()
+    }
+
+    private fun checksum(bytes: ByteArray): Int = CRC32().apply { update(bytes) }.value.toInt()
+
+    private fun segmentName(index: Int) = "$SEGMENT_PREFIX${index.toString().padStart(8, '0')}$SEGMENT_SUFFIX"
+
+    companion object {
+        private const val SEGMENT_PREFIX = "segment-"
+        private const val SEGMENT_SUFFIX = ".log"
+        private const val TEMP_SUFFIX = ".tmp"
+        private const val RECORD_HEADER_SIZE = 8
+        private const val MAX_RECORD_SIZE = 16 * 1024 * 1024
+
+        private const val OP_SAVE: Byte = 1
+        private const val OP_REMOVE: Byte = 2
+        private const val OP_SNAPSHOT: Byte = 3
+    }
+}
@@ -0,0 +1,66 @@
+package io.hengam.lib.utils
+
+import android.content.SharedPreferences
+import java.io.IOException
+
+/**
+ * Persists a set of string records identified by their keys
+ */
+interface RecordStore {
+    /**
+     * Read all persisted records
+     *
+     * @return A map of record keys to the persisted record values
+     */
+    @Throws(IOException::class)
+    fun readAll(): Map<String, String>
+
+    /**
+     * Apply a batch of changes to the persisted records.
+     *
+     * @param changes A map of record keys to the new record values. A `null` value means the
+     *                record should be removed.
+     */
+    @Throws(IOException::class)
+    fun write(changes: Map<String, String?>)
+
+    /**
+     * Remove all persisted records
+     */
+    fun clear()
+}
+
+/**
+ * A [RecordStore] which stores each record as a separate key in a [SharedPreferences] file, with
+ * the given prefix added to the record keys.
+ *
+ * Note, every write to a [SharedPreferences] file rewrites the whole file. This store is mainly
+ * intended for tests, see [RecordJournal] for a store with writes proportional to the change size.
+ */
+class SharedPreferencesRecordStore(
+        private val preferences: SharedPreferences,
+        private val keyPrefix: String = ""
+) : RecordStore {
+    override fun readAll(): Map<String, String> {
+        val records = mutableMapOf<String, String>()
+        preferences.all.forEach { (key, value) ->
+            if (key.startsWith(keyPrefix) && value is String) records[key.substring(keyPrefix.length)] = value
+        }
+        return records
+    }
+
+    override fun write(changes: Map<String, String?>) {
+        if (changes.isEmpty()) return
+        val editor = preferences.edit()
+        changes.forEach { (key, value) ->
+            if (value == null) editor.remove(keyPrefix + key) else editor.putString(keyPrefix + key, value)
+        }
+        editor.apply()
+    }
+
+    override fun clear() {
+        val editor = preferences.edit()
+        preferences.all.keys.filter { it.startsWith(keyPrefix) }.forEach { editor.remove(it) }
+        editor.apply()
+    }
+}
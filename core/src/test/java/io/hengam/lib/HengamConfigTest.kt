@@ -1,6 +1,7 @@
 package io.hengam.lib
 
 import android.content.Context
+import io.hengam.lib.internal.ConfigKey
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.utils.test.TestUtils.mockCpuThread
@@ -94,6 +95,48 @@ class HengamConfigTest{
         hengamConfig.updateConfig("objectListKey", "something")
         assertEquals(dummyObjectList, hengamConfig.getObjectList("objectListKey", DummyClass::class.java, dummyObjectList, DummyClassCustomJsonAdapter()))
     }
+
+    @Test
+    fun getConfigKey_ParsesValueOnceUntilKeyIsUpdated() {
+        var parseCount = 0
+        val configKey = ConfigKey("key", 10) { parseCount += 1; it.toInt() }
+
+        assertEquals(10, hengamConfig[configKey])
+        hengamConfig.updateConfig("key", 20)
+        assertEquals(20, hengamConfig[configKey])
+        hengamConfig.updateConfig("otherKey", 30)
+        assertEquals(20, hengamConfig[configKey])
+        assertEquals(1, parseCount)
+
+        hengamConfig.updateConfig("key", 40)
+        assertEquals(40, hengamConfig[configKey])
+        assertEquals(2, parseCount)
+    }
+
+    @Test
+    fun getConfigKey_RemovesInvalidValues() {
+        val configKey = ConfigKey("key", 10) { it.toInt() }
+        hengamConfig.updateConfig("key", "something")
+        assertEquals(10, hengamConfig[configKey])
+        assertEquals("default", hengamConfig.getString("key", "default"))
+    }
+
+    @Test
+    fun observeChanges_EmitsOnlyChangesOfGivenKeys() {
+        val configKey = ConfigKey("key", 10) { it.toInt() }
+        val keyChanges = hengamConfig.observeChanges("key", "otherKey").test()
+        val valueChanges = hengamConfig.observeChanges(configKey).test()
+
+        hengamConfig.updateConfig("key", 20)
+        hengamConfig.updateConfig("unrelatedKey", 20)
+        hengamConfig.updateConfig("otherKey", 30)
+        hengamConfig.updateConfig("key", 20)
+        hengamConfig.removeConfig("key")
+        cpuThread.triggerActions()
+
+        keyChanges.assertValuesOnly("key", "otherKey", "key")
+        valueChanges.assertValuesOnly(20, 10)
+    }
 }
 
 @JsonClass(generateAdapter = true)
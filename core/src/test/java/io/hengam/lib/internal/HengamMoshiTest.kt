@@ -0,0 +1,48 @@
+package io.hengam.lib.internal
+
+import io.hengam.lib.utils.MutableTestObject
+import io.hengam.lib.utils.MutableTestObjectAdapter
+import io.hengam.lib.utils.TestObject
+import io.hengam.lib.utils.TestObjectAdapter
+import org.junit.Assert.*
+import org.junit.Test
+
+class HengamMoshiTest {
+    private val moshi = HengamMoshi()
+
+    @Test
+    fun adapter_IsCachedUntilMoshiIsEnhanced() {
+        val adapter = moshi.adapter<List<String>>(HengamMoshi.STRING_LIST_TYPE)
+        assertSame(adapter, moshi.adapter<List<String>>(HengamMoshi.STRING_LIST_TYPE))
+
+        moshi.enhance { it.add(TestObjectAdapter) }
+        val newAdapter = moshi.adapter<List<String>>(HengamMoshi.STRING_LIST_TYPE)
+        assertNotSame(adapter, newAdapter)
+        assertSame(newAdapter, moshi.adapter<List<String>>(HengamMoshi.STRING_LIST_TYPE))
+    }
+
+    @Test
+    fun enhance_AppliesAllPendingEnhancersWithSingleBuild() {
+        val initialMoshi = moshi.moshi
+        moshi.enhance { it.add(TestObjectAdapter) }
+        moshi.enhance { it.add(MutableTestObjectAdapter) }
+
+        val enhancedMoshi = moshi.moshi
+        assertNotSame(initialMoshi, enhancedMoshi)
+        assertSame(enhancedMoshi, moshi.moshi)
+        assertEquals("""{"name":"guy","age":"25"}""", moshi.adapter(TestObject::class.java).toJson(TestObject("guy", 25)))
+        assertEquals(MutableTestObject("gal", 30),
+                moshi.adapter(MutableTestObject::class.java).fromJson("""{"name":"gal","age":"30"}"""))
+    }
+
+    @Test
+    fun registerAdapter_DoesNotRebuildMoshiForRegisteredAdapters() {
+        moshi.registerAdapter(TestObjectAdapter)
+        val enhancedMoshi = moshi.moshi
+        val adapter = moshi.adapter(TestObject::class.java)
+
+        moshi.registerAdapter(TestObjectAdapter)
+        assertSame(enhancedMoshi, moshi.moshi)
+        assertSame(adapter, moshi.adapter(TestObject::class.java))
+    }
+}
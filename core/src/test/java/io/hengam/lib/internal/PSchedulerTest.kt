@@ -0,0 +1,52 @@
+package io.hengam.lib.internal
+
+import io.reactivex.Completable
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class PSchedulerTest {
+    private val testScheduler = TestScheduler()
+    private val scheduler = PScheduler("test", testScheduler)
+
+    @Test
+    fun stats_TracksQueueLengthOfPendingTasks() {
+        var runCount = 0
+        scheduler.scheduleDirect({ runCount += 1 })
+        scheduler.scheduleDirect({ runCount += 1 })
+        Completable.fromAction { runCount += 1 }.subscribeOn(scheduler).subscribe()
+        assertEquals(3, scheduler.stats.queueLength)
+        assertEquals(3, scheduler.stats.maxQueueLength)
+
+        testScheduler.triggerActions()
+        assertEquals(3, runCount)
+        assertEquals(0, scheduler.stats.queueLength)
+        assertEquals(3, scheduler.stats.maxQueueLength)
+        assertEquals(3, scheduler.stats.scheduled)
+        assertEquals(3, scheduler.stats.completed)
+    }
+
+    @Test
+    fun stats_DoesNotCountDelayedOrDisposedTasksInQueue() {
+        scheduler.scheduleDirect({}, 1000, TimeUnit.MILLISECONDS)
+        assertEquals(0, scheduler.stats.queueLength)
+
+        val disposable = scheduler.scheduleDirect({})
+        assertEquals(1, scheduler.stats.queueLength)
+        disposable.dispose()
+        assertEquals(0, scheduler.stats.queueLength)
+
+        testScheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS)
+        assertEquals(2, scheduler.stats.scheduled)
+        assertEquals(1, scheduler.stats.completed)
+    }
+
+    @Test
+    fun stats_CountsTasksWhichThrowAsCompleted() {
+        scheduler.scheduleDirect({ throw IllegalStateException("Task failed") })
+        testScheduler.triggerActions()
+        assertEquals(1, scheduler.stats.completed)
+        assertEquals(0, scheduler.stats.queueLength)
+    }
+}
@@ -0,0 +1,142 @@
+package io.hengam.lib.internal.task
+
+import androidx.work.ExistingWorkPolicy
+import androidx.work.ListenableWorker
+import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import io.reactivex.Single
+import io.reactivex.subjects.SingleSubject
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TaskExecutorTest {
+    private val cpuThread = mockCpuThread()
+    private val taskExecutor = TaskExecutor()
+
+    private val events = mutableListOf<String>()
+
+    private fun job(
+            name: String,
+            taskId: String? = null,
+            policy: ExistingWorkPolicy? = ExistingWorkPolicy.APPEND,
+            priority: TaskPriority = TaskPriority.NORMAL,
+            delay: Long = 0,
+            result: Single<ListenableWorker.Result> = Single.just(ListenableWorker.Result.success())
+    ) = TaskExecutor.Job(
+            taskId = taskId,
+            taskClassName = "TestTask",
+            existingWorkPolicy = policy,
+            priority = priority,
+            maxConcurrentRuns = 1,
+            delay = delay,
+            run = { events.add("run $name"); result },
+            onQueued = { events.add("queued $name") },
+            onFinished = { events.add("finished $name") },
+            onDropped = { events.add("dropped $name") }
+    )
+
+    @Test
+    fun submit_RunsDelayedJobsAfterTheirDelay() {
+        taskExecutor.submit(job("a", delay = 1000))
+        cpuThread.triggerActions()
+        assertEquals(listOf("queued a"), events)
+
+        cpuThread.advanceTimeBy(999, TimeUnit.MILLISECONDS)
+        assertEquals(listOf("queued a"), events)
+
+        cpuThread.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        assertEquals(listOf("queued a", "run a", "finished a"), events)
+    }
+
+    @Test
+    fun submit_ReplacePolicyDropsQueuedJobsWithSameId() {
+        taskExecutor.submit(job("a", taskId = "id", policy = ExistingWorkPolicy.REPLACE, delay = 1000))
+        taskExecutor.submit(job("b", taskId = "id", policy = ExistingWorkPolicy.REPLACE, delay = 1000))
+        taskExecutor.submit(job("c", taskId = "other", policy = ExistingWorkPolicy.REPLACE, delay = 1000))
+        cpuThread.advanceTimeBy(1000, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf("queued a", "dropped a", "queued b", "queued c", "run b", "finished b", "run c", "finished c"), events)
+        assertEquals(1, taskExecutor.stats.coalesced)
+        assertEquals(2, taskExecutor.stats.completed)
+    }
+
+    @Test
+    fun submit_KeepPolicyDropsNewJobIfJobWithSameIdIsRunning() {
+        val result = SingleSubject.create<ListenableWorker.Result>()
+        taskExecutor.submit(job("a", taskId = "id", policy = ExistingWorkPolicy.KEEP, result = result))
+        cpuThread.triggerActions()
+        taskExecutor.submit(job("b", taskId = "id", policy = ExistingWorkPolicy.KEEP))
+        cpuThread.triggerActions()
+        assertEquals(listOf("queued a", "run a", "dropped b"), events)
+
+        result.onSuccess(ListenableWorker.Result.success())
+        cpuThread.triggerActions()
+        assertEquals(listOf("queued a", "run a", "dropped b", "finished a"), events)
+    }
+
+    @Test
+    fun submit_RunsQueuedJobsByPriorityWhenConcurrencyLimitIsReached() {
+        val result = SingleSubject.create<ListenableWorker.Result>()
+        taskExecutor.submit(job("a", result = result))
+        cpuThread.triggerActions()
+        taskExecutor.submit(job("low", priority = TaskPriority.LOW))
+        taskExecutor.submit(job("normal"))
+        taskExecutor.submit(job("high", priority = TaskPriority.HIGH))
+        cpuThread.triggerActions()
+        assertEquals(3, taskExecutor.stats.queued)
+        assertEquals(1, taskExecutor.stats.running)
+
+        result.onSuccess(ListenableWorker.Result.success())
+        cpuThread.triggerActions()
+        assertEquals(
+                listOf("run a", "finished a", "run high", "finished high", "run normal", "finished normal", "run low", "finished low"),
+                events.filter { !it.startsWith("queued") }
+        )
+        assertEquals(0, taskExecutor.stats.queued)
+    }
+
+    @Test
+    fun submit_FinishesFailedJobsWithRetryResult() {
+        var finishedResult: ListenableWorker.Result? = null
+        taskExecutor.submit(TaskExecutor.Job(
+                taskId = null,
+                taskClassName = "TestTask",
+                existingWorkPolicy = null,
+                priority = TaskPriority.NORMAL,
+                maxConcurrentRuns = 1,
+                delay = 0,
+                run = { Single.error(Exception("Task failed")) },
+                onQueued = {},
+                onFinished = { finishedResult = it },
+                onDropped = {}
+        ))
+        cpuThread.triggerActions()
+        assertTrue(finishedResult is ListenableWorker.Result.Retry)
+    }
+
+    @Test
+    fun submit_FailsHungJobsAfterRunTimeoutAndRunsNextJob() {
+        var finishedResult: ListenableWorker.Result? = null
+        taskExecutor.submit(TaskExecutor.Job(
+                taskId = null,
+                taskClassName = "TestTask",
+                existingWorkPolicy = null,
+                priority = TaskPriority.NORMAL,
+                maxConcurrentRuns = 1,
+                delay = 0,
+                runTimeout = 5000,
+                run = { events.add("run hung"); Single.never() },
+                onQueued = {},
+                onFinished = { finishedResult = it },
+                onDropped = {}
+        ))
+        taskExecutor.submit(job("b"))
+        cpuThread.triggerActions()
+        assertEquals(listOf("queued b", "run hung"), events)
+
+        cpuThread.advanceTimeBy(5000, TimeUnit.MILLISECONDS)
+        assertTrue(finishedResult is ListenableWorker.Result.Failure)
+        assertEquals(listOf("queued b", "run hung", "run b", "finished b"), events)
+        assertEquals(1, taskExecutor.stats.timedOut)
+    }
+}
@@ -0,0 +1,44 @@
+package io.hengam.lib.internal.task
+
+import androidx.work.Data
+import androidx.work.ListenableWorker
+import io.reactivex.Single
+import org.junit.Assert.*
+import org.junit.Test
+
+class RegisteredTestTask(val createdByFactory: Boolean = false) : HengamTask() {
+    override fun perform(inputData: Data): Single<ListenableWorker.Result> =
+            Single.just(ListenableWorker.Result.success())
+}
+
+class UnregisteredTestTask : HengamTask() {
+    override fun perform(inputData: Data): Single<ListenableWorker.Result> =
+            Single.just(ListenableWorker.Result.success())
+}
+
+class TaskRegistryTest {
+    @Test
+    fun createTask_UsesRegisteredFactory() {
+        TaskRegistry.register(RegisteredTestTask::class) { RegisteredTestTask(createdByFactory = true) }
+
+        val task = TaskRegistry.createTask(RegisteredTestTask::class.java.name)
+        assertTrue(task is RegisteredTestTask)
+        assertTrue((task as RegisteredTestTask).createdByFactory)
+        assertEquals(RegisteredTestTask::class, TaskRegistry.getTaskClass(RegisteredTestTask::class.java.name))
+    }
+
+    @Test
+    fun createTask_InstantiatesUnregisteredTaskClasses() {
+        val task = TaskRegistry.createTask(UnregisteredTestTask::class.java.name)
+        assertTrue(task is UnregisteredTestTask)
+        assertEquals(UnregisteredTestTask::class, TaskRegistry.getTaskClass(UnregisteredTestTask::class.java.name))
+    }
+
+    @Test
+    fun createTask_ReturnsNullForInvalidTaskClasses() {
+        assertNull(TaskRegistry.createTask(String::class.java.name))
+        assertNull(TaskRegistry.createTask("io.hengam.lib.NonExistingTask"))
+        assertNull(TaskRegistry.getTaskClass(String::class.java.name))
+        assertNull(TaskRegistry.getTaskClass("io.hengam.lib.NonExistingTask"))
+    }
+}
@@ -0,0 +1,87 @@
+package io.hengam.lib.messages.mixin
+
+import io.hengam.lib.utils.millis
+import io.hengam.lib.utils.test.TestUtils.mockTime
+import io.reactivex.Single
+import io.reactivex.subjects.SingleSubject
+import org.junit.Assert.*
+import org.junit.Test
+
+class MixinSnapshotCacheTest {
+    private val cache = MixinSnapshotCache()
+
+    @Test
+    fun get_ReusesCollectedDataUntilItExpires() {
+        mockTime(1000)
+        var collectCount = 0
+        val collect = { collectCount += 1; Single.just(mapOf<String, Any?>("count" to collectCount)) }
+
+        cache.get("mixin", millis(100), collect).test().assertValue(mapOf("count" to 1))
+        mockTime(1099)
+        cache.get("mixin", millis(100), collect).test().assertValue(mapOf("count" to 1))
+        assertEquals(1, collectCount)
+
+        mockTime(1100)
+        cache.get("mixin", millis(100), collect).test().assertValue(mapOf("count" to 2))
+        assertEquals(2, collectCount)
+        assertEquals(1, cache.stats.hits)
+        assertEquals(2, cache.stats.misses)
+    }
+
+    @Test
+    fun get_SharesInProgressCollection() {
+        mockTime(1000)
+        val collection = SingleSubject.create<Map<String, Any?>>()
+        var collectCount = 0
+        val collect = { collectCount += 1; collection }
+
+        val first = cache.get("mixin", millis(100), collect).test()
+        val second = cache.get("mixin", millis(100), collect).test()
+        first.assertNoValues()
+        second.assertNoValues()
+
+        collection.onSuccess(mapOf("data" to "value"))
+        first.assertValue(mapOf("data" to "value"))
+        second.assertValue(mapOf("data" to "value"))
+        assertEquals(1, collectCount)
+        assertEquals(1, cache.stats.shared)
+    }
+
+    @Test
+    fun get_DoesNotCacheFailedCollections() {
+        mockTime(1000)
+        var collectCount = 0
+        val failingCollect = { collectCount += 1; Single.error<Map<String, Any?>>(Exception("Collection failed")) }
+
+        cache.get("mixin", millis(100), failingCollect).test().assertError(Exception::class.java)
+        cache.get("mixin", millis(100), { Single.just(mapOf<String, Any?>("data" to "value")) })
+                .test().assertValue(mapOf("data" to "value"))
+        assertEquals(1, collectCount)
+        assertEquals(2, cache.stats.misses)
+    }
+
+    @Test
+    fun get_CachesEachKeySeparately() {
+        mockTime(1000)
+        cache.get("first", millis(100)) { Single.just(mapOf<String, Any?>("key" to "first")) }.test()
+        cache.get("second", millis(100)) { Single.just(mapOf<String, Any?>("key" to "second")) }
+                .test().assertValue(mapOf("key" to "second"))
+        cache.get("first", millis(100)) { Single.just(mapOf<String, Any?>("key" to "other")) }
+                .test().assertValue(mapOf("key" to "first"))
+    }
+
+    @Test
+    fun get_CompletesCollectionIfFirstObserverIsDisposed() {
+        mockTime(1000)
+        val collection = SingleSubject.create<Map<String, Any?>>()
+
+        val first = cache.get("mixin", millis(100)) { collection }.test()
+        val second = cache.get("mixin", millis(100)) { collection }.test()
+        first.dispose()
+
+        collection.onSuccess(mapOf("data" to "value"))
+        first.assertNoValues()
+        second.assertValue(mapOf("data" to "value"))
+        cache.get("mixin", millis(100)) { Single.never() }.test().assertValue(mapOf("data" to "value"))
+    }
+}
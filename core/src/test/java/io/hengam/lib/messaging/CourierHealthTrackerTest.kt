@@ -0,0 +1,89 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.messaging.CourierHealthTracker.Outcome
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Assert.*
+import org.junit.Test
+
+class CourierHealthTrackerTest {
+    private val courierHealthTracker = CourierHealthTracker()
+
+    private fun mockCourier(courierId: String): OutboundCourier {
+        val courier = mockk<OutboundCourier>()
+        every { courier.id } returns courierId
+        return courier
+    }
+
+    @Test
+    fun orderCouriers_KeepsOriginalOrderWithNoHistory() {
+        val couriers = listOf(mockCourier("a"), mockCourier("b"), mockCourier("c"))
+        assertEquals(couriers, courierHealthTracker.orderCouriers(couriers))
+    }
+
+    @Test
+    fun orderCouriers_PrefersCouriersWhichDoNotFail() {
+        val first = mockCourier("a")
+        val second = mockCourier("b")
+        repeat(3) { courierHealthTracker.recordAttempt("a", Outcome.FAIL, 100) }
+        courierHealthTracker.recordAttempt("b", Outcome.SUCCESS, 100)
+
+        assertEquals(listOf(second, first), courierHealthTracker.orderCouriers(listOf(first, second)))
+    }
+
+    @Test
+    fun orderCouriers_PrefersFasterCouriers() {
+        val slow = mockCourier("slow")
+        val fast = mockCourier("fast")
+        repeat(5) {
+            courierHealthTracker.recordAttempt("slow", Outcome.SUCCESS, 2500)
+            courierHealthTracker.recordAttempt("fast", Outcome.SUCCESS, 100)
+        }
+
+        assertEquals(listOf(fast, slow), courierHealthTracker.orderCouriers(listOf(slow, fast)))
+    }
+
+    @Test
+    fun orderCouriers_TakesParcelFailedAttemptsInToAccount() {
+        val first = mockCourier("a")
+        val second = mockCourier("b")
+        courierHealthTracker.recordAttempt("a", Outcome.SUCCESS, 100)
+        courierHealthTracker.recordAttempt("b", Outcome.SUCCESS, 100)
+
+        assertEquals(listOf(second, first), courierHealthTracker.orderCouriers(listOf(first, second), mapOf("a" to 3)))
+    }
+
+    @Test
+    fun recordAttempt_CourierRecoversAfterSuccesses() {
+        repeat(3) { courierHealthTracker.recordAttempt("a", Outcome.FAIL, 100) }
+        val failingScore = courierHealthTracker.score("a")
+        repeat(3) { courierHealthTracker.recordAttempt("a", Outcome.SUCCESS, 100) }
+
+        assertTrue(courierHealthTracker.score("a") > failingScore)
+        assertEquals(0, courierHealthTracker.getStats("a")?.consecutiveFailures)
+        assertEquals(6, courierHealthTracker.getStats("a")?.attemptCount)
+    }
+
+    @Test
+    fun recordAttempt_TooBigDoesNotAffectScore() {
+        courierHealthTracker.recordAttempt("a", Outcome.SUCCESS, 100)
+        val score = courierHealthTracker.score("a")
+        courierHealthTracker.recordAttempt("a", Outcome.TOO_BIG, 5000)
+        assertEquals(score, courierHealthTracker.score("a"), 0.00001)
+    }
+
+    @Test
+    fun recordAttempt_TimeoutIsRecordedAsFailure() {
+        val hanging = mockCourier("a")
+        val healthy = mockCourier("b")
+        courierHealthTracker.recordAttempt("a", Outcome.SUCCESS, 100)
+        courierHealthTracker.recordAttempt("b", Outcome.SUCCESS, 100)
+        val score = courierHealthTracker.score("a")
+
+        courierHealthTracker.recordAttempt("a", Outcome.TIMEOUT, 100)
+
+        assertTrue(courierHealthTracker.score("a") < score)
+        assertEquals(1, courierHealthTracker.getStats("a")?.consecutiveFailures)
+        assertEquals(listOf(healthy, hanging), courierHealthTracker.orderCouriers(listOf(hanging, healthy)))
+    }
+}
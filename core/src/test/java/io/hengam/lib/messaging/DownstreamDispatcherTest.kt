@@ -0,0 +1,107 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+
+class DownstreamDispatcherTest {
+    init { mockCpuThread() }
+    private val dispatcher = DownstreamDispatcher(HengamMoshi())
+
+    private fun mockParser(messageType: Int): DownstreamMessageParser<MockDownstreamMessage> {
+        val parser = mockk<DownstreamMessageParser<MockDownstreamMessage>>()
+        every { parser.messageType } returns messageType
+        every { parser.parseMessage(any(), any<RawDownstreamMessage>()) } answers {
+            MockDownstreamMessage(secondArg<RawDownstreamMessage>().messageId)
+        }
+        return parser
+    }
+
+    @Test
+    fun dispatch_OnlyCallsHandlersOfMessageType() {
+        val received = mutableListOf<String>()
+        dispatcher.register(10) { received.add("10:${it.messageId}") }
+        dispatcher.register(20) { received.add("20:${it.messageId}") }
+        dispatcher.register { received.add("all:${it.messageId}") }
+
+        dispatcher.dispatch(listOf(RawDownstreamMessage("1", 10, "data"), RawDownstreamMessage("2", 30, "data")))
+
+        assertEquals(listOf("all:1", "10:1", "all:2"), received)
+        assertEquals(mapOf(30 to 1L), dispatcher.stats.unhandled)
+        assertEquals(listOf(10), dispatcher.stats.types.map { it.messageType })
+    }
+
+    @Test
+    fun dispatch_ParsesMessageOncePerParserClass() {
+        val firstParser = mockParser(10)
+        val received = mutableListOf<String>()
+        dispatcher.register(firstParser, { received.add("first:${it.messageId}") })
+        dispatcher.register(mockParser(10), { received.add("second:${it.messageId}") })
+
+        dispatcher.dispatch(listOf(RawDownstreamMessage("1", 10, "data")))
+
+        assertEquals(listOf("first:1", "second:1"), received)
+        verify(exactly = 1) { firstParser.parseMessage(any(), any<RawDownstreamMessage>()) }
+    }
+
+    @Test
+    fun dispatch_CallsParseErrorHandlersIfParsingFails() {
+        val parser = mockParser(10)
+        every { parser.parseMessage(any(), any<RawDownstreamMessage>()) } throws IOException("Bad Json")
+        var handled = false
+        var parseErrorData: Map<String, Any?>? = null
+        dispatcher.register(parser, { handled = true }, { parseErrorData = it })
+
+        dispatcher.dispatch(listOf(RawDownstreamMessage("1", 10, mapOf("key" to "value"))))
+
+        assertFalse(handled)
+        assertEquals(mapOf("key" to "value"), parseErrorData)
+    }
+
+    @Test
+    fun dispatch_ContinuesIfHandlerThrows() {
+        val received = mutableListOf<String>()
+        dispatcher.register(10) { throw RuntimeException("Test Exception") }
+        dispatcher.register(10) { received.add(it.messageId) }
+
+        dispatcher.dispatch(listOf(RawDownstreamMessage("1", 10, "data"), RawDownstreamMessage("2", 10, "data")))
+
+        assertEquals(listOf("1", "2"), received)
+    }
+
+    @Test
+    fun unregister_StopsDispatchingToHandler() {
+        val received = mutableListOf<String>()
+        val registration = dispatcher.register(10) { received.add(it.messageId) }
+
+        dispatcher.dispatch(listOf(RawDownstreamMessage("1", 10, "data")))
+        dispatcher.unregister(registration)
+        dispatcher.dispatch(listOf(RawDownstreamMessage("2", 10, "data")))
+
+        assertEquals(listOf("1"), received)
+        assertEquals(mapOf(10 to 1L), dispatcher.stats.unhandled)
+    }
+
+    @Test
+    fun dispatch_PassesAllMessagesOfTypeToBatchHandlers() {
+        val batches = mutableListOf<List<String>>()
+        val single = mutableListOf<String>()
+        dispatcher.registerBatch(mockParser(10)) { batch -> batches.add(batch.map { it.messageId }) }
+        dispatcher.register(mockParser(10), { single.add(it.messageId) })
+
+        dispatcher.dispatch(listOf(
+                RawDownstreamMessage("1", 10, "data"),
+                RawDownstreamMessage("2", 20, "data"),
+                RawDownstreamMessage("3", 10, "data")
+        ))
+
+        assertEquals(listOf(listOf("1", "3")), batches)
+        assertEquals(listOf("1", "3"), single)
+        assertEquals(mapOf(20 to 1L), dispatcher.stats.unhandled)
+    }
+}
@@ -0,0 +1,91 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.utils.days
+import io.hengam.lib.utils.hours
+import io.hengam.lib.utils.seconds
+import io.hengam.lib.utils.test.TestUtils.advanceMockTimeBy
+import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import io.hengam.lib.utils.test.TestUtils.mockIoThread
+import io.hengam.lib.utils.test.TestUtils.mockTime
+import io.hengam.lib.utils.test.mocks.MockSharedPreference
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+class DownstreamIdFilterTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val cpuThread = mockCpuThread()
+    private val ioThread = mockIoThread()
+
+    private val hengamConfig = HengamConfig(MockSharedPreference(), HengamMoshi())
+
+    private fun createFilter() = DownstreamIdFilter(File(tempFolder.root, DownstreamIdFilter.FILE_NAME), hengamConfig)
+
+    @Test
+    fun add_RejectsIdsReceivedWithinWindow() {
+        mockTime(days(100))
+        val filter = createFilter()
+
+        assertTrue(filter.add("parcel-1"))
+        assertTrue(filter.add("parcel-2"))
+        assertFalse(filter.add("parcel-1"))
+
+        advanceMockTimeBy(days(2))
+        assertFalse(filter.add("parcel-2"))
+
+        assertEquals(2, filter.stats.accepted)
+        assertEquals(2, filter.stats.duplicates)
+    }
+
+    @Test
+    fun add_AcceptsIdsAgainOnceWindowHasPassed() {
+        mockTime(days(100))
+        val filter = createFilter()
+
+        assertTrue(filter.add("parcel-1"))
+        advanceMockTimeBy(days(3) + hours(12))
+        assertTrue(filter.add("parcel-1"))
+        assertEquals(1, filter.stats.trackedIds)
+    }
+
+    @Test
+    fun add_ReceivedIdsArePersisted() {
+        mockTime(days(100))
+        val filter = createFilter()
+        filter.add("parcel-1")
+        filter.add("parcel-2")
+
+        cpuThread.advanceTimeBy(seconds(1).toMillis(), TimeUnit.MILLISECONDS)
+        ioThread.triggerActions()
+
+        val restoredFilter = createFilter()
+        assertFalse(restoredFilter.add("parcel-1"))
+        assertFalse(restoredFilter.add("parcel-2"))
+        assertTrue(restoredFilter.add("parcel-3"))
+    }
+
+    @Test
+    fun add_UsesWindowUpdatedInConfig() {
+        mockTime(days(100))
+        val filter = createFilter()
+
+        assertTrue(filter.add("parcel-1"))
+        advanceMockTimeBy(days(2))
+        assertTrue(filter.add("parcel-2"))
+
+        hengamConfig.updateConfig("downstream_dedup_window", days(1).toMillis())
+        assertFalse(filter.add("parcel-2"))
+        assertTrue(filter.add("parcel-1"))
+
+        hengamConfig.updateConfig("downstream_dedup_window", days(10).toMillis())
+        advanceMockTimeBy(days(5))
+        assertFalse(filter.add("parcel-2"))
+    }
+}
@@ -0,0 +1,147 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.utils.test.mocks.MockSharedPreference
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class MessageJournalTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private fun createJournal(compactionThreshold: Long = MessageJournal.DEFAULT_COMPACTION_THRESHOLD,
+                              maxSegmentSize: Long = MessageJournal.DEFAULT_MAX_SEGMENT_SIZE,
+                              legacyBackend: SharedPreferencesMessageStoreBackend? = null) =
+            MessageJournal(File(tempFolder.root, "journal"), legacyBackend, maxSegmentSize, compactionThreshold)
+
+    private fun segmentFiles() = File(tempFolder.root, "journal").listFiles()!!.sortedBy { it.name }
+
+    @Test
+    fun write_PersistsSavesAndRemovals() {
+        val journal = createJournal()
+        journal.readAll()
+        journal.write(mapOf("1" to """{"id":"1"}""", "2" to """{"id":"2"}""", "3" to """{"id":"3"}"""))
+        journal.write(mapOf("2" to null, "3" to """{"id":"3","v":2}"""))
+
+        val restored = createJournal().readAll()
+        assertEquals(mapOf("1" to """{"id":"1"}""", "3" to """{"id":"3","v":2}"""), restored)
+    }
+
+    @Test
+    fun write_WorksWithoutReadingFirst() {
+        createJournal().write(mapOf("1" to "a"))
+        assertEquals(mapOf("1" to "a"), createJournal().readAll())
+    }
+
+    @Test
+    fun write_AppendsOnlyChangedRecords() {
+        val journal = createJournal()
+        journal.readAll()
+        journal.write((1..100).map { "$it" to "message-$it" }.toMap())
+        val sizeBefore = journal.journalSize
+
+        journal.write(mapOf("50" to "updated"))
+        val appendedSize = journal.journalSize - sizeBefore
+        assertTrue(appendedSize < sizeBefore / 50)
+    }
+
+    @Test
+    fun readAll_TruncatesPartiallyWrittenTail() {
+        val journal = createJournal()
+        journal.readAll()
+        journal.write(mapOf("1" to "first"))
+        journal.write(mapOf("2" to "second"))
+
+        val segment = segmentFiles().last()
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 3) }
+
+        val restoredJournal = createJournal()
+        assertEquals(mapOf("1" to "first"), restoredJournal.readAll())
+
+        restoredJournal.write(mapOf("3" to "third"))
+        assertEquals(mapOf("1" to "first", "3" to "third"), createJournal().readAll())
+    }
+
+    @Test
+    fun readAll_StopsAtCorruptedRecord() {
+        val journal = createJournal()
+        journal.readAll()
+        journal.write(mapOf("1" to "first"))
+        val validSize = journal.journalSize
+        journal.write(mapOf("2" to "second"))
+
+        val segment = segmentFiles().last()
+        RandomAccessFile(segment, "rw").use {
+            it.seek(it.length() - 1)
+            it.write('x'.toInt())
+        }
+
+        assertEquals(mapOf("1" to "first"), createJournal().readAll())
+        assertEquals(validSize, segment.length())
+    }
+
+    @Test
+    fun write_StartsNewSegmentWhenActiveSegmentIsFull() {
+        val journal = createJournal(maxSegmentSize = 100)
+        journal.readAll()
+        (1..10).forEach { journal.write(mapOf("$it" to "message-data-$it")) }
+
+        assertTrue(journal.segmentCount > 1)
+        assertEquals((1..10).map { "$it" to "message-data-$it" }.toMap(), createJournal(maxSegmentSize = 100).readAll())
+    }
+
+    @Test
+    fun write_CompactsJournalWhenMostRecordsAreObsolete() {
+        val journal = createJournal(compactionThreshold = 1024, maxSegmentSize = 256)
+        journal.readAll()
+        (1..200).forEach {
+            journal.write(mapOf("$it" to "message-data-$it"))
+            journal.write(mapOf("$it" to null))
+        }
+        journal.write(mapOf("live" to "live-data"))
+
+        assertTrue(journal.journalSize < 1024)
+        assertEquals(mapOf("live" to "live-data"), createJournal().readAll())
+    }
+
+    @Test
+    fun readAll_IgnoresSegmentsPrecedingSnapshot() {
+        val journal = createJournal(compactionThreshold = 200, maxSegmentSize = 64)
+        journal.readAll()
+        journal.write(mapOf("1" to "stale-data-which-takes-space"))
+        val staleSegment = segmentFiles().first()
+        val staleContent = staleSegment.readBytes()
+        (1..20).forEach { journal.write(mapOf("1" to null, "2" to "data-$it")) }
+
+        // Simulate a crash after compaction but before old segments were deleted
+        File(staleSegment.parentFile, staleSegment.name).writeBytes(staleContent)
+
+        assertEquals(mapOf("2" to "data-20"), createJournal().readAll())
+    }
+
+    @Test
+    fun readAll_MigratesLegacyRecords() {
+        val sharedPreferences = MockSharedPreference()
+        sharedPreferences.edit().putString("1", "legacy-1").putString("2", "legacy-2").commit()
+        val legacyBackend = SharedPreferencesMessageStoreBackend(sharedPreferences)
+
+        val journal = createJournal(legacyBackend = legacyBackend)
+        assertEquals(mapOf("1" to "legacy-1", "2" to "legacy-2"), journal.readAll())
+        assertEquals(0, sharedPreferences.all.size)
+
+        journal.write(mapOf("1" to null))
+        assertEquals(mapOf("2" to "legacy-2"), createJournal(legacyBackend = legacyBackend).readAll())
+    }
+
+    @Test
+    fun clear_RemovesAllRecords() {
+        val journal = createJournal()
+        journal.readAll()
+        journal.write(mapOf("1" to "first", "2" to "second"))
+        journal.clear()
+        assertEquals(emptyMap<String, String>(), createJournal().readAll())
+    }
+}
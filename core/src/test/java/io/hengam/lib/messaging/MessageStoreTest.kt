@@ -1,17 +1,21 @@
 package io.hengam.lib.messaging
 
-import android.content.Context
 import android.content.SharedPreferences
 import io.hengam.lib.extendMoshi
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.upstreamMessageExpirationTime
+import io.hengam.lib.upstreamMessageTimeout
+import io.hengam.lib.utils.days
+import io.hengam.lib.utils.hours
+import io.hengam.lib.utils.millis
+import io.hengam.lib.utils.minutes
 import io.hengam.lib.utils.rx.subscribeBy
 import io.hengam.lib.utils.seconds
 import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import io.hengam.lib.utils.test.TestUtils.mockTime
 import io.hengam.lib.utils.test.mocks.MockSharedPreference
 import io.hengam.lib.utils.test.TestUtils.mockIoThread
-import io.mockk.every
-import io.mockk.mockk
 import io.mockk.spyk
 import org.junit.Assert.*
 import org.junit.Before
@@ -19,7 +23,6 @@ import org.junit.Test
 import java.util.concurrent.TimeUnit
 
 class MessageStoreTest {
-    private val context: Context = mockk(relaxed=true)
     private val sharedPreferences: SharedPreferences = MockSharedPreference()
     private val moshi = HengamMoshi()
     private val hengamConfig = HengamConfig(MockSharedPreference(), moshi)
@@ -31,9 +34,7 @@ class MessageStoreTest {
     @Before
     fun setUp() {
         extendMoshi(moshi)
-
-        every { context.getSharedPreferences(any(), any()) } returns sharedPreferences
-        messageStore = MessageStore(moshi,hengamConfig, context)
+        messageStore = MessageStore(moshi, hengamConfig, SharedPreferencesMessageStoreBackend(sharedPreferences))
     }
 
     @Test
@@ -325,12 +326,12 @@ class MessageStoreTest {
         val messageAdapter = moshi.adapter(UpstreamMessage::class.java)
         val message = UpstreamMockMessageMovie("Prospect", Genre.SCIFI, 2018)
 
-        var messageStore = MessageStore(moshi,hengamConfig, context)
+        var messageStore = MessageStore(moshi, hengamConfig, SharedPreferencesMessageStoreBackend(sharedPreferences))
         messageStore.storeMessage(message, SendPriority.IMMEDIATE, persist = true, parcelGroupKey = null, expireAfter = null, requiresRegistration = false)
         cpuThread.triggerActions()
         cpuThread.advanceTimeBy(MessageStore.STORE_WRITE_RATE_LIMIT * 2, TimeUnit.MILLISECONDS)
 
-        messageStore = MessageStore(moshi,hengamConfig, context)
+        messageStore = MessageStore(moshi, hengamConfig, SharedPreferencesMessageStoreBackend(sharedPreferences))
         messageStore.restoreMessages().test()
         cpuThread.triggerActions()
         var messages = messageStore.readMessages().test().values()
@@ -341,11 +342,132 @@ class MessageStoreTest {
         cpuThread.triggerActions()
         cpuThread.advanceTimeBy(MessageStore.STORE_WRITE_RATE_LIMIT * 2, TimeUnit.MILLISECONDS)
 
-        messageStore = MessageStore(moshi,hengamConfig, context)
+        messageStore = MessageStore(moshi, hengamConfig, SharedPreferencesMessageStoreBackend(sharedPreferences))
         messageStore.restoreMessages().test()
         cpuThread.triggerActions()
         messages = messageStore.readMessages().test().values()
         assertEquals(1, messages.size)
         assertEquals(messageAdapter.toJsonValue(message), messageAdapter.toJsonValue(messages[0].message))
     }
-}
\ No newline at end of file
+
+    @Test
+    fun updateState_MaintainsStateAndParcelIndexes() {
+        val message1 = UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007)
+        val message2 = UpstreamMockMessageMovie("Matrix", Genre.SCIFI, 1998)
+        val stored1 = messageStore.storeMessage(message1, SendPriority.SOON, false, false, null, null)!!
+        val stored2 = messageStore.storeMessage(message2, SendPriority.SOON, false, false, null, null)!!
+
+        assertEquals(listOf(stored1, stored2), messageStore.getMessagesWithState(UpstreamMessageState.Stored::class.java))
+        assertFalse(messageStore.hasMessagesWithState(UpstreamMessageState.InFlight::class.java))
+
+        stored1.updateState(UpstreamMessageState.InFlight(seconds(10), "courier", "parcel-1"))
+
+        assertEquals(listOf(stored2), messageStore.getMessagesWithState(UpstreamMessageState.Stored::class.java))
+        assertEquals(listOf(stored1), messageStore.getMessagesWithState(UpstreamMessageState.InFlight::class.java))
+        assertEquals(listOf(stored1), messageStore.getMessagesInParcel("parcel-1"))
+
+        stored1.updateState(UpstreamMessageState.Stored())
+
+        assertTrue(messageStore.getMessagesInParcel("parcel-1").isEmpty())
+        assertFalse(messageStore.hasMessagesWithState(UpstreamMessageState.InFlight::class.java))
+        assertEquals(2, messageStore.getMessagesWithState(UpstreamMessageState.Stored::class.java).size)
+    }
+
+    @Test
+    fun removeMessage_RemovesMessageFromIndexes() {
+        val message = UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007)
+        val storedMessage = messageStore.storeMessage(message, SendPriority.SOON, false, false, "group", null)!!
+        storedMessage.updateState(UpstreamMessageState.InFlight(seconds(10), "courier", "parcel-1"))
+
+        assertEquals(listOf(storedMessage), messageStore.getMessagesByType(message.messageType))
+        assertEquals(listOf(storedMessage), messageStore.getMessagesByParcelGroup("group"))
+
+        storedMessage.disposeMessage()
+
+        assertEquals(0, messageStore.size)
+        assertNull(messageStore.getMessage(message.messageId))
+        assertEquals(0, messageStore.countMessagesByType(message.messageType))
+        assertTrue(messageStore.getMessagesByParcelGroup("group").isEmpty())
+        assertTrue(messageStore.getMessagesInParcel("parcel-1").isEmpty())
+        assertTrue(messageStore.allMessages.isEmpty())
+    }
+
+    @Test
+    fun getMessagesInParcel_IsSafeToDisposeWhileIterating() {
+        val messages = (1..3).map {
+            val storedMessage = messageStore.storeMessage(UpstreamMockMessageMovie("Movie $it", Genre.SCIFI, 2000 + it),
+                    SendPriority.SOON, false, false, null, null)!!
+            storedMessage.updateState(UpstreamMessageState.InFlight(seconds(10), "courier", "parcel-1"))
+            storedMessage
+        }
+
+        messageStore.getMessagesInParcel("parcel-1").forEach { it.disposeMessage() }
+
+        assertEquals(0, messageStore.size)
+        messages.forEach { assertFalse(it.messageId in messageStore) }
+    }
+
+    @Test
+    fun pollExpiredMessages_ReturnsOnlyMessagesWhichHaveReachedTheirExpiration() {
+        mockTime(days(10))
+        val stored1 = messageStore.storeMessage(UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007),
+                SendPriority.SOON, false, false, null, hours(1))!!
+        val stored2 = messageStore.storeMessage(UpstreamMockMessageMovie("Matrix", Genre.SCIFI, 1998),
+                SendPriority.SOON, false, false, null, null)!!
+
+        assertEquals(days(10) + hours(1), messageStore.nextDeadline)
+        assertTrue(messageStore.pollExpiredMessages(days(10) + minutes(59)).isEmpty())
+        assertEquals(listOf(stored1), messageStore.pollExpiredMessages(days(10) + hours(1)))
+
+        stored1.disposeMessage()
+        assertEquals(days(10) + hengamConfig.upstreamMessageExpirationTime, messageStore.nextDeadline)
+        assertEquals(listOf(stored2), messageStore.pollExpiredMessages(days(100)))
+        assertNull(messageStore.nextDeadline)
+    }
+
+    @Test
+    fun pollTimedOutMessages_IgnoresMessagesWhichAreNoLongerInFlight() {
+        mockTime(days(10))
+        val stored1 = messageStore.storeMessage(UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007),
+                SendPriority.SOON, false, false, null, null)!!
+        val stored2 = messageStore.storeMessage(UpstreamMockMessageMovie("Matrix", Genre.SCIFI, 1998),
+                SendPriority.SOON, false, false, null, null)!!
+        stored1.updateState(UpstreamMessageState.InFlight(days(10), "courier", "parcel-1"))
+        stored2.updateState(UpstreamMessageState.InFlight(days(10) + hours(1), "courier", "parcel-2"))
+
+        assertEquals(days(10) + hengamConfig.upstreamMessageTimeout, messageStore.nextDeadline)
+
+        stored1.updateState(UpstreamMessageState.Sent("parcel-1", "courier"))
+        val timeoutTime = days(10) + hours(1) + hengamConfig.upstreamMessageTimeout
+        assertTrue(messageStore.pollTimedOutMessages(timeoutTime - millis(1)).isEmpty())
+        assertEquals(listOf(stored2), messageStore.pollTimedOutMessages(timeoutTime))
+        assertTrue(messageStore.pollTimedOutMessages(days(100)).isEmpty())
+    }
+
+    @Test
+    fun observeNextDeadline_EmitsWhenAnEarlierDeadlineIsAdded() {
+        mockTime(days(10))
+        val deadlines = messageStore.observeNextDeadline().test()
+
+        messageStore.storeMessage(UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007),
+                SendPriority.SOON, false, false, null, hours(2))
+        messageStore.storeMessage(UpstreamMockMessageMovie("Matrix", Genre.SCIFI, 1998),
+                SendPriority.SOON, false, false, null, hours(3))
+        messageStore.storeMessage(UpstreamMockMessageMovie("Moon", Genre.SCIFI, 2009),
+                SendPriority.SOON, false, false, null, hours(1))
+
+        deadlines.assertValues(days(10) + hours(2), days(10) + hours(1))
+    }
+
+    @Test
+    fun nextDeadline_IsRecalculatedWhenConfigChanges() {
+        mockTime(days(10))
+        messageStore.storeMessage(UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007),
+                SendPriority.SOON, false, false, null, null)
+
+        hengamConfig.updateConfig("upstream_message_expiration", hours(5).toMillis())
+        cpuThread.triggerActions()
+
+        assertEquals(days(10) + hours(5), messageStore.nextDeadline)
+    }
+}
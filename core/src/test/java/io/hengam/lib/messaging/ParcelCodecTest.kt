@@ -0,0 +1,138 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.extendMoshi
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.utils.packOf
+import io.hengam.lib.utils.test.mocks.MockSharedPreference
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+
+class ParcelCodecTest {
+    private val moshi = HengamMoshi()
+    private val parcelSerializer = ParcelSerializer(moshi)
+    private val configStore = MockSharedPreference()
+    private val hengamConfig = HengamConfig(configStore, moshi)
+    private val parcelCodecs = ParcelCodecs(hengamConfig)
+
+    private val reynolds = MockPerson("Alastair", "Reynolds",40)
+
+    private val stamp = packOf(
+            "platform" to 1,
+            "message_id" to "parcel-id",
+            "instance_id" to "5a7f4ff2e1c3",
+            "android_id" to "d9a2a1c7e3e4b0f1",
+            "gaid" to "38400000-8cf0-11bd-b23e-10b96e40000d",
+            "app_id" to "io.hengam.sample",
+            "package_name" to "io.hengam.sample",
+            "pvc" to 200000,
+            "time" to 1571052000000L
+    )
+
+    private val compressingCodecs = listOf(ParcelCodecs.DEFLATE, ParcelCodecs.DEFLATE_DICTIONARY)
+
+    @Before
+    fun setUp() {
+        extendMoshi(moshi)
+        hengamConfig.isCacheEnabled = false
+    }
+
+    private fun createParcel(messageCount: Int): UpstreamParcel {
+        val messages = (1..messageCount).map {
+            if (it % 3 == 0) {
+                UpstreamMockMessageBook("Book $it", Genre.SCIFI, reynolds)
+            } else {
+                UpstreamMockMessageMovie("Movie $it", Genre.values()[it % Genre.values().size], 1990 + it)
+            }
+        }
+        return UpstreamStampedParcel(UpstreamParcel("parcel-id", messages), stamp)
+    }
+
+    private fun encodedSize(fields: Map<String, String>): Int =
+            fields.entries.sumBy { it.key.length + it.value.length }
+
+    @Test
+    fun deflateCodecs_DecodeToOriginalParcelJson() {
+        for (codec in compressingCodecs) {
+            for (messageCount in listOf(0, 1, 5, 100)) {
+                val parcel = createParcel(messageCount)
+                val fields = codec.encode(parcel, parcelSerializer)
+                assertEquals(codec.id, fields[DeflateParcelCodec.FIELD_ENCODING])
+                assertEquals(parcelSerializer.toJson(parcel), codec.decode(fields))
+            }
+        }
+    }
+
+    @Test
+    fun deflateCodecs_DecodeNonAsciiContent() {
+        val parcel = UpstreamParcel("parcel-id", listOf(UpstreamMockMessageMovie("پارسل \"ویژه\" ✓", Genre.MYSTERY, 2000)))
+        for (codec in compressingCodecs) {
+            assertEquals(parcelSerializer.toJson(parcel), codec.decode(codec.encode(parcel, parcelSerializer)))
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun deflateCodec_FailsDecodingWithWrongDictionary() {
+        val fields = ParcelCodecs.DEFLATE_DICTIONARY.encode(createParcel(5), parcelSerializer)
+        DeflateParcelCodec(ParcelCodecs.DEFLATE_DICTIONARY.id).decode(fields)
+    }
+
+    @Test(expected = IOException::class)
+    fun deflateCodec_FailsDecodingTruncatedData() {
+        val fields = ParcelCodecs.DEFLATE.encode(createParcel(20), parcelSerializer)
+        val data = fields.getValue(DeflateParcelCodec.FIELD_DATA)
+        ParcelCodecs.DEFLATE.decode(fields + (DeflateParcelCodec.FIELD_DATA to data.substring(0, data.length / 2 / 4 * 4)))
+    }
+
+    @Test
+    fun plainCodec_GivesParcelFieldMap() {
+        val parcel = createParcel(5)
+        assertEquals(parcelSerializer.toFieldMap(parcel), PlainParcelCodec.encode(parcel, parcelSerializer))
+    }
+
+    @Test
+    fun deflateCodecs_ProduceSmallerParcels() {
+        for (messageCount in listOf(1, 5, 20, 100)) {
+            val parcel = createParcel(messageCount)
+            val plainSize = encodedSize(PlainParcelCodec.encode(parcel, parcelSerializer))
+            val deflateSize = encodedSize(ParcelCodecs.DEFLATE.encode(parcel, parcelSerializer))
+            val dictionarySize = encodedSize(ParcelCodecs.DEFLATE_DICTIONARY.encode(parcel, parcelSerializer))
+
+            val sizes = "Parcel with $messageCount messages: Plain=$plainSize Deflate=$deflateSize Deflate+Dictionary=$dictionarySize"
+            assertTrue(sizes, dictionarySize <= deflateSize)
+            if (messageCount >= 5) {
+                assertTrue(sizes, deflateSize < plainSize)
+                assertTrue(sizes, dictionarySize < plainSize)
+            }
+        }
+    }
+
+    @Test
+    fun codecForCourier_UsesConfiguredCodec() {
+        assertEquals(PlainParcelCodec, parcelCodecs.codecForCourier(COURIER_FCM))
+        configStore.edit().putString("upstream_parcel_codec_fcm", "deflate-d1").commit()
+        assertEquals(ParcelCodecs.DEFLATE_DICTIONARY, parcelCodecs.codecForCourier(COURIER_FCM))
+        configStore.edit().putString("upstream_parcel_codec_fcm", "unknown").commit()
+        assertEquals(PlainParcelCodec, parcelCodecs.codecForCourier(COURIER_FCM))
+    }
+
+    @Test
+    fun maxParcelSize_IsOnlyIncreasedIfAllCouriersCompress() {
+        val fcmCourier = mockk<OutboundCourier> { every { id } returns COURIER_FCM }
+        val httpCourier = mockk<OutboundCourier> { every { id } returns COURIER_HTTP }
+        configStore.edit()
+                .putString("upstream_max_parcel_size", "3000")
+                .putString("upstream_max_compressed_parcel_size", "9000")
+                .commit()
+
+        assertEquals(3000, parcelCodecs.maxParcelSize(listOf(fcmCourier)))
+        configStore.edit().putString("upstream_parcel_codec_fcm", "deflate").commit()
+        assertEquals(9000, parcelCodecs.maxParcelSize(listOf(fcmCourier)))
+        assertEquals(3000, parcelCodecs.maxParcelSize(listOf(fcmCourier, httpCourier)))
+        assertEquals(3000, parcelCodecs.maxParcelSize(emptyList()))
+    }
+}
@@ -0,0 +1,80 @@
+package io.hengam.lib.messaging
+
+import io.mockk.mockk
+import org.junit.Assert.*
+import org.junit.Test
+
+class ParcelPackerTest {
+    private val messageStore: MessageStore = mockk(relaxed = true)
+    private val parcelPacker = ParcelPacker()
+
+    private fun storedMessage(size: Int, priority: SendPriority = SendPriority.SOON): StoredUpstreamMessage {
+        val message = UpstreamMockMessageMovie("Movie", Genre.SCIFI, 2000)
+        return StoredUpstreamMessage(messageStore, message.messageId, message, priority, true, size,
+                null, null, UpstreamMessageState.Stored())
+    }
+
+    @Test
+    fun pack_DoesNotExceedMaxParcelSize() {
+        val messages = listOf(60, 50, 40, 30, 20, 10, 70, 80).map { storedMessage(it) }
+        val parcels = parcelPacker.pack(messages, 100)
+
+        parcels.forEach { parcel -> assertTrue(parcel.sumBy { it.messageSize } <= 100) }
+        assertEquals(messages.size, parcels.sumBy { it.size })
+        assertEquals(messages.toSet(), parcels.flatten().toSet())
+    }
+
+    @Test
+    fun pack_UsesFewerParcelsThanArrivalOrderPacking() {
+        // Packing in arrival order would need 3 parcels: [30], [80, 20], [70]
+        val messages = listOf(30, 80, 20, 70).map { storedMessage(it) }
+        val parcels = parcelPacker.pack(messages, 100)
+
+        assertEquals(2, parcels.size)
+        assertEquals(200L, parcelPacker.lastPackingStats.totalSize)
+        assertEquals(1.0, parcelPacker.lastPackingStats.fillRatio, 0.0001)
+    }
+
+    @Test
+    fun pack_FillsParcelsOptimallyForComplementarySizes() {
+        val messages = listOf(70, 30, 80, 20, 60, 40).map { storedMessage(it) }
+        val parcels = parcelPacker.pack(messages, 100)
+
+        assertEquals(3, parcels.size)
+        assertEquals(1.0, parcelPacker.lastPackingStats.fillRatio, 0.0001)
+    }
+
+    @Test
+    fun pack_PlacesTooBigMessagesInSeparateParcels() {
+        val big = storedMessage(150)
+        val messages = listOf(big, storedMessage(30), storedMessage(30))
+        val parcels = parcelPacker.pack(messages, 100)
+
+        assertEquals(2, parcels.size)
+        assertTrue(parcels.any { it == listOf(big) })
+    }
+
+    @Test
+    fun pack_OrdersParcelsByHighestPriority() {
+        val immediate = storedMessage(90, SendPriority.IMMEDIATE)
+        val messages = listOf(storedMessage(95, SendPriority.WHENEVER), storedMessage(99, SendPriority.LATE), immediate)
+        val parcels = parcelPacker.pack(messages, 100)
+
+        assertEquals(3, parcels.size)
+        assertEquals(listOf(immediate), parcels[0])
+        assertEquals(SendPriority.LATE, parcels[1][0].sendPriority)
+        assertEquals(SendPriority.WHENEVER, parcels[2][0].sendPriority)
+    }
+
+    @Test
+    fun packGroups_NeverMixesGroups() {
+        val group1 = listOf(storedMessage(40), storedMessage(40))
+        val group2 = listOf(storedMessage(20), storedMessage(20))
+        val parcels = parcelPacker.packGroups(listOf(group1, group2), 100)
+
+        assertEquals(2, parcels.size)
+        assertTrue(parcels.all { parcel -> group1.containsAll(parcel) || group2.containsAll(parcel) })
+        assertEquals(2, parcelPacker.lastPackingStats.parcelCount)
+        assertEquals(4, parcelPacker.lastPackingStats.messageCount)
+    }
+}
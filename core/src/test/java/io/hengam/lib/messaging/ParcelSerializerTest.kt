@@ -0,0 +1,78 @@
+package io.hengam.lib.messaging
+
+import io.hengam.lib.extendMoshi
+import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.utils.packOf
+import com.squareup.moshi.Moshi
+import com.squareup.moshi.Types
+import io.mockk.spyk
+import io.mockk.verify
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+
+class ParcelSerializerTest {
+    private val moshi = HengamMoshi()
+    private val parcelSerializer = ParcelSerializer(moshi)
+
+    private val reynolds = MockPerson("Alastair", "Reynolds",40)
+    private val revelationSpaceBook = UpstreamMockMessageBook("Revelation Space", Genre.SCIFI, reynolds)
+    private val mementoMovie = UpstreamMockMessageMovie("Memento", Genre.MYSTERY, 2000)
+    private val matrixMovie = UpstreamMockMessageMovie("Matrix", Genre.SCIFI, 1998)
+
+    private val mapAdapter by lazy {
+        moshi.adapter<Map<String, Any>>(Types.newParameterizedType(Map::class.java, String::class.java, Any::class.java))
+    }
+
+    @Before
+    fun setUp() {
+        extendMoshi(moshi)
+    }
+
+    @Test
+    fun toJson_ProducesSameJsonAsParcelAdapter() {
+        val parcel = UpstreamParcel("", listOf(revelationSpaceBook, mementoMovie, matrixMovie))
+        val parcelAdapter = moshi.adapter(UpstreamParcel::class.java)
+        assertEquals(mapAdapter.fromJson(parcelAdapter.toJson(parcel)), mapAdapter.fromJson(parcelSerializer.toJson(parcel)))
+    }
+
+    @Test
+    fun toJson_IncludesParcelStamp() {
+        val parcel = UpstreamStampedParcel(
+                UpstreamParcel("", listOf(revelationSpaceBook)),
+                packOf("instance_id" to "12\"345", "android_id" to 54321, "time" to 1000L)
+        )
+        val parcelAdapter = moshi.adapter(UpstreamParcel::class.java)
+        val serialized = mapAdapter.fromJson(parcelSerializer.toJson(parcel))
+        assertEquals(mapAdapter.fromJson(parcelAdapter.toJson(parcel)), serialized)
+        assertEquals("12\"345", serialized?.get("instance_id"))
+    }
+
+    @Test
+    fun toFieldMap_GivesMessageGroupsAsJsonAndStampAsStrings() {
+        val parcel = UpstreamStampedParcel(
+                UpstreamParcel("", listOf(mementoMovie, matrixMovie)),
+                packOf("instance_id" to "12345", "android_id" to 54321)
+        )
+        val fields = parcelSerializer.toFieldMap(parcel)
+        val listAdapter = moshi.adapter<List<Any>>(Types.newParameterizedType(List::class.java, Any::class.java))
+
+        assertEquals(listOf("t60"), listAdapter.fromJson(fields.getValue("types")))
+        assertEquals(2, listAdapter.fromJson(fields.getValue("t60"))?.size)
+        assertEquals("12345", fields["instance_id"])
+        assertEquals("54321", fields["android_id"])
+    }
+
+    @Test
+    fun toJson_EncodesEachMessageOnlyOnce() {
+        val message = spyk(UpstreamMockMessageMovie("Sunshine", Genre.SCIFI, 2007))
+        val parcel = UpstreamParcel("", listOf(message))
+
+        parcelSerializer.messageSize(message)
+        parcelSerializer.toJson(parcel)
+        parcelSerializer.toJson(parcel)
+        parcelSerializer.toFieldMap(parcel)
+
+        verify(exactly = 1) { message.toJson(any<Moshi>(), any()) }
+    }
+}
@@ -6,12 +6,20 @@ import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.internal.task.TaskScheduler
 import io.hengam.lib.tasks.UpstreamSenderTask
+import io.hengam.lib.utils.Time
+import io.hengam.lib.utils.TimeUtils
+import io.hengam.lib.utils.minutes
+import io.hengam.lib.utils.seconds
+import io.hengam.lib.utils.test.TestUtils.advanceMockTimeBy
 import io.hengam.lib.utils.test.TestUtils.mockCpuThread
 import io.hengam.lib.utils.test.TestUtils.mockIoThread
+import io.hengam.lib.utils.test.TestUtils.mockTime
 import io.hengam.lib.utils.test.mocks.MockSharedPreference
 import io.mockk.*
 import io.reactivex.Completable
+import io.reactivex.Observable
 import io.reactivex.plugins.RxJavaPlugins
+import io.reactivex.subjects.PublishSubject
 import org.junit.Assert.*
 import org.junit.Test
 import java.io.IOException
@@ -20,12 +28,17 @@ import java.util.concurrent.TimeUnit
 class PostOfficeTest {
     private lateinit var postOffice: PostOffice
 
-    private val messageStore: MessageStore = mockk(relaxed = true)
+    private val messageStore: MessageStore = mockk(relaxed = true) {
+        every { observeNextDeadline() } returns Observable.never()
+    }
     private val parcelStamper: ParcelStamper = mockk(relaxed = true)
     private val taskScheduler: TaskScheduler = mockk(relaxed = true)
     private val hengamLifecycle = HengamLifecycle(mockk(relaxed = true))
     private val moshi = HengamMoshi()
     private val hengamConfig = HengamConfig(MockSharedPreference(), moshi)
+    private val downstreamIdFilter: DownstreamIdFilter = mockk {
+        every { add(any()) } returns true
+    }
 
     private val ioThread = mockIoThread()
     private val cpuThread = mockCpuThread()
@@ -41,6 +54,7 @@ class PostOfficeTest {
                 parcelStamper,
                 moshi,
                 hengamConfig,
+                downstreamIdFilter,
                 hengamLifecycle
         )
     }
@@ -225,6 +239,23 @@ class PostOfficeTest {
         subscription2.assertValuesOnly(message)
     }
 
+    @Test
+    fun receiveMessages_UnregistersHandlerOnceDisposed() {
+        setUpReceiveMessageTests()
+        val messageType = 10
+
+        val subscription = postOffice.receiveMessages(messageType).test()
+        subscription.dispose()
+
+        postOffice.onInboundParcelReceived(createParcel(RawDownstreamMessage("11", messageType, "Some Message")))
+
+        ioThread.triggerActions()
+        cpuThread.triggerActions()
+
+        subscription.assertNoValues()
+        assertEquals(1L, postOffice.downstreamDispatchStats.unhandled[messageType])
+    }
+
     @Test
     fun receiveMessages_ContinueIfErrorHappensInSubscriber() {
         setUpReceiveMessageTests()
@@ -314,6 +345,190 @@ class PostOfficeTest {
 
         subscription.assertValuesOnly(parsedMessage1, parsedMessage3, parsedMessage4)
     }
+
+    @Test
+    fun onInboundParcelReceived_DuplicateParcelsAreIgnored() {
+        setUpReceiveMessageTests()
+        every { downstreamIdFilter.add("parcel-id") } returnsMany listOf(true, false)
+
+        val message = RawDownstreamMessage("1", 10, "Some Message")
+        val subscription = postOffice.receiveMessages().test()
+
+        postOffice.onInboundParcelReceived(createParcel(message))
+        postOffice.onInboundParcelReceived(createParcel(message))
+
+        ioThread.triggerActions()
+        cpuThread.triggerActions()
+
+        subscription.assertValuesOnly(message)
+    }
+
+    @Test
+    fun onInboundParcelReceived_ParcelsAllowingDuplicatesAreNotFiltered() {
+        setUpReceiveMessageTests()
+        every { downstreamIdFilter.add("parcel-id") } returns false
+
+        val message = RawDownstreamMessage("1", 10, mapOf("allow_multi_publish" to true))
+        val subscription = postOffice.receiveMessages().test()
+
+        postOffice.onInboundParcelReceived(createParcel(message))
+        postOffice.onInboundParcelReceived(createParcel(message))
+
+        ioThread.triggerActions()
+        cpuThread.triggerActions()
+
+        subscription.assertValuesOnly(message, message)
+        verify(exactly = 0) { downstreamIdFilter.add(any()) }
+    }
+
+    private val deadlines = PublishSubject.create<Time>()
+    private var storedNextDeadline: Time? = null
+
+    private fun setUpDeadlineTests() {
+        mockTime(minutes(1000))
+        every { messageStore.observeNextDeadline() } returns deadlines
+        every { messageStore.nextDeadline } answers { storedNextDeadline }
+        every { messageStore.pollTimedOutMessages(any()) } returns emptyList()
+        every { messageStore.pollExpiredMessages(any()) } returns emptyList()
+        setUp()
+    }
+
+    private fun advanceTimeBy(time: Time) {
+        advanceMockTimeBy(time)
+        cpuThread.advanceTimeBy(time.toMillis(), TimeUnit.MILLISECONDS)
+    }
+
+    private fun storedMessage(
+            state: UpstreamMessageState,
+            sendAttempts: Map<String, Int>? = null
+    ): StoredUpstreamMessage {
+        val message = UpstreamMockMessageMovie("Movie", Genre.SCIFI, 2000)
+        return StoredUpstreamMessage(messageStore, message.messageId, message, SendPriority.SOON,
+                true, 100, null, null, state, sendAttempts)
+    }
+
+    @Test
+    fun deadlineCheck_IsRunWhenDeadlineIsReached() {
+        setUpDeadlineTests()
+        deadlines.onNext(TimeUtils.now() + minutes(10))
+
+        advanceTimeBy(minutes(10) - seconds(1))
+        verify(exactly = 0) { messageStore.pollTimedOutMessages(any()) }
+        verify(exactly = 0) { messageStore.pollExpiredMessages(any()) }
+
+        advanceTimeBy(seconds(1))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+        verify(exactly = 1) { messageStore.pollExpiredMessages(any()) }
+    }
+
+    @Test
+    fun deadlineCheck_IsRescheduledWhenAnEarlierDeadlineArrives() {
+        setUpDeadlineTests()
+        deadlines.onNext(TimeUtils.now() + minutes(10))
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+
+        advanceTimeBy(minutes(5))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+
+        advanceTimeBy(minutes(5))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+    }
+
+    @Test
+    fun deadlineCheck_IsNotPostponedByALaterDeadline() {
+        setUpDeadlineTests()
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        deadlines.onNext(TimeUtils.now() + minutes(10))
+
+        advanceTimeBy(minutes(5))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+    }
+
+    @Test
+    fun deadlineCheck_SchedulesCheckForNextDeadlineInStoreAfterRunning() {
+        setUpDeadlineTests()
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        storedNextDeadline = TimeUtils.now() + minutes(15)
+
+        advanceTimeBy(minutes(5))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+
+        storedNextDeadline = null
+        advanceTimeBy(minutes(10) - seconds(1))
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+
+        advanceTimeBy(seconds(1))
+        verify(exactly = 2) { messageStore.pollTimedOutMessages(any()) }
+    }
+
+    @Test
+    fun deadlineCheck_TimedOutMessagesAreStoredAgainAndSenderTaskIsRescheduled() {
+        setUpDeadlineTests()
+        val inFlightState = UpstreamMessageState.InFlight(TimeUtils.now(), "fcm", "parcel-id")
+        val message = storedMessage(inFlightState)
+        every { messageStore.pollTimedOutMessages(any()) } returnsMany listOf(listOf(message), emptyList())
+
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        advanceTimeBy(minutes(5))
+
+        assertTrue(message.messageState is UpstreamMessageState.Stored)
+        assertEquals(mapOf("fcm" to 1), message.sendAttempts)
+        verify(exactly = 1) { taskScheduler.scheduleTask(UpstreamSenderTask.Options, null, null) }
+        verify(exactly = 0) { messageStore.removeMessage(any()) }
+    }
+
+    @Test
+    fun deadlineCheck_SenderTaskIsNotRescheduledWithoutTimedOutMessages() {
+        setUpDeadlineTests()
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        advanceTimeBy(minutes(5))
+
+        verify(exactly = 1) { messageStore.pollTimedOutMessages(any()) }
+        verify(exactly = 0) { taskScheduler.scheduleTask(UpstreamSenderTask.Options, any(), any()) }
+    }
+
+    @Test
+    fun deadlineCheck_ExpiredMessagesAreDisposed() {
+        setUpDeadlineTests()
+        val message = storedMessage(UpstreamMessageState.Stored())
+        every { messageStore.pollExpiredMessages(any()) } returnsMany listOf(listOf(message), emptyList())
+
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        advanceTimeBy(minutes(5))
+
+        verify(exactly = 1) { messageStore.removeMessage(message) }
+    }
+
+    @Test
+    fun messageDeadlineStats_CountsTimeoutsAndExpirationsPerCourierAndType() {
+        setUpDeadlineTests()
+        val timedOut = listOf(
+                storedMessage(UpstreamMessageState.InFlight(TimeUtils.now(), "fcm", "parcel-1")),
+                storedMessage(UpstreamMessageState.InFlight(TimeUtils.now(), "fcm", "parcel-1")),
+                storedMessage(UpstreamMessageState.InFlight(TimeUtils.now(), "hms", "parcel-2"))
+        )
+        val expired = listOf(
+                storedMessage(UpstreamMessageState.Stored(), mapOf("fcm" to 1, "hms" to 3)),
+                storedMessage(UpstreamMessageState.Stored())
+        )
+        val messageType = timedOut[0].message.messageType
+        every { messageStore.pollTimedOutMessages(any()) } returnsMany listOf(timedOut, emptyList())
+        every { messageStore.pollExpiredMessages(any()) } returnsMany listOf(expired, emptyList())
+
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        advanceTimeBy(minutes(5))
+
+        val stats = postOffice.messageDeadlineStats
+        assertEquals(mapOf("fcm" to mapOf(messageType to 2), "hms" to mapOf(messageType to 1)), stats.timeouts)
+        assertEquals(mapOf("hms" to mapOf(messageType to 1), "none" to mapOf(messageType to 1)), stats.expirations)
+
+        val timedOutAgain = storedMessage(UpstreamMessageState.InFlight(TimeUtils.now(), "fcm", "parcel-3"))
+        every { messageStore.pollTimedOutMessages(any()) } returnsMany listOf(listOf(timedOutAgain), emptyList())
+        deadlines.onNext(TimeUtils.now() + minutes(5))
+        advanceTimeBy(minutes(5))
+
+        assertEquals(3, postOffice.messageDeadlineStats.timeouts["fcm"]?.get(messageType))
+    }
 }
 
 fun createParcel(vararg messages: RawDownstreamMessage): DownstreamParcel {
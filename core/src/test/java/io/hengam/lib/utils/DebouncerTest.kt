@@ -0,0 +1,139 @@
+package io.hengam.lib.utils
+
+import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import org.junit.Assert.*
+import org.junit.Ignore
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class DebouncerTest {
+    private val cpuThread = mockCpuThread()
+
+    private fun advanceTimeBy(millis: Long) = cpuThread.advanceTimeBy(millis, TimeUnit.MILLISECONDS)
+
+    @Test
+    fun debounce_RunsLastActionOnceCallsStop() {
+        val calls = mutableListOf<Int>()
+        Debouncer.debounce("key", millis(100)) { calls.add(1) }
+        advanceTimeBy(50)
+        Debouncer.debounce("key", millis(100)) { calls.add(2) }
+        advanceTimeBy(99)
+        assertTrue(calls.isEmpty())
+
+        advanceTimeBy(1)
+        assertEquals(listOf(2), calls)
+        advanceTimeBy(1000)
+        assertEquals(listOf(2), calls)
+    }
+
+    @Test
+    fun debounce_PassesAllValuesToAction() {
+        var values: List<Int>? = null
+        (1..5).forEach { value -> Debouncer.debounce("key", value, millis(100)) { values = it } }
+        advanceTimeBy(100)
+        assertEquals(listOf(1, 2, 3, 4, 5), values)
+    }
+
+    @Test
+    fun debounce_RunsActionAfterMaxWaitEvenIfCallsContinue() {
+        var count = 0
+        repeat(30) {
+            Debouncer.debounce("key", millis(100), maxWait = millis(500)) { count += 1 }
+            advanceTimeBy(50)
+        }
+        assertEquals(3, count)
+    }
+
+    @Test
+    fun debounce_HandlesDelaysLongerThanWheelRevolution() {
+        var called = false
+        Debouncer.debounce("key", seconds(30)) { called = true }
+        advanceTimeBy(29_990)
+        assertFalse(called)
+        advanceTimeBy(10)
+        assertTrue(called)
+    }
+
+    @Test
+    fun throttleLast_RunsAtEndOfPeriodStartedByFirstCall() {
+        val calls = mutableListOf<Int>()
+        Debouncer.throttleLast("key", millis(100)) { calls.add(1) }
+        advanceTimeBy(60)
+        Debouncer.throttleLast("key", millis(100)) { calls.add(2) }
+        advanceTimeBy(40)
+        assertEquals(listOf(2), calls)
+
+        Debouncer.throttleLast("key", millis(100)) { calls.add(3) }
+        advanceTimeBy(100)
+        assertEquals(listOf(2, 3), calls)
+    }
+
+    @Test
+    fun cancel_PreventsPendingAction() {
+        var called = false
+        Debouncer.debounce("key", millis(100)) { called = true }
+        Debouncer.cancel("key")
+        advanceTimeBy(1000)
+        assertFalse(called)
+    }
+
+    @Test
+    fun debounce_BurstyLoadRunsLastActionOncePerKeyAndBurst() {
+        val keys = (0 until 50).map { "key-$it" }
+        val bursts = 20
+        val callsPerBurst = 500
+        val delivered = mutableMapOf<String, Int>()
+
+        val firedBefore = Debouncer.stats.fired
+        repeat(bursts) { burst ->
+            repeat(callsPerBurst) { i ->
+                val key = keys[i % keys.size]
+                val value = burst * callsPerBurst + i
+                Debouncer.debounce(key, millis(100)) { delivered[key] = value }
+            }
+            advanceTimeBy(200)
+
+            // The action of the last call for each key has run
+            keys.forEachIndexed { index, key ->
+                assertEquals(burst * callsPerBurst + callsPerBurst - keys.size + index, delivered[key])
+            }
+        }
+
+        assertEquals((bursts * keys.size).toLong(), Debouncer.stats.fired - firedBefore)
+        assertEquals(0, Debouncer.stats.pending)
+    }
+
+    /**
+     * Measures the cost of a debounce call under bursty load: bursts of calls for a number of keys
+     * followed by quiet periods in which the debounced actions are run.
+     *
+     * Wall-clock timing is not reliable on shared machines, so this is not part of the default
+     * test run and should be run manually.
+     */
+    @Ignore("Benchmark, run manually")
+    @Test
+    fun debounce_BurstyLoadBenchmark() {
+        val keys = (0 until 50).map { "key-$it" }
+        val action = {}
+        val bursts = 200
+        val callsPerBurst = 1000
+
+        // Warm up
+        repeat(20) {
+            repeat(callsPerBurst) { i -> Debouncer.debounce(keys[i % keys.size], millis(100), action = action) }
+            advanceTimeBy(200)
+        }
+
+        var elapsed = 0L
+        repeat(bursts) {
+            val start = System.nanoTime()
+            repeat(callsPerBurst) { i -> Debouncer.debounce(keys[i % keys.size], millis(100), action = action) }
+            elapsed += System.nanoTime() - start
+            advanceTimeBy(200)
+        }
+
+        val nanosPerCall = elapsed / (bursts * callsPerBurst)
+        assertTrue("Debouncer: ${nanosPerCall}ns per debounce call " +
+                "(${bursts * callsPerBurst} calls in $bursts bursts on ${keys.size} keys)", nanosPerCall < 50_000)
+    }
+}
@@ -8,14 +8,21 @@ import io.hengam.lib.utils.test.TestUtils.mockTime
 import io.hengam.lib.utils.test.mocks.MockSharedPreference
 import com.squareup.moshi.FromJson
 import com.squareup.moshi.ToJson
+import io.mockk.every
 import io.mockk.mockk
 import io.mockk.verify
 import org.junit.Assert.*
 import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
 import java.util.concurrent.TimeUnit
 
 class HengamStorageTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
     private val cpuThread = mockCpuThread()
 
     @Before
@@ -132,6 +139,159 @@ class HengamStorageTest {
         assertEquals(3000, restoredMap["key3"])
     }
 
+    @Test
+    fun storedMap_RemovesEntriesWhenTheyExpire() {
+        val sharedPreferences = MockSharedPreference()
+        val storedMap = HengamStorage(HengamMoshi(), sharedPreferences)
+                .createStoredMap("test_map", Int::class.javaObjectType, seconds(10))
+        storedMap["key1"] = 1000
+        advanceTimeBy(seconds(3))
+        storedMap["key2"] = 2000
+        storedMap.put("key3", 3000, seconds(1))
+        storedMap["key1"] = 1001
+
+        advanceTimeBy(seconds(2))
+        assertEquals(setOf("key1", "key2"), storedMap.keys)
+        assertFalse(sharedPreferences.contains("test_map/v/key3"))
+        assertFalse(sharedPreferences.contains("test_map/e/key3"))
+
+        advanceTimeBy(seconds(6))
+        assertEquals(setOf("key1", "key2"), storedMap.keys)
+        assertEquals(1001, storedMap["key1"])
+
+        advanceTimeBy(seconds(3))
+        assertTrue(storedMap.isEmpty())
+        assertTrue(sharedPreferences.all.keys.none { it.startsWith("test_map/") })
+    }
+
+    @Test
+    fun storedMap_OnlyWritesChangedEntries() {
+        val sharedPreferences = MockSharedPreference()
+        val storageFactory = HengamStorage(HengamMoshi(), sharedPreferences)
+        val storedMap = storageFactory.createStoredMap("test_map", Int::class.javaObjectType)
+        storedMap["key1"] = 1000
+        storedMap["key2"] = 2000
+        advanceTimeBy(seconds(10))
+        assertEquals("1000", sharedPreferences.getString("test_map/v/key1", null))
+        assertEquals("2000", sharedPreferences.getString("test_map/v/key2", null))
+
+        sharedPreferences.edit().putString("test_map/v/key1", "1111").commit()
+        storedMap["key2"] = 2222
+        advanceTimeBy(seconds(10))
+        assertEquals("1111", sharedPreferences.getString("test_map/v/key1", null))
+        assertEquals("2222", sharedPreferences.getString("test_map/v/key2", null))
+
+        storedMap.remove("key2")
+        advanceTimeBy(seconds(10))
+        assertFalse(sharedPreferences.contains("test_map/v/key2"))
+    }
+
+    @Test
+    fun storedMap_PersistsInPlaceChangesOnSave() {
+        val sharedPreferences = MockSharedPreference()
+        val storageFactory = HengamStorage(HengamMoshi(), sharedPreferences)
+        val storedMap = storageFactory.createStoredMap("test_map", MutableTestObject::class.java, MutableTestObjectAdapter)
+        storedMap["key1"] = MutableTestObject("guy", 25)
+        storedMap["key2"] = MutableTestObject("gal", 30)
+        advanceTimeBy(seconds(10))
+
+        storedMap["key1"]?.age = 26
+        storedMap.save("key1")
+        storedMap["key2"]?.age = 31
+        storedMap.keys.remove("key2")
+        advanceTimeBy(seconds(10))
+        var restoredMap = HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", MutableTestObject::class.java, MutableTestObjectAdapter)
+        assertEquals(MutableTestObject("guy", 26), restoredMap["key1"])
+        assertEquals(MutableTestObject("gal", 30), restoredMap["key2"])
+
+        storedMap.save()
+        advanceTimeBy(seconds(10))
+        restoredMap = HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", MutableTestObject::class.java, MutableTestObjectAdapter)
+        assertEquals(MutableTestObject("guy", 26), restoredMap["key1"])
+        assertNull(restoredMap["key2"])
+        assertEquals(1, restoredMap.size)
+    }
+
+    @Test
+    fun storedMap_RemovesEntriesWhichCannotBeDecoded() {
+        val sharedPreferences = MockSharedPreference()
+        sharedPreferences.edit()
+                .putString("test_map/v/key1", "1000")
+                .putString("test_map/v/key2", "not a number")
+                .commit()
+        val storedMap = HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", Int::class.javaObjectType)
+        assertEquals(2, storedMap.size)
+        assertEquals(1000, storedMap["key1"])
+        assertNull(storedMap["key2"])
+        assertEquals(1, storedMap.size)
+        advanceTimeBy(seconds(10))
+        assertFalse(sharedPreferences.contains("test_map/v/key2"))
+    }
+
+    @Test
+    fun storedMap_MigratesLegacyJsonValue() {
+        val sharedPreferences = MockSharedPreference()
+        sharedPreferences.edit()
+                .putString("test_map", """{"key1":1000,"key2":2000}""")
+                .putString("test_map_expire", """{"key2":5000}""")
+                .commit()
+        val storedMap = HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", Int::class.javaObjectType)
+        assertEquals(1000, storedMap["key1"])
+        assertEquals(2000, storedMap["key2"])
+        advanceTimeBy(seconds(2))
+        assertFalse(sharedPreferences.contains("test_map"))
+        assertFalse(sharedPreferences.contains("test_map_expire"))
+
+        val restoredMap = HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", Int::class.javaObjectType)
+        assertEquals(1000, restoredMap["key1"])
+        assertEquals(2000, restoredMap["key2"])
+        advanceTimeBy(seconds(5))
+        restoredMap["key3"] = 3000
+        advanceTimeBy(seconds(1))
+        assertNull(restoredMap["key2"])
+        assertFalse(sharedPreferences.contains("test_map/v/key2"))
+    }
+
+    @Test
+    fun storedList_PersistsUpdatesInStorage() {
+        val sharedPreferences = MockSharedPreference()
+        val storedList = HengamStorage(HengamMoshi(), sharedPreferences).createStoredList("test_list", String::class.java)
+        storedList.addAll(listOf("a", "b", "c", "d"))
+        advanceTimeBy(seconds(10))
+        storedList.removeAt(1)
+        storedList[1] = "C"
+        storedList.add("e")
+        advanceTimeBy(seconds(10))
+        assertEquals(listOf("a", "C", "d", "e"),
+                HengamStorage(HengamMoshi(), sharedPreferences).createStoredList("test_list", String::class.java).toList())
+
+        storedList.add(1, "b")
+        storedList.removeAll { it == "d" }
+        advanceTimeBy(seconds(10))
+        assertEquals(listOf("a", "b", "C", "e"),
+                HengamStorage(HengamMoshi(), sharedPreferences).createStoredList("test_list", String::class.java).toList())
+        assertEquals(4, sharedPreferences.all.keys.count { it.startsWith("test_list/") })
+
+        storedList.clear()
+        advanceTimeBy(seconds(10))
+        assertTrue(HengamStorage(HengamMoshi(), sharedPreferences).createStoredList("test_list", String::class.java).isEmpty())
+        assertTrue(sharedPreferences.all.keys.none { it.startsWith("test_list/") })
+    }
+
+    @Test
+    fun storedSet_MigratesLegacyJsonValue() {
+        val sharedPreferences = MockSharedPreference()
+        sharedPreferences.edit().putString("test_set", """["a","b"]""").commit()
+        val storedSet = HengamStorage(HengamMoshi(), sharedPreferences).createStoredSet("test_set", String::class.java)
+        storedSet.add("c")
+        val iterator = storedSet.iterator()
+        while (iterator.hasNext()) if (iterator.next() == "a") iterator.remove()
+        advanceTimeBy(seconds(10))
+        assertFalse(sharedPreferences.contains("test_set"))
+        assertEquals(setOf("b", "c"),
+                HengamStorage(HengamMoshi(), sharedPreferences).createStoredSet("test_set", String::class.java).toSet())
+    }
+
     @Test
     fun storedString_PersistsAndRestoresAndDeletesValue() {
         val sharedPreference = MockSharedPreference()
@@ -230,7 +390,10 @@ class HengamStorageTest {
     @Test
     fun rateLimitsPersistingOnFrequentUpdates() {
         val sharedPreferences: SharedPreferences = mockk(relaxed = true)
-        val storageFactory = HengamStorage(HengamMoshi(), sharedPreferences)
+        val recordStore: RecordStore = mockk(relaxed = true) {
+            every { readAll() } returns emptyMap()
+        }
+        val storageFactory = HengamStorage(HengamMoshi(), sharedPreferences, { recordStore })
         val storedMap = storageFactory.createStoredMap("test_map", Int::class.javaObjectType)
         val storedSet = storageFactory.createStoredSet("test_set", String::class.java)
         var storedInt by storageFactory.storedInt("test_int", 0)
@@ -246,8 +409,11 @@ class HengamStorageTest {
         storedMap["key3"] = 3000
         advanceTimeBy(millis(100))
         verify(exactly = 0) { sharedPreferences.edit() }
+        verify(exactly = 0) { recordStore.write(any()) }
         advanceTimeBy(seconds(10))
         verify(exactly = 1) { sharedPreferences.edit() }
+        // Once for the map and once for the set
+        verify(exactly = 2) { recordStore.write(any()) }
         storedMap["key4"] = 3000
         advanceTimeBy(millis(100))
         verify(exactly = 1) { sharedPreferences.edit() }
@@ -266,12 +432,76 @@ class HengamStorageTest {
         verify(exactly = 3) { sharedPreferences.edit() }
         advanceTimeBy(seconds(10))
         verify(exactly = 4) { sharedPreferences.edit() }
+        verify(exactly = 4) { recordStore.write(any()) }
+    }
+
+    @Test
+    fun storedCollections_AppendOnlyChangedEntriesToJournal() {
+        val journals = mutableMapOf<String, RecordJournal>()
+        val storageFactory = HengamStorage(HengamMoshi(), MockSharedPreference(), { key ->
+            journals.getOrPut(key) { RecordJournal(File(tempFolder.root, key), 64 * 1024L, 32 * 1024L) }
+        })
+        val storedMap = storageFactory.createStoredMap("test_map", Int::class.javaObjectType)
+        (0 until 200).forEach { storedMap["key$it"] = it }
+        advanceTimeBy(seconds(10))
+
+        val journal = journals.getValue("test_map")
+        val sizeBefore = journal.journalSize
+        storedMap["key1"] = 1111
+        advanceTimeBy(seconds(10))
+
+        // A single value record is appended, the other entries are not rewritten
+        assertTrue(journal.journalSize - sizeBefore < 32)
+        val records = RecordJournal(File(tempFolder.root, "test_map"), 64 * 1024L, 32 * 1024L).readAll()
+        assertEquals("1111", records["v/key1"])
+        assertEquals(200, records.size)
+    }
+
+    @Test
+    fun storedCollections_AreRestoredFromJournal() {
+        val createStorage = {
+            HengamStorage(HengamMoshi(), MockSharedPreference(), { key ->
+                RecordJournal(File(tempFolder.root, key), 64 * 1024L, 32 * 1024L)
+            })
+        }
+        val storage = createStorage()
+        storage.createStoredMap("test_map", Int::class.javaObjectType, seconds(60))["key1"] = 1000
+        storage.createStoredList("test_list", String::class.java).addAll(listOf("a", "b"))
+        storage.createStoredSet("test_set", String::class.java).add("c")
+        advanceTimeBy(seconds(10))
+
+        val restored = createStorage()
+        assertEquals(1000, restored.createStoredMap("test_map", Int::class.javaObjectType, seconds(60))["key1"])
+        assertEquals(listOf("a", "b"), restored.createStoredList("test_list", String::class.java).toList())
+        assertEquals(setOf("c"), restored.createStoredSet("test_set", String::class.java).toSet())
+
+        val records = RecordJournal(File(tempFolder.root, "test_map"), 64 * 1024L, 32 * 1024L).readAll()
+        assertEquals(mapOf("v/key1" to "1000", "e/key1" to "61000"), records)
+    }
+
+    @Test
+    fun clearCollections_RemovesPersistedEntriesAndDiscardsPendingChanges() {
+        val sharedPreferences = MockSharedPreference()
+        val storage = HengamStorage(HengamMoshi(), sharedPreferences)
+        val storedMap = storage.createStoredMap("test_map", Int::class.javaObjectType)
+        storedMap["key1"] = 1000
+        advanceTimeBy(seconds(10))
+        storedMap["key2"] = 2000
+
+        storage.clearCollections()
+        advanceTimeBy(seconds(10))
+
+        assertTrue(storedMap.isEmpty())
+        assertTrue(sharedPreferences.all.keys.none { it.startsWith("test_map/") })
+        assertTrue(HengamStorage(HengamMoshi(), sharedPreferences).createStoredMap("test_map", Int::class.javaObjectType).isEmpty())
     }
 
 }
 
 data class TestObject(val name: String, val age: Int)
 
+data class MutableTestObject(val name: String, var age: Int)
+
 object TestObjectAdapter {
     @ToJson
     fun toJson(obj: TestObject): Map<String, String> = mapOf(
@@ -284,4 +514,18 @@ object TestObjectAdapter {
             json["name"] ?: "",
             json["age"]?.toIntOrNull() ?: 0
     )
-}
\ No newline at end of file
+}
+
+object MutableTestObjectAdapter {
+    @ToJson
+    fun toJson(obj: MutableTestObject): Map<String, String> = mapOf(
+            "name" to obj.name,
+            "age" to obj.age.toString()
+    )
+
+    @FromJson
+    fun fromJson(json: Map<String, String>): MutableTestObject = MutableTestObject(
+            json["name"] ?: "",
+            json["age"]?.toIntOrNull() ?: 0
+    )
+}
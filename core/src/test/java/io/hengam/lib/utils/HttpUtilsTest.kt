@@ -0,0 +1,126 @@
+package io.hengam.lib.utils
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import io.hengam.lib.internal.HengamConfig
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPOutputStream
+
+class HttpUtilsTest {
+    private val hengamConfig: HengamConfig = mockk(relaxed = true)
+    private val httpUtils = HttpUtils(hengamConfig)
+
+    private lateinit var server: HttpServer
+    private val baseUrl get() = "http://localhost:${server.address.port}"
+
+    @Before
+    fun setUp() {
+        every { hengamConfig.getLong(any(), any()) } returns -1
+        server = HttpServer.create(InetSocketAddress("localhost", 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    private fun respond(exchange: HttpExchange, code: Int, body: ByteArray) {
+        exchange.sendResponseHeaders(code, if (body.isEmpty()) -1 else body.size.toLong())
+        exchange.responseBody.use { it.write(body) }
+    }
+
+    @Test
+    fun requestBlocking_DecodesGzipResponses() {
+        server.createContext("/gzip") { exchange ->
+            val compressed = ByteArrayOutputStream()
+            GZIPOutputStream(compressed).use { it.write("compressed body".toByteArray()) }
+            exchange.responseHeaders.add("Content-Encoding", "gzip")
+            respond(exchange, 200, compressed.toByteArray())
+        }
+
+        assertEquals("compressed body", httpUtils.requestBlocking("$baseUrl/gzip"))
+    }
+
+    @Test
+    fun requestBlocking_ThrowsHttpErrorForErrorResponses() {
+        server.createContext("/missing") { respond(it, 404, "not found".toByteArray()) }
+
+        try {
+            httpUtils.requestBlocking("$baseUrl/missing")
+            fail("Expected HttpError")
+        } catch (ex: HttpUtils.HttpError) {
+            assertEquals(404, ex.statusCode)
+        }
+    }
+
+    @Test
+    fun requestBlocking_FailsIfResponseIsTooLarge() {
+        every { hengamConfig.getLong("http_max_response_size", any()) } returns 10
+        server.createContext("/large") { respond(it, 200, ByteArray(100) { 'a'.toByte() }) }
+
+        try {
+            httpUtils.requestBlocking("$baseUrl/large")
+            fail("Expected ResponseTooLargeException")
+        } catch (ex: HttpUtils.ResponseTooLargeException) {
+            assertEquals(10, ex.maxSize)
+        }
+    }
+
+    @Test
+    fun requestBlocking_SharesInFlightRequestsForSameUrl() {
+        val requestCount = AtomicInteger()
+        val requestReceived = CountDownLatch(1)
+        val releaseResponse = CountDownLatch(1)
+        server.createContext("/slow") { exchange ->
+            requestCount.incrementAndGet()
+            requestReceived.countDown()
+            releaseResponse.await(5, TimeUnit.SECONDS)
+            respond(exchange, 200, "slow body".toByteArray())
+        }
+
+        val executor = Executors.newFixedThreadPool(2)
+        val first = executor.submit<String> { httpUtils.requestBlocking("$baseUrl/slow") }
+        assertTrue(requestReceived.await(5, TimeUnit.SECONDS))
+        val second = executor.submit<String> { httpUtils.requestBlocking("$baseUrl/slow") }
+        Thread.sleep(100)
+        releaseResponse.countDown()
+
+        assertEquals("slow body", first.get(5, TimeUnit.SECONDS))
+        assertEquals("slow body", second.get(5, TimeUnit.SECONDS))
+        assertEquals(1, requestCount.get())
+        executor.shutdown()
+    }
+
+    @Test
+    fun requestBlockingConditional_ReturnsNoBodyIfNotModified() {
+        server.createContext("/image") { exchange ->
+            if (exchange.requestHeaders.getFirst("If-None-Match") == "\"v1\"") {
+                respond(exchange, 304, ByteArray(0))
+            } else {
+                exchange.responseHeaders.add("ETag", "\"v1\"")
+                respond(exchange, 200, "image".toByteArray())
+            }
+        }
+
+        val response = httpUtils.requestBlockingConditional("$baseUrl/image", null, null)
+        assertEquals("image", response.body!!.use { it.reader().readText() })
+        assertEquals("\"v1\"", response.etag)
+
+        val revalidated = httpUtils.requestBlockingConditional("$baseUrl/image", "\"v1\"", null)
+        assertTrue(revalidated.isNotModified)
+        assertEquals("\"v1\"", revalidated.etag)
+    }
+}
@@ -12,10 +12,14 @@ import io.hengam.lib.datalytics.dagger.DatalyticsComponent
 import io.hengam.lib.datalytics.messages.upstream.BootCompletedMessage
 import io.hengam.lib.datalytics.services.registerScreenReceiver
 import io.hengam.lib.datalytics.tasks.scheduleLocationCollection
+import io.hengam.lib.datalytics.tasks.DatalyticsCollectionTask
+import io.hengam.lib.datalytics.tasks.GeofencePeriodicRegisterTask
 import io.hengam.lib.datalytics.tasks.InstallDetectorTask
+import io.hengam.lib.datalytics.tasks.LocationRequestTask
 import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamComponentInitializer
 import io.hengam.lib.internal.HengamInternals
+import io.hengam.lib.internal.task.TaskRegistry
 import io.hengam.lib.utils.rx.justDo
 import io.hengam.lib.utils.log.Plog
 
@@ -38,6 +42,11 @@ class DatalyticsInitializer : HengamComponentInitializer() {
 
         extendMoshi(datalyticsComponent.moshi())
 
+        TaskRegistry.register(DatalyticsCollectionTask::class) { DatalyticsCollectionTask() }
+        TaskRegistry.register(GeofencePeriodicRegisterTask::class) { GeofencePeriodicRegisterTask() }
+        TaskRegistry.register(InstallDetectorTask::class) { InstallDetectorTask() }
+        TaskRegistry.register(LocationRequestTask::class) { LocationRequestTask() }
+
         HengamInternals.registerComponent(DATALYTICS, DatalyticsComponent::class.java, datalyticsComponent)
         HengamInternals.registerDebugCommands(datalyticsComponent.debugCommands())
     }
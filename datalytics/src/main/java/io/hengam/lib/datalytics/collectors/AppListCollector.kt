@@ -5,11 +5,11 @@ import io.hengam.lib.datalytics.appListBlackListUrl
 import io.hengam.lib.datalytics.messages.upstream.ApplicationDetailsMessage
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamMoshi
+import io.hengam.lib.internal.computationThread
 import io.hengam.lib.messaging.SendableUpstreamMessage
 import io.hengam.lib.utils.ApplicationInfoHelper
 import io.hengam.lib.utils.HttpUtils
 import com.squareup.moshi.JsonAdapter
-import com.squareup.moshi.Types
 import io.reactivex.Observable
 import io.reactivex.Single
 import java.io.IOException
@@ -33,8 +33,10 @@ class AppListCollector @Inject constructor(
                     .onErrorResumeNext {
                         Single.just("[]")
                     }
+                    // Parsing the blacklist and filtering and hashing the app list is pure computation
+                    .observeOn(computationThread())
                     .map {
-                        val adapter: JsonAdapter<List<String>> = hengamMoshi.moshi.adapter(Types.newParameterizedType(List::class.java, String::class.java))
+                        val adapter: JsonAdapter<List<String>> = hengamMoshi.adapter(HengamMoshi.STRING_LIST_TYPE)
                         adapter.fromJson(it.replace("\\", "\\\\"))
                     }
                     .map { packageList -> packageList.map { if (it.startsWith("^")) it.toRegex() else it } as List<Any> }
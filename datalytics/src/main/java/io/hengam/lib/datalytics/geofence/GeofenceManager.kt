@@ -92,16 +92,32 @@ class GeofenceManager @Inject constructor(
      *
      * The geofence will not be added if it has an expiration date which has already passed.
      */
-    fun addOrUpdateGeofence(geofence: GeofenceMessage) {
-        val expirationDuration = geofence.expirationDate?.time?.let { it - TimeUtils.nowMillis() }
-        if (expirationDuration ?: 0 < 0) {
-            Plog.warn(T_DATALYTICS, T_GEOFENCE, "The expiration time for a received geofence request has " +
-                    "already been reached, the geofence will not be registered")
-            return
+    fun addOrUpdateGeofence(geofence: GeofenceMessage) = addOrUpdateGeofences(listOf(geofence))
+
+    /**
+     * Adds a number of geofences and registers them with the [GeofencingClient].
+     *
+     * Behaves the same as calling [addOrUpdateGeofence] for each geofence, however the
+     * [GeofencePeriodicRegisterTask] is only scheduled once for all of the geofences.
+     */
+    fun addOrUpdateGeofences(geofenceMessages: List<GeofenceMessage>) {
+        val addedGeofences = geofenceMessages.filter { geofence ->
+            val expirationDuration = geofence.expirationDate?.time?.let { it - TimeUtils.nowMillis() }
+            if (expirationDuration ?: 0 < 0) {
+                Plog.warn(T_DATALYTICS, T_GEOFENCE, "The expiration time for a received geofence request has " +
+                        "already been reached, the geofence will not be registered", "Id" to geofence.id)
+                return@filter false
+            }
+            geofences.put(geofence.id, geofence, expirationDuration?.let { millis(it) })
+            true
         }
 
-        geofences.put(geofence.id, geofence, expirationDuration?.let { millis(it) })
+        if (addedGeofences.isEmpty()) return
         taskScheduler.schedulePeriodicTask(GeofencePeriodicRegisterTask.Options())
+        addedGeofences.forEach { registerAddedGeofence(it) }
+    }
+
+    private fun registerAddedGeofence(geofence: GeofenceMessage) {
         attemptAddingGeofence(geofence).subscribeBy(
                 onSuccess = { successful: Boolean ->
                     if (successful) {
@@ -23,7 +23,7 @@ class MessageDispatcher @Inject constructor(
             }
         }
 
-        postOffice.mailBox(GeofenceMessage.Parser(), geofenceManager::addOrUpdateGeofence)
+        postOffice.batchMailBox(GeofenceMessage.Parser(), geofenceManager::addOrUpdateGeofences)
         postOffice.mailBox(RemoveGeofenceMessage.Parser(), geofenceManager::removeGeofence)
     }
 }
@@ -5,15 +5,16 @@ import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.internal.HengamException
 import io.hengam.lib.internal.HengamInitializer
 import io.hengam.lib.internal.ioThread
+import io.hengam.lib.logcollection.Constants.SYNC_CHUNK_COUNT
+import io.hengam.lib.logcollection.dagger.LogCollectionScope
 import io.hengam.lib.logcollection.db.LogCollectionDatabaseImpl
-import io.hengam.lib.logcollection.db.LogEntity
-import io.hengam.lib.logcollection.network.LogError
 import io.hengam.lib.logcollection.network.NetworkManager
 import io.hengam.lib.logcollection.network.RequestLogItem
+import io.hengam.lib.logcollection.storage.LogStorage
 import io.hengam.lib.logcollection.tasks.AutoStopTask
 import io.hengam.lib.logcollection.tasks.DbCleanerTask
 import io.hengam.lib.logcollection.tasks.LogSyncerTask
-import io.hengam.lib.utils.log.LogHandler
+import io.hengam.lib.utils.log.FilteredLogHandler
 import io.hengam.lib.utils.log.LogLevel
 import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.log.Plogger
@@ -21,21 +22,26 @@ import io.hengam.lib.utils.rx.PublishRelay
 import io.reactivex.Completable
 import io.reactivex.Observable
 import io.reactivex.Single
-import java.io.PrintWriter
-import java.io.StringWriter
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
+@LogCollectionScope
 class LogCollector @Inject constructor(
         private val networkManager: NetworkManager,
         private val database: LogCollectionDatabaseImpl,
+        private val ingestionQueue: LogIngestionQueue,
+        private val logStorage: LogStorage,
         private val hengamConfig: HengamConfig
-) : LogHandler {
+) : FilteredLogHandler {
+    override val minLevel: LogLevel? = LogLevel.DEBUG
 
-    private val logThrottler = PublishRelay.create<Plogger.LogItem?>()
+    private val logThrottler = PublishRelay.create<Int>()
     private var debounceCounter = 0
 
+    val ingestionStats: LogIngestionQueue.Stats get() = ingestionQueue.stats
+
     fun initialize() {
+        ingestionQueue.onLogsFlushed = { logThrottler.accept(it) }
         Plog.addHandler(this)
         initializeThrottler()
     }
@@ -110,17 +116,66 @@ class LogCollector @Inject constructor(
         }
     }
 
-    fun attemptSyncing(limit: Int = 200): Completable {
-        if (limit == 0) {
-            return Completable.error(MaxLogSyncingAttemptException())
-        }
-        return database.getNewLogs()
-                .flatMapCompletable { it ->
-                    if (it.isEmpty()) {
-                        return@flatMapCompletable Completable.complete()
+    /**
+     * Send all unsent logs to the server, one page of [SYNC_CHUNK_COUNT] logs at a time.
+     *
+     * Logs are paged by their id. After each page is sent, the id of it's last log is persisted
+     * as the sync cursor and the sent logs are deleted, so if the process is killed during syncing
+     * the next attempt continues from the last sent page.
+     *
+     * @param maxPages The maximum number of pages to send, the returned [Completable] will fail
+     *                 with a [MaxLogSyncingAttemptException] if more logs remain after sending
+     *                 this many pages
+     */
+    fun attemptSyncing(maxPages: Int = MAX_SYNC_PAGES): Completable {
+        return prepareSyncCursor().andThen(syncPages(maxPages))
+    }
+
+    /**
+     * Send pages one after the other until no more logs are available or [remainingPages] pages
+     * have been sent
+     */
+    private fun syncPages(remainingPages: Int): Completable {
+        return Single.defer { syncNextPage() }
+                .flatMapCompletable { hasMoreLogs ->
+                    when {
+                        !hasMoreLogs -> Completable.complete()
+                        remainingPages <= 1 -> Completable.error(MaxLogSyncingAttemptException())
+                        else -> syncPages(remainingPages - 1)
+                    }
+                }
+    }
+
+    /**
+     * Remove logs which were sent but not deleted in a previous sync attempt and reset the cursor
+     * if the database has been cleared since it was saved.
+     */
+    private fun prepareSyncCursor(): Completable {
+        return database.getMaxLogId()
+                .flatMapCompletable { maxId ->
+                    val cursor = syncCursor
+                    if (maxId < cursor) {
+                        syncCursor = 0
+                        Completable.complete()
+                    } else {
+                        database.deleteLogsUpTo(cursor)
                     }
+                }
+    }
+
+    /**
+     * @return A [Single] which emits `true` if more logs may be available for syncing
+     */
+    private fun syncNextPage(): Single<Boolean> {
+        return database.getLogsAfter(syncCursor)
+                .flatMap { logs ->
+                    if (logs.isEmpty()) {
+                        return@flatMap Single.just(false)
+                    }
+
+                    val lastId = logs.last().id
                     networkManager.synchronizeLogs(
-                            it.map {
+                            logs.map {
                                 RequestLogItem(
                                         id = it.id,
                                         message = it.message,
@@ -130,48 +185,29 @@ class LogCollector @Inject constructor(
                                         time = it.time,
                                         error = it.error
                                 )
-                            }
+                            },
+                            lastId
                     )
-                            .andThen(flagLogs(it))
-                            .andThen(attemptSyncing(limit - 1))
+                            .doOnComplete { syncCursor = lastId }
+                            .andThen(database.deleteLogsUpTo(lastId))
+                            .toSingleDefault(logs.size >= SYNC_CHUNK_COUNT)
                 }
     }
 
-    private fun flagLogs(logs: List<LogEntity>?): Completable {
-        if (logs.isNullOrEmpty()) return Completable.complete()
-        return database.updateDatabase(logs.map {
-            it.apply { isSent = true }
-        })
-    }
+    private var syncCursor: Int
+        get() = logStorage.getInt(KEY_SYNC_CURSOR, 0)
+        set(value) = logStorage.putInt(KEY_SYNC_CURSOR, value)
 
     override fun onLog(logItem: Plogger.LogItem?) {
         if (logItem != null && logItem.level >= LogLevel.DEBUG) {
-            val disposable = database.insertLogs(createLogItem(logItem)).subscribe {
-                logThrottler.accept(logItem)
-            }
+            ingestionQueue.enqueue(logItem)
         }
     }
 
-    private fun createLogItem(logItem: Plogger.LogItem?): LogEntity? {
-        return if (logItem != null)
-            LogEntity(
-                    message = logItem.message,
-                    tags = logItem.tags.toList(),
-                    level = logItem.level.toString().toLowerCase(),
-                    error = if (logItem.throwable != null) {
-                        val sw = StringWriter()
-                        logItem.throwable?.printStackTrace(PrintWriter(sw))
-                        LogError(logItem.throwable?.message, sw.toString())
-                    } else null,
-                    logData = logItem.logData.entries.map {
-                        it.key to it.value.toString()
-                    }.toMap(),
-                    time = logItem.timestamp.time
-            ) else null
-    }
-
     companion object {
         private const val SYNC_INTERVAL = 20000L
+        private const val MAX_SYNC_PAGES = 200
+        private const val KEY_SYNC_CURSOR = "log_sync_cursor"
         private const val DB_CLEANING_INTERVAL = 3 * 24 * 3600 * 1000L
     }
 }
@@ -0,0 +1,194 @@
+package io.hengam.lib.logcollection
+
+import android.util.Log
+import io.hengam.lib.internal.ioThread
+import io.hengam.lib.logcollection.dagger.LogCollectionScope
+import io.hengam.lib.logcollection.db.LogCollectionDatabaseImpl
+import io.hengam.lib.logcollection.db.LogEntity
+import io.hengam.lib.logcollection.network.LogError
+import io.hengam.lib.utils.log.LogLevel
+import io.hengam.lib.utils.log.Plogger
+import io.hengam.lib.utils.millis
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.atomic.AtomicLong
+import javax.inject.Inject
+
+/**
+ * Collects logs in a bounded ring buffer and stores them in the database in batches.
+ *
+ * Logs are enqueued on the logging thread without any processing. Converting the logs to
+ * [LogEntity] instances (e.g., rendering stack traces) and inserting them in the database is done
+ * on the io thread, once [BATCH_SIZE] logs are queued or [FLUSH_DELAY] milliseconds after the first
+ * queued log. Each batch is inserted in a single database transaction.
+ *
+ * If logs are produced faster than they can be stored and the buffer becomes full, new logs with a
+ * level lower than [LogLevel.WARN] are dropped. Logs with a [LogLevel.WARN] level or higher replace
+ * the oldest queued log instead.
+ */
+@LogCollectionScope
+class LogIngestionQueue @Inject constructor(
+        private val database: LogCollectionDatabaseImpl
+) {
+    class Stats(
+            val queued: Int,
+            val enqueued: Long,
+            val dropped: Long,
+            val flushed: Long,
+            val failed: Long
+    ) {
+        override fun toString(): String =
+                "LogIngestionStats[Queued=$queued Enqueued=$enqueued Dropped=$dropped Flushed=$flushed Failed=$failed]"
+    }
+
+    private val buffer = arrayOfNulls<Plogger.LogItem>(CAPACITY)
+    private var head = 0
+    private var size = 0
+
+    private var isFlushScheduled = false
+    private var isImmediateFlushScheduled = false
+    private var isFlushing = false
+
+    private val enqueuedCount = AtomicLong()
+    private val droppedCount = AtomicLong()
+    private val flushedCount = AtomicLong()
+    private val failedCount = AtomicLong()
+
+    /**
+     * Will be called on the io thread after each batch of logs is stored
+     */
+    var onLogsFlushed: ((Int) -> Unit)? = null
+
+    val stats: Stats
+        get() = Stats(
+                queued = synchronized(buffer) { size },
+                enqueued = enqueuedCount.get(),
+                dropped = droppedCount.get(),
+                flushed = flushedCount.get(),
+                failed = failedCount.get()
+        )
+
+    fun enqueue(logItem: Plogger.LogItem) {
+        enqueuedCount.incrementAndGet()
+
+        synchronized(buffer) {
+            if (size == CAPACITY) {
+                if (logItem.level < LogLevel.WARN) {
+                    droppedCount.incrementAndGet()
+                    return
+                }
+                // Drop the oldest log to make room
+                buffer[head] = null
+                head = (head + 1) % CAPACITY
+                size -= 1
+                droppedCount.incrementAndGet()
+            }
+
+            buffer[(head + size) % CAPACITY] = logItem
+            size += 1
+
+            if (size >= BATCH_SIZE && !isImmediateFlushScheduled) {
+                isImmediateFlushScheduled = true
+                ioThread { flush() }
+            } else if (!isFlushScheduled) {
+                isFlushScheduled = true
+                ioThread(millis(FLUSH_DELAY)) { flush() }
+            }
+        }
+    }
+
+    /**
+     * Store all queued logs in the database. Should be called on the io thread.
+     *
+     * If another flush is already in progress this returns immediately without blocking the
+     * calling thread. The running flush keeps taking batches until the queue is empty, so it will
+     * also store any logs queued after it started.
+     */
+    fun flush() {
+        synchronized(buffer) {
+            if (isFlushing) return
+            isFlushing = true
+        }
+
+        var isQueueEmpty = false
+        try {
+            while (true) {
+                val batch = takeBatch()
+                if (batch.isEmpty()) {
+                    isQueueEmpty = true
+                    break
+                }
+
+                try {
+                    database.insertLogsBlocking(batch.map { createLogEntity(it) })
+                    flushedCount.addAndGet(batch.size.toLong())
+                    onLogsFlushed?.invoke(batch.size)
+                } catch (ex: Exception) {
+                    // Logging with Plog here would feed the failure back in to the queue
+                    failedCount.addAndGet(batch.size.toLong())
+                    Log.w("Hengam", "Storing collected logs failed", ex)
+                }
+            }
+        } finally {
+            if (!isQueueEmpty) {
+                // The flush was interrupted, let the next enqueued log schedule a new one
+                synchronized(buffer) {
+                    isFlushing = false
+                    isFlushScheduled = false
+                    isImmediateFlushScheduled = false
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the next batch of logs to store. If the queue is empty the flush is marked as finished
+     * in the same critical section, so that logs enqueued afterwards schedule a new flush rather
+     * than being left for a flush which has already stopped taking batches.
+     */
+    private fun takeBatch(): List<Plogger.LogItem> {
+        synchronized(buffer) {
+            val count = minOf(size, MAX_BATCH_SIZE)
+            if (count == 0) {
+                isFlushScheduled = false
+                isImmediateFlushScheduled = false
+                isFlushing = false
+                return emptyList()
+            }
+
+            val batch = ArrayList<Plogger.LogItem>(count)
+            for (i in 0 until count) {
+                buffer[head]?.let { batch.add(it) }
+                buffer[head] = null
+                head = (head + 1) % CAPACITY
+            }
+            size -= count
+            return batch
+        }
+    }
+
+    private fun createLogEntity(logItem: Plogger.LogItem): LogEntity {
+        val throwable = logItem.throwable
+        return LogEntity(
+                message = logItem.message,
+                tags = logItem.tags.toList(),
+                level = logItem.level.toString().toLowerCase(),
+                error = if (throwable != null) {
+                    val sw = StringWriter()
+                    throwable.printStackTrace(PrintWriter(sw))
+                    LogError(throwable.message, sw.toString())
+                } else null,
+                logData = logItem.logData.entries.map {
+                    it.key to it.value.toString()
+                }.toMap(),
+                time = logItem.timestamp.time
+        )
+    }
+
+    companion object {
+        const val CAPACITY = 2000
+        const val BATCH_SIZE = 50
+        const val MAX_BATCH_SIZE = 200
+        const val FLUSH_DELAY = 1000L
+    }
+}
@@ -33,6 +33,14 @@ class LogCollectionDatabaseImpl @Inject constructor(
         }.subscribeOn(ioThread())
     }
 
+    /**
+     * Insert the logs in a single transaction on the calling thread
+     */
+    fun insertLogsBlocking(logs: List<LogEntity>) {
+        if (logs.isEmpty()) return
+        database.runInTransaction { database.logItemDAO.insert(*logs.toTypedArray()) }
+    }
+
     fun getNewLogs() = Single.fromCallable{
         database.logItemDAO.getNewLogs(SYNC_CHUNK_COUNT)
     }.subscribeOn(ioThread())
@@ -41,6 +49,23 @@ class LogCollectionDatabaseImpl @Inject constructor(
         database.logItemDAO.getNewLogsCount()
     }.subscribeOn(ioThread())
 
+    fun getLogsAfter(cursor: Int) = Single.fromCallable {
+        database.logItemDAO.getLogsAfter(cursor, SYNC_CHUNK_COUNT)
+    }.subscribeOn(ioThread())
+
+    fun getLogsCountAfter(cursor: Int) = Single.fromCallable {
+        database.logItemDAO.getLogsCountAfter(cursor)
+    }.subscribeOn(ioThread())
+
+    fun getMaxLogId() = Single.fromCallable {
+        database.logItemDAO.getMaxId() ?: 0
+    }.subscribeOn(ioThread())
+
+    fun deleteLogsUpTo(lastId: Int): Completable {
+        return Completable.fromCallable { database.logItemDAO.deleteLogsUpTo(lastId) }
+            .subscribeOn(ioThread())
+    }
+
     fun clearDatabase(): Completable {
         return Completable.fromCallable { database.clearAllTables() }
             .subscribeOn(ioThread())
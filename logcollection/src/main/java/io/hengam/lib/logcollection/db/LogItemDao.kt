@@ -21,6 +21,21 @@ interface LogItemDao {
     @Query("SELECT COUNT(*) FROM logs WHERE isSent=0")
     fun getNewLogsCount(): Int
 
+    /**
+     * Get unsent logs with an id larger than the given cursor, ordered by their id
+     */
+    @Query("SELECT * FROM logs WHERE id > :cursor AND isSent=0 ORDER BY id LIMIT :limit")
+    fun getLogsAfter(cursor: Int, limit: Int): List<LogEntity>
+
+    @Query("SELECT COUNT(*) FROM logs WHERE id > :cursor AND isSent=0")
+    fun getLogsCountAfter(cursor: Int): Int
+
+    @Query("SELECT MAX(id) FROM logs")
+    fun getMaxId(): Int?
+
+    @Query("DELETE FROM logs WHERE id <= :lastId")
+    fun deleteLogsUpTo(lastId: Int)
+
     @Query("DELETE FROM logs WHERE :now - time > :expireDuration OR isSent=1")
     fun deleteExpiredLogs(now: Long, expireDuration: Long)
 }
\ No newline at end of file
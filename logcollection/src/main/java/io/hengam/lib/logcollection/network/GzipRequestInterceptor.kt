@@ -0,0 +1,49 @@
+package io.hengam.lib.logcollection.network
+
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.RequestBody
+import okhttp3.Response
+import okio.BufferedSink
+import okio.GzipSink
+import okio.Okio
+
+/**
+ * Compresses request bodies with gzip and sets the `Content-Encoding` header accordingly.
+ *
+ * Requests which have no body or which already have a `Content-Encoding` header are sent as-is.
+ */
+class GzipRequestInterceptor : Interceptor {
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val body = request.body()
+        if (body == null || request.header(HEADER_CONTENT_ENCODING) != null) {
+            return chain.proceed(request)
+        }
+
+        val compressedRequest = request.newBuilder()
+                .header(HEADER_CONTENT_ENCODING, "gzip")
+                .method(request.method(), gzip(body))
+                .build()
+        return chain.proceed(compressedRequest)
+    }
+
+    private fun gzip(body: RequestBody): RequestBody {
+        return object : RequestBody() {
+            override fun contentType(): MediaType? = body.contentType()
+
+            // The compressed length is not known in advance
+            override fun contentLength(): Long = -1
+
+            override fun writeTo(sink: BufferedSink) {
+                val gzipSink = Okio.buffer(GzipSink(sink))
+                body.writeTo(gzipSink)
+                gzipSink.close()
+            }
+        }
+    }
+
+    companion object {
+        private const val HEADER_CONTENT_ENCODING = "Content-Encoding"
+    }
+}
@@ -8,6 +8,7 @@ import io.hengam.lib.logcollection.DataProvider
 import io.hengam.lib.logcollection.db.LogCollectionDatabaseImpl
 import io.hengam.lib.utils.TimeUtils
 import io.reactivex.Completable
+import okhttp3.OkHttpClient
 import retrofit2.Retrofit
 import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory
 import retrofit2.converter.moshi.MoshiConverterFactory
@@ -20,16 +21,23 @@ class NetworkManager @Inject constructor(
 ) {
     private val retrofit: Retrofit = Retrofit.Builder()
         .baseUrl(dataProvider.logCollectionBaseUrl)
+        .client(OkHttpClient.Builder().addInterceptor(GzipRequestInterceptor()).build())
         .addConverterFactory(MoshiConverterFactory.create())
         .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
         .build()
 
-    fun synchronizeLogs(list: List<RequestLogItem>): Completable {
+    /**
+     * Send the logs to the server. Request bodies are compressed with gzip.
+     *
+     * @param list The logs to send
+     * @param cursor The id of the last log in the list, used for counting the remaining logs
+     */
+    fun synchronizeLogs(list: List<RequestLogItem>, cursor: Int): Completable {
         val core = HengamInternals.getComponent(CoreComponent::class.java)
         val deviceIDHelper = core?.deviceIdHelper()
         val fcmTokenStore = core?.fcmTokenStore()
         val appManifest = core?.appManifest()
-        return database.getLogsCount()
+        return database.getLogsCountAfter(cursor)
             .flatMapCompletable {
                 val logData = LogRequestData(
                         logs = list,
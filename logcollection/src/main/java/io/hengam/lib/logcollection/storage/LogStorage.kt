@@ -15,4 +15,10 @@ class LogStorage @Inject constructor(
     }
 
     fun getBoolean(key: String, default: Boolean) = sharedPreferences.getBoolean(key, default)
+
+    fun putInt(key: String, value: Int) {
+        sharedPreferences.edit().putInt(key, value).apply()
+    }
+
+    fun getInt(key: String, default: Int) = sharedPreferences.getInt(key, default)
 }
\ No newline at end of file
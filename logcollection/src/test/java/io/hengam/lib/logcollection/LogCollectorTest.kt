@@ -0,0 +1,87 @@
+package io.hengam.lib.logcollection
+
+import io.hengam.lib.logcollection.Constants.SYNC_CHUNK_COUNT
+import io.hengam.lib.logcollection.db.LogCollectionDatabaseImpl
+import io.hengam.lib.logcollection.db.LogEntity
+import io.hengam.lib.logcollection.network.NetworkManager
+import io.hengam.lib.logcollection.storage.LogStorage
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import io.reactivex.Completable
+import io.reactivex.Single
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+
+class LogCollectorTest {
+    private val storedLogs = mutableListOf<LogEntity>()
+    private val storage = mutableMapOf<String, Int>()
+
+    private val database: LogCollectionDatabaseImpl = mockk {
+        every { getMaxLogId() } answers { Single.just(storedLogs.map { it.id }.max() ?: 0) }
+        every { getLogsAfter(any()) } answers {
+            val cursor = firstArg<Int>()
+            Single.just(storedLogs.filter { it.id > cursor }.take(SYNC_CHUNK_COUNT))
+        }
+        every { deleteLogsUpTo(any()) } answers {
+            val lastId = firstArg<Int>()
+            Completable.fromCallable { storedLogs.removeAll { it.id <= lastId } }
+        }
+    }
+    private val networkManager: NetworkManager = mockk {
+        every { synchronizeLogs(any(), any()) } returns Completable.complete()
+    }
+    private val logStorage: LogStorage = mockk {
+        every { getInt(any(), any()) } answers { storage[firstArg()] ?: secondArg() }
+        every { putInt(any(), any()) } answers { storage[firstArg()] = secondArg() }
+    }
+    private val logCollector = LogCollector(networkManager, database, mockk(), logStorage, mockk())
+
+    private fun storeLogs(count: Int) {
+        val firstId = (storedLogs.map { it.id }.max() ?: 0) + 1
+        (firstId until firstId + count).forEach {
+            storedLogs.add(LogEntity(id = it, message = "Log $it", time = 0, level = "info"))
+        }
+    }
+
+    @Test
+    fun attemptSyncing_SendsAllLogsPageByPage() {
+        storeLogs(SYNC_CHUNK_COUNT * 2 + 5)
+
+        logCollector.attemptSyncing().test().assertComplete()
+
+        verify(exactly = 3) { networkManager.synchronizeLogs(any(), any()) }
+        verify { networkManager.synchronizeLogs(match { it.size == 5 }, SYNC_CHUNK_COUNT * 2 + 5) }
+        assertTrue(storedLogs.isEmpty())
+        assertEquals(SYNC_CHUNK_COUNT * 2 + 5, storage["log_sync_cursor"])
+    }
+
+    @Test
+    fun attemptSyncing_FailsIfLogsRemainAfterMaxPages() {
+        storeLogs(SYNC_CHUNK_COUNT * 3)
+
+        logCollector.attemptSyncing(maxPages = 2).test().assertError(MaxLogSyncingAttemptException::class.java)
+
+        verify(exactly = 2) { networkManager.synchronizeLogs(any(), any()) }
+        assertEquals(SYNC_CHUNK_COUNT, storedLogs.size)
+        assertEquals(SYNC_CHUNK_COUNT * 2, storage["log_sync_cursor"])
+    }
+
+    @Test
+    fun attemptSyncing_KeepsCursorOfLastSentPageIfSendingFails() {
+        storeLogs(SYNC_CHUNK_COUNT * 2)
+        every { networkManager.synchronizeLogs(any(), SYNC_CHUNK_COUNT * 2) } returns Completable.error(IOException())
+
+        logCollector.attemptSyncing().test().assertError(IOException::class.java)
+
+        assertEquals(SYNC_CHUNK_COUNT, storage["log_sync_cursor"])
+        assertEquals(SYNC_CHUNK_COUNT, storedLogs.size)
+    }
+
+    @Test
+    fun attemptSyncing_CompletesWithoutSendingIfNoLogsAreStored() {
+        logCollector.attemptSyncing().test().assertComplete()
+        verify(exactly = 0) { networkManager.synchronizeLogs(any(), any()) }
+    }
+}
@@ -0,0 +1,98 @@
+package io.hengam.lib.logcollection
+
+import io.hengam.lib.logcollection.db.LogCollectionDatabaseImpl
+import io.hengam.lib.logcollection.db.LogEntity
+import io.hengam.lib.utils.log.Plogger
+import io.hengam.lib.utils.test.TestUtils.mockIoThread
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class LogIngestionQueueTest {
+    private val ioThread = mockIoThread()
+    private val plogger = Plogger()
+    private val storedLogs = mutableListOf<LogEntity>()
+    private val database: LogCollectionDatabaseImpl = mockk {
+        every { insertLogsBlocking(any()) } answers { synchronized(storedLogs) { storedLogs.addAll(firstArg<List<LogEntity>>()) } }
+    }
+    private val queue = LogIngestionQueue(database)
+
+    private fun enqueueLogs(count: Int, from: Int = 0) =
+            (from until from + count).forEach { queue.enqueue(plogger.info.message("Log $it")) }
+
+    @Test
+    fun enqueue_FlushesImmediatelyOnceBatchSizeIsReached() {
+        enqueueLogs(LogIngestionQueue.BATCH_SIZE)
+        ioThread.triggerActions()
+
+        assertEquals(LogIngestionQueue.BATCH_SIZE, storedLogs.size)
+        assertEquals((0 until LogIngestionQueue.BATCH_SIZE).map { "Log $it" }, storedLogs.map { it.message })
+    }
+
+    @Test
+    fun enqueue_FlushesPartialBatchAfterFlushDelay() {
+        enqueueLogs(3)
+        ioThread.triggerActions()
+        assertTrue(storedLogs.isEmpty())
+
+        ioThread.advanceTimeBy(LogIngestionQueue.FLUSH_DELAY, TimeUnit.MILLISECONDS)
+        assertEquals(3, storedLogs.size)
+        assertEquals(3L, queue.stats.flushed)
+        assertEquals(0, queue.stats.queued)
+    }
+
+    @Test
+    fun enqueue_SchedulesNewFlushAfterPreviousFlushCompletes() {
+        enqueueLogs(3)
+        ioThread.advanceTimeBy(LogIngestionQueue.FLUSH_DELAY, TimeUnit.MILLISECONDS)
+        enqueueLogs(2, from = 3)
+        ioThread.advanceTimeBy(LogIngestionQueue.FLUSH_DELAY, TimeUnit.MILLISECONDS)
+
+        assertEquals(5, storedLogs.size)
+        verify(exactly = 2) { database.insertLogsBlocking(any()) }
+    }
+
+    @Test
+    fun enqueue_DropsLowLevelLogsWhenFull() {
+        enqueueLogs(LogIngestionQueue.CAPACITY + 10)
+        queue.enqueue(plogger.error.message("Error"))
+
+        assertEquals(LogIngestionQueue.CAPACITY, queue.stats.queued)
+        assertEquals(11L, queue.stats.dropped)
+
+        queue.flush()
+        assertEquals("Log 1", storedLogs.first().message)
+        assertEquals("Error", storedLogs.last().message)
+    }
+
+    @Test
+    fun flush_DoesNotBlockWhileAnotherFlushIsInProgress() {
+        val insertStarted = CountDownLatch(1)
+        val releaseInsert = CountDownLatch(1)
+        every { database.insertLogsBlocking(any()) } answers {
+            insertStarted.countDown()
+            releaseInsert.await(5, TimeUnit.SECONDS)
+            synchronized(storedLogs) { storedLogs.addAll(firstArg<List<LogEntity>>()) }
+        }
+
+        enqueueLogs(3)
+        val runningFlush = thread { queue.flush() }
+        assertTrue(insertStarted.await(5, TimeUnit.SECONDS))
+
+        // Should return without waiting for the running flush, which stores these logs as well
+        enqueueLogs(2, from = 3)
+        queue.flush()
+        assertTrue(storedLogs.isEmpty())
+
+        releaseInsert.countDown()
+        runningFlush.join(5000)
+
+        assertEquals((0 until 5).map { "Log $it" }, storedLogs.map { it.message })
+        assertEquals(0, queue.stats.queued)
+    }
+}
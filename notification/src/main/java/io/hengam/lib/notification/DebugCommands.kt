@@ -57,7 +57,8 @@ class DebugCommands @Inject constructor(
                             ),
                             "Enable Custom Sound" to "notif_enable_custom_sound",
                             "Disable Custom Sound" to "notif_disable_custom_sound",
-                            "Clear Image Cache" to "notif_clear_img_cache"
+                            "Clear Image Cache" to "notif_clear_img_cache",
+                            "Image Cache Stats" to "notif_img_cache_stats"
                     )
             )
 
@@ -168,6 +169,9 @@ class DebugCommands @Inject constructor(
             "notif_clear_img_cache" -> {
                 imageDownloader.purgeOutdatedCache(millis(0))
             }
+            "notif_img_cache_stats" -> {
+                Plog.debug(T_NOTIF, T_DEBUG, "Notification Image Cache Stats", "Stats" to imageDownloader.stats.toString())
+            }
             else -> return false
         }
         return true
@@ -4,6 +4,7 @@ import androidx.work.BackoffPolicy
 import io.hengam.lib.internal.HengamConfig
 import io.hengam.lib.notification.NotificationBuildStep.*
 import io.hengam.lib.utils.Time
+import io.hengam.lib.utils.days
 import io.hengam.lib.utils.millis
 import io.hengam.lib.utils.seconds
 
@@ -71,6 +72,28 @@ val HengamConfig.notificationMaxSoundDuration: Time
             .takeIf { it >= 0 }
             ?.let { millis(it) } ?: seconds(5)
 
+/**
+ * **notif_image_cache_max_size**
+ *
+ * The maximum size (in bytes) of the notification media cached on disk. Least recently used
+ * media will be removed from the cache once this size is exceeded.
+ */
+val HengamConfig.imageCacheMaxSize: Long
+    get() = getLong("notif_image_cache_max_size", -1)
+            .takeIf { it >= 0 } ?: 20L * 1024 * 1024
+
+/**
+ * **notif_image_cache_fresh_time**
+ *
+ * The time cached notification media may be used without checking with the server whether they
+ * have changed. Once this time has passed, the media will be revalidated the next time they are
+ * needed.
+ */
+val HengamConfig.imageCacheFreshTime: Time
+    get() = getLong("notif_image_cache_fresh_time", -1)
+            .takeIf { it >= 0 }
+            ?.let { millis(it) } ?: days(1)
+
 
 /**
  * **notif_build_backoff_policy**
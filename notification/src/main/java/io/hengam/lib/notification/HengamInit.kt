@@ -12,10 +12,13 @@ import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.ComponentNotAvailableException
 import io.hengam.lib.internal.HengamComponentInitializer
 import io.hengam.lib.internal.HengamInternals
+import io.hengam.lib.internal.task.TaskRegistry
 import io.hengam.lib.notification.LogTag.T_NOTIF
 import io.hengam.lib.notification.dagger.DaggerNotificationComponent
 import io.hengam.lib.notification.dagger.NotificationComponent
 import io.hengam.lib.notification.messages.downstream.NotificationMessage
+import io.hengam.lib.notification.tasks.InstallationCheckTask
+import io.hengam.lib.notification.tasks.NotificationBuildTask
 import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.rx.justDo
 import io.reactivex.Maybe
@@ -37,6 +40,10 @@ class NotificationInitializer : HengamComponentInitializer() {
         /* Extend Moshi */
         extendMoshi(core.moshi())
 
+        /* Register tasks */
+        TaskRegistry.register(NotificationBuildTask::class) { NotificationBuildTask() }
+        TaskRegistry.register(InstallationCheckTask::class) { InstallationCheckTask() }
+
         /* Start processing notification messages */
         notifComponent.messageDispatcher().listenForMessages()
 
@@ -26,12 +26,14 @@ import io.hengam.lib.notification.actions.FallbackAction
 import io.hengam.lib.notification.messages.downstream.NotificationMessage
 import io.hengam.lib.notification.messages.downstream.NotificationMessageJsonAdapter
 import io.hengam.lib.notification.utils.ImageDownloader
+import io.hengam.lib.notification.utils.MediaPrefetch
 import io.hengam.lib.notification.utils.MaterialIconHelper
 import io.hengam.lib.notification.utils.getNotificationButtonIds
 import io.hengam.lib.utils.*
 import io.hengam.lib.utils.log.Plog
 import io.hengam.lib.utils.rx.safeSingleFromCallable
 import com.squareup.moshi.Json
+import io.reactivex.Completable
 import io.reactivex.Observable
 import io.reactivex.Single
 import java.util.concurrent.TimeUnit
@@ -55,6 +57,7 @@ class NotificationBuilder constructor(
     private val actionAdapter = moshi.adapter(Action::class.java)
     private val skippedSteps = mutableListOf<NotificationBuildStep>()
     private val noError = Exception()
+    private var mediaPrefetches: Map<NotificationBuildStep, MediaPrefetch> = emptyMap()
 
     /**
      * Builds a [Notification] object which the data provided in the [NotificationMessage] provided
@@ -66,8 +69,14 @@ class NotificationBuilder constructor(
      *
      * If the notification message contains a custom sound it will be played but only if all other
      * steps complete successfully.
+     *
+     * The media needed by the build steps (images, icons and the custom sound) are all downloaded
+     * in parallel once building starts (see [prefetchMedia]). The steps themselves are still
+     * performed in order, each step waiting only for its own media to be available.
      */
     fun build(): Single<Notification> {
+        mediaPrefetches = prefetchMedia()
+
         val builderGet = performStep(NotificationBuildStep.CREATE_BUILDER, Single.fromCallable{ createBuilder() })
                 ?: Single.just(Notification.Builder(context))
 
@@ -108,7 +117,10 @@ class NotificationBuilder constructor(
                     ?: Single.error(IllegalStateException("Cannot continue notification building due to failure in finalize step "))
         }.flatMap { notification ->
             // Play custom sound
-            performStep(NotificationBuildStep.SOUND_DOWNLOAD, playCustomNotificationSound(notification))
+            // If prefetching the sound fails it will be streamed from its url instead
+            val playSound = playCustomNotificationSound(notification)
+            val soundPrefetch = mediaPrefetches[NotificationBuildStep.SOUND_DOWNLOAD]
+            performStep(NotificationBuildStep.SOUND_DOWNLOAD, soundPrefetch?.andThen(playSound, ignoreError = true) ?: playSound)
                     ?.onErrorResumeNext { Single.error(combineErrors(listOf(it))) }?.map { notification }
                     ?: Single.just(notification)
         }.doOnSuccess {
@@ -125,6 +137,55 @@ class NotificationBuilder constructor(
         }
     }
 
+    /**
+     * Start downloading the media needed for the notification build steps in parallel.
+     *
+     * The media are stored in the [ImageDownloader] cache so the build steps will load them from
+     * the cache once they are performed. Media for steps which have reached their error limit are
+     * not downloaded.
+     *
+     * @return A map containing a [MediaPrefetch] for each build step which needs media, which
+     * finishes once all the media of the step have been downloaded
+     */
+    private fun prefetchMedia(): Map<NotificationBuildStep, MediaPrefetch> {
+        val prefetches = mutableMapOf<NotificationBuildStep, MediaPrefetch>()
+        for (step in MEDIA_STEPS) {
+            try {
+                val urls = getMediaUrls(step).filter { isValidWebUrl(it) }.distinct()
+                if (urls.isEmpty() || errorHandler.hasErrorLimitBeenReached(message, step)) continue
+
+                // Errors are not handled here, they will be raised when the step is performed
+                prefetches[step] = MediaPrefetch(Completable.merge(urls.map { url ->
+                    Completable.fromCallable { imageDownloader.downloadImageAndCache(url) }
+                            .subscribeOn(ioThread())
+                }))
+            } catch (ex: Exception) {
+                Plog.warn(T_NOTIF, "Prefetching media for notification step '${step.name.toLowerCase()}' failed", ex,
+                        "Message Id" to message.messageId
+                )
+            }
+        }
+        return prefetches
+    }
+
+    private fun getMediaUrls(step: NotificationBuildStep): List<String> {
+        return when (step) {
+            NotificationBuildStep.IMAGE ->
+                if (SDK_INT >= JELLY_BEAN) listOfNotNull(message.imageUrl, message.bigIconUrl) else emptyList()
+            NotificationBuildStep.BACKGROUND_IMAGE -> listOfNotNull(message.justImgUrl)
+            NotificationBuildStep.SMALL_ICON ->
+                if (SDK_INT >= M && !message.useHengamIcon) listOfNotNull(message.smallIconUrl) else emptyList()
+            NotificationBuildStep.ICON ->
+                if (message.iconUrl.isNullOrBlank()) emptyList() else listOf(getIconForDevice(message.iconUrl))
+            NotificationBuildStep.DIALOG_ICON ->
+                listOf(message.action, *message.buttons.map { it.action }.toTypedArray())
+                        .mapNotNull { (it as? DialogAction)?.iconUrl }
+            NotificationBuildStep.SOUND_DOWNLOAD ->
+                if (notificationSettings.isCustomSoundEnabled) listOfNotNull(message.soundUrl) else emptyList()
+            else -> emptyList()
+        }
+    }
+
     /**
      * Performs a list of notification build steps sequentially and collects any errors occur in
      * the build steps.
@@ -134,7 +195,9 @@ class NotificationBuilder constructor(
         // Note: intentionally using `concatMap` and not `flatMap` so that steps are performed sequentially
         return Observable.fromIterable(steps.toList())
                 .concatMap { step ->
-                    performStep(step.type, safeSingleFromCallable { step.func() }, step.onSkipFunc?.let { safeSingleFromCallable(it) })
+                    val stepFunc = safeSingleFromCallable { step.func() }
+                    val prefetch = mediaPrefetches[step.type]
+                    performStep(step.type, prefetch?.andThen(stepFunc) ?: stepFunc, step.onSkipFunc?.let { safeSingleFromCallable(it) })
                             ?.map { noError }
                             ?.onErrorReturn { it as Exception } // TODO
                             ?.toObservable()
@@ -544,7 +607,10 @@ class NotificationBuilder constructor(
                         createSilentNotificationChannel()
                     }
                     notification.defaults = notification.defaults or Notification.DEFAULT_VIBRATE
-                    return@defer NotificationSoundPlayer(message.soundUrl, hengamConfig.notificationMaxSoundDuration)
+                    // The downloader's file cache is not specific to images, so the prefetched
+                    // sound is played from there if available
+                    val soundSource = imageDownloader.getCachedFile(message.soundUrl) ?: message.soundUrl
+                    return@defer NotificationSoundPlayer(soundSource, hengamConfig.notificationMaxSoundDuration)
                             .play()
                             .toSingleDefault(notification)
                 }
@@ -566,6 +632,20 @@ class NotificationBuilder constructor(
             notificationManager.createNotificationChannel(channel)
         }
     }
+
+    companion object {
+        /**
+         * The build steps which need media to be downloaded
+         */
+        private val MEDIA_STEPS = listOf(
+                NotificationBuildStep.IMAGE,
+                NotificationBuildStep.BACKGROUND_IMAGE,
+                NotificationBuildStep.SMALL_ICON,
+                NotificationBuildStep.ICON,
+                NotificationBuildStep.DIALOG_ICON,
+                NotificationBuildStep.SOUND_DOWNLOAD
+        )
+    }
 }
 
 private class Step(
@@ -7,6 +7,7 @@ import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.internal.HengamMoshi
 import io.hengam.lib.internal.task.OneTimeTaskOptions
 import io.hengam.lib.internal.task.HengamTask
+import io.hengam.lib.internal.task.TaskPriority
 import io.hengam.lib.notification.*
 import io.hengam.lib.notification.LogTag.T_NOTIF
 import io.hengam.lib.notification.dagger.NotificationComponent
@@ -91,6 +92,11 @@ class NotificationBuildTask: HengamTask() {
 
     companion object {
         const val DATA_NOTIFICATION_MESSAGE = "notification_message"
+
+        /**
+         * Notifications are built in parallel since building may need to download images
+         */
+        const val MAX_CONCURRENT_BUILDS = 3
     }
 
     class Options(
@@ -100,6 +106,8 @@ class NotificationBuildTask: HengamTask() {
         override fun task() = NotificationBuildTask::class
         override fun taskId() = if (message.tag.isNullOrBlank()) message.messageId else message.tag
         override fun existingWorkPolicy() = ExistingWorkPolicy.REPLACE
+        override fun priority() = TaskPriority.HIGH
+        override fun maxConcurrentRuns() = MAX_CONCURRENT_BUILDS
         override fun maxAttemptsCount(): Int = hengamConfig.maxNotificationBuildAttempts
         override fun backoffPolicy(): BackoffPolicy? = hengamConfig.notificationBuildBackOffPolicy
         override fun backoffDelay(): Time? = hengamConfig.notificationBuildBackOffDelay
@@ -0,0 +1,235 @@
+package io.hengam.lib.notification.utils
+
+import android.content.Context
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.notification.LogTag.T_NOTIF
+import io.hengam.lib.notification.dagger.NotificationScope
+import io.hengam.lib.notification.imageCacheFreshTime
+import io.hengam.lib.notification.imageCacheMaxSize
+import io.hengam.lib.utils.IdGenerator
+import io.hengam.lib.utils.Time
+import io.hengam.lib.utils.TimeUtils
+import io.hengam.lib.utils.log.Plog
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+import javax.inject.Inject
+
+/**
+ * A size-bounded least-recently-used file cache for downloaded notification media.
+ *
+ * Each entry is stored in a file named with the SHA-256 hash of its url along with a small
+ * metadata file holding the `ETag` and `Last-Modified` values received for the url, so that stale
+ * entries can be revalidated with a conditional request instead of being downloaded again.
+ *
+ * Once the total size of the cached files exceeds the size configured with
+ * [HengamConfig.imageCacheMaxSize], the least recently used entries are removed.
+ */
+@NotificationScope
+class ImageDiskCache @Inject constructor(
+        private val context: Context,
+        private val hengamConfig: HengamConfig
+) {
+    class Entry(
+            val file: File,
+            val etag: String?,
+            val lastModified: String?,
+            /**
+             * The time the content of the entry was stored
+             */
+            val storedAt: Long,
+            /**
+             * The last time the entry was downloaded or revalidated
+             */
+            val validatedAt: Long
+    )
+
+    private val lock = Any()
+    private val directory: File get() = File(context.cacheDir, "/images/")
+
+    /**
+     * The size of the cached files, keyed by file name in access order. Lazily loaded from the
+     * cache directory.
+     */
+    private var index: LinkedHashMap<String, Long>? = null
+    private var totalSize = 0L
+
+    private var evictionCount = 0L
+
+    val size: Long get() = synchronized(lock) { loadIndex(); totalSize }
+    val evictions: Long get() = synchronized(lock) { evictionCount }
+
+    /**
+     * Get the cached entry for a url and mark it as recently used
+     *
+     * @return The cached entry or null if no entry exists for the url
+     */
+    fun get(url: String): Entry? {
+        val name = fileName(url)
+        synchronized(lock) {
+            val index = loadIndex()
+            val file = File(directory, name)
+            if (index[name] == null || !file.exists()) {
+                forget(name)
+                return null
+            }
+            file.setLastModified(TimeUtils.nowMillis())
+            return readEntry(file)
+        }
+    }
+
+    /**
+     * Whether an entry was validated recently enough to be used without revalidation
+     */
+    fun isFresh(validatedAt: Long): Boolean =
+            TimeUtils.nowMillis() - validatedAt < hengamConfig.imageCacheFreshTime.toMillis()
+
+    /**
+     * Store the content of a url in the cache, replacing any existing entry for the url.
+     *
+     * Least recently used entries will be removed if the cache size limit is exceeded.
+     */
+    @Throws(IOException::class)
+    fun put(url: String, input: InputStream, etag: String?, lastModified: String?): Entry {
+        val name = fileName(url)
+        synchronized(lock) {
+            if (!directory.exists()) directory.mkdirs()
+        }
+
+        // Note: instead of writing directly to the cache file we write to the temp file first
+        // and then move it to the final "cache" file. This is to prevent unexpected behaviour
+        // if the same file is downloaded at the same time on different threads.
+        val tempFile = File(directory, "tmp-$name-${IdGenerator.generateId(5)}")
+        FileOutputStream(tempFile).use { output -> input.copyTo(output) }
+
+        synchronized(lock) {
+            val file = File(directory, name)
+            if (!tempFile.renameTo(file)) {
+                tempFile.copyTo(file, overwrite = true)
+                tempFile.delete()
+            }
+            val now = TimeUtils.nowMillis()
+            file.setLastModified(now)
+            writeMeta(file, now, now, etag, lastModified)
+
+            val index = loadIndex()
+            totalSize += file.length() - (index[name] ?: 0)
+            index[name] = file.length()
+            trimToSize(name)
+            return Entry(file, etag, lastModified, now, now)
+        }
+    }
+
+    /**
+     * Update the validation time of the entry for a url, should be called once the server
+     * responds that the cached content has not been modified.
+     */
+    fun markValidated(url: String): Entry? {
+        synchronized(lock) {
+            val entry = get(url) ?: return null
+            val now = TimeUtils.nowMillis()
+            writeMeta(entry.file, entry.storedAt, now, entry.etag, entry.lastModified)
+            return Entry(entry.file, entry.etag, entry.lastModified, entry.storedAt, now)
+        }
+    }
+
+    /**
+     * Remove entries which have not been used for longer than a specified time
+     */
+    fun purge(expirationTime: Time) {
+        synchronized(lock) {
+            val files = directory.listFiles() ?: return
+            val now = TimeUtils.nowMillis()
+            val oldFiles = files.filter { now - it.lastModified() >= expirationTime.toMillis() && !isMetaFile(it) }
+            if (oldFiles.isNotEmpty()) {
+                Plog.debug(T_NOTIF, "Deleting ${oldFiles.size} cached images")
+                oldFiles.forEach { delete(it.name) }
+            }
+            files.filter { isMetaFile(it) && !File(it.path.removeSuffix(META_SUFFIX)).exists() }
+                    .forEach { it.delete() }
+        }
+    }
+
+    private fun loadIndex(): LinkedHashMap<String, Long> {
+        index?.let { return it }
+
+        val loadedIndex = LinkedHashMap<String, Long>(16, 0.75f, true)
+        totalSize = 0
+        directory.listFiles()
+                ?.filter { it.name.startsWith("img") && !isMetaFile(it) }
+                ?.sortedBy { it.lastModified() }
+                ?.forEach {
+                    loadedIndex[it.name] = it.length()
+                    totalSize += it.length()
+                }
+        index = loadedIndex
+        return loadedIndex
+    }
+
+    private fun trimToSize(keepName: String) {
+        val index = loadIndex()
+        val maxSize = hengamConfig.imageCacheMaxSize
+        val iterator = index.entries.iterator()
+        while (totalSize > maxSize && iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key == keepName) continue
+            iterator.remove()
+            totalSize -= entry.value
+            deleteFiles(entry.key)
+            evictionCount += 1
+        }
+    }
+
+    private fun delete(name: String) {
+        forget(name)
+        deleteFiles(name)
+    }
+
+    private fun forget(name: String) {
+        index?.remove(name)?.let { totalSize -= it }
+    }
+
+    private fun deleteFiles(name: String) {
+        try {
+            File(directory, name).delete()
+            File(directory, "$name$META_SUFFIX").delete()
+        } catch (ex: Exception) {
+            Plog.warn(T_NOTIF, "Deleting cached image failed", ex)
+        }
+    }
+
+    private fun readEntry(file: File): Entry {
+        val metaFile = File(file.path + META_SUFFIX)
+        val lines = try {
+            if (metaFile.exists()) metaFile.readLines() else emptyList()
+        } catch (ex: IOException) {
+            Plog.warn(T_NOTIF, "Reading cached image metadata failed", ex)
+            emptyList<String>()
+        }
+        // Entries without metadata are treated as stale so that they will be downloaded again
+        return Entry(
+                file = file,
+                storedAt = lines.getOrNull(0)?.toLongOrNull() ?: 0,
+                validatedAt = lines.getOrNull(1)?.toLongOrNull() ?: 0,
+                etag = lines.getOrNull(2)?.takeIf { it.isNotEmpty() },
+                lastModified = lines.getOrNull(3)?.takeIf { it.isNotEmpty() }
+        )
+    }
+
+    private fun writeMeta(file: File, storedAt: Long, validatedAt: Long, etag: String?, lastModified: String?) {
+        File(file.path + META_SUFFIX).writeText("$storedAt\n$validatedAt\n${etag ?: ""}\n${lastModified ?: ""}")
+    }
+
+    private fun isMetaFile(file: File) = file.name.endsWith(META_SUFFIX)
+
+    companion object {
+        private const val META_SUFFIX = ".meta"
+
+        fun fileName(url: String): String {
+            val digest = MessageDigest.getInstance("SHA-256").digest(url.toByteArray())
+            return "img-" + digest.joinToString("") { String.format("%02x", it) }
+        }
+    }
+}
@@ -4,28 +4,73 @@ import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.graphics.drawable.Drawable
+import android.util.LruCache
 import io.hengam.lib.notification.LogTag.T_NOTIF
+import io.hengam.lib.notification.dagger.NotificationScope
 import io.hengam.lib.utils.HttpUtils
-import io.hengam.lib.utils.IdGenerator
 import io.hengam.lib.utils.Time
 import io.hengam.lib.utils.days
 import io.hengam.lib.utils.log.Plog
-import java.io.File
-import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
-import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
 
 
 /***
  * A class for downloading notification image
+ *
+ * Downloaded images are cached in two tiers, decoded bitmaps are kept in memory and the
+ * downloaded files are kept in the [ImageDiskCache].
  */
-
+@NotificationScope
 class ImageDownloader @Inject constructor(
         private val context: Context,
-        private val httpUtils: HttpUtils
+        private val httpUtils: HttpUtils,
+        private val diskCache: ImageDiskCache
 ) {
+    private class MemoryEntry(val bitmap: Bitmap, val storedAt: Long, val validatedAt: Long)
+
+    class Stats(
+            val memoryHits: Long,
+            val diskHits: Long,
+            val notModified: Long,
+            val downloads: Long,
+            val evictions: Long,
+            val memorySize: Int,
+            val diskSize: Long
+    ) {
+        val hitRate: Double
+            get() {
+                val total = memoryHits + diskHits + notModified + downloads
+                return if (total == 0L) 0.0 else (memoryHits + diskHits + notModified).toDouble() / total
+            }
+
+        override fun toString(): String =
+                "ImageCacheStats[HitRate=${"%.2f".format(hitRate)} MemoryHits=$memoryHits DiskHits=$diskHits " +
+                        "NotModified=$notModified Downloads=$downloads Evictions=$evictions " +
+                        "MemorySize=$memorySize DiskSize=$diskSize]"
+    }
+
+    private val memoryCache = object : LruCache<String, MemoryEntry>(memoryCacheSize()) {
+        override fun sizeOf(key: String, value: MemoryEntry): Int = value.bitmap.rowBytes * value.bitmap.height
+    }
+
+    private val memoryHits = AtomicLong()
+    private val diskHits = AtomicLong()
+    private val notModifiedCount = AtomicLong()
+    private val downloadCount = AtomicLong()
+
+    val stats: Stats
+        get() = Stats(
+                memoryHits = memoryHits.get(),
+                diskHits = diskHits.get(),
+                notModified = notModifiedCount.get(),
+                downloads = downloadCount.get(),
+                evictions = diskCache.evictions,
+                memorySize = memoryCache.size(),
+                diskSize = diskCache.size
+        )
 
     /**
      * Attempts at downloading an image synchronously.
@@ -57,61 +102,75 @@ class ImageDownloader @Inject constructor(
 
 
     /**
-     * Attempts at downloading an image synchronously.
+     * Get an image, either from the memory cache, the disk cache or by downloading it.
+     *
+     * The image is decoded with a sample size which keeps it larger than the device screen, the
+     * decoded images are kept in an in-memory LRU cache which is bounded by the size of the
+     * bitmaps.
      *
      * @param url The image url
-     * @return The downloaded Bitmap image or null if downloading fails
+     * @return The image Bitmap
      */
     @Throws(IOException::class, HttpUtils.HttpError::class, ImageDownloaderException::class)
     fun getImage(url: String): Bitmap {
-        downloadImageAndCache(url)
-        return BitmapFactory.decodeFile(
-                getCachedFile(url)
-                        ?: throw ImageDownloaderException("Failed to retrieve saved image")
-        ) ?: throw ImageDownloaderException("Failed to decode image into a bitmap")
+        val cachedImage = memoryCache.get(url)
+        if (cachedImage != null && diskCache.isFresh(cachedImage.validatedAt)) {
+            memoryHits.incrementAndGet()
+            return cachedImage.bitmap
+        }
+
+        val entry = fetch(url)
+        if (cachedImage != null && cachedImage.storedAt == entry.storedAt) {
+            memoryCache.put(url, MemoryEntry(cachedImage.bitmap, entry.storedAt, entry.validatedAt))
+            return cachedImage.bitmap
+        }
+
+        val metrics = context.resources.displayMetrics
+        val maxDimension = Math.max(metrics.widthPixels, metrics.heightPixels)
+        val bitmap = decodeSampledBitmapFromFile(entry.file.absolutePath, maxDimension, maxDimension)
+                ?: throw ImageDownloaderException("Failed to decode image into a bitmap")
+        memoryCache.put(url, MemoryEntry(bitmap, entry.storedAt, entry.validatedAt))
+        return bitmap
     }
 
     /**
-     * Attempts at downloading an image synchronously and save it in a file.
+     * Attempts at downloading an image synchronously and save it in the disk cache.
      *
-     * @return The downloaded image file or null if downloading fails
+     * The image will not be downloaded if it has been cached recently. If it has been cached but
+     * is no longer fresh, it will be revalidated with the server and only downloaded if it has
+     * changed.
      */
     @Throws(IOException::class, HttpUtils.HttpError::class)
     fun downloadImageAndCache(url: String) {
-        val input = httpUtils.requestBlockingStream(url)
-
-        // Note: instead of writing directly to the cache file we write to the temp file first
-        // and then copy over to the final "cache" file. This is to prevent unexpected behaviour
-        // if the same file is downloaded at the same time on different threads.
-
-        val buffer = ByteArray(1024)
-        var read = input.read(buffer)
-
-        val directory = File(context.cacheDir, "/images/")
-        if (!directory.exists()) directory.mkdir()
+        fetch(url)
+    }
 
-        val cachedFile = File(context.cacheDir, "/images/img${url.hashCode()}")
-        if (cachedFile.exists()) {
-            return
+    @Throws(IOException::class, HttpUtils.HttpError::class)
+    private fun fetch(url: String): ImageDiskCache.Entry {
+        val cachedEntry = diskCache.get(url)
+        if (cachedEntry != null && diskCache.isFresh(cachedEntry.validatedAt)) {
+            diskHits.incrementAndGet()
+            return cachedEntry
         }
 
-        val tempFile = File(context.cacheDir, "/images/tmp${url.hashCode()}-${IdGenerator.generateId(5)}")
-        val outputStream = FileOutputStream(tempFile)
-
-        while (read != -1) {
-            outputStream.write(buffer, 0, read)
-            read = input.read(buffer)
+        val response = try {
+            httpUtils.requestBlockingConditional(url, cachedEntry?.etag, cachedEntry?.lastModified)
+        } catch (ex: IOException) {
+            if (cachedEntry == null) throw ex
+            Plog.warn(T_NOTIF, "Revalidating cached image failed, using stale image", ex, "Url" to url)
+            diskHits.incrementAndGet()
+            return cachedEntry
         }
-        outputStream.flush()
-        outputStream.close()
-        input.close()
 
-        tempFile.copyTo(cachedFile, overwrite = true)
-        try {
-            tempFile.delete()
-        } catch (ex: Exception) {
-            Plog.warn(T_NOTIF, ex)
+        val body = response.body
+        if (body == null) {
+            notModifiedCount.incrementAndGet()
+            return diskCache.markValidated(url) ?: throw ImageDownloaderException("Failed to retrieve saved image")
         }
+
+        downloadCount.incrementAndGet()
+        memoryCache.remove(url)
+        return body.use { diskCache.put(url, it, response.etag, response.lastModified) }
     }
 
     /**
@@ -133,50 +192,47 @@ class ImageDownloader @Inject constructor(
      * @return The loaded file path or null if loading fails
      */
     fun getCachedFile(url: String): String? {
-        val file = File(context.cacheDir, "/images/img${url.hashCode()}")
-        if (file.exists()) {
-            return file.absolutePath
-        }
-        return null
+        return diskCache.get(url)?.file?.absolutePath
     }
 
     /**
-     * Deletes cached images which have been cached for longer than a specified time
+     * Deletes cached images which have not been used for longer than a specified time
      *
-     * @param expirationTime The time duration which messages are allowed to live in the cache
+     * @param expirationTime The time duration which images are allowed to live in the cache
+     * without being used
      */
     fun purgeOutdatedCache(expirationTime: Time = days(7)) {
         try {
-            val directory= File(context.cacheDir, "/images/")
-            if (!directory.exists()) return
-
-            val files= directory.listFiles()
-            val oldFiles = mutableListOf<File>()
-
-            files.forEach {
-                val difDay = (Date().time - it.lastModified()) / (24 * 3600 * 1000)
-                if (difDay >= expirationTime.toDays()) {
-                    oldFiles.add(it)
-                    it.delete()
-                }
-            }
-
-            if (!oldFiles.isEmpty()) {
-                Plog.debug(T_NOTIF, "Deleting ${oldFiles.size} cached images")
-                oldFiles.forEach {
-                    it.delete()
-                }
-            }
-
+            memoryCache.evictAll()
+            diskCache.purge(expirationTime)
         } catch (e: Exception) {
             Plog.warn(T_NOTIF, "Clearing cached images failed", e)
         }
     }
 
-
     companion object {
         //private Context mContext;
 
+        /**
+         * The maximum size of the bitmaps kept in memory, 1/16th of the available heap but no more
+         * than 8MB
+         */
+        private fun memoryCacheSize(): Int =
+                Math.min(Runtime.getRuntime().maxMemory() / 16, 8L * 1024 * 1024).toInt()
+
+        /***
+         * Decode an image file with the largest sample size which keeps both its height and width
+         * larger than the requested height and width
+         */
+        fun decodeSampledBitmapFromFile(path: String, reqWidth: Int, reqHeight: Int): Bitmap? {
+            val options = BitmapFactory.Options()
+            options.inJustDecodeBounds = true
+            BitmapFactory.decodeFile(path, options)
+            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight)
+            options.inJustDecodeBounds = false
+            return BitmapFactory.decodeFile(path, options)
+        }
+
         /***
          * Calculate the largest inSampleSize value that is a power of 2 and keeps both
          * height and width larger than the requested height and width.
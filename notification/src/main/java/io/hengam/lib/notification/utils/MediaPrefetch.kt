@@ -0,0 +1,56 @@
+package io.hengam.lib.notification.utils
+
+import io.hengam.lib.internal.cpuThread
+import io.hengam.lib.internal.ioThread
+import io.reactivex.Completable
+import io.reactivex.CompletableEmitter
+import io.reactivex.Single
+
+/**
+ * Runs a media download once and keeps its result so it can be awaited any number of times.
+ *
+ * The download is started as soon as the instance is created. All state is only accessed on the
+ * cpu thread.
+ */
+class MediaPrefetch(download: Completable) {
+    private var isFinished = false
+    private var error: Throwable? = null
+    private val waitingEmitters = mutableListOf<CompletableEmitter>()
+
+    init {
+        download.observeOn(cpuThread()).subscribe({ finish(null) }, { finish(it) })
+    }
+
+    private fun finish(error: Throwable?) {
+        isFinished = true
+        this.error = error
+        waitingEmitters.forEach { emit(it) }
+        waitingEmitters.clear()
+    }
+
+    private fun emit(emitter: CompletableEmitter) {
+        val error = error
+        if (error == null) emitter.onComplete() else emitter.tryOnError(error)
+    }
+
+    /**
+     * @return A [Completable] which completes (or fails) on the cpu thread once the download has
+     * finished
+     */
+    fun await(): Completable = Completable.create { emitter ->
+        if (isFinished) emit(emitter) else waitingEmitters.add(emitter)
+    }.subscribeOn(cpuThread())
+
+    /**
+     * Runs the given step once the download has finished.
+     *
+     * The step is subscribed on the io thread, since [await] finishes on the cpu thread.
+     *
+     * @param ignoreError If `true` the step is run even if the download fails, otherwise the
+     * download error is emitted and the step is not run
+     */
+    fun <T> andThen(step: Single<T>, ignoreError: Boolean = false): Single<T> {
+        val prefetch = if (ignoreError) await().onErrorComplete() else await()
+        return prefetch.andThen(step.subscribeOn(ioThread()))
+    }
+}
@@ -0,0 +1,106 @@
+package io.hengam.lib.notification.utils
+
+import android.content.Context
+import io.hengam.lib.internal.HengamConfig
+import io.hengam.lib.utils.millis
+import io.hengam.lib.utils.test.TestUtils.mockTime
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class ImageDiskCacheTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val context: Context = mockk(relaxed = true)
+    private val hengamConfig: HengamConfig = mockk(relaxed = true)
+
+    @Before
+    fun setUp() {
+        mockTime(10_000)
+        every { context.cacheDir } returns tempFolder.root
+        every { hengamConfig.getLong("notif_image_cache_max_size", any()) } returns 25
+        every { hengamConfig.getLong("notif_image_cache_fresh_time", any()) } returns 1000
+    }
+
+    private fun content(size: Int) = ByteArray(size) { 1 }.inputStream()
+
+    @Test
+    fun put_StoresContentAndValidators() {
+        val cache = ImageDiskCache(context, hengamConfig)
+        cache.put("http://a.com/image.png", "image".byteInputStream(), "\"etag\"", "Mon, 01 Jan 2018 00:00:00 GMT")
+
+        val entry = ImageDiskCache(context, hengamConfig).get("http://a.com/image.png")
+        assertNotNull(entry)
+        assertEquals("image", entry!!.file.readText())
+        assertEquals("\"etag\"", entry.etag)
+        assertEquals("Mon, 01 Jan 2018 00:00:00 GMT", entry.lastModified)
+        assertEquals(10_000, entry.validatedAt)
+        assertNull(cache.get("http://a.com/other.png"))
+    }
+
+    @Test
+    fun put_EvictsLeastRecentlyUsedEntriesWhenSizeLimitIsExceeded() {
+        val cache = ImageDiskCache(context, hengamConfig)
+        cache.put("http://a.com/1.png", content(10), null, null)
+        cache.put("http://a.com/2.png", content(10), null, null)
+        cache.get("http://a.com/1.png")
+        cache.put("http://a.com/3.png", content(10), null, null)
+
+        assertNotNull(cache.get("http://a.com/1.png"))
+        assertNull(cache.get("http://a.com/2.png"))
+        assertNotNull(cache.get("http://a.com/3.png"))
+        assertEquals(20, cache.size)
+        assertEquals(1, cache.evictions)
+    }
+
+    @Test
+    fun put_KeepsNewEntryEvenIfLargerThanSizeLimit() {
+        val cache = ImageDiskCache(context, hengamConfig)
+        cache.put("http://a.com/1.png", content(10), null, null)
+        cache.put("http://a.com/2.png", content(30), null, null)
+
+        assertNull(cache.get("http://a.com/1.png"))
+        assertNotNull(cache.get("http://a.com/2.png"))
+    }
+
+    @Test
+    fun isFresh_ExpiresAfterFreshTimeAndMarkValidatedRenews() {
+        val cache = ImageDiskCache(context, hengamConfig)
+        cache.put("http://a.com/1.png", content(10), "etag", null)
+
+        mockTime(10_999)
+        assertTrue(cache.isFresh(cache.get("http://a.com/1.png")!!.validatedAt))
+        mockTime(11_000)
+        assertFalse(cache.isFresh(cache.get("http://a.com/1.png")!!.validatedAt))
+
+        val entry = cache.markValidated("http://a.com/1.png")!!
+        assertTrue(cache.isFresh(entry.validatedAt))
+        assertEquals(10_000, entry.storedAt)
+        assertEquals("etag", entry.etag)
+    }
+
+    @Test
+    fun purge_RemovesEntriesNotUsedWithinExpirationTime() {
+        val cache = ImageDiskCache(context, hengamConfig)
+        cache.put("http://a.com/1.png", content(5), null, null)
+        mockTime(20_000)
+        cache.put("http://a.com/2.png", content(5), null, null)
+
+        cache.purge(millis(5000))
+        assertNull(cache.get("http://a.com/1.png"))
+        assertNotNull(cache.get("http://a.com/2.png"))
+        assertEquals(5, cache.size)
+    }
+
+    @Test
+    fun fileName_IsStableAndDistinctPerUrl() {
+        assertEquals(ImageDiskCache.fileName("http://a.com/1.png"), ImageDiskCache.fileName("http://a.com/1.png"))
+        assertNotEquals(ImageDiskCache.fileName("http://a.com/1.png"), ImageDiskCache.fileName("http://a.com/2.png"))
+        assertEquals(68, ImageDiskCache.fileName("http://a.com/1.png").length)
+    }
+}
@@ -0,0 +1,100 @@
+package io.hengam.lib.notification.utils
+
+import io.hengam.lib.utils.test.TestUtils.mockCpuThread
+import io.hengam.lib.utils.test.TestUtils.mockIoThread
+import io.reactivex.Completable
+import io.reactivex.Single
+import io.reactivex.subjects.CompletableSubject
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+
+class MediaPrefetchTest {
+    private val cpuThread = mockCpuThread()
+    private val ioThread = mockIoThread()
+
+    private var stepRuns = 0
+    private val step = Single.fromCallable { stepRuns += 1; "done" }
+
+    private fun triggerActions() {
+        cpuThread.triggerActions()
+        ioThread.triggerActions()
+    }
+
+    @Test
+    fun await_DownloadIsRunOnceForAllSubscribers() {
+        var downloads = 0
+        val prefetch = MediaPrefetch(Completable.fromCallable { downloads += 1 })
+
+        val first = prefetch.await().test()
+        val second = prefetch.await().test()
+        triggerActions()
+        val afterFinish = prefetch.await().test()
+        triggerActions()
+
+        assertEquals(1, downloads)
+        first.assertComplete()
+        second.assertComplete()
+        afterFinish.assertComplete()
+    }
+
+    @Test
+    fun await_DownloadErrorIsEmittedToAllSubscribers() {
+        val prefetch = MediaPrefetch(Completable.error(IOException()))
+
+        val first = prefetch.await().test()
+        triggerActions()
+        val afterFinish = prefetch.await().test()
+        triggerActions()
+
+        first.assertError(IOException::class.java)
+        afterFinish.assertError(IOException::class.java)
+    }
+
+    @Test
+    fun andThen_RunsStepOnIoThreadOnlyAfterDownloadCompletes() {
+        val download = CompletableSubject.create()
+        val prefetch = MediaPrefetch(download)
+
+        val result = prefetch.andThen(step).test()
+        triggerActions()
+        assertEquals(0, stepRuns)
+
+        download.onComplete()
+        cpuThread.triggerActions()
+        assertEquals(0, stepRuns)
+
+        ioThread.triggerActions()
+        assertEquals(1, stepRuns)
+        result.assertValue("done")
+    }
+
+    @Test
+    fun andThen_DoesNotRunStepIfDownloadFails() {
+        val download = CompletableSubject.create()
+        val prefetch = MediaPrefetch(download)
+
+        val result = prefetch.andThen(step).test()
+        download.onError(IOException())
+        triggerActions()
+
+        assertEquals(0, stepRuns)
+        result.assertError(IOException::class.java)
+    }
+
+    @Test
+    fun andThen_RunsStepAfterFailedDownloadIfErrorIsIgnored() {
+        val download = CompletableSubject.create()
+        val prefetch = MediaPrefetch(download)
+
+        val result = prefetch.andThen(step, ignoreError = true).test()
+        triggerActions()
+        assertEquals(0, stepRuns)
+
+        download.onError(IOException())
+        triggerActions()
+
+        assertEquals(1, stepRuns)
+        result.assertValue("done")
+    }
+}
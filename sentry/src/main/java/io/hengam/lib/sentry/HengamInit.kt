@@ -5,6 +5,7 @@ import android.util.Log
 import io.hengam.lib.Hengam
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.*
+import io.hengam.lib.internal.task.TaskRegistry
 import io.hengam.lib.sentry.messages.downstream.SentryConfigMessage
 import io.hengam.lib.sentry.tasks.SentryReportTask
 import io.hengam.lib.utils.days
@@ -20,6 +21,9 @@ class SentryInitializer : HengamComponentInitializer() {
     private var sentryClient: SentryClient? = null
 
     override fun preInitialize(context: Context) {
+        /* Register the task even if sentry is disabled so previously scheduled reports can run */
+        TaskRegistry.register(SentryReportTask::class) { SentryReportTask() }
+
         try {
             val hengamConfig = HengamConfig(context, HengamMoshi())
             if (!hengamConfig.isSentryEnabled) {
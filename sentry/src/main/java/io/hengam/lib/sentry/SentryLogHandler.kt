@@ -5,7 +5,7 @@ import io.hengam.lib.Hengam
 import io.hengam.lib.dagger.CoreComponent
 import io.hengam.lib.internal.HengamInternals
 import io.hengam.lib.messaging.fcm.TokenState
-import io.hengam.lib.utils.log.LogHandler
+import io.hengam.lib.utils.log.FilteredLogHandler
 import io.hengam.lib.utils.log.LogLevel
 import io.hengam.lib.utils.log.Plogger
 import io.sentry.SentryClient
@@ -19,7 +19,9 @@ class SentryLogHandler(
         private val sentry: SentryClient,
         private val level: LogLevel,
         private val shouldRecordLogs: Boolean
-) : LogHandler {
+) : FilteredLogHandler {
+    override val minLevel: LogLevel? = if (shouldRecordLogs) minOf(level, LogLevel.DEBUG) else level
+
     override fun onLog(logItem: Plogger.LogItem) {
         if (logItem.forceReport || logItem.level >= level) {
             val builder = EventBuilder()
@@ -36,9 +36,23 @@ object TestUtils {
         }
 
         every { HengamSchedulers.cpu } returns cpuThread
+        // Computation pool tasks run on the mocked cpu thread unless mocked separately
+        every { HengamSchedulers.computation } returns cpuThread
         return cpuThread
     }
 
+    fun mockComputationThread(): TestScheduler {
+        val computationThread = TestScheduler()
+
+        if (!schedulersMocked) {
+            mockkObject(HengamSchedulers)
+            schedulersMocked = true
+        }
+
+        every { HengamSchedulers.computation } returns computationThread
+        return computationThread
+    }
+
     fun mockIoThread(): TestScheduler {
         val ioThread = TestScheduler()
 
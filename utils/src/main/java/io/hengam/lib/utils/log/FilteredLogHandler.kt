@@ -0,0 +1,18 @@
+package io.hengam.lib.utils.log
+
+/**
+ * A [LogHandler] which only handles logs above a certain level.
+ *
+ * The [Plogger] uses the [minLevel] of its handlers to skip building logs which will not be
+ * handled by any handler. Handlers which do not implement this interface are assumed to handle
+ * logs of all levels.
+ */
+interface FilteredLogHandler : LogHandler {
+    /**
+     * The lowest level of logs handled by this handler or `null` if the handler does not handle
+     * any logs, except for breadcrumbs or logs which are forcefully reported.
+     *
+     * The value should not change once the handler has been added to a [Plogger].
+     */
+    val minLevel: LogLevel?
+}
@@ -0,0 +1,175 @@
+package io.hengam.lib.utils.log
+
+import io.reactivex.Scheduler
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Aggregates logs which have an aggregation key (see [Plogger.LogItem.aggregate]).
+ *
+ * Logs with the same key are collected until no new log is received for the key's aggregation
+ * time, at which point the collected logs are passed to [onAggregationComplete] as a single
+ * [Plogger.AggregatedLogItem] (or as the original log if only one log was received).
+ *
+ * Aggregations are kept in [SHARD_COUNT] separately locked shards so logs with different keys can
+ * be added from different threads without contending on a single lock. At most
+ * [MAX_RETAINED_LOGS] logs are retained for each key, any further logs are only counted (see
+ * [Plogger.AggregatedLogItem.count]).
+ *
+ * Aggregation deadlines are tracked with a hashed timer wheel which ticks on the given [scheduler]
+ * every [TICK_MILLIS] milliseconds, but only while there are pending aggregations. An aggregation
+ * is only placed in the wheel once when it is created. If more logs are received for it, it's
+ * deadline is updated and it is moved to the new deadline's slot once it's original slot expires.
+ */
+internal class LogAggregator(
+        private val plogger: Plogger,
+        @Volatile var scheduler: Scheduler,
+        private val onAggregationComplete: (Plogger.LogItem) -> Unit
+) {
+    private class Aggregation(val key: String, val firstLog: Plogger.LogItem, val aggregationTime: Long) {
+        val logs = ArrayList<Plogger.LogItem>()
+        var count = 0
+        var deadline = 0L
+        var wheelTick = 0L
+    }
+
+    private val shards = Array(SHARD_COUNT) { HashMap<String, Aggregation>() }
+
+    private val wheelLock = Any()
+    private val wheel = Array(WHEEL_SIZE) { ArrayList<Aggregation>() }
+    private var wheelSize = 0
+    private var lastProcessedTick = 0L
+    private var isTickScheduled = false
+
+    private val droppedLogs = AtomicLong()
+
+    /**
+     * The number of logs which were not retained because their aggregation already held
+     * [MAX_RETAINED_LOGS] logs
+     */
+    val droppedLogCount: Long get() = droppedLogs.get()
+
+    fun add(logItem: Plogger.LogItem) {
+        val key = logItem.aggregationKey ?: return
+        val aggregationTime = logItem.aggregationTime ?: return
+        val now = scheduler.now(TimeUnit.MILLISECONDS)
+
+        val shard = shards[shardIndex(key)]
+        var newAggregation: Aggregation? = null
+        synchronized(shard) {
+            val aggregation = shard[key] ?: Aggregation(key, logItem, aggregationTime).also {
+                shard[key] = it
+                newAggregation = it
+            }
+            aggregation.count += 1
+            if (aggregation.logs.size < MAX_RETAINED_LOGS) {
+                aggregation.logs.add(logItem)
+            } else {
+                droppedLogs.incrementAndGet()
+            }
+            aggregation.deadline = now + aggregation.aggregationTime
+        }
+
+        newAggregation?.let { schedule(it, now + it.aggregationTime) }
+    }
+
+    private fun schedule(aggregation: Aggregation, deadline: Long) {
+        synchronized(wheelLock) {
+            if (!isTickScheduled) {
+                // The wheel has been idle, skip the ticks which have passed since
+                lastProcessedTick = maxOf(lastProcessedTick, scheduler.now(TimeUnit.MILLISECONDS) / TICK_MILLIS - 1)
+            }
+
+            val tick = maxOf((deadline + TICK_MILLIS - 1) / TICK_MILLIS, lastProcessedTick + 1)
+            aggregation.wheelTick = tick
+            wheel[(tick % WHEEL_SIZE).toInt()].add(aggregation)
+            wheelSize += 1
+
+            if (!isTickScheduled) {
+                isTickScheduled = true
+                scheduler.scheduleDirect({ onTick() }, TICK_MILLIS, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    private fun onTick() {
+        val now = scheduler.now(TimeUnit.MILLISECONDS)
+        val expired = mutableListOf<Aggregation>()
+
+        synchronized(wheelLock) {
+            val currentTick = now / TICK_MILLIS
+            val ticksToProcess = minOf(currentTick - lastProcessedTick, WHEEL_SIZE.toLong())
+            for (i in 1..ticksToProcess) {
+                val slot = wheel[((lastProcessedTick + i) % WHEEL_SIZE).toInt()]
+                val iterator = slot.iterator()
+                while (iterator.hasNext()) {
+                    val aggregation = iterator.next()
+                    if (aggregation.wheelTick <= currentTick) {
+                        iterator.remove()
+                        wheelSize -= 1
+                        expired.add(aggregation)
+                    }
+                }
+            }
+            lastProcessedTick = maxOf(lastProcessedTick, currentTick)
+        }
+
+        for (aggregation in expired) {
+            val shard = shards[shardIndex(aggregation.key)]
+            val deadline = synchronized(shard) {
+                if (aggregation.deadline > now) {
+                    aggregation.deadline
+                } else {
+                    shard.remove(aggregation.key)
+                    null
+                }
+            }
+
+            if (deadline != null) {
+                schedule(aggregation, deadline)
+            } else {
+                complete(aggregation)
+            }
+        }
+
+        synchronized(wheelLock) {
+            if (wheelSize > 0) {
+                scheduler.scheduleDirect({ onTick() }, TICK_MILLIS, TimeUnit.MILLISECONDS)
+            } else {
+                isTickScheduled = false
+            }
+        }
+    }
+
+    private fun complete(aggregation: Aggregation) {
+        try {
+            val firstLog = aggregation.firstLog
+            if (aggregation.count < 2) {
+                onAggregationComplete(firstLog)
+            } else {
+                val aggregatedLog = plogger.AggregatedLogItem(
+                        aggregation.logs,
+                        message = firstLog.message,
+                        level = firstLog.level,
+                        tags = firstLog.tags,
+                        throwable = firstLog.throwable,
+                        logCatLevel = firstLog.logCatLevel,
+                        count = aggregation.count
+                )
+                firstLog.aggregator?.let { aggregatorContext -> aggregatedLog.aggregatorContext() }
+                onAggregationComplete(aggregatedLog)
+            }
+        } catch (ex: Exception) {
+            onAggregationComplete(plogger.LogItem(message = ex.message ?: "", level = LogLevel.ERROR, throwable = ex))
+        }
+    }
+
+    private fun shardIndex(key: String): Int = (key.hashCode() and Int.MAX_VALUE) % SHARD_COUNT
+
+    companion object {
+        const val SHARD_COUNT = 8
+        const val MAX_RETAINED_LOGS = 100
+        const val TICK_MILLIS = 50L
+        const val WHEEL_SIZE = 128
+    }
+}
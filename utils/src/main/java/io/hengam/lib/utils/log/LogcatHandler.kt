@@ -5,7 +5,9 @@ class LogcatLogHandler(
         private val level: LogLevel?,
         private val includeLogData: Boolean,
         private val useFullTags: Boolean
-) : LogHandler {
+) : FilteredLogHandler {
+    override val minLevel: LogLevel? = level
+
     override fun onLog(logItem: Plogger.LogItem) {
         if ((level == null || level > (logItem.logCatLevel ?: logItem.level))) {
             return
@@ -1,12 +1,10 @@
 package io.hengam.lib.utils.log
 
 import io.hengam.lib.utils.Time
-import io.hengam.lib.utils.rx.justDo
 import com.squareup.moshi.Json
 import io.reactivex.Scheduler
 import io.reactivex.annotations.CheckReturnValue
 import io.reactivex.schedulers.Schedulers
-import io.reactivex.subjects.PublishSubject
 import java.util.*
 import java.util.concurrent.TimeUnit
 import java.util.logging.Handler
@@ -17,69 +15,63 @@ open class Plogger(
         private val parent: Plogger? = null,
         var levelFilter: LogLevel = LogLevel.INFO
 ) {
-    val aggregationDebouncers: MutableMap<String, PublishSubject<Boolean>> = mutableMapOf()
-    val aggregationLogs: MutableMap<String, MutableList<LogItem>> = mutableMapOf()
-    var aggregationScheduler: Scheduler = Schedulers.computation()
+    private val aggregator = LogAggregator(this, Schedulers.computation()) { broadcastLog(it) }
+
+    /**
+     * The scheduler on which aggregated logs are collected and delivered
+     */
+    var aggregationScheduler: Scheduler
+        get() = aggregator.scheduler
+        set(value) { aggregator.scheduler = value }
+
+    /**
+     * The number of aggregated logs which were only counted and not retained, see [AggregatedLogItem.count]
+     */
+    val droppedAggregationLogCount: Long get() = aggregator.droppedLogCount
 
     val logHandlers = ArrayList<LogHandler>()
 
+    /**
+     * The lowest level of logs handled by the handlers of this logger (see [FilteredLogHandler])
+     * or `null` if there are no handlers.
+     */
+    @Volatile
+    private var handlersLevel: LogLevel? = null
+
     @Synchronized
-    fun addHandler(handler: LogHandler) = logHandlers.add(handler)
+    fun addHandler(handler: LogHandler) = logHandlers.add(handler).also { updateHandlersLevel() }
 
     @Synchronized
-    fun removeHandler(handler: LogHandler) = logHandlers.remove(handler)
+    fun removeHandler(handler: LogHandler) = logHandlers.remove(handler).also { updateHandlersLevel() }
 
 
     @Synchronized
-    fun removeAllHandlers() = logHandlers.clear()
+    fun removeAllHandlers() = logHandlers.clear().also { updateHandlersLevel() }
 
-    private fun aggregate(logItem: LogItem) = aggregationScheduler.scheduleDirect {
-        val aggregationKey = logItem.aggregationKey
-        val aggregationTime = logItem.aggregationTime
-
-        if (aggregationKey == null || aggregationTime == null) return@scheduleDirect
+    private fun updateHandlersLevel() {
+        handlersLevel = logHandlers
+                .map { if (it is FilteredLogHandler) it.minLevel else LogLevel.TRACE }
+                .filterNotNull()
+                .min()
+    }
 
-        if (aggregationKey !in aggregationLogs) {
-            aggregationLogs[aggregationKey] = mutableListOf()
-        }
-        aggregationLogs[aggregationKey]?.add(logItem)
-
-        if (aggregationKey !in aggregationDebouncers) {
-            val debouncer = PublishSubject.create<Boolean>()
-            debouncer
-                    .debounce(aggregationTime, TimeUnit.MILLISECONDS, aggregationScheduler)
-                    .firstElement()
-                    .justDo {
-                        try {
-                            val logItems = aggregationLogs[aggregationKey]!!
-                            if (logItems.size < 2) {
-                                broadcastLog(logItem)
-                            } else {
-                                val aggregatedLog = AggregatedLogItem(
-                                        logItems,
-                                        message = logItem.message,
-                                        level = logItem.level,
-                                        tags = logItem.tags,
-                                        throwable = logItem.throwable,
-                                        logCatLevel = logItem.logCatLevel
-                                )
-                                val aggregatorContext = logItem.aggregator
-                                aggregatorContext?.let { aggregatedLog.aggregatorContext() }
-                                broadcastLog(aggregatedLog)
-                            }
-                        } catch (ex: Exception) {
-                            log(LogLevel.ERROR, ex.message ?: "", ex)
-                        }
-                        debouncer.onComplete()
-                        aggregationDebouncers.remove(aggregationKey)
-                        aggregationLogs.remove(aggregationKey)
-                    }
-            aggregationDebouncers[aggregationKey] = debouncer
-        }
-        aggregationDebouncers[aggregationKey]?.onNext(true)
+    /**
+     * Check whether a log with the given level will be delivered to any handler (of this logger or
+     * its parents). This can be used to avoid building log messages or data which will not be used.
+     */
+    fun isLoggable(level: LogLevel): Boolean {
+        if (level < levelFilter) return false
+        val handlersLevel = handlersLevel
+        return (handlersLevel != null && level >= handlersLevel) || parent?.isLoggable(level) == true
     }
 
+    private fun isLoggable(logItem: LogItem): Boolean {
+        // Breadcrumbs and forcefully reported logs may be handled regardless of their level
+        if (logItem.isBreadcrumb || logItem.forceReport) return true
+        return isLoggable(logItem.level) || logItem.logCatLevel?.let { isLoggable(it) } == true
+    }
 
+    @Synchronized
     private fun broadcastLog(logItem: LogItem) {
         if (logItem.level < levelFilter) {
             return
@@ -91,14 +83,13 @@ open class Plogger(
         parent?.log(logItem)
     }
 
-    @Synchronized
     private fun log(logItem: LogItem) {
-        if (logItem.level < levelFilter) {
+        if (logItem.level < levelFilter || !isLoggable(logItem)) {
             return
         }
 
         if (logItem.aggregationKey != null) {
-            aggregate(logItem)
+            aggregator.add(logItem)
         } else {
             broadcastLog(logItem)
         }
@@ -107,32 +98,64 @@ open class Plogger(
     private fun log(level: LogLevel, msg: String, t: Throwable? = null) =
             log(LogItem(message = msg, level = level, throwable = t))
 
-    fun trace(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.TRACE, logData = data.filterNotNull().toMap()))
-    fun trace(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.TRACE, logData = data.filterNotNull().toMap()))
-
-    fun debug(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.DEBUG, logData = data.filterNotNull().toMap()))
-    fun debug(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.DEBUG, logData = data.filterNotNull().toMap()))
-
-    fun info(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.INFO, logData = data.filterNotNull().toMap()))
-    fun info(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.INFO, logData = data.filterNotNull().toMap()))
-
-    fun warn(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(tags = mutableSetOf(tag), level = LogLevel.WARN, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun warn(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.WARN, logData = data.filterNotNull().toMap()))
-    fun warn(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.WARN, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun warn(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.WARN, logData = data.filterNotNull().toMap()))
-    fun warn(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.WARN, throwable = throwable, logData = data.filterNotNull().toMap()))
-
-    fun error(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(tags = mutableSetOf(tag), level = LogLevel.ERROR, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun error(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.ERROR, logData = data.filterNotNull().toMap()))
-    fun error(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.ERROR, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun error(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.ERROR, logData = data.filterNotNull().toMap()))
-    fun error(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.ERROR, throwable = throwable, logData = data.filterNotNull().toMap()))
+    fun trace(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.TRACE, tag, null, message, null, data)
+    fun trace(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.TRACE, firstTag, secondTag, message, null, data)
+
+    fun debug(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.DEBUG, tag, null, message, null, data)
+    fun debug(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.DEBUG, firstTag, secondTag, message, null, data)
+
+    fun info(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.INFO, tag, null, message, null, data)
+    fun info(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.INFO, firstTag, secondTag, message, null, data)
+
+    fun warn(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WARN, tag, null, null, throwable, data)
+    fun warn(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.WARN, tag, null, message, null, data)
+    fun warn(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WARN, tag, null, message, throwable, data)
+    fun warn(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.WARN, firstTag, secondTag, message, null, data)
+    fun warn(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WARN, firstTag, secondTag, message, throwable, data)
+
+    fun error(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.ERROR, tag, null, null, throwable, data)
+    fun error(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.ERROR, tag, null, message, null, data)
+    fun error(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.ERROR, tag, null, message, throwable, data)
+    fun error(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.ERROR, firstTag, secondTag, message, null, data)
+    fun error(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.ERROR, firstTag, secondTag, message, throwable, data)
+
+    fun wtf(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WTF, tag, null, null, throwable, data)
+    fun wtf(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.WTF, tag, null, message, null, data)
+    fun wtf(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WTF, tag, null, message, throwable, data)
+    fun wtf(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogLevel.WTF, firstTag, secondTag, message, null, data)
+    fun wtf(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogLevel.WTF, firstTag, secondTag, message, throwable, data)
+
+    /*
+     * Lazy overloads, the log is only built if it will be delivered to a handler. These should be
+     * preferred on hot paths where building the message or data is expensive, e.g.:
+     *
+     *     Plog.trace(T_MESSAGE) {
+     *         message = "Restored ${messages.size} messages"
+     *         withData("Ids", messages.map { it.messageId })
+     *     }
+     */
+    inline fun trace(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.TRACE, tag, buildLog)
+    inline fun debug(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.DEBUG, tag, buildLog)
+    inline fun info(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.INFO, tag, buildLog)
+    inline fun warn(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.WARN, tag, buildLog)
+    inline fun error(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.ERROR, tag, buildLog)
+    inline fun wtf(tag: String, buildLog: LogItem.() -> Unit) = logLazily(LogLevel.WTF, tag, buildLog)
+
+    @PublishedApi
+    internal inline fun logLazily(level: LogLevel, tag: String, buildLog: LogItem.() -> Unit) {
+        if (!isLoggable(level)) return
+        val logItem = LogItem(level = level)
+        logItem.tags.add(tag)
+        logItem.buildLog()
+        logItem.log()
+    }
 
-    fun wtf(tag: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(tags = mutableSetOf(tag), level = LogLevel.WTF, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun wtf(tag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.WTF, logData = data.filterNotNull().toMap()))
-    fun wtf(tag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(tag), level = LogLevel.WTF, throwable = throwable, logData = data.filterNotNull().toMap()))
-    fun wtf(firstTag: String, secondTag: String, message: String, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.WTF, logData = data.filterNotNull().toMap()))
-    fun wtf(firstTag: String, secondTag: String, message: String, throwable: Throwable?, vararg data: Pair<String, Any?>?) = log(LogItem(message = message, tags = mutableSetOf(firstTag, secondTag), level = LogLevel.WTF, throwable = throwable, logData = data.filterNotNull().toMap()))
+    private fun log(level: LogLevel, firstTag: String, secondTag: String?, message: String?, throwable: Throwable?, data: Array<out Pair<String, Any?>?>) {
+        if (!isLoggable(level)) return
+        val tags = if (secondTag == null) mutableSetOf(firstTag) else mutableSetOf(firstTag, secondTag)
+        val logData = if (data.isEmpty()) emptyMap() else data.filterNotNull().toMap()
+        log(LogItem(message = message ?: "", tags = tags, level = level, throwable = throwable, logData = logData))
+    }
 
     val trace get() = LogItem(level = LogLevel.TRACE)
     val debug get() = LogItem(level = LogLevel.DEBUG)
@@ -149,7 +172,7 @@ open class Plogger(
             var logCatLevel: LogLevel? = null,
             var logData: Map<String, Any?> = emptyMap()
     ) {
-        val timestamp: Date = Calendar.getInstance().time
+        val timestamp: Date = Date()
         var isBreadcrumb = false
             internal set
         var forceReport = false
@@ -232,13 +255,19 @@ open class Plogger(
         }
     }
 
+    /**
+     * @property logs The aggregated logs. To bound memory usage, at most
+     *                [LogAggregator.MAX_RETAINED_LOGS] logs are retained.
+     * @property count The total number of aggregated logs, including those not retained in [logs]
+     */
     inner class AggregatedLogItem(
             val logs: List<LogItem>,
             message: String?,
             tags: MutableSet<String>,
             level: LogLevel,
             throwable: Throwable?,
-            logCatLevel: LogLevel?
+            logCatLevel: LogLevel?,
+            val count: Int = logs.size
     ) : Plogger.LogItem(message, tags, level, throwable, logCatLevel) {
         override fun aggregate(key: String, time: Long, timeUnits: TimeUnit, aggregator: LogAggregatorContext): LogItem {
             return this
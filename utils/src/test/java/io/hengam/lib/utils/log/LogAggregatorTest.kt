@@ -0,0 +1,133 @@
+package io.hengam.lib.utils.log
+
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class LogAggregatorTest {
+    private val scheduler = TestScheduler()
+    private val plogger = Plogger()
+    private val completedLogs = mutableListOf<Plogger.LogItem>()
+    private val aggregator = LogAggregator(plogger, scheduler) { completedLogs.add(it) }
+
+    private fun aggregatedLog(key: String, message: String = "Log", time: Long = 1000,
+                              aggregatorContext: LogAggregatorContext = {}) =
+            plogger.warn.message(message).aggregate(key, time, TimeUnit.MILLISECONDS, aggregatorContext)
+
+    private fun advanceTimeTo(millis: Long) = scheduler.advanceTimeTo(millis, TimeUnit.MILLISECONDS)
+
+    @Test
+    fun add_IgnoresLogsWithoutAggregationKey() {
+        aggregator.add(plogger.warn.message("Log"))
+        advanceTimeTo(10_000)
+        assertTrue(completedLogs.isEmpty())
+    }
+
+    @Test
+    fun add_SingleLogIsCompletedUnchangedOnceAggregationTimePasses() {
+        val log = aggregatedLog("key")
+        aggregator.add(log)
+
+        advanceTimeTo(900)
+        assertTrue(completedLogs.isEmpty())
+
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+        assertEquals(listOf(log), completedLogs)
+    }
+
+    @Test
+    fun add_LogsWithSameKeyAreCompletedAsSingleAggregatedLog() {
+        val logs = (1..3).map { aggregatedLog("key", "Log $it") }
+        logs.forEach { aggregator.add(it) }
+
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+
+        assertEquals(1, completedLogs.size)
+        val aggregatedLog = completedLogs[0] as Plogger.AggregatedLogItem
+        assertEquals(logs, aggregatedLog.logs)
+        assertEquals(3, aggregatedLog.count)
+        assertEquals("Log 1", aggregatedLog.message)
+        assertEquals(LogLevel.WARN, aggregatedLog.level)
+    }
+
+    @Test
+    fun add_NewLogsExtendTheAggregationWindow() {
+        aggregator.add(aggregatedLog("key"))
+        advanceTimeTo(600)
+        aggregator.add(aggregatedLog("key"))
+
+        advanceTimeTo(1500)
+        assertTrue(completedLogs.isEmpty())
+
+        advanceTimeTo(1600 + LogAggregator.TICK_MILLIS)
+        assertEquals(1, completedLogs.size)
+        assertEquals(2, (completedLogs[0] as Plogger.AggregatedLogItem).count)
+    }
+
+    @Test
+    fun add_LogsWithDifferentKeysAreAggregatedSeparately() {
+        aggregator.add(aggregatedLog("key-1", time = 1000))
+        aggregator.add(aggregatedLog("key-2", time = 2000))
+        aggregator.add(aggregatedLog("key-2", time = 2000))
+
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+        assertEquals(1, completedLogs.size)
+        assertFalse(completedLogs[0] is Plogger.AggregatedLogItem)
+
+        advanceTimeTo(2000 + LogAggregator.TICK_MILLIS)
+        assertEquals(2, completedLogs.size)
+        assertEquals(2, (completedLogs[1] as Plogger.AggregatedLogItem).count)
+    }
+
+    @Test
+    fun add_LogsAfterCompletionStartNewAggregation() {
+        aggregator.add(aggregatedLog("key"))
+        aggregator.add(aggregatedLog("key"))
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+
+        aggregator.add(aggregatedLog("key"))
+        advanceTimeTo(5000)
+
+        assertEquals(2, completedLogs.size)
+        assertEquals(2, (completedLogs[0] as Plogger.AggregatedLogItem).count)
+        assertFalse(completedLogs[1] is Plogger.AggregatedLogItem)
+    }
+
+    @Test
+    fun add_RetainsLimitedNumberOfLogsButCountsAll() {
+        val total = LogAggregator.MAX_RETAINED_LOGS + 20
+        repeat(total) { aggregator.add(aggregatedLog("key")) }
+
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+
+        val aggregatedLog = completedLogs.single() as Plogger.AggregatedLogItem
+        assertEquals(LogAggregator.MAX_RETAINED_LOGS, aggregatedLog.logs.size)
+        assertEquals(total, aggregatedLog.count)
+        assertEquals(20L, aggregator.droppedLogCount)
+    }
+
+    @Test
+    fun add_AppliesAggregatorContextToAggregatedLog() {
+        repeat(3) {
+            aggregator.add(aggregatedLog("key") { message("Aggregated $count logs") })
+        }
+
+        advanceTimeTo(1000 + LogAggregator.TICK_MILLIS)
+
+        assertEquals("Aggregated 3 logs", completedLogs.single().message)
+    }
+
+    @Test
+    fun add_AggregatesLogsWithDeadlinesLongerThanWheelRevolution() {
+        val time = LogAggregator.TICK_MILLIS * LogAggregator.WHEEL_SIZE * 2
+        aggregator.add(aggregatedLog("key", time = time))
+        aggregator.add(aggregatedLog("key", time = time))
+
+        advanceTimeTo(time - 100)
+        assertTrue(completedLogs.isEmpty())
+
+        advanceTimeTo(time + LogAggregator.TICK_MILLIS)
+        assertEquals(2, (completedLogs.single() as Plogger.AggregatedLogItem).count)
+    }
+}
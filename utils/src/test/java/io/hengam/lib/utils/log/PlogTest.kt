@@ -0,0 +1,68 @@
+package io.hengam.lib.utils.log
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class PlogTest {
+    private val plogger = Plogger(levelFilter = LogLevel.TRACE)
+    private val handledLogs = mutableListOf<Plogger.LogItem>()
+
+    private fun addHandler(level: LogLevel?) {
+        plogger.addHandler(object : FilteredLogHandler {
+            override val minLevel: LogLevel? = level
+            override fun onLog(logItem: Plogger.LogItem) { handledLogs.add(logItem) }
+        })
+    }
+
+    @Test
+    fun minLevel_LogsBelowHandlerLevelAreNotDeliveredOrBuilt() {
+        addHandler(LogLevel.WARN)
+        var lazyBlockRuns = 0
+
+        plogger.trace("Tag", "Trace log", "Key" to "Value")
+        plogger.debug("Tag", "Debug log", "Key" to "Value")
+        plogger.trace("Tag") { lazyBlockRuns++; message = "Lazy trace log" }
+        plogger.debug("Tag") { lazyBlockRuns++; message = "Lazy debug log" }
+        plogger.debug.message("Built debug log").withTag("Tag").log()
+
+        assertTrue(handledLogs.isEmpty())
+        assertEquals(0, lazyBlockRuns)
+        assertFalse(plogger.isLoggable(LogLevel.DEBUG))
+    }
+
+    @Test
+    fun minLevel_LogsAtOrAboveHandlerLevelAreDeliveredAndBuilt() {
+        addHandler(LogLevel.WARN)
+        var lazyBlockRuns = 0
+
+        plogger.warn("Tag", "Warn log")
+        plogger.error("Tag") { lazyBlockRuns++; message = "Lazy error log" }
+
+        assertEquals(listOf("Warn log", "Lazy error log"), handledLogs.map { it.message })
+        assertEquals(1, lazyBlockRuns)
+    }
+
+    @Test
+    fun minLevel_LowestLevelOfAllHandlersIsUsed() {
+        addHandler(LogLevel.WARN)
+        addHandler(LogLevel.DEBUG)
+        var lazyBlockRuns = 0
+
+        plogger.trace("Tag") { lazyBlockRuns++; message = "Lazy trace log" }
+        plogger.debug("Tag") { lazyBlockRuns++; message = "Lazy debug log" }
+
+        assertEquals(1, lazyBlockRuns)
+        assertEquals(listOf("Lazy debug log", "Lazy debug log"), handledLogs.map { it.message })
+    }
+
+    @Test
+    fun minLevel_HandlersWithoutLevelDoNotEnableLogs() {
+        addHandler(null)
+        var lazyBlockRuns = 0
+
+        plogger.wtf("Tag") { lazyBlockRuns++; message = "Lazy wtf log" }
+
+        assertTrue(handledLogs.isEmpty())
+        assertEquals(0, lazyBlockRuns)
+    }
+}